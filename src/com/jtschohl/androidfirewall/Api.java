@@ -25,17 +25,14 @@
 
 package com.jtschohl.androidfirewall;
 
-import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.ObjectOutputStream;
-import java.io.StringReader;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
-import java.util.HashMap;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Locale;
 import java.util.StringTokenizer;
@@ -50,15 +47,28 @@ import android.content.pm.ApplicationInfo;
 import android.content.pm.PackageManager;
 import android.content.res.Configuration;
 import android.graphics.drawable.Drawable;
-import android.os.AsyncTask;
 import android.os.Build;
 import android.os.Environment;
+import android.os.Handler;
+import android.os.Looper;
 import android.preference.PreferenceManager;
 import android.telephony.TelephonyManager;
 import android.util.Log;
 import android.util.SparseArray;
 import android.widget.Toast;
-import eu.chainfire.libsuperuser.Shell;
+
+import com.jtschohl.androidfirewall.rules.Chain;
+import com.jtschohl.androidfirewall.rules.DeltaEmitter;
+import com.jtschohl.androidfirewall.rules.Emitter;
+import com.jtschohl.androidfirewall.rules.Family;
+import com.jtschohl.androidfirewall.rules.FirewallConfig;
+import com.jtschohl.androidfirewall.rules.NftEmitter;
+import com.jtschohl.androidfirewall.rules.RestoreEmitter;
+import com.jtschohl.androidfirewall.rules.RuleCompiler;
+import com.jtschohl.androidfirewall.rules.Ruleset;
+import com.jtschohl.androidfirewall.rules.RulesetCache;
+import com.jtschohl.androidfirewall.rules.ShellEmitter;
+import com.jtschohl.androidfirewall.rules.Table;
 
 /**
  * Contains shared programming interfaces. All iptables "communication" is
@@ -70,9 +80,9 @@ public final class Api {
 	public static final String TAG = "{AF}";
 
 	/** special application UID used to indicate "Any application" */
-	public static final int SPECIAL_UID_ANY = -10;
+	public static final int SPECIAL_UID_ANY = FirewallConfig.SPECIAL_UID_ANY;
 	/** special application UID used to indicate the Linux Kernel */
-	public static final int SPECIAL_UID_KERNEL = -11;
+	public static final int SPECIAL_UID_KERNEL = FirewallConfig.SPECIAL_UID_KERNEL;
 
 	// Preferences
 	public static String PREFS_NAME = "AndroidFirewallPrefs";
@@ -148,6 +158,16 @@ public final class Api {
 
 	// Cached applications
 	public static List<DroidApp> applications = null;
+	// Ruleset installed by the last successful apply, null if unknown
+	private static Ruleset appliedRules = null;
+	// settings appliedRules was compiled from
+	private static FirewallConfig appliedConfig = null;
+	// result of the nftables probe, null if not probed yet
+	private static Boolean nftAvailable = null;
+	/** compiled rulesets, by digest of their settings */
+	private static RulesetCache rulesetCache = null;
+	/** profiles times roaming states is a good guess */
+	private static final int RULESET_CACHE_SIZE = 8;
 
 	/**
 	 * Display a simple alert box
@@ -157,21 +177,48 @@ public final class Api {
 	 * @param msg
 	 *            message
 	 */
-	public static void alert(Context ctx, CharSequence msg) {
-		if (ctx != null) {
+	public static void alert(final Context ctx, final CharSequence msg) {
+		if (ctx == null) {
+			return;
+		}
+		if (Looper.myLooper() == Looper.getMainLooper()) {
 			Toast.makeText(ctx, msg, Toast.LENGTH_SHORT).show();
+		} else {
+			// rules are applied in the background
+			new Handler(Looper.getMainLooper()).post(new Runnable() {
+				@Override
+				public void run() {
+					Toast.makeText(ctx, msg, Toast.LENGTH_SHORT).show();
+				}
+			});
 		}
 	}
 
 	/**
 	 * Create the generic shell script header used to determine which iptables
-	 * binary to use.
+	 * binary to use. The probed toolchain is used if known.
 	 * 
 	 * @param ctx
 	 *            context
 	 * @return script header
 	 */
 	private static String scriptHeader(Context ctx) {
+		final Toolchain tc = Toolchain.get(ctx);
+		if (tc != null) {
+			return tc.getHeader();
+		}
+		return probingHeader(ctx);
+	}
+
+	/**
+	 * Script header finding the binaries itself, for when the toolchain
+	 * could not be probed
+	 * 
+	 * @param ctx
+	 *            context
+	 * @return script header
+	 */
+	private static String probingHeader(Context ctx) {
 		final String dir = ctx.getDir("bin", 0).getAbsolutePath();
 		String arch = System.getProperty("os.arch");
 		String myiptables = null;
@@ -227,6 +274,28 @@ public final class Api {
 				+ myiptables + "\n" + "fi\n" + "";
 	}
 
+	/**
+	 * Minimal script header for scripts that only run iptables, without
+	 * probing: the binaries were found by the last apply.
+	 * 
+	 * @param ctx
+	 *            context
+	 * @return script header setting $IPTABLES and $IP6TABLES
+	 */
+	private static String toolHeader(Context ctx) {
+		final Toolchain tc = Toolchain.get(ctx);
+		if (tc != null) {
+			final String wait = tc.waitLock ? " -w" : "";
+			return "IPTABLES=\"" + tc.iptables + wait + "\"\n"
+					+ "IP6TABLES=\"ip6tables" + wait + "\"\n";
+		}
+		return "IPTABLES="
+				+ (Build.VERSION.SDK_INT >= Build.VERSION_CODES.ICE_CREAM_SANDWICH ? "iptables"
+						: ctx.getDir("bin", 0).getAbsolutePath()
+								+ "/iptables_armv5") + "\n"
+				+ "IP6TABLES=ip6tables\n";
+	}
+
 	/**
 	 * Copies a raw resource file, given its ID to the given location
 	 * 
@@ -261,1466 +330,277 @@ public final class Api {
 	}
 
 	/**
-	 * Purge and re-add all rules (internal implementation).
+	 * Read the firewall settings used by the rule compiler. The UID lists are
+	 * left empty and must be filled in by the caller.
 	 * 
 	 * @param ctx
 	 *            application context (mandatory)
-	 * @param uidsWifi
-	 *            list of selected UIDs for WIFI to allow or disallow (depending
-	 *            on the working mode)
-	 * @param uids3g
-	 *            list of selected UIDs for 2G/3G to allow or disallow
-	 *            (depending on the working mode)
-	 * @param uids_input_wifi
-	 * @param showErrors
-	 *            indicates if errors should be alerted
+	 * @return the firewall settings
+	 */
+	static FirewallConfig getFirewallConfig(Context ctx) {
+		return getFirewallConfig(ctx, ctx.getSharedPreferences(PREFS_NAME, 0));
+	}
+
+	/**
+	 * @return the log target, the other one if the kernel lacks it, or ""
+	 */
+	private static String availableLogTarget(Toolchain tc, String target,
+			boolean ipv6) {
+		if (!target.equals("LOG") && !target.equals("NFLOG")
+				|| tc.hasTarget(target, ipv6)) {
+			return target;
+		}
+		// a rule the kernel refuses fails the whole commit
+		final String other = target.equals("NFLOG") ? "LOG" : "NFLOG";
+		final String res = tc.hasTarget(other, ipv6) ? other : "";
+		Log.d(TAG, "No " + (ipv6 ? "IPv6 " : "") + target
+				+ " target, logging with "
+				+ (res.length() > 0 ? res : "nothing"));
+		return res;
+	}
+
+	/**
+	 * Read the firewall settings of a profile, see getFirewallConfig(Context)
+	 * 
+	 * @param ctx
+	 *            application context (mandatory)
+	 * @param prefs
+	 *            the working settings or a saved profile
+	 * @return the firewall settings
+	 */
+	static FirewallConfig getFirewallConfig(Context ctx,
+			SharedPreferences prefs) {
+		final InterfaceInfo itf = InterfaceTracker.getCurrentCfg(ctx);
+		final FirewallConfig cfg = new FirewallConfig();
+		cfg.chainName = PreferenceManager.getDefaultSharedPreferences(ctx)
+				.getString("chainName", "");
+		cfg.whitelist = prefs.getString(PREF_MODE, MODE_WHITELIST).equals(
+				MODE_WHITELIST);
+		cfg.logEnabled = prefs.getBoolean(PREF_LOGENABLED, false);
+		cfg.logAcceptEnabled = prefs.getBoolean(PREF_LOGACCEPTENABLED, false);
+		cfg.logTarget = prefs.getString(PREF_LOGTARGET, "");
+		cfg.logTargetIpv6 = cfg.logTarget;
+		final Toolchain tc = Toolchain.get(ctx);
+		if (tc != null) {
+			cfg.ownerRanges = tc.ownerRange;
+			cfg.logTarget = availableLogTarget(tc, cfg.logTarget, false);
+			cfg.logTargetIpv6 = availableLogTarget(tc, cfg.logTargetIpv6,
+					true);
+		}
+		cfg.vpnEnabled = prefs.getBoolean(PREF_VPNENABLED, false);
+		cfg.lanEnabled = prefs.getBoolean(PREF_LANENABLED, false);
+		cfg.ipv6Enabled = prefs.getBoolean(PREF_IP6TABLES, false);
+		cfg.tetherEnabled = prefs.getBoolean(PREF_TETHER, false);
+		cfg.inputEnabled = prefs.getBoolean(PREF_INPUTENABLED, false);
+		cfg.roamingEnabled = prefs.getBoolean(PREF_ROAMENABLED, false);
+		cfg.roaming = cfg.roamingEnabled && isRoaming(ctx);
+		cfg.vpnMarks = Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT;
+		cfg.dhcpUid = android.os.Process.getUidForName("dhcp");
+		cfg.wifiUid = android.os.Process.getUidForName("wifi");
+		cfg.lanIpv4 = itf.lanipv4;
+		cfg.lanIpv6 = itf.lanipv6;
+		// only the interfaces this device has; VPN interfaces come and go
+		// without a connectivity broadcast on older releases, keep them all
+		InterfaceInventory.scan(ctx);
+		cfg.itfs3g = InterfaceInventory.filter(ctx, ITFS_3G);
+		cfg.itfsWifi = InterfaceInventory.filter(ctx, ITFS_WIFI);
+		cfg.itfsVpn = ITFS_VPN;
+		cfg.itfsTether = InterfaceInventory.filter(ctx, ITFS_TETHER);
+		cfg.itfs3gUnseen = InterfaceInventory.unseen(ctx, ITFS_3G);
+		cfg.itfsWifiUnseen = InterfaceInventory.unseen(ctx, ITFS_WIFI);
+		cfg.customScript = prefs.getString(PREF_CUSTOMSCRIPT, "");
+		cfg.installedUids = getInstalledUids(ctx);
+		return cfg;
+	}
+
+	/**
+	 * Fill in the UID lists of a config from the saved selection
 	 * 
-	 *            Many thanks to Ventz for his independent work with the VPN
-	 *            rules and figuring out how to get the VPN functionality he
-	 *            wanted and then forwarding the rules to me to implement in the
-	 *            app. Thank you sir, many times over!
+	 * @param cfg
+	 *            config to fill in
+	 * @param prefs
+	 *            the working settings or a saved profile
+	 */
+	static void readSavedUids(FirewallConfig cfg, SharedPreferences prefs) {
+		cfg.uidsWifi = getListFromPref(prefs.getString(PREF_WIFI_UIDS, ""));
+		cfg.uids3g = getListFromPref(prefs.getString(PREF_3G_UIDS, ""));
+		cfg.uidsRoaming = getListFromPref(prefs.getString(PREF_ROAMING_UIDS,
+				""));
+		cfg.uidsVpn = getListFromPref(prefs.getString(PREF_VPN_UIDS, ""));
+		cfg.uidsLan = getListFromPref(prefs.getString(PREF_LAN_UIDS, ""));
+		cfg.uidsInputWifi = getListFromPref(prefs.getString(
+				PREF_INPUT_WIFI_UIDS, ""));
+	}
+
+	/**
+	 * @return the sorted UIDs of all installed applications, used to merge
+	 *         selected UIDs into ranges
+	 */
+	private static int[] getInstalledUids(Context ctx) {
+		final List<ApplicationInfo> installed = ctx.getPackageManager()
+				.getInstalledApplications(0);
+		final int[] uids = new int[installed.size()];
+		for (int i = 0; i < uids.length; i++) {
+			uids[i] = installed.get(i).uid;
+		}
+		Arrays.sort(uids);
+		return uids;
+	}
+
+	/**
+	 * Check whether nft is installed and the kernel has nf_tables support,
+	 * from the probed toolchain or else once per process
 	 * 
+	 * @param ctx
+	 *            application context
+	 * @return true if the nftables backend can be used
+	 */
+	private static boolean hasNftables(Context ctx) {
+		final Toolchain tc = Toolchain.get(ctx);
+		if (tc != null) {
+			nftAvailable = tc.nft;
+		}
+		if (nftAvailable == null) {
+			final StringBuilder res = new StringBuilder();
+			try {
+				runScriptAsRoot(ctx,
+						"nft list tables >/dev/null 2>&1 && echo nft_ok\n", res);
+			} catch (IOException e) {
+				Log.d(TAG, "nft probe failed: " + e);
+			}
+			nftAvailable = res.indexOf("nft_ok") >= 0;
+			Log.d(TAG, "nftables available: " + nftAvailable);
+		}
+		return nftAvailable;
+	}
+
+	/**
+	 * @return the emitter installing a whole ruleset
 	 */
+	private static Emitter getFullEmitter(Context ctx) {
+		final Toolchain tc = Toolchain.get(ctx);
+		if (tc != null) {
+			return tc.iptablesRestore ? new RestoreEmitter()
+					: new ShellEmitter();
+		}
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.ICE_CREAM_SANDWICH) {
+			// commit each table in one go, the bundled iptables used on older
+			// releases has no restore counterpart
+			return new RestoreEmitter();
+		}
+		return new ShellEmitter();
+	}
 
-	private static boolean applyIptablesRulesImpl(Context ctx,
-			List<Integer> uidsWifi, List<Integer> uids3g,
-			List<Integer> uidsroaming, List<Integer> uidsvpn,
-			List<Integer> uidslan, List<Integer> uidsinputwifi,
-			boolean showErrors) {
-		if (ctx == null) {
-			return false;
+	/**
+	 * @return the cache of compiled rulesets
+	 */
+	private static synchronized RulesetCache getRulesetCache(Context ctx) {
+		if (rulesetCache == null) {
+			rulesetCache = new RulesetCache(new File(ctx.getCacheDir(),
+					"rulesets"), RULESET_CACHE_SIZE);
 		}
-		assertBinaries(ctx, showErrors);
+		return rulesetCache;
+	}
 
-		final InterfaceInfo config = InterfaceTracker.getCurrentCfg(ctx);
+	/**
+	 * Choose the backend used to install a ruleset. nftables is preferred if
+	 * available; with iptables, once a ruleset has been applied, only the
+	 * changes to it are sent.
+	 */
+	private static Emitter getEmitter(Context ctx, Ruleset rules,
+			String chainName, Emitter full) {
+		// the custom script relies on running between our iptables rules
+		if (!rules.hasCustomScript() && hasNftables(ctx)) {
+			return new NftEmitter(chainName, full);
+		}
+		return new DeltaEmitter(appliedRules, full);
+	}
+
+	/**
+	 * Install a ruleset, only sending the changes to the applied one where
+	 * the backend allows it
+	 * 
+	 * @param ctx
+	 *            application context (mandatory)
+	 * @param cfg
+	 *            settings of the ruleset
+	 * @param compiled
+	 *            the ruleset compiled from cfg, or null to take it from the
+	 *            ruleset cache or compile it here
+	 * @param showErrors
+	 *            indicates if errors should be alerted
+	 */
+	private static boolean installRules(Context ctx, FirewallConfig cfg,
+			Ruleset compiled, boolean showErrors) {
 		final SharedPreferences prefs = ctx.getSharedPreferences(PREFS_NAME, 0);
-		final boolean whitelist = prefs.getString(PREF_MODE, MODE_WHITELIST)
-				.equals(MODE_WHITELIST);
-		final boolean blacklist = !whitelist;
-		final boolean logenabled = ctx.getSharedPreferences(PREFS_NAME, 0)
-				.getBoolean(PREF_LOGENABLED, false);
-		final boolean vpnenabled = ctx.getSharedPreferences(PREFS_NAME, 0)
-				.getBoolean(PREF_VPNENABLED, false);
-		final boolean lanenabled = ctx.getSharedPreferences(PREFS_NAME, 0)
-				.getBoolean(PREF_LANENABLED, false);
-		final boolean roamenabled = ctx.getSharedPreferences(PREFS_NAME, 0)
-				.getBoolean(PREF_ROAMENABLED, false);
-		final boolean ipv6enabled = ctx.getSharedPreferences(PREFS_NAME, 0)
-				.getBoolean(PREF_IP6TABLES, false);
-		final boolean enabled = ctx.getSharedPreferences(PREFS_NAME, 0)
-				.getBoolean(PREF_ENABLED, false);
-		final boolean tetherenabled = ctx.getSharedPreferences(PREFS_NAME, 0)
-				.getBoolean(PREF_TETHER, false);
-		final String logtarget = ctx.getSharedPreferences(PREFS_NAME, 0)
-				.getString(PREF_LOGTARGET, "");
-		final boolean inputenabled = ctx.getSharedPreferences(PREFS_NAME, 0)
-				.getBoolean(PREF_INPUTENABLED, false);
-		final boolean logacceptenabled = ctx
-				.getSharedPreferences(PREFS_NAME, 0).getBoolean(
-						PREF_LOGACCEPTENABLED, false);
-		final String customScript = ctx.getSharedPreferences(PREFS_NAME, 0)
-				.getString(Api.PREF_CUSTOMSCRIPT, "");
-		SharedPreferences prefs2 = PreferenceManager
-				.getDefaultSharedPreferences(ctx);
-		final String chainName = prefs2.getString("chainName", "");
+		final boolean ipv6enabled = prefs.getBoolean(PREF_IP6TABLES, false);
+		final boolean enabled = prefs.getBoolean(PREF_ENABLED, false);
 
 		final StringBuilder script = new StringBuilder();
-		Log.d(TAG, chainName);
+		Log.d(TAG, cfg.chainName);
 		try {
 			int code;
-			script.append(scriptHeader(ctx));
-			script.append("" + "dmesg -c >/dev/null || exit\n"
-					+ "$IPTABLES --version || exit 1\n"
-					+ "# Create the droidwall chains if necessary\n"
-					+ "$IPTABLES -L "
-					+ chainName
-					+ " >/dev/null 2>/dev/null || $IPTABLES --new "
-					+ chainName
-					+ " || exit 3\n"
-					+ "$IPTABLES -L "
-					+ chainName
-					+ "-3g >/dev/null 2>/dev/null || $IPTABLES --new "
-					+ chainName
-					+ "-3g || exit 4\n"
-					+ "$IPTABLES -L "
-					+ chainName
-					+ "-wifi >/dev/null 2>/dev/null || $IPTABLES --new "
-					+ chainName
-					+ "-wifi || exit 5\n"
-					+ "$IPTABLES -L "
-					+ chainName
-					+ "-reject >/dev/null 2>/dev/null || $IPTABLES --new "
-					+ chainName
-					+ "-reject || exit 6\n"
-					+ "$IPTABLES -L "
-					+ chainName
-					+ "-accept >/dev/null 2>/dev/null || $IPTABLES --new "
-					+ chainName
-					+ "-accept || exit 6\n"
-					+ "$IPTABLES -L "
-					+ chainName
-					+ "-input-accept >/dev/null 2>/dev/null || $IPTABLES --new "
-					+ chainName
-					+ "-input-accept || exit 6\n"
-					+ "$IPTABLES -L "
-					+ chainName
-					+ "-input-drop >/dev/null 2>/dev/null || $IPTABLES --new "
-					+ chainName
-					+ "-input-drop || exit 6\n"
-					+ "$IPTABLES -L "
-					+ chainName
-					+ "-vpn >/dev/null 2>/dev/null || $IPTABLES --new "
-					+ chainName
-					+ "-vpn || exit 7 \n"
-					+ "$IPTABLES -L "
-					+ chainName
-					+ "-lan >/dev/null 2>/dev/null || $IPTABLES --new "
-					+ chainName
-					+ "-lan || exit 7 \n"
-					+ "$IPTABLES -L "
-					+ chainName
-					+ "-input >/dev/null 2>/dev/null || $IPTABLES --new "
-					+ chainName
-					+ "-input || exit 501\n"
-					+ "# Add droidwall chain to OUTPUT chain if necessary\n"
-					+ "$IPTABLES -L OUTPUT | $GREP -q "
-					+ chainName
-					+ " || $IPTABLES -A OUTPUT -j "
-					+ chainName
-					+ " || exit 11\n"
-					+ "# Add droidwall-input chain to INPUT chain if necessary\n"
-					+ "$IPTABLES -L INPUT | $GREP -q "
-					+ chainName
-					+ "-input || $IPTABLES -A INPUT -j "
-					+ chainName
-					+ "-input || exit 1111\n"
-					+ "# Flush existing rules\n"
-					+ "$IPTABLES -F "
-					+ chainName
-					+ " || exit 17\n"
-					+ "$IPTABLES -F "
-					+ chainName
-					+ "-3g || exit 18\n"
-					+ "$IPTABLES -F "
-					+ chainName
-					+ "-wifi || exit 19\n"
-					+ "$IPTABLES -F "
-					+ chainName
-					+ "-reject || exit 20\n"
-					+ "$IPTABLES -F "
-					+ chainName
-					+ "-vpn || exit 20\n"
-					+ "$IPTABLES -F "
-					+ chainName
-					+ "-lan || exit 20\n"
-					+ "$IPTABLES -F "
-					+ chainName
-					+ "-input || exit 503\n"
-					+ "$IPTABLES -F "
-					+ chainName
-					+ "-input-drop || exit 503\n"
-					+ "$IPTABLES -F "
-					+ chainName
-					+ "-accept || exit 503\n"
-					+ "$IPTABLES -F "
-					+ chainName
-					+ "-input-accept || exit 503\n"
-					+ "# Create reject rule and fix for WiFi slow DNS lookups\n"
-					+ "$IPTABLES -A "
-					+ chainName
-					+ " -m owner --uid-owner 0 -p udp --dport 53 -j RETURN || exit 22\n"
-					+ "$IPTABLES -A "
-					+ chainName
-					+ " -m owner --uid-owner 1000 -p udp --dport 123 -j RETURN || exit 22\n"
-					+ "$IPTABLES -D INPUT -j "
-					+ chainName
-					+ "-input || exit 507\n"
-					+ "$IPTABLES -I INPUT 1 -j "
-					+ chainName
-					+ "-input || exit 508\n"
-					+ "$IPTABLES -D OUTPUT -j "
-					+ chainName
-					+ " || exit 11\n"
-					+ "$IPTABLES -I OUTPUT 1 -j "
-					+ chainName
-					+ " || exit 12\n"
-					+ "");
-			// Check if logging is enabled
-			if (logenabled) {
-				if (logtarget.equals("LOG")) {
-					script.append(""
-							+ "$IPTABLES -A "
-							+ chainName
-							+ "-reject -m limit --limit 1000/min -j LOG --log-prefix \"[AndroidFirewall]\" --log-level 4 --log-uid || exit 299\n"
-							+ "$IPTABLES -A " + chainName
-							+ "-reject -j REJECT || exit 29\n" + "");
-					if (inputenabled) {
-						script.append(""
-								+ "$IPTABLES -A "
-								+ chainName
-								+ "-input-drop -m limit --limit 1000/min -j LOG --log-prefix \"[AndroidFirewall]\" --log-level 4 --log-uid || exit 510\n"
-								+ "");
-						script.append(""
-								+ "# Create the input drop rule (log disabled)\n"
-								+ "$IPTABLES -A " + chainName
-								+ "-input-drop -j REJECT || exit 30\n" + "");
-						Log.d(TAG, "LOG code " + logtarget);
-					}
-				} else if (logtarget.equals("NFLOG")) {
-					script.append(""
-							+ "$IPTABLES -A "
-							+ chainName
-							+ "-reject -j NFLOG --nflog-prefix \"[AndroidFirewall]\" --nflog-group 0 || exit 2999\n"
-							+ "$IPTABLES -A " + chainName
-							+ "-reject -j REJECT || exit 29\n" + "");
-					if (inputenabled) {
-						script.append(""
-								+ "$IPTABLES -A "
-								+ chainName
-								+ "-input-drop -j NFLOG --nflog-prefix \"[AndroidFirewall]\" --nflog-group 0 || exit 510\n"
-								+ "");
-						script.append(""
-								+ "# Create the input drop rule (log disabled)\n"
-								+ "$IPTABLES -A " + chainName
-								+ "-input-drop -j REJECT || exit 30\n" + "");
-					}
-					Log.d(TAG, "NFLOG code " + logtarget);
-				} else {
-					script.append("" + "$IPTABLES -A " + chainName
-							+ "-reject -j REJECT || exit 30\n" + "");
-					if (inputenabled) {
-						script.append(""
-								+ "# Create the input drop rule (log disabled)\n"
-								+ "$IPTABLES -A " + chainName
-								+ "-input-drop -j REJECT || exit 30\n" + "");
-					}
-				}
-			} else {
-				script.append("" + "# Create the reject rule (log disabled)\n"
-						+ "$IPTABLES -A " + chainName
-						+ "-reject -j REJECT || exit 30\n" + "");
-				if (inputenabled) {
-					script.append(""
-							+ "# Create the input drop rule (log disabled)\n"
-							+ "$IPTABLES -A " + chainName
-							+ "-input-drop -j REJECT || exit 30\n" + "");
-				}
-			}
-			if (logacceptenabled) {
-				if (logtarget.equals("LOG")) {
-					script.append(""
-							+ "$IPTABLES -A "
-							+ chainName
-							+ "-accept -m limit --limit 1000/min -j LOG --log-prefix \"[AndroidFirewallAccept]\" --log-level 4 --log-uid || exit 299\n"
-							+ "$IPTABLES -A " + chainName
-							+ "-accept -j RETURN || exit 29\n" + "");
-					if (inputenabled) {
-						script.append(""
-								+ "$IPTABLES -A "
-								+ chainName
-								+ "-input-accept -m limit --limit 1000/min -j LOG --log-prefix \"[AndroidFirewallAccept]\" --log-level 4 --log-uid || exit 510\n"
-								+ "$IPTABLES -A " + chainName
-								+ "-input-accept -j RETURN || exit 29\n" + "");
-						Log.d(TAG, "LOG code " + logtarget);
-					}
-				} else if (logtarget.equals("NFLOG")) {
-					script.append(""
-							+ "$IPTABLES -A "
-							+ chainName
-							+ " -j NFLOG --nflog-prefix \"[AndroidFirewallAccept]\" --nflog-group 0 || exit 2999\n"
-							+ "$IPTABLES -A " + chainName
-							+ "-accept -j RETURN || exit 29\n" + "");
-					if (inputenabled) {
-						script.append(""
-								+ "$IPTABLES -A "
-								+ chainName
-								+ "-input -j NFLOG --nflog-prefix \"[AndroidFirewallAccept]\" --nflog-group 0 || exit 510\n"
-								+ "$IPTABLES -A " + chainName
-								+ "-input-accept -j RETURN || exit 29\n" + "");
-					}
-					Log.d(TAG, "NFLOG code " + logtarget);
-				}
-			}
-			if (tetherenabled) {
-				script.append("" + "# Create the tethering rules\n"
-						+ "$IPTABLES -A "
-						+ chainName
-						+ " -m owner --uid-owner 0 -p udp --sport=67 --dport=68 -j RETURN || exit 222\n"
-						+ "$IPTABLES -A "
-						+ chainName
-						+ " -m owner --uid-owner 0 -p udp --sport=53 -j RETURN || exit 222\n"
-						+ "$IPTABLES -A "
-						+ chainName
-						+ " -m owner --uid-owner 0 -p tcp --sport=53 -j RETURN || exit 222\n"
-						+ "$IPTABLES -A "
-						+ chainName
-						+ " -m owner --uid-owner 0 -p udp --dport=53 -j RETURN || exit 222\n"
-						+ "$IPTABLES -A "
-						+ chainName
-						+ " -m owner --uid-owner 0 -p tcp --dport=53 -j RETURN || exit 222\n"
-						+ "$IPTABLES -A "
-						+ chainName
-						+ " -m owner --uid-owner 9999 -p udp --sport=67 --dport=68 -j RETURN || exit 222\n"
-						+ "$IPTABLES -A "
-						+ chainName
-						+ " -m owner --uid-owner 9999 -p udp --sport=53 -j RETURN || exit 222\n"
-						+ "$IPTABLES -A "
-						+ chainName
-						+ " -m owner --uid-owner 9999 -p tcp --sport=53 -j RETURN || exit 222\n"
-						+ "$IPTABLES -A "
-						+ chainName
-						+ " -m owner --uid-owner 9999 -p udp --dport=53 -j RETURN || exit 222\n"
-						+ "$IPTABLES -A "
-						+ chainName
-						+ " -m owner --uid-owner 9999 -p tcp --dport=53 -j RETURN || exit 222\n"
-						+ "");
-			}
-			if (customScript.length() > 0) {
-				script.append("\n# BEGIN OF CUSTOM SCRIPT (user-defined)\n");
-				script.append(customScript);
-				script.append("\n# END OF CUSTOM SCRIPT (user-defined)\n\n");
-			}
-			script.append("# Main rules (per interface)\n");
-			for (final String itf : ITFS_3G) {
-				script.append("$IPTABLES -A " + chainName + " -o ").append(itf)
-						.append(" -j " + chainName + "-3g || exit 32\n");
-			}
-			for (final String itf : ITFS_WIFI) {
-				if (lanenabled) {
-					if (!config.lanipv4.equals("")) {
-						script.append("$IPTABLES -A " + chainName + " -d ")
-								.append(config.lanipv4)
-								.append(" -o ")
-								.append(itf)
-								.append(" -j " + chainName
-										+ "-lan || exit 34\n");
-						script.append("$IPTABLES -A " + chainName + " '!' -d ")
-								.append(config.lanipv4)
-								.append(" -o ")
-								.append(itf)
-								.append(" -j " + chainName
-										+ "-wifi || exit 34\n");
-					} else {
-						// for preventing leaks after device connects to WiFi
-						// When a device gets an ip the intent needs to fire so
-						// block connection until Auto rules fire.
-						script.append("$IPTABLES -A " + chainName
-								+ "-wifi -j REJECT || exit 344\n");
-					}
-				} else {
-					script.append("$IPTABLES -A " + chainName + " -o ")
-							.append(itf)
-							.append(" -j " + chainName + "-wifi || exit 34\n");
-				}
-			}
-			if (vpnenabled) {
-				for (final String itf : ITFS_VPN) {
-					script.append("$IPTABLES -A " + chainName + " -o ")
-							.append(itf)
-							.append(" -j " + chainName + "-vpn || exit 34\n");
-				}
-				if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
-					script.append("$IPTABLES -A " + chainName
-							+ " -m mark --mark 0x3c/0xfffc -g " + chainName
-							+ "-vpn || exit 4060\n");
-					script.append("$IPTABLES -A " + chainName
-							+ " -m mark --mark 0x40/0xfff8 -g " + chainName
-							+ "-vpn || exit 4061\n");
-				}
-			}
-			if (tetherenabled) {
-				for (final String itf : ITFS_TETHER) {
-					script.append("$IPTABLES -A " + chainName + " -o ")
-							.append(itf).append(" -j RETURN || exit 32\n");
-				}
-			}
-			script.append("# Filtering rules\n");
-			final String targetRule = (whitelist ? "RETURN" : "" + chainName
-					+ "-reject");
-			final boolean any_3g = uids3g.indexOf(SPECIAL_UID_ANY) >= 0;
-			final boolean any_wifi = uidsWifi.indexOf(SPECIAL_UID_ANY) >= 0;
-			final boolean any_vpn = uidsvpn.indexOf(SPECIAL_UID_ANY) >= 0;
-			final boolean any_lan = uidslan.indexOf(SPECIAL_UID_ANY) >= 0;
-			final boolean any_inputwifi = uidsinputwifi
-					.indexOf(SPECIAL_UID_ANY) >= 0;
-			if (whitelist && !any_wifi) {
-				// When "white listing" wifi, we need to ensure that the dhcp
-				// and wifi users are allowed
-				int uid = android.os.Process.getUidForName("dhcp");
-				if (uid != -1) {
-					script.append("# dhcp user\n");
-					script.append(
-							"$IPTABLES -A " + chainName
-									+ "-wifi -m owner --uid-owner ")
-							.append(uid).append(" -j RETURN || exit 36\n");
-				}
-				uid = android.os.Process.getUidForName("wifi");
-				if (uid != -1) {
-					script.append("# wifi user\n");
-					script.append(
-							"$IPTABLES -A " + chainName
-									+ "-wifi -m owner --uid-owner ")
-							.append(uid).append(" -j RETURN || exit 38\n");
-				}
-			}
-			if (any_3g) {
-				if (blacklist) {
-					/* block any application on this interface */
-					script.append("$IPTABLES -A " + chainName + "-3g -j ")
-							.append(targetRule).append(" || exit 40\n");
-				} else {
-					for (final Integer uid : uids3g) {
-						if (uid >= 0)
-							script.append(
-									"$IPTABLES -I " + chainName
-											+ "-3g -m owner --uid-owner ")
-									.append(uid).append(" -j ")
-									.append(targetRule).append(" || exit 42\n");
-					}
-				}
-			} else {
-				/* release/block individual applications on this interface */
-				if (isRoaming(ctx) && roamenabled) {
-					for (final Integer uid : uidsroaming) {
-						if (uid >= 0)
-							script.append(
-									"$IPTABLES -I " + chainName
-											+ "-3g -m owner --uid-owner ")
-									.append(uid).append(" -j ")
-									.append(targetRule).append(" || exit 50\n");
-					}
-				} else {
-					for (final Integer uid : uids3g) {
-						if (uid >= 0)
-							script.append(
-									"$IPTABLES -I " + chainName
-											+ "-3g -m owner --uid-owner ")
-									.append(uid).append(" -j ")
-									.append(targetRule).append(" || exit 42\n");
-					}
-				}
-			}
-			script.append("$IPTABLES -I " + chainName
-					+ "-3g -m owner --uid-owner 9999 -j RETURN || exit 9999\n");
-			if (any_wifi) {
-				if (blacklist) {
-					/* block any application on this interface */
-					script.append("$IPTABLES -A " + chainName + "-wifi -j ")
-							.append(targetRule).append(" || exit 44\n");
-				} else {
-					/* release/block individual applications on this interface */
-					for (final Integer uid : uidsWifi) {
-						if (uid >= 0)
-							script.append(
-									"$IPTABLES -A " + chainName
-											+ "-wifi -m owner --uid-owner ")
-									.append(uid).append(" -j ")
-									.append(targetRule).append(" || exit 46\n");
-					}
-				}
-			} else {
-				/* release/block individual applications on this interface */
-				for (final Integer uid : uidsWifi) {
-					if (uid >= 0)
-						script.append(
-								"$IPTABLES -A " + chainName
-										+ "-wifi -m owner --uid-owner ")
-								.append(uid).append(" -j ").append(targetRule)
-								.append(" || exit 46\n");
-				}
-			}
-			if (whitelist) {
-				if (!any_3g) {
-					if (uids3g.indexOf(SPECIAL_UID_KERNEL) >= 0) {
-						script.append("# hack to allow kernel packets on white-list\n");
-						if (logacceptenabled) {
-							script.append("$IPTABLES -A " + chainName
-									+ " -m owner --uid-owner 0:999999999 -j "
-									+ chainName + "-accept || exit 54\n");
-						}
-						script.append("$IPTABLES -A " + chainName
-								+ "-3g -m owner --uid-owner 0:999999999 -j "
-								+ chainName + "-reject || exit 48\n");
-					} else {
-						if (logacceptenabled) {
-							script.append("$IPTABLES -A " + chainName + " -j "
-									+ chainName + "-accept || exit 54\n");
-						}
-						script.append("$IPTABLES -A " + chainName + "-3g -j "
-								+ chainName + "-reject || exit 50\n");
-					}
-				}
-				if (!any_wifi) {
-					if (uidsWifi.indexOf(SPECIAL_UID_KERNEL) >= 0) {
-						script.append("# hack to allow kernel packets on white-list\n");
-						if (logacceptenabled) {
-							script.append("$IPTABLES -A " + chainName
-									+ " -m owner --uid-owner 0:999999999 -j "
-									+ chainName + "-accept || exit 54\n");
-						}
-						script.append("$IPTABLES -A " + chainName
-								+ "-wifi -m owner --uid-owner 0:999999999 -j "
-								+ chainName + "-reject || exit 52\n");
-					} else {
-						if (logacceptenabled) {
-							script.append("$IPTABLES -A " + chainName + " -j "
-									+ chainName + "-accept || exit 54\n");
-						}
-						script.append("$IPTABLES -A " + chainName + "-wifi -j "
-								+ chainName + "-reject || exit 54\n");
-					}
-				}
+			final String key = compiled == null ? cfg.digest() : null;
+			final RulesetCache.Entry cached = key != null ? getRulesetCache(
+					ctx).get(key) : null;
+			final Ruleset rules;
+			if (compiled != null) {
+				rules = compiled;
+			} else if (cached != null) {
+				rules = cached.rules;
 			} else {
-				if (uids3g.indexOf(SPECIAL_UID_KERNEL) >= 0) {
-					script.append("# hack to BLOCK kernel packets on black-list\n");
-					script.append("$IPTABLES -A "
-							+ chainName
-							+ "-3g -m owner --uid-owner 0:999999999 -j RETURN || exit 56\n");
-					if (logacceptenabled) {
-						script.append("$IPTABLES -A " + chainName + " -j "
-								+ chainName + "-accept || exit 54\n");
-					}
-					script.append("$IPTABLES -A " + chainName + "-3g -j "
-							+ chainName + "-reject || exit 57\n");
-				}
-				if (uidsWifi.indexOf(SPECIAL_UID_KERNEL) >= 0) {
-					script.append("# hack to BLOCK kernel packets on black-list\n");
-					script.append("$IPTABLES -A "
-							+ chainName
-							+ "-wifi -m owner --uid-owner 0:999999999 -j RETURN || exit 60\n");
-					if (logacceptenabled) {
-						script.append("$IPTABLES -A " + chainName + " -j "
-								+ chainName + "-accept || exit 54\n");
-					}
-					script.append("$IPTABLES -A " + chainName + "-wifi -j "
-							+ chainName + "-reject || exit 61\n");
-				}
+				rules = RuleCompiler.compile(cfg);
 			}
-			if (vpnenabled) {
-				if (any_vpn && vpnenabled) {
-					if (blacklist) {
-						/* block any application on this interface */
-						script.append("$IPTABLES -A " + chainName + "-vpn -j ")
-								.append(targetRule).append(" || exit 40\n");
-					} else {
-						/*
-						 * release/block individual applications on this
-						 * interface
-						 */
-						for (final Integer uid : uidsvpn) {
-							if (uid >= 0)
-								script.append(
-										"$IPTABLES -I " + chainName
-												+ "-vpn -m owner --uid-owner ")
-										.append(uid).append(" -j ")
-										.append(targetRule)
-										.append(" || exit 42\n");
-						}
-					}
-				} else {
-					/* release/block individual applications on this interface */
-					for (final Integer uid : uidsvpn) {
-						if (uid >= 0)
-							script.append(
-									"$IPTABLES -I " + chainName
-											+ "-vpn -m owner --uid-owner ")
-									.append(uid).append(" -j ")
-									.append(targetRule).append(" || exit 42\n");
-					}
-				}
-				if (whitelist && vpnenabled) {
-					if (!any_vpn) {
-						if (uidsvpn.indexOf(SPECIAL_UID_KERNEL) >= 0) {
-							script.append("# hack to allow kernel packets on white-list\n");
-							script.append("$IPTABLES -A "
-									+ chainName
-									+ "-vpn -m owner --uid-owner 0:999999999 -j "
-									+ chainName + "-reject || exit 48\n");
-						} else {
-							script.append("$IPTABLES -A " + chainName
-									+ "-vpn -j " + chainName
-									+ "-reject || exit 50\n");
-						}
-					} else {
-						script.append("$IPTABLES -A " + chainName + "-vpn -j "
-								+ chainName + "-reject || exit 54\n");
-					}
-				} else {
-					if (uidsvpn.indexOf(SPECIAL_UID_KERNEL) >= 0) {
-						script.append("# hack to BLOCK kernel packets on black-list\n");
-						script.append("$IPTABLES -A "
-								+ chainName
-								+ "-vpn -m owner --uid-owner 0:999999999 -j RETURN || exit 56\n");
-						script.append("$IPTABLES -A " + chainName + "-vpn -j "
-								+ chainName + "-reject || exit 57\n");
-					}
-				}
+			Log.d(TAG, "UID ranges saved " + rules.getUidRulesSaved()
+					+ " rules, " + rules.ruleCount() + " rules left, "
+					+ getRulesetCache(ctx).getStats());
+			script.append(scriptHeader(ctx));
+			// the cleared lines go to the event history, see clearLog
+			script.append("AF_LOG=\"$(dmesg -c)\" || exit\n");
+			script.append("$ECHO \"$AF_LOG\" | $GREP '\\[AndroidFirewall'\n");
+			final Emitter full = getFullEmitter(ctx);
+			final Emitter emitter = getEmitter(ctx, rules, cfg.chainName, full);
+			// with nothing applied the delta is the full script
+			final boolean isFull = emitter instanceof DeltaEmitter
+					&& appliedRules == null;
+			String payload = isFull && cached != null ? cached
+					.getPayload(full) : null;
+			final boolean render = payload == null;
+			if (render) {
+				payload = emitter.render(rules);
+			}
+			script.append(payload);
+			final boolean lockdown = BootLockdown.isPending(ctx);
+			if (lockdown) {
+				// only reached if the full rules are in
+				script.append(BootLockdown.getReleaseScript(cfg.chainName));
 			}
-			if (lanenabled) {
-				if (any_lan && lanenabled) {
-					if (blacklist) {
-						/* block any application on this interface */
-						script.append("$IPTABLES -A " + chainName + "-lan -j ")
-								.append(targetRule).append(" || exit 40\n");
-					} else {
-						/*
-						 * release/block individual applications on this
-						 * interface
-						 */
-						for (final Integer uid : uidslan) {
-							if (uid >= 0)
-								script.append(
-										"$IPTABLES -I " + chainName
-												+ "-lan -m owner --uid-owner ")
-										.append(uid).append(" -j ")
-										.append(targetRule)
-										.append(" || exit 42\n");
-						}
-					}
-				} else {
-					/* release/block individual applications on this interface */
-					for (final Integer uid : uidslan) {
-						if (uid >= 0)
-							script.append(
-									"$IPTABLES -I " + chainName
-											+ "-lan -m owner --uid-owner ")
-									.append(uid).append(" -j ")
-									.append(targetRule).append(" || exit 42\n");
-					}
-				}
-				if (whitelist && lanenabled) {
-					if (!any_lan) {
-						if (uidslan.indexOf(SPECIAL_UID_KERNEL) >= 0) {
-							script.append("# hack to allow kernel packets on white-list\n");
-							script.append("$IPTABLES -A "
-									+ chainName
-									+ "-lan -m owner --uid-owner 0:999999999 -j "
-									+ chainName + "-reject || exit 48\n");
-						} else {
-							script.append("$IPTABLES -A " + chainName
-									+ "-lan -j " + chainName
-									+ "-reject || exit 50\n");
-						}
-					} else {
-						script.append("$IPTABLES -A " + chainName + "-lan -j "
-								+ chainName + "-reject || exit 54\n");
-					}
-				} else {
-					if (uidslan.indexOf(SPECIAL_UID_KERNEL) >= 0) {
-						script.append("# hack to BLOCK kernel packets on black-list\n");
-						script.append("$IPTABLES -A "
-								+ chainName
-								+ "-lan -m owner --uid-owner 0:999999999 -j RETURN || exit 56\n");
-						script.append("$IPTABLES -A " + chainName + "-lan -j "
-								+ chainName + "-reject || exit 57\n");
+			final StringBuilder res = new StringBuilder();
+			code = runScriptAsRoot(ctx, script.toString(), res);
+			EventStore.get(ctx).addDmesg(ctx, res.toString());
+			// the iptables chains are unknown if nftables was used
+			appliedRules = code == 0 && !(emitter instanceof NftEmitter) ? rules
+					: null;
+			appliedConfig = appliedRules != null ? cfg : null;
+			if (code == 0) {
+				if (lockdown) {
+					BootLockdown.released(ctx, true);
+				}
+				BootLockdown.store(ctx, cfg, toolHeader(ctx));
+				if (key != null && (cached == null || isFull && render)) {
+					try {
+						getRulesetCache(ctx).put(key, rules, full,
+								isFull ? payload : null);
+					} catch (IOException e) {
+						Log.d(TAG, "Unable to cache the ruleset: " + e);
 					}
 				}
 			}
-			if (inputenabled) {
-				if (any_inputwifi && inputenabled) {
-					if (blacklist) {
-						/* block any application on this interface */
-						script.append(
-								"$IPTABLES -A " + chainName + "-input -j ")
-								.append(targetRule).append(" || exit 40\n");
-					} else {
-						/*
-						 * release/block individual applications on this
-						 * interface
-						 */
-						for (final Integer uid : uidsinputwifi) {
-							if (uid >= 0)
-								script.append(
-										"$IPTABLES -I "
-												+ chainName
-												+ "-input -m owner --uid-owner ")
-										.append(uid).append(" -j ")
-										.append(targetRule)
-										.append(" || exit 42\n");
-						}
-					}
-				} else {
-					/* release/block individual applications on this interface */
-					for (final Integer uid : uidsinputwifi) {
-						if (uid >= 0)
-							script.append(
-									"$IPTABLES -I " + chainName
-											+ "-input -m owner --uid-owner ")
-									.append(uid).append(" -j ")
-									.append(targetRule).append(" || exit 42\n");
-					}
-				}
-				if (whitelist && inputenabled) {
-					if (!any_inputwifi) {
-						if (uidsinputwifi.indexOf(SPECIAL_UID_KERNEL) >= 0) {
-							script.append("# hack to allow kernel packets on white-list\n");
-							script.append("$IPTABLES -A "
-									+ chainName
-									+ "-input -m owner --uid-owner 0:999999999 -j "
-									+ chainName + "-input-drop || exit 48\n");
-							if (logacceptenabled) {
-								script.append("$IPTABLES -A "
-										+ chainName
-										+ "-input -m owner --uid-owner 0:999999999 -j "
-										+ chainName
-										+ "-input-accept || exit 54\n");
-							}
-						} else {
-							script.append("$IPTABLES -A " + chainName
-									+ "-input -j " + chainName
-									+ "-input-drop || exit 50\n");
-							if (logacceptenabled) {
-								script.append("$IPTABLES -A " + chainName
-										+ "-input -j " + chainName
-										+ "-input-accept || exit 54\n");
-							}
-						}
-					} else {
-						script.append("$IPTABLES -A " + chainName
-								+ "-input-wifi -j " + chainName
-								+ "-input-drop || exit 54\n");
-						if (logacceptenabled) {
-							script.append("$IPTABLES -A " + chainName
-									+ "-input -j " + chainName
-									+ "-input-accept || exit 54\n");
-						}
-					}
-				} else {
-					if (uidsinputwifi.indexOf(SPECIAL_UID_KERNEL) >= 0) {
-						script.append("# hack to BLOCK kernel packets on black-list\n");
-						script.append("$IPTABLES -A "
-								+ chainName
-								+ "-input -m owner --uid-owner 0:999999999 -j RETURN || exit 56\n");
-						script.append("$IPTABLES -A " + chainName
-								+ "-input -j " + chainName
-								+ "-input-drop || exit 57\n");
-						if (logacceptenabled) {
-							script.append("$IPTABLES -A " + chainName
-									+ "-input -j " + chainName
-									+ "-input-accept || exit 54\n");
-						}
-					}
-				}
-				script.append("$IPTABLES -I "
-						+ chainName
-						+ "-input -m owner --uid-owner 0 -j RETURN || exit 4444\n");
-				script.append("$IPTABLES -I "
-						+ chainName
-						+ "-input -m state --state ESTABLISHED,RELATED -j ACCEPT || exit 4455\n");
+			if (code != 0 && lockdown) {
+				BootLockdown.failed(ctx, code, withoutLogLines(res.toString()));
 			}
-			if (ipv6enabled) {
-				{
-					script.append(scriptHeader(ctx));
-					script.append("" + "$IP6TABLES --version || exit 60\n"
-							+ "# Create the droidwall chains if necessary\n"
-							+ "$IP6TABLES -L "
-							+ chainName
-							+ " >/dev/null 2>/dev/null || $IP6TABLES --new "
-							+ chainName
-							+ " || exit 3\n"
-							+ "$IP6TABLES -L "
-							+ chainName
-							+ "-input >/dev/null 2>/dev/null || $IP6TABLES --new "
-							+ chainName
-							+ "-input || exit 500\n"
-							+ "$IP6TABLES -L "
-							+ chainName
-							+ "-input-accept >/dev/null 2>/dev/null || $IP6TABLES --new "
-							+ chainName
-							+ "-input-accept || exit 500\n"
-							+ "$IP6TABLES -L "
-							+ chainName
-							+ "-accept >/dev/null 2>/dev/null || $IP6TABLES --new "
-							+ chainName
-							+ "-accept || exit 500\n"
-							+ "$IP6TABLES -L "
-							+ chainName
-							+ "-3g >/dev/null 2>/dev/null || $IP6TABLES --new "
-							+ chainName
-							+ "-3g || exit 4\n"
-							+ "$IP6TABLES -L "
-							+ chainName
-							+ "-wifi >/dev/null 2>/dev/null || $IP6TABLES --new "
-							+ chainName
-							+ "-wifi || exit 5\n"
-							+ "$IP6TABLES -L "
-							+ chainName
-							+ "-reject >/dev/null 2>/dev/null || $IP6TABLES --new "
-							+ chainName
-							+ "-reject || exit 6\n"
-							+ "$IP6TABLES -L "
-							+ chainName
-							+ "-input-drop >/dev/null 2>/dev/null || $IP6TABLES --new "
-							+ chainName
-							+ "-input-drop || exit 6\n"
-							+ "$IP6TABLES -L "
-							+ chainName
-							+ "-vpn >/dev/null 2>/dev/null || $IP6TABLES --new "
-							+ chainName
-							+ "-vpn || exit 7 \n"
-							+ "$IP6TABLES -L "
-							+ chainName
-							+ "-lan >/dev/null 2>/dev/null || $IP6TABLES --new "
-							+ chainName
-							+ "-lan || exit 7 \n"
-							+ "# Add droidwall chain to OUTPUT chain if necessary\n"
-							+ "$IP6TABLES -L OUTPUT | $GREP -q "
-							+ chainName
-							+ " || $IP6TABLES -A OUTPUT -j "
-							+ chainName
-							+ " || exit 11\n"
-							+ "# Add droidwall-input chain to INPUT chain if necessary\n"
-							+ "$IP6TABLES -L INPUT | $GREP -q "
-							+ chainName
-							+ "-input || $IP6TABLES -A INPUT -j "
-							+ chainName
-							+ "-input || exit 1111\n"
-							+ "# Flush existing rules\n"
-							+ "$IP6TABLES -F "
-							+ chainName
-							+ " || exit 17\n"
-							+ "$IP6TABLES -F "
-							+ chainName
-							+ "-3g || exit 18\n"
-							+ "$IP6TABLES -F "
-							+ chainName
-							+ "-wifi || exit 19\n"
-							+ "$IP6TABLES -F "
-							+ chainName
-							+ "-reject || exit 20\n"
-							+ "$IP6TABLES -F "
-							+ chainName
-							+ "-input-drop || exit 20\n"
-							+ "$IP6TABLES -F "
-							+ chainName
-							+ "-vpn || exit 20\n"
-							+ "$IP6TABLES -F "
-							+ chainName
-							+ "-lan || exit 20\n"
-							+ "$IP6TABLES -F "
-							+ chainName
-							+ "-input || exit 502\n"
-							+ "$IP6TABLES -F "
-							+ chainName
-							+ "-input-accept || exit 20\n"
-							+ "$IP6TABLES -F "
-							+ chainName
-							+ "-accept || exit 20\n"
-							+ "# Create reject rule and fix for WiFi slow DNS lookups"
-							+ "$IP6TABLES -A "
-							+ chainName
-							+ "-reject -j REJECT || exit 21\n"
-							+ "$IP6TABLES -A "
-							+ chainName
-							+ " -m owner --uid-owner 0 -p udp --dport 53 -j RETURN || exit 22\n"
-							+ "$IP6TABLES -A "
-							+ chainName
-							+ " -m owner --uid-owner 1000 -p udp --dport 123 -j RETURN || exit 22\n"
-							+ "$IP6TABLES -D INPUT -j "
-							+ chainName
-							+ "-input || exit 507\n"
-							+ "$IP6TABLES -I INPUT 1 -j "
-							+ chainName
-							+ "-input || exit 508\n"
-							+ "$IP6TABLES -D OUTPUT -j "
-							+ chainName
-							+ " || exit 11\n"
-							+ "$IP6TABLES -I OUTPUT 1 -j "
-							+ chainName + " || exit 12\n" + "");
-					// Check if logging is enabled
-					if (logenabled && ipv6enabled) {
-						if (logtarget.equals("LOG")) {
-							script.append(""
-									+ "# Create the log and reject rules (ignore errors on the LOG target just in case it is not available)\n"
-									+ "$IP6TABLES -A "
-									+ chainName
-									+ "-reject -m limit --limit 1000/min -j LOG --log-prefix \"[AndroidFirewall]\" --log-level 4 --log-uid || exit 3000\n"
-									+ "$IP6TABLES -A " + chainName
-									+ "-reject -j REJECT || exit 29\n" + "");
-							if (inputenabled) {
-								script.append(""
-										+ "$IP6TABLES -A "
-										+ chainName
-										+ "-input-drop -m limit --limit 1000/min -j LOG --log-prefix \"[AndroidFirewall]\" --log-level 4 --log-uid || exit 610\n"
-										+ "");
-								script.append(""
-										+ "# Create the input drop rule (log disabled)\n"
-										+ "$IP6TABLES -A " + chainName
-										+ "-input-drop -j REJECT || exit 30\n"
-										+ "");
-							}
-						} else if (logtarget.equals("NFLOG")) {
-							script.append(""
-									+ "# Create the log and reject rules (ignore errors on the LOG target just in case it is not available)\n"
-									+ "$IP6TABLES -A "
-									+ chainName
-									+ "-reject -j NFLOG --nflog-prefix \"[AndroidFirewall]\" --nflog-group 0 || exit 3001\n"
-									+ "$IP6TABLES -A " + chainName
-									+ "-reject -j REJECT || exit 29\n" + "");
-							if (inputenabled) {
-								script.append(""
-										+ "$IP6TABLES -A "
-										+ chainName
-										+ "-input-drop -j NFLOG --nflog-prefix \"[AndroidFirewall]\" --nflog-group 0 || exit 610\n"
-										+ "");
-								script.append(""
-										+ "# Create the input drop rule (log disabled)\n"
-										+ "$IP6TABLES -A " + chainName
-										+ "-input-drop -j REJECT || exit 30\n"
-										+ "");
-							}
-						} else {
-							script.append(""
-									+ "# Create the reject rule (issue getting LOG/NFLOG)\n"
-									+ "$IP6TABLES -A " + chainName
-									+ "-reject -j REJECT || exit 30\n" + "");
-							if (inputenabled) {
-								script.append(""
-										+ "# Create the input drop rule (log disabled)\n"
-										+ "$IP6TABLES -A " + chainName
-										+ "-input-drop -j REJECT || exit 30\n"
-										+ "");
-							}
-						}
-					} else {
-						script.append(""
-								+ "# Create the reject rule (log disabled)\n"
-								+ "$IP6TABLES -A " + chainName
-								+ "-reject -j REJECT || exit 77\n" + "");
-						if (inputenabled) {
-							script.append(""
-									+ "# Create the input drop rule (log disabled)\n"
-									+ "$IP6TABLES -A " + chainName
-									+ "-input-drop -j REJECT || exit 30\n" + "");
-						}
-					}
-					if (logacceptenabled && ipv6enabled) {
-						if (logtarget.equals("LOG")) {
-							script.append(""
-									+ "$IP6TABLES -A "
-									+ chainName
-									+ "-accept -m limit --limit 1000/min -j LOG --log-prefix \"[AndroidFirewallAccept]\" --log-level 4 --log-uid || exit 299\n"
-									+ "$IP6TABLES -A " + chainName
-									+ "-accept -j RETURN || exit 29\n" + "");
-							if (inputenabled) {
-								script.append(""
-										+ "$IP6TABLES -A "
-										+ chainName
-										+ "-input-accept -m limit --limit 1000/min -j LOG --log-prefix \"[AndroidFirewallAccept]\" --log-level 4 --log-uid || exit 510\n"
-										+ "$IP6TABLES -A "
-										+ chainName
-										+ "-input-accept -j RETURN || exit 29\n"
-										+ "");
-								Log.d(TAG, "LOG code " + logtarget);
-							}
-						} else if (logtarget.equals("NFLOG")) {
-							script.append(""
-									+ "$IP6TABLES -A "
-									+ chainName
-									+ "-accept -j NFLOG --nflog-prefix \"[AndroidFirewallAccept]\" --nflog-group 0 || exit 2999\n"
-									+ "$IP6TABLES -A " + chainName
-									+ "-accept -j RETURN || exit 29\n" + "");
-							if (inputenabled) {
-								script.append(""
-										+ "$IP6TABLES -A "
-										+ chainName
-										+ "-input-accept -j NFLOG --nflog-prefix \"[AndroidFirewallAccept]\" --nflog-group 0 || exit 510\n"
-										+ "$IP6TABLES -A "
-										+ chainName
-										+ "-input-accept -j RETURN || exit 29\n"
-										+ "");
-							}
-							Log.d(TAG, "NFLOG code " + logtarget);
-						}
-					}
-					if (tetherenabled && ipv6enabled) {
-						script.append("" + "# Create the tethering rules\n"
-								+ "$IP6TABLES -A "
-								+ chainName
-								+ " -m owner --uid-owner 0 -p udp --sport=67 --dport=68 -j RETURN || exit 222\n"
-								+ "$IP6TABLES -A "
-								+ chainName
-								+ " -m owner --uid-owner 0 -p udp --sport=53 -j RETURN || exit 222\n"
-								+ "$IP6TABLES -A "
-								+ chainName
-								+ " -m owner --uid-owner 0 -p tcp --sport=53 -j RETURN || exit 222\n"
-								+ "$IP6TABLES -A "
-								+ chainName
-								+ " -m owner --uid-owner 0 -p udp --dport=53 -j RETURN || exit 222\n"
-								+ "$IP6TABLES -A "
-								+ chainName
-								+ " -m owner --uid-owner 0 -p tcp --dport=53 -j RETURN || exit 222\n"
-								+ "$IP6TABLES -A "
-								+ chainName
-								+ " -m owner --uid-owner 9999 -p udp --sport=67 --dport=68 -j RETURN || exit 222\n"
-								+ "$IP6TABLES -A "
-								+ chainName
-								+ " -m owner --uid-owner 9999 -p udp --sport=53 -j RETURN || exit 222\n"
-								+ "$IP6TABLES -A "
-								+ chainName
-								+ " -m owner --uid-owner 9999 -p tcp --sport=53 -j RETURN || exit 222\n"
-								+ "$IP6TABLES -A "
-								+ chainName
-								+ " -m owner --uid-owner 9999 -p udp --dport=53 -j RETURN || exit 222\n"
-								+ "$IP6TABLES -A "
-								+ chainName
-								+ " -m owner --uid-owner 9999 -p tcp --dport=53 -j RETURN || exit 222\n"
-								+ "");
-					}
-					script.append("# Main rules (per interface)\n");
-					for (final String itf : ITFS_3G) {
-						script.append("$IP6TABLES -A " + chainName + " -o ")
-								.append(itf)
-								.append(" -j " + chainName + "-3g || exit 78\n");
-
-					}
-					for (final String itf : ITFS_WIFI) {
-						if (lanenabled && ipv6enabled) {
-							if (!config.lanipv6.equals("")) {
-								script.append(
-										"$IP6TABLES -A " + chainName + " -d ")
-										.append(config.lanipv6)
-										.append(" -o ")
-										.append(itf)
-										.append(" -j " + chainName
-												+ "-lan || exit 34\n");
-								script.append(
-										"$IP6TABLES -A " + chainName
-												+ " '!' -d ")
-										.append(config.lanipv6)
-										.append(" -o ")
-										.append(itf)
-										.append(" -j " + chainName
-												+ "-wifi || exit 34\n");
-							} else {
-								// for preventing leaks after device connects to
-								// WiFi again.
-								// When a device gets an ip the intent needs to
-								// fire so
-								// block connection until Auto rules fire.
-								script.append("$IP6TABLES -A " + chainName
-										+ "-wifi -j REJECT || exit 345\n");
-							}
-						} else {
-							script.append("$IP6TABLES -A " + chainName + " -o ")
-									.append(itf)
-									.append(" -j " + chainName
-											+ "-wifi || exit 34\n");
-						}
-					}
-					for (final String itf : ITFS_VPN) {
-						script.append("$IP6TABLES -A " + chainName + " -o ")
-								.append(itf)
-								.append(" -j " + chainName
-										+ "-vpn || exit 79\n");
-						if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
-							script.append("$IP6TABLES -A " + chainName
-									+ " -m mark --mark 0x3c/0xfffc -g "
-									+ chainName + "-vpn || exit 4060\n");
-							script.append("$IP6TABLES -A " + chainName
-									+ " -m mark --mark 0x40/0xfff8 -g "
-									+ chainName + "-vpn || exit 4061\n");
-						}
-					}
-					int uid = android.os.Process.getUidForName("dhcp");
-					if (uid != -1) {
-						script.append("# dhcp user\n");
-						script.append(
-								"$IP6TABLES -A " + chainName
-										+ "-wifi -m owner --uid-owner ")
-								.append(uid).append(" -j RETURN || exit 80\n");
-
-					}
-					uid = android.os.Process.getUidForName("wifi");
-					if (uid != -1) {
-						script.append("# wifi user\n");
-						script.append(
-								"$IP6TABLES -A " + chainName
-										+ "-wifi -m owner --uid-owner ")
-								.append(uid).append(" -j RETURN || exit 81\n");
-
-					}
-				}
-				if (any_3g && ipv6enabled) {
-					if (blacklist) {
-						// block any application on this interface
-						script.append("$IP6TABLES -A " + chainName + "-3g -j ")
-								.append(targetRule).append(" || exit 82\n");
-					} else {
-						for (final Integer uid : uids3g) {
-							if (uid >= 0)
-								script.append(
-										"$IP6TABLES -I " + chainName
-												+ "-3g -m owner --uid-owner ")
-										.append(uid).append(" -j ")
-										.append(targetRule)
-										.append(" || exit 84\n");
-						}
-					}
-				} else {
-					/* release/block individual applications on this interface */
-					if (isRoaming(ctx) && ipv6enabled && roamenabled) {
-						for (final Integer uid : uidsroaming) {
-							if (uid >= 0)
-								script.append(
-										"$IP6TABLES -I " + chainName
-												+ "-3g -m owner --uid-owner ")
-										.append(uid).append(" -j ")
-										.append(targetRule)
-										.append(" || exit 83\n");
-						}
-					} else {
-						for (final Integer uid : uids3g) {
-							if (uid >= 0)
-								script.append(
-										"$IP6TABLES -I " + chainName
-												+ "-3g -m owner --uid-owner ")
-										.append(uid).append(" -j ")
-										.append(targetRule)
-										.append(" || exit 84\n");
-						}
-					}
-				}
-				script.append("$IP6TABLES -I "
-						+ chainName
-						+ "-3g -m owner --uid-owner 9999 -j RETURN || exit 9999\n");
-				if (any_wifi && ipv6enabled) {
-					if (blacklist) {
-						// block any application on this interface
-						script.append(
-								"$IP6TABLES -A " + chainName + "-wifi -j ")
-								.append(targetRule).append(" || exit 85\n");
-					} else {
-						// release/block individual applications on this
-						// interface
-						for (final Integer uid : uidsWifi) {
-							if (uid >= 0)
-								script.append(
-										"$IP6TABLES -A " + chainName
-												+ "-wifi -m owner --uid-owner ")
-										.append(uid).append(" -j ")
-										.append(targetRule)
-										.append(" || exit 86\n");
-						}
-					}
-				} else {
-					// release/block individual applications on this interface
-					for (final Integer uid : uidsWifi) {
-						if (uid >= 0)
-							script.append(
-									"$IP6TABLES -A " + chainName
-											+ "-wifi -m owner --uid-owner ")
-									.append(uid).append(" -j ")
-									.append(targetRule).append(" || exit 86\n");
-					}
-				}
-				if (whitelist && ipv6enabled) {
-					if (!any_3g) {
-						if (uids3g.indexOf(SPECIAL_UID_KERNEL) >= 0) {
-							script.append("# hack to allow kernel packets on white-list\n");
-							script.append("$IP6TABLES -A "
-									+ chainName
-									+ "-3g -m owner --uid-owner 0:999999999 -j "
-									+ chainName + "-reject || exit 87\n");
-							if (logacceptenabled) {
-								script.append("$IP6TABLES -A "
-										+ chainName
-										+ " -m owner --uid-owner 0:999999999 -j "
-										+ chainName + "-accept || exit 54\n");
-							}
-						} else {
-							script.append("$IP6TABLES -A " + chainName
-									+ "-3g -j " + chainName
-									+ "-reject || exit 88\n");
-							if (logacceptenabled) {
-								script.append("$IP6TABLES -A " + chainName
-										+ " -j " + chainName
-										+ "-accept || exit 54\n");
-							}
-						}
-					}
-					if (!any_wifi && ipv6enabled) {
-						if (uidsWifi.indexOf(SPECIAL_UID_KERNEL) >= 0) {
-							script.append("# hack to allow kernel packets on white-list\n");
-							script.append("$IP6TABLES -A "
-									+ chainName
-									+ "-wifi -m owner --uid-owner 0:999999999 -j "
-									+ chainName + "-reject || exit 89\n");
-							if (logacceptenabled) {
-								script.append("$IP6TABLES -A "
-										+ chainName
-										+ " -m owner --uid-owner 0:999999999 -j "
-										+ chainName + "-accept || exit 54\n");
-							}
-						} else {
-							script.append("$IP6TABLES -A " + chainName
-									+ "-wifi -j " + chainName
-									+ "-reject || exit 90\n");
-							if (logacceptenabled) {
-								script.append("$IP6TABLES -A " + chainName
-										+ " -j " + chainName
-										+ "-accept || exit 54\n");
-							}
-						}
-					}
-				} else {
-					if (uids3g.indexOf(SPECIAL_UID_KERNEL) >= 0) {
-						script.append("# hack to BLOCK kernel packets on black-list\n");
-						script.append("$IP6TABLES -A "
-								+ chainName
-								+ "-3g -m owner --uid-owner 0:999999999 -j RETURN || exit 91\n");
-						script.append("$IP6TABLES -A " + chainName + "-3g -j "
-								+ chainName + "-reject || exit 92\n");
-						if (logacceptenabled) {
-							script.append("$IP6TABLES -A " + chainName + " -j "
-									+ chainName + "-accept || exit 54\n");
-						}
-					}
-					if (uidsWifi.indexOf(SPECIAL_UID_KERNEL) >= 0) {
-						script.append("# hack to BLOCK kernel packets on black-list\n");
-						script.append("$IP6TABLES -A "
-								+ chainName
-								+ "-wifi -m owner --uid-owner 0:999999999 -j RETURN || exit 93\n");
-						script.append("$IP6TABLES -A " + chainName
-								+ "-wifi -j " + chainName
-								+ "-reject || exit 94\n");
-						if (logacceptenabled) {
-							script.append("$IP6TABLES -A " + chainName + " -j "
-									+ chainName + "-accept || exit 54\n");
-						}
-					}
-				}
-				if (vpnenabled && ipv6enabled) {
-					if (any_vpn && ipv6enabled) {
-						if (blacklist) {
-							// block any application on this interface
-							script.append(
-									"$IP6TABLES -A " + chainName + "-vpn -j ")
-									.append(targetRule).append(" || exit 82\n");
-						} else {
-							/*
-							 * release/block individual applications on this
-							 * interface
-							 */
-							for (final Integer uid : uidsvpn) {
-								if (uid >= 0)
-									script.append(
-											"$IP6TABLES -I "
-													+ chainName
-													+ "-vpn -m owner --uid-owner ")
-											.append(uid).append(" -j ")
-											.append(targetRule)
-											.append(" || exit 84\n");
-							}
-						}
-					} else {
-						/*
-						 * release/block individual applications on this
-						 * interface
-						 */
-						for (final Integer uid : uidsvpn) {
-							if (uid >= 0)
-								script.append(
-										"$IP6TABLES -I " + chainName
-												+ "-vpn -m owner --uid-owner ")
-										.append(uid).append(" -j ")
-										.append(targetRule)
-										.append(" || exit 84\n");
-						}
-					}
-					if (whitelist && ipv6enabled && vpnenabled) {
-						if (!any_vpn) {
-							if (uidsvpn.indexOf(SPECIAL_UID_KERNEL) >= 0) {
-								script.append("# hack to allow kernel packets on white-list\n");
-								script.append("$IP6TABLES -A "
-										+ chainName
-										+ "-vpn -m owner --uid-owner 0:999999999 -j "
-										+ chainName + "-reject || exit 87\n");
-							} else {
-								script.append("$IP6TABLES -A " + chainName
-										+ "-vpn -j " + chainName
-										+ "-reject || exit 88\n");
-							}
-						}
-					} else {
-						if (uidsvpn.indexOf(SPECIAL_UID_KERNEL) >= 0) {
-							script.append("# hack to BLOCK kernel packets on black-list\n");
-							script.append("$IP6TABLES -A "
-									+ chainName
-									+ "-vpn -m owner --uid-owner 0:999999999 -j RETURN || exit 91\n");
-							script.append("$IP6TABLES -A " + chainName
-									+ "-vpn -j " + chainName
-									+ "-reject || exit 92\n");
-						}
-					}
-				}
-				if (lanenabled && ipv6enabled) {
-					if (any_lan && ipv6enabled) {
-						if (blacklist) {
-							// block any application on this interface
-							script.append(
-									"$IP6TABLES -A " + chainName + "-lan -j ")
-									.append(targetRule).append(" || exit 82\n");
-						} else {
-							/*
-							 * release/block individual applications on this
-							 * interface
-							 */
-							for (final Integer uid : uidslan) {
-								if (uid >= 0)
-									script.append(
-											"$IP6TABLES -I "
-													+ chainName
-													+ "-lan -m owner --uid-owner ")
-											.append(uid).append(" -j ")
-											.append(targetRule)
-											.append(" || exit 84\n");
-							}
-						}
-					} else {
-						/*
-						 * release/block individual applications on this
-						 * interface
-						 */
-						for (final Integer uid : uidslan) {
-							if (uid >= 0)
-								script.append(
-										"$IP6TABLES -I " + chainName
-												+ "-lan -m owner --uid-owner ")
-										.append(uid).append(" -j ")
-										.append(targetRule)
-										.append(" || exit 84\n");
-						}
-					}
-					if (whitelist && ipv6enabled && lanenabled) {
-						if (!any_lan) {
-							if (uidslan.indexOf(SPECIAL_UID_KERNEL) >= 0) {
-								script.append("# hack to allow kernel packets on white-list\n");
-								script.append("$IP6TABLES -A "
-										+ chainName
-										+ "-lan -m owner --uid-owner 0:999999999 -j "
-										+ chainName + "-reject || exit 87\n");
-							} else {
-								script.append("$IP6TABLES -A " + chainName
-										+ "-lan -j " + chainName
-										+ "-reject || exit 88\n");
-							}
-						}
-					} else {
-						if (uidslan.indexOf(SPECIAL_UID_KERNEL) >= 0) {
-							script.append("# hack to BLOCK kernel packets on black-list\n");
-							script.append("$IP6TABLES -A "
-									+ chainName
-									+ "-lan -m owner --uid-owner 0:999999999 -j RETURN || exit 91\n");
-							script.append("$IP6TABLES -A " + chainName
-									+ "-lan -j " + chainName
-									+ "-reject || exit 92\n");
-						}
-					}
-				}
-				if (inputenabled && ipv6enabled) {
-					if (any_inputwifi && inputenabled) {
-						if (blacklist) {
-							/* block any application on this interface */
-							script.append(
-									"$IP6TABLES -A " + chainName + "-input -j ")
-									.append(targetRule).append(" || exit 40\n");
-						} else {
-							/*
-							 * release/block individual applications on this
-							 * interface
-							 */
-							for (final Integer uid : uidsinputwifi) {
-								if (uid >= 0)
-									script.append(
-											"$IP6TABLES -I "
-													+ chainName
-													+ "-input -m owner --uid-owner ")
-											.append(uid).append(" -j ")
-											.append(targetRule)
-											.append(" || exit 42\n");
-							}
-						}
-					} else {
-						/*
-						 * release/block individual applications on this
-						 * interface
-						 */
-						for (final Integer uid : uidsinputwifi) {
-							if (uid >= 0)
-								script.append(
-										"$IP6TABLES -I "
-												+ chainName
-												+ "-input -m owner --uid-owner ")
-										.append(uid).append(" -j ")
-										.append(targetRule)
-										.append(" || exit 42\n");
-						}
-					}
-					if (whitelist && inputenabled) {
-						if (!any_inputwifi) {
-							if (uidsinputwifi.indexOf(SPECIAL_UID_KERNEL) >= 0) {
-								script.append("# hack to allow kernel packets on white-list\n");
-								script.append("$IP6TABLES -A "
-										+ chainName
-										+ "-input -m owner --uid-owner 0:999999999 -j "
-										+ chainName
-										+ "-input-drop || exit 48\n");
-								if (logacceptenabled) {
-									script.append("$IP6TABLES -A "
-											+ chainName
-											+ "-input -m owner --uid-owner 0:999999999 -j "
-											+ chainName
-											+ "-input-accept || exit 54\n");
-								}
-							} else {
-								script.append("$IP6TABLES -A " + chainName
-										+ "-input -j " + chainName
-										+ "-input-drop || exit 50\n");
-								if (logacceptenabled) {
-									script.append("$IP6TABLES -A " + chainName
-											+ "-input -j " + chainName
-											+ "-input-accept || exit 54\n");
-								}
-							}
-						} else {
-							script.append("$IP6TABLES -A " + chainName
-									+ "-input-wifi -j " + chainName
-									+ "-input-drop || exit 54\n");
-							if (logacceptenabled) {
-								script.append("$IP6TABLES -A " + chainName
-										+ "-input -j " + chainName
-										+ "-input-accept || exit 54\n");
-							}
-						}
-					} else {
-						if (uidsinputwifi.indexOf(SPECIAL_UID_KERNEL) >= 0) {
-							script.append("# hack to BLOCK kernel packets on black-list\n");
-							script.append("$IP6TABLES -A "
-									+ chainName
-									+ "-input -m owner --uid-owner 0:999999999 -j RETURN || exit 56\n");
-							script.append("$IP6TABLES -A " + chainName
-									+ "-input -j " + chainName
-									+ "-input-drop || exit 57\n");
-							if (logacceptenabled) {
-								script.append("$IP6TABLES -A " + chainName
-										+ "-input -j " + chainName
-										+ "-input-accept || exit 54\n");
-							}
-						}
-					}
-					script.append("$IP6TABLES -I "
-							+ chainName
-							+ "-input -m owner --uid-owner 0 -j RETURN || exit 4444\n");
-					script.append("$IP6TABLES -I "
-							+ chainName
-							+ "-input -m state --state ESTABLISHED,RELATED -j ACCEPT || exit 4455\n");
-				}
-			}
-			final StringBuilder res = new StringBuilder();
-			code = runScriptAsRoot(ctx, script.toString(), res);
 			if (showErrors && code != 0) {
-				String msg = res.toString();
+				String msg = withoutLogLines(res.toString());
 				Log.e(TAG, msg);
 				// Remove unnecessary help message from output
 				if (msg.indexOf("\nTry `iptables -h' or 'iptables --help' for more information.") != -1) {
@@ -1754,131 +634,211 @@ public final class Api {
 				return true;
 			}
 		} catch (Exception e) {
+			appliedRules = null;
 			if (showErrors)
 				Log.d("{AF} - error applying rules", e.getMessage());
 			alert(ctx, "error refreshing iptables: " + e);
 		}
-		return false;
+		return false;
+	}
+
+	/**
+	 * @param output
+	 *            output of a script that printed the cleared firewall log
+	 *            lines first
+	 * @return the output without those lines
+	 */
+	private static String withoutLogLines(String output) {
+		final StringBuilder res = new StringBuilder(output.length());
+		for (String line : output.split("\n")) {
+			if (line.indexOf(NflogService.TAG_REJECT) < 0
+					&& line.indexOf(NflogService.TAG_ACCEPT) < 0) {
+				res.append(line).append('\n');
+			}
+		}
+		return res.toString();
+	}
+
+	/**
+	 * Purge and re-add all saved rules (not in-memory ones). This is much
+	 * faster than just calling "applyIptablesRules", since it don't need to
+	 * read installed applications.
+	 * 
+	 * @param ctx
+	 *            application context (mandatory)
+	 * @param showErrors
+	 *            indicates if errors should be alerted
+	 */
+	public static boolean applySavedIptablesRules(Context ctx,
+			boolean showErrors) {
+		if (ctx == null) {
+			return false;
+		}
+		assertBinaries(ctx, showErrors);
+		final SharedPreferences prefs = ctx.getSharedPreferences(PREFS_NAME, 0);
+		final FirewallConfig cfg = getFirewallConfig(ctx, prefs);
+		readSavedUids(cfg, prefs);
+		return installRules(ctx, cfg, null, showErrors);
+	}
+
+	/**
+	 * Apply the rules for the connected network: when it is bound to another
+	 * profile than the one in use, the profile becomes the working set of
+	 * rules and its precompiled ruleset is installed, otherwise the saved
+	 * rules are applied again.
+	 * 
+	 * @param ctx
+	 *            application context (mandatory)
+	 * @param showErrors
+	 *            indicates if errors should be alerted
+	 */
+	public static boolean applyNetworkRules(Context ctx, boolean showErrors) {
+		if (ctx == null) {
+			return false;
+		}
+		final InterfaceInfo itf = InterfaceTracker.getCurrentCfg(ctx);
+		final int profile = RuleContexts.select(ctx, itf);
+		if (profile < 0) {
+			return applySavedIptablesRules(ctx, showErrors);
+		}
+		final RuleContexts.Compiled next = RuleContexts.take(ctx, profile,
+				itf);
+		RuleContexts.activate(ctx, profile);
+		applications = null;
+		if (!isEnabled(ctx)) {
+			// the profile was saved with the firewall off
+			return purgeIptables(ctx, showErrors);
+		}
+		Log.d(TAG, "Switching to rule context " + profile + " for "
+				+ itf.wifiSsid);
+		assertBinaries(ctx, showErrors);
+		return installRules(ctx, next.cfg, next.rules, showErrors);
+	}
+
+	/**
+	 * @param ctx
+	 *            application context (mandatory)
+	 * @return true if the roaming state differs from the one the rules were
+	 *         applied for. If that is unknown, only roaming counts as a
+	 *         change.
+	 */
+	public static boolean roamingStateChanged(Context ctx) {
+		final FirewallConfig cfg = appliedConfig;
+		final boolean roaming = isRoaming(ctx);
+		if (cfg == null) {
+			return roaming;
+		}
+		return cfg.roaming != roaming;
 	}
 
 	/**
-	 * Purge and re-add all saved rules (not in-memory ones). This is much
-	 * faster than just calling "applyIptablesRules", since it don't need to
-	 * read installed applications.
+	 * Follow a change of the roaming state. If the applied rules contain
+	 * both 3G variants only the rule choosing between them is replaced,
+	 * otherwise the saved rules are applied again.
 	 * 
 	 * @param ctx
 	 *            application context (mandatory)
 	 * @param showErrors
 	 *            indicates if errors should be alerted
 	 */
-	public static boolean applySavedIptablesRules(Context ctx,
-			boolean showErrors) {
+	public static boolean applyRoamingChange(Context ctx, boolean showErrors) {
 		if (ctx == null) {
 			return false;
 		}
-		final SharedPreferences prefs = ctx.getSharedPreferences(PREFS_NAME, 0);
-		final String savedUids_wifi = prefs.getString(PREF_WIFI_UIDS, "");
-		final String savedUids_3g = prefs.getString(PREF_3G_UIDS, "");
-		final String savedUids_roaming = prefs.getString(PREF_ROAMING_UIDS, "");
-		final String savedUids_vpn = prefs.getString(PREF_VPN_UIDS, "");
-		final String savedUids_lan = prefs.getString(PREF_LAN_UIDS, "");
-		final String savedUids_input_wifi = prefs.getString(
-				PREF_INPUT_WIFI_UIDS, "");
-		final List<Integer> uids_wifi = new LinkedList<Integer>();
-		if (savedUids_wifi.length() > 0) {
-			// Check which applications are allowed on wifi
-			final StringTokenizer tok = new StringTokenizer(savedUids_wifi, "|");
-			while (tok.hasMoreTokens()) {
-				final String uid = tok.nextToken();
-				if (!uid.equals("")) {
-					try {
-						uids_wifi.add(Integer.parseInt(uid));
-					} catch (Exception ex) {
-						Log.d("{AF} - error with WiFi UIDs", ex.getMessage());
-					}
-				}
-			}
+		final FirewallConfig cfg = appliedConfig;
+		final Ruleset applied = appliedRules;
+		if (cfg == null || applied == null || !cfg.roamingEnabled) {
+			return applySavedIptablesRules(ctx, showErrors);
 		}
-		final List<Integer> uids_3g = new LinkedList<Integer>();
-		if (savedUids_3g.length() > 0) {
-			// Check which applications are allowed on 2G/3G
-			final StringTokenizer tok = new StringTokenizer(savedUids_3g, "|");
-			while (tok.hasMoreTokens()) {
-				final String uid = tok.nextToken();
-				if (!uid.equals("")) {
-					try {
-						uids_3g.add(Integer.parseInt(uid));
-					} catch (Exception ex) {
-						Log.d("{AF} - error with Data UIDs", ex.getMessage());
-					}
-				}
-			}
+		final boolean roaming = isRoaming(ctx);
+		if (cfg.roaming == roaming) {
+			return true;
 		}
-		final List<Integer> uids_roaming = new LinkedList<Integer>();
-		if (savedUids_roaming.length() > 0) {
-			// Check which applications are allowed on 2G/3G
-			final StringTokenizer tok = new StringTokenizer(savedUids_roaming,
-					"|");
-			while (tok.hasMoreTokens()) {
-				final String uid = tok.nextToken();
-				if (!uid.equals("")) {
-					try {
-						uids_roaming.add(Integer.parseInt(uid));
-					} catch (Exception ex) {
-						Log.d("{AF} - error with Roaming UIDs", ex.getMessage());
-					}
-				}
-			}
+		cfg.roaming = roaming;
+		final Ruleset rules = RuleCompiler.compile(cfg);
+		final String chain3g = cfg.chainName + "-3g";
+		final StringBuilder script = new StringBuilder();
+		script.append(toolHeader(ctx));
+		final int edits = DeltaEmitter.appendReplace(script, applied, rules,
+				chain3g);
+		if (edits < 0) {
+			// not the precompiled layout, rebuild
+			cfg.roaming = !roaming;
+			return applySavedIptablesRules(ctx, showErrors);
 		}
-		final List<Integer> uids_vpn = new LinkedList<Integer>();
-		if (savedUids_vpn.length() > 0) {
-			// Check which applications are allowed on 2G/3G
-			final StringTokenizer tok = new StringTokenizer(savedUids_vpn, "|");
-			while (tok.hasMoreTokens()) {
-				final String uid = tok.nextToken();
-				if (!uid.equals("")) {
-					try {
-						uids_vpn.add(Integer.parseInt(uid));
-					} catch (Exception ex) {
-						Log.d("{AF} - error with VPN UIDs", ex.getMessage());
-					}
-				}
+		Log.d(TAG, "Roaming " + (roaming ? "started" : "ended") + ", replacing "
+				+ edits + " rule(s)");
+		try {
+			final StringBuilder res = new StringBuilder();
+			if (runScriptAsRoot(ctx, script.toString(), res) == 0) {
+				appliedRules = rules;
+				return true;
 			}
+			Log.e(TAG, "Roaming switch failed: " + res);
+		} catch (IOException e) {
+			Log.e(TAG, "Roaming switch failed: " + e);
 		}
-		final List<Integer> uids_lan = new LinkedList<Integer>();
-		if (savedUids_lan.length() > 0) {
-			// Check which applications are allowed on 2G/3G
-			final StringTokenizer tok = new StringTokenizer(savedUids_lan, "|");
-			while (tok.hasMoreTokens()) {
-				final String uid = tok.nextToken();
-				if (!uid.equals("")) {
-					try {
-						uids_lan.add(Integer.parseInt(uid));
-					} catch (Exception ex) {
-						Log.d("{AF} - error with LAN UIDs", ex.getMessage());
-					}
-				}
-			}
+		// the chains are unknown now
+		appliedRules = null;
+		appliedConfig = null;
+		return applySavedIptablesRules(ctx, showErrors);
+	}
+
+	/**
+	 * Follow a change of the LAN networks of the connected Wi-Fi. Only the
+	 * rules of the LAN dispatch chain are replaced in the applied rules,
+	 * without reading the settings or compiling the rules again. If the
+	 * number of networks changed, the rules for the network are applied
+	 * again.
+	 * 
+	 * @param ctx
+	 *            application context (mandatory)
+	 * @param showErrors
+	 *            indicates if errors should be alerted
+	 */
+	public static boolean applyLanChange(Context ctx, boolean showErrors) {
+		if (ctx == null) {
+			return false;
 		}
-		final List<Integer> uids_input_wifi = new LinkedList<Integer>();
-		if (savedUids_input_wifi.length() > 0) {
-			// Check which applications are allowed on 2G/3G
-			final StringTokenizer tok = new StringTokenizer(
-					savedUids_input_wifi, "|");
-			while (tok.hasMoreTokens()) {
-				final String uid = tok.nextToken();
-				if (!uid.equals("")) {
-					try {
-						uids_input_wifi.add(Integer.parseInt(uid));
-					} catch (Exception ex) {
-						Log.d("{AF} - error with Input Wifi UIDs",
-								ex.getMessage());
-					}
-				}
+		final FirewallConfig cfg = appliedConfig;
+		final Ruleset applied = appliedRules;
+		if (cfg == null || applied == null || !cfg.lanEnabled) {
+			return applyNetworkRules(ctx, showErrors);
+		}
+		final InterfaceInfo itf = InterfaceTracker.getCurrentCfg(ctx);
+		final String name = RuleCompiler.lanDispatchChainName(cfg.chainName);
+		Ruleset rules = applied;
+		for (Table table : applied.getTables()) {
+			final Chain chain = new Chain(name);
+			RuleCompiler.compileLanDispatch(chain, cfg.chainName,
+					table.family == Family.IPV4 ? itf.lanipv4 : itf.lanipv6);
+			rules = rules.copyWith(table.family, chain);
+		}
+		final StringBuilder script = new StringBuilder();
+		script.append(toolHeader(ctx));
+		final int edits = DeltaEmitter.appendReplace(script, applied, rules,
+				name);
+		if (edits < 0) {
+			// networks were added or removed
+			return applyNetworkRules(ctx, showErrors);
+		}
+		Log.d(TAG, "LAN networks changed, replacing " + edits + " rule(s)");
+		try {
+			final StringBuilder res = new StringBuilder();
+			if (edits == 0 || runScriptAsRoot(ctx, script.toString(), res) == 0) {
+				cfg.lanIpv4 = itf.lanipv4;
+				cfg.lanIpv6 = itf.lanipv6;
+				appliedRules = rules;
+				return true;
 			}
+			Log.e(TAG, "LAN switch failed: " + res);
+		} catch (IOException e) {
+			Log.e(TAG, "LAN switch failed: " + e);
 		}
-		return applyIptablesRulesImpl(ctx, uids_wifi, uids_3g, uids_roaming,
-				uids_vpn, uids_lan, uids_input_wifi, showErrors);
+		// the chains are unknown now
+		appliedRules = null;
+		appliedConfig = null;
+		return applyNetworkRules(ctx, showErrors);
 	}
 
 	/**
@@ -2004,6 +964,8 @@ public final class Api {
 	public static boolean purgeIptables(Context ctx, boolean showErrors) {
 		final boolean ipv6enabled = ctx.getSharedPreferences(PREFS_NAME, 0)
 				.getBoolean(PREF_IP6TABLES, true);
+		// the chains no longer match the last applied ruleset
+		appliedRules = null;
 		final StringBuilder res = new StringBuilder();
 		try {
 			assertBinaries(ctx, showErrors);
@@ -2024,8 +986,11 @@ public final class Api {
 					+ "$IPTABLES -F " + chainName + "-input-wifi\n"
 					+ "$IPTABLES -F " + chainName + "-input-3g\n"
 					+ "$IPTABLES -F " + chainName + "-input-drop\n" + "");
+			if (Boolean.TRUE.equals(nftAvailable)) {
+				script.append("nft delete table ip " + chainName
+						+ " 2>/dev/null\n");
+			}
 			if (ipv6enabled) {
-				script.append(scriptHeader(ctx));
 				script.append("" + "$IP6TABLES --flush " + chainName + "\n"
 						+ "$IP6TABLES --flush " + chainName + "-reject\n"
 						+ "$IP6TABLES --flush " + chainName + "-3g\n"
@@ -2036,13 +1001,22 @@ public final class Api {
 						+ "$IP6TABLES -F " + chainName + "-input-wifi\n"
 						+ "$IP6TABLES -F " + chainName + "-input-3g\n"
 						+ "$IP6TABLES -F " + chainName + "-input-drop\n" + "");
+				if (Boolean.TRUE.equals(nftAvailable)) {
+					script.append("nft delete table ip6 " + chainName
+							+ " 2>/dev/null\n");
+				}
 			}
+			// a boot lockdown left behind by a failed apply
+			script.append(BootLockdown.getReleaseScript(chainName));
 			if (customScript.length() > 0) {
 				script.append("\n# BEGIN OF CUSTOM SCRIPT (user-defined)\n");
 				script.append(customScript);
 				script.append("\n# END OF CUSTOM SCRIPT (user-defined)\n\n");
 			}
 			int code = runScriptAsRoot(ctx, script.toString(), res);
+			if (code != -1) {
+				BootLockdown.released(ctx, false);
+			}
 			if (code == -1) {
 				if (showErrors)
 					alert(ctx, R.string.error_purging_code + " " + code + "\n"
@@ -2058,6 +1032,8 @@ public final class Api {
 	}
 
 	public static boolean purgeIp6tables(Context ctx, boolean showErrors) {
+		// the chains no longer match the last applied ruleset
+		appliedRules = null;
 		final StringBuilder res = new StringBuilder();
 		try {
 			assertBinaries(ctx, showErrors);
@@ -2079,6 +1055,10 @@ public final class Api {
 					+ "$IP6TABLES -F " + chainName + "-input-wifi\n"
 					+ "$IP6TABLES -F " + chainName + "-input-3g\n"
 					+ "$IP6TABLES -F " + chainName + "-input-drop\n" + "");
+			if (Boolean.TRUE.equals(nftAvailable)) {
+				script.append("nft delete table ip6 " + chainName
+						+ " 2>/dev/null\n");
+			}
 			if (customScript.length() > 0) {
 				script.append("\n# BEGIN OF CUSTOM SCRIPT (user-defined)\n");
 				script.append(customScript);
@@ -2154,12 +1134,16 @@ public final class Api {
 		} else {
 			try {
 				final StringBuilder res = new StringBuilder();
-				int code = runScriptAsRoot(ctx,
-						"dmesg -c >/dev/null || exit\n", res);
+				// the cleared lines go to the event history first
+				int code = runScriptAsRoot(ctx, scriptHeader(ctx)
+						+ "AF_LOG=\"$(dmesg -c)\" || exit\n"
+						+ "$ECHO \"$AF_LOG\" | $GREP '\\[AndroidFirewall'\n"
+						+ "exit 0\n", res);
 				if (code != 0) {
 					alert(ctx, res);
 					return false;
 				}
+				EventStore.get(ctx).addDmesg(ctx, res.toString());
 				return true;
 			} catch (Exception e) {
 				Log.d("{AF} - error clearing the logs", e.getMessage());
@@ -2220,138 +1204,12 @@ public final class Api {
 			}
 			return output.toString();
 		}
-		final BufferedReader r = new BufferedReader(new StringReader(
-				res.toString()));
-		final Integer unknownUID = -99;
+		EventStore.get(ctx).addDmesg(ctx, res.toString());
+		final LogSummary summary = new LogSummary();
+		summary.addAll(res.toString(), logstring);
 		res = new StringBuilder();
-		String line;
-		int start, end;
-		Integer appid;
-		final SparseArray<LogInfo> map = new SparseArray<LogInfo>();
-		LogInfo loginfo = null;
-
 		try {
-			while ((line = r.readLine()) != null) {
-				if (line.indexOf(logstring) == -1)
-					continue;
-				appid = unknownUID;
-				if (((start = line.indexOf("UID=")) != -1)
-						&& ((end = line.indexOf(" ", start)) != -1)) {
-					appid = Integer.parseInt(line.substring(start + 4, end));
-				}
-				loginfo = map.get(appid);
-				if (loginfo == null) {
-					loginfo = new LogInfo();
-					map.put(appid, loginfo);
-				}
-				loginfo.totalBlocked += 1;
-				if (((start = line.indexOf("DST=")) != -1)
-						&& ((end = line.indexOf(" ", start)) != -1)) {
-					String dst = line.substring(start + 4, end);
-					if (loginfo.dstBlocked.containsKey(dst)) {
-						loginfo.dstBlocked.put(dst,
-								loginfo.dstBlocked.get(dst) + 1);
-					} else {
-						loginfo.dstBlocked.put(dst, 1);
-					}
-				}
-				if (((start = line.indexOf("PROTO=")) != -1)
-						&& ((end = line.indexOf(" ", start)) != -1)) {
-					String proto = line.substring(start + 6, end);
-					if (loginfo.protoBlocked.containsKey(proto)) {
-						loginfo.protoBlocked.put(proto,
-								loginfo.protoBlocked.get(proto) + 1);
-					} else {
-						loginfo.protoBlocked.put(proto, 1);
-					}
-				}
-				if (((start = line.indexOf("SRC=")) != -1)
-						&& ((end = line.indexOf(" ", start)) != -1)) {
-					String src = line.substring(start + 4, end);
-					if (loginfo.srcBlocked.containsKey(src)) {
-						loginfo.srcBlocked.put(src,
-								loginfo.srcBlocked.get(src) + 1);
-					} else {
-						loginfo.srcBlocked.put(src, 1);
-					}
-				}
-				if (((start = line.indexOf("DPT=")) != -1)
-						&& ((end = line.indexOf(" ", start)) != -1)) {
-					String dpt = line.substring(start + 4, end);
-					if (loginfo.dptBlocked.containsKey(dpt)) {
-						loginfo.dptBlocked.put(dpt,
-								loginfo.dptBlocked.get(dpt) + 1);
-					} else {
-						loginfo.dptBlocked.put(dpt, 1);
-					}
-				}
-			}
-			final List<DroidApp> apps = getApps(ctx);
-			Integer id;
-			String appName = "";
-			int appId = -1;
-			int totalBlocked;
-			for (int i = 0; i < map.size(); i++) {
-				StringBuilder address = new StringBuilder();
-				id = map.keyAt(i);
-				if (id != unknownUID) {
-					for (DroidApp app : apps) {
-						if (app.uid == id) {
-							appId = id;
-							appName = app.names.get(0);
-							break;
-						}
-					}
-				} else {
-					appName = "Kernel";
-				}
-				loginfo = map.valueAt(i);
-				totalBlocked = loginfo.totalBlocked;
-				if (loginfo.dstBlocked.size() > 0) {
-					for (String dst : loginfo.dstBlocked.keySet()) {
-						address.append("Destination IP: " + dst + "("
-								+ loginfo.dstBlocked.get(dst) + ")");
-						address.append("\n");
-					}
-				}
-				if (loginfo.protoBlocked.size() > 0) {
-					for (String proto : loginfo.protoBlocked.keySet()) {
-						address.append("Protocol used: " + proto + "("
-								+ loginfo.protoBlocked.get(proto) + ")");
-						address.append("\n");
-					}
-				}
-				if (loginfo.srcBlocked.size() > 0) {
-					for (String src : loginfo.srcBlocked.keySet()) {
-						address.append("Source IP: " + src + "("
-								+ loginfo.srcBlocked.get(src) + ")");
-						address.append("\n");
-					}
-				}
-				if (loginfo.dptBlocked.size() > 0) {
-					for (String dpt : loginfo.dptBlocked.keySet()) {
-						address.append("Destination Port: " + dpt + "("
-								+ loginfo.dptBlocked.get(dpt) + ")");
-						address.append("\n");
-					}
-				}
-				if (rejectlog == true) {
-					res.append("AppID :\t" + appId + "\n"
-							+ ctx.getString(R.string.LogAppName) + ":\t"
-							+ appName + "\n"
-							+ ctx.getString(R.string.LogPackBlock) + ":\t"
-							+ totalBlocked + "\n");
-				}
-				if (rejectlog == false) {
-					res.append("AppID :\t" + appId + "\n"
-							+ ctx.getString(R.string.LogAppName) + ":\t"
-							+ appName + "\n"
-							+ ctx.getString(R.string.LogPackAllowed) + ":\t"
-							+ totalBlocked + "\n");
-				}
-				res.append(address.toString());
-				res.append("\n\t---------\n");
-			}
+			formatLog(ctx, getApps(ctx), summary, res);
 		} catch (Exception e) {
 			Log.d("{AF} - error showing the logs", e.getMessage());
 			alert(ctx, "error: " + e);
@@ -2359,6 +1217,7 @@ public final class Api {
 		if (res.length() == 0) {
 			res.append(ctx.getString(R.string.log_empty));
 		}
+		formatHistory(ctx, res);
 		return res.toString();
 	}
 
@@ -2366,147 +1225,179 @@ public final class Api {
 	 * get NFLOG information
 	 */
 	public static String parseLog(Context ctx, String dmesg) {
-		final BufferedReader r = new BufferedReader(new StringReader(
-				dmesg.toString()));
-		final Integer unknownUID = -99;
-		StringBuilder res = new StringBuilder();
-		String line;
-		int start, end;
-		Integer appid;
-		final SparseArray<LogInfo> map = new SparseArray<LogInfo>();
-		LogInfo loginfo = null;
+		final StringBuilder res = new StringBuilder();
+		try {
+			final LogSummary summary = new LogSummary();
+			summary.addAll(dmesg, nflogCommand);
+			formatLog(ctx, getApps(ctx), summary, res);
+		} catch (Exception e) {
+			Log.d(TAG, "NFLOG is null");
+			return null;
+
+		}
+		if (res.length() == 0) {
+			res.append(ctx.getString(R.string.log_empty));
+		}
+		return res.toString();
+	}
 
+	/**
+	 * Display the NFLOG counts kept by NflogService since the last clear,
+	 * without parsing the lines again
+	 * 
+	 * @param ctx
+	 *            application context
+	 * @return the text, null on error
+	 */
+	public static String showNflog(Context ctx) {
+		final StringBuilder res = new StringBuilder();
 		try {
-			while ((line = r.readLine()) != null) {
-				if (line.indexOf(nflogCommand) == -1)
-					continue;
-				appid = unknownUID;
-				if (((start = line.indexOf("UID=")) != -1)
-						&& ((end = line.indexOf(" ", start)) != -1)) {
-					appid = Integer.parseInt(line.substring(start + 4, end));
-				}
-				loginfo = map.get(appid);
-				if (loginfo == null) {
-					loginfo = new LogInfo();
-					map.put(appid, loginfo);
-				}
-				loginfo.totalBlocked += 1;
-				if (((start = line.indexOf("DST=")) != -1)
-						&& ((end = line.indexOf(" ", start)) != -1)) {
-					String dst = line.substring(start + 4, end);
-					if (loginfo.dstBlocked.containsKey(dst)) {
-						loginfo.dstBlocked.put(dst,
-								loginfo.dstBlocked.get(dst) + 1);
-					} else {
-						loginfo.dstBlocked.put(dst, 1);
-					}
-				}
-				if (((start = line.indexOf("PROTO=")) != -1)
-						&& ((end = line.indexOf(" ", start)) != -1)) {
-					String proto = line.substring(start + 6, end);
-					if (loginfo.protoBlocked.containsKey(proto)) {
-						loginfo.protoBlocked.put(proto,
-								loginfo.protoBlocked.get(proto) + 1);
-					} else {
-						loginfo.protoBlocked.put(proto, 1);
-					}
-				}
-				if (((start = line.indexOf("SRC=")) != -1)
-						&& ((end = line.indexOf(" ", start)) != -1)) {
-					String src = line.substring(start + 4, end);
-					if (loginfo.srcBlocked.containsKey(src)) {
-						loginfo.srcBlocked.put(src,
-								loginfo.srcBlocked.get(src) + 1);
-					} else {
-						loginfo.srcBlocked.put(src, 1);
-					}
-				}
-				if (((start = line.indexOf("DPT=")) != -1)
-						&& ((end = line.indexOf(" ", start)) != -1)) {
-					String dpt = line.substring(start + 4, end);
-					if (loginfo.dptBlocked.containsKey(dpt)) {
-						loginfo.dptBlocked.put(dpt,
-								loginfo.dptBlocked.get(dpt) + 1);
-					} else {
-						loginfo.dptBlocked.put(dpt, 1);
-					}
-				}
+			// outside the lock, the shell thread keeps counting meanwhile
+			final List<DroidApp> apps = getApps(ctx);
+			final LogSummary counts = NflogService.getSummary(nflogCommand);
+			final LogSummary summary;
+			synchronized (counts) {
+				summary = counts.copy();
+			}
+			formatLog(ctx, apps, summary, res);
+		} catch (Exception e) {
+			Log.d(TAG, "NFLOG is null");
+			return null;
+		}
+		if (res.length() == 0) {
+			res.append(ctx.getString(R.string.log_empty));
+		}
+		formatHistory(ctx, res);
+		return res.toString();
+	}
+
+	private static final long HISTORY_PERIOD = 24 * 60 * 60 * 1000;
+	private static final int HISTORY_APPS = 10;
+
+	/**
+	 * Append the applications with the most packets of the stored history,
+	 * which outlives the kernel log and the NFLOG counts
+	 * 
+	 * @param ctx
+	 *            application context
+	 * @param res
+	 *            where to append the text
+	 */
+	private static void formatHistory(Context ctx, StringBuilder res) {
+		try {
+			final long now = System.currentTimeMillis();
+			final List<EventHistory.Count> top = EventHistory.get(ctx)
+					.topApps(now - HISTORY_PERIOD, now, HISTORY_APPS,
+							!rejectlog);
+			if (top.isEmpty()) {
+				return;
 			}
 			final List<DroidApp> apps = getApps(ctx);
-			Integer id;
-			String appName = "";
-			int appId = -1;
-			int totalBlocked;
-			for (int i = 0; i < map.size(); i++) {
-				StringBuilder address = new StringBuilder();
-				id = map.keyAt(i);
-				if (id != unknownUID) {
+			res.append("\n").append(ctx.getString(R.string.log_history))
+					.append("\n");
+			for (EventHistory.Count count : top) {
+				String appName = "Kernel";
+				if (count.id != LogLine.UNKNOWN_UID) {
+					appName = Integer.toString(count.id);
 					for (DroidApp app : apps) {
-						if (app.uid == id) {
-							appId = id;
+						if (app.uid == count.id) {
 							appName = app.names.get(0);
 							break;
 						}
 					}
-				} else {
-					appName = "Kernel";
-				}
-				loginfo = map.valueAt(i);
-				totalBlocked = loginfo.totalBlocked;
-				if (loginfo.dstBlocked.size() > 0) {
-					for (String dst : loginfo.dstBlocked.keySet()) {
-						address.append("Destination IP: " + dst + "("
-								+ loginfo.dstBlocked.get(dst) + ")");
-						address.append("\n");
-					}
-				}
-				if (loginfo.protoBlocked.size() > 0) {
-					for (String proto : loginfo.protoBlocked.keySet()) {
-						address.append("Protocol used: " + proto + "("
-								+ loginfo.protoBlocked.get(proto) + ")");
-						address.append("\n");
-					}
-				}
-				if (loginfo.srcBlocked.size() > 0) {
-					for (String src : loginfo.srcBlocked.keySet()) {
-						address.append("Source IP: " + src + "("
-								+ loginfo.srcBlocked.get(src) + ")");
-						address.append("\n");
-					}
 				}
-				if (loginfo.dptBlocked.size() > 0) {
-					for (String dpt : loginfo.dptBlocked.keySet()) {
-						address.append("Destination Port: " + dpt + "("
-								+ loginfo.dptBlocked.get(dpt) + ")");
-						address.append("\n");
-					}
-				}
-				if (rejectlog == true) {
-					res.append("AppID :\t" + appId + "\n"
-							+ ctx.getString(R.string.LogAppName) + ":\t"
-							+ appName + "\n"
-							+ ctx.getString(R.string.LogPackBlock) + ":\t"
-							+ totalBlocked + "\n");
-				}
-				if (rejectlog == false) {
-					res.append("AppID :\t" + appId + "\n"
-							+ ctx.getString(R.string.LogAppName) + ":\t"
-							+ appName + "\n"
-							+ ctx.getString(R.string.LogPackAllowed) + ":\t"
-							+ totalBlocked + "\n");
-				}
-				res.append(address.toString());
-				res.append("\n\t---------\n");
+				res.append(appName).append(":\t").append(count.count)
+						.append('\n');
 			}
 		} catch (Exception e) {
-			Log.d(TAG, "NFLOG is null");
-			return null;
+			Log.d(TAG, "Unable to read the log history: " + e);
+		}
+	}
 
+	/**
+	 * Render the packet counts of the log, one block per application
+	 * 
+	 * @param ctx
+	 *            application context
+	 * @param apps
+	 *            the installed applications
+	 * @param summary
+	 *            the counts
+	 * @param res
+	 *            where to append the text
+	 */
+	private static void formatLog(Context ctx, List<DroidApp> apps,
+			LogSummary summary, StringBuilder res) {
+		int id;
+		String appName = "";
+		int appId = -1;
+		int totalBlocked;
+		for (int i = 0; i < summary.size(); i++) {
+			StringBuilder address = new StringBuilder();
+			id = summary.uidAt(i);
+			if (id != LogLine.UNKNOWN_UID) {
+				for (DroidApp app : apps) {
+					if (app.uid == id) {
+						appId = id;
+						appName = app.names.get(0);
+						break;
+					}
+				}
+			} else {
+				appName = "Kernel";
+			}
+			final LogSummary.Entry entry = summary.entryAt(i);
+			totalBlocked = entry.total;
+			appendCounts(address, "Destination IP: ", entry.dst, FORMAT_IPV4);
+			appendCounts(address, "Protocol used: ", entry.proto,
+					FORMAT_PROTO);
+			appendCounts(address, "Source IP: ", entry.src, FORMAT_IPV4);
+			appendCounts(address, "Destination Port: ", entry.dpt,
+					FORMAT_NUMBER);
+			if (rejectlog == true) {
+				res.append("AppID :\t" + appId + "\n"
+						+ ctx.getString(R.string.LogAppName) + ":\t"
+						+ appName + "\n"
+						+ ctx.getString(R.string.LogPackBlock) + ":\t"
+						+ totalBlocked + "\n");
+			}
+			if (rejectlog == false) {
+				res.append("AppID :\t" + appId + "\n"
+						+ ctx.getString(R.string.LogAppName) + ":\t"
+						+ appName + "\n"
+						+ ctx.getString(R.string.LogPackAllowed) + ":\t"
+						+ totalBlocked + "\n");
+			}
+			res.append(address.toString());
+			res.append("\n\t---------\n");
 		}
-		if (res.length() == 0) {
-			res.append(ctx.getString(R.string.log_empty));
+	}
+
+	private static final int FORMAT_IPV4 = 0;
+	private static final int FORMAT_PROTO = 1;
+	private static final int FORMAT_NUMBER = 2;
+
+	/**
+	 * Append one "label value(count)" line per counted value
+	 */
+	private static void appendCounts(StringBuilder res, String label,
+			LogSummary.Counter counter, int format) {
+		for (int i = 0; i < counter.size(); i++) {
+			res.append(label);
+			if (i < counter.primitiveSize()) {
+				final long key = counter.keyAt(i);
+				if (format == FORMAT_IPV4) {
+					res.append(LogLine.formatIpv4((int) key));
+				} else if (format == FORMAT_PROTO) {
+					res.append(LogLine.protoName((int) key));
+				} else {
+					res.append(key);
+				}
+			} else {
+				res.append(counter.otherAt(i));
+			}
+			res.append('(').append(counter.countAt(i)).append(")\n");
 		}
-		return res.toString();
 	}
 
 	/**
@@ -2803,8 +1694,9 @@ public final class Api {
 
 		if (!rootaccess) {
 			try {
-				// Run an empty script just to check root access
-				int returnCode = new checkForRoot().execute(null, null).get();
+				// Run an empty script just to check root access, this also
+				// opens the root shell used for the rules
+				int returnCode = RootSessionPool.run("true", null, 60000);
 				if (returnCode == 0) {
 					rootaccess = true;
 					Editor edit = prefs.edit();
@@ -2822,29 +1714,6 @@ public final class Api {
 		return rootaccess;
 	}
 
-	private static class checkForRoot extends
-			AsyncTask<Object, Object, Integer> {
-		private int exitCode = -1;
-		private boolean suAvailable = false;
-
-		@Override
-		protected void onPreExecute() {
-			super.onPreExecute();
-		}
-
-		@Override
-		protected Integer doInBackground(Object... params) {
-			try {
-				suAvailable = Shell.SU.available();
-				if (suAvailable)
-					exitCode = 0;
-			} catch (Exception ex) {
-			}
-			return exitCode;
-		}
-
-	}
-
 	/**
 	 * Runs a script as root (multiple commands separated by "\n") with a
 	 * default timeout of 20 seconds.
@@ -2864,7 +1733,13 @@ public final class Api {
 
 	public static int runScriptAsRoot(Context ctx, String script,
 			StringBuilder res, long timeout) {
-		return runScript(ctx, script, res, timeout, true);
+		// scripts run in a pooled root shell, spawning su for every script
+		// costs several hundred milliseconds
+		final int returncode = RootSessionPool.run(script, res, timeout);
+		if (returncode == RootSessionPool.EXIT_NO_ROOT) {
+			Log.d(TAG, "No root shell available to run the script");
+		}
+		return returncode;
 	}
 
 	public static int runScriptAsRoot(Context ctx, String script,
@@ -2872,24 +1747,6 @@ public final class Api {
 		return runScriptAsRoot(ctx, script, res, 40000);
 	}
 
-	public static int runScript(Context ctx, String script, StringBuilder res)
-			throws IOException {
-		return runScript(ctx, script, res, 40000, false);
-	}
-
-	public static int runScript(Context ctx, String script, StringBuilder res,
-			long timeout, boolean asroot) {
-		int returncode = -1;
-		try {
-			returncode = new applyIptableRules().execute(script, res).get();
-		} catch (Exception e) {
-			Log.d("{AF} - error applying iptables in runScript", e.getMessage());
-			Toast.makeText(ctx, R.string.toast_error_enabling,
-					Toast.LENGTH_LONG).show();
-		}
-		return returncode;
-	}
-
 	/**
 	 * Asserts that the binary files are installed in the cache directory.
 	 * 
@@ -2900,6 +1757,9 @@ public final class Api {
 	 * @return false if the binary files could not be installed
 	 */
 	public static boolean assertBinaries(Context ctx, boolean showErrors) {
+		if (Toolchain.hasBinaries(ctx)) {
+			return true;
+		}
 		boolean changed = false;
 		String arch = System.getProperty("os.arch");
 		try {
@@ -2939,9 +1799,12 @@ public final class Api {
 				}
 			}
 			if (changed) {
-				Toast.makeText(ctx, R.string.toast_bin_installed,
-						Toast.LENGTH_LONG).show();
+				// the probe may have missed the bundled binaries
+				Toolchain.invalidate(ctx);
+				// may run on the rules writer, which has no looper
+				alert(ctx, ctx.getString(R.string.toast_bin_installed));
 			}
+			Toolchain.setBinaries(ctx);
 		} catch (Exception e) {
 			if (showErrors)
 				alert(ctx, R.string.error_installing_binaries + " " + e);
@@ -3031,6 +1894,7 @@ public final class Api {
 	 *            UID of the application that has been removed
 	 */
 	public static void applicationRemoved(Context ctx, int uid) {
+		RuleContexts.invalidate();
 		final SharedPreferences prefs = ctx.getSharedPreferences(PREFS_NAME, 0);
 		final Editor editor = prefs.edit();
 		// allowed application names separated by pipe '|' (persisted)
@@ -3170,11 +2034,36 @@ public final class Api {
 			editor.commit();
 			if (isEnabled(ctx)) {
 				// .. and also re-apply the rules if the firewall is enabled
-				applySavedIptablesRules(ctx, false);
+				RulesApplier.applySavedIptablesRules(ctx, false, null);
 			}
 		}
 	}
 
+	/**
+	 * Called when an application is installed. Android reuses the UIDs of
+	 * removed applications, so the new UID may fall into a gap bridged by a
+	 * merged UID range; in that case the rules are re-applied so the new
+	 * application does not inherit the verdict of its neighbours.
+	 * 
+	 * @param ctx
+	 *            mandatory app context
+	 * @param uid
+	 *            UID of the application that has been installed
+	 */
+	public static void applicationAdded(Context ctx, int uid) {
+		// the UID ranges of the precompiled rulesets may be wrong now
+		RuleContexts.invalidate();
+		if (!isEnabled(ctx)) {
+			return;
+		}
+		// the ruleset is unknown if the process was restarted since the last
+		// apply
+		if (appliedRules == null || appliedRules.rangeContains(uid)) {
+			Log.d(TAG, "UID " + uid + " may be inside a UID range, re-applying");
+			RulesApplier.applySavedIptablesRules(ctx, false, null);
+		}
+	}
+
 	/**
 	 * Small structure to hold an application info
 	 */
@@ -3246,63 +2135,9 @@ public final class Api {
 		}
 	}
 
-	/**
-	 * Small internal structure used to hold log information
-	 */
-	private static final class LogInfo {
-		private int totalBlocked; // Total number of packets blocked
-		private HashMap<String, Integer> dstBlocked; // Number of packets
-														// blocked per
-														// destination IP
-														// address
-		private HashMap<String, Integer> srcBlocked;
-		private HashMap<String, Integer> dptBlocked;
-		private HashMap<String, Integer> protoBlocked;
-
-		private LogInfo() {
-			this.dstBlocked = new HashMap<String, Integer>();
-			this.srcBlocked = new HashMap<String, Integer>();
-			this.dptBlocked = new HashMap<String, Integer>();
-			this.protoBlocked = new HashMap<String, Integer>();
-		}
-	}
-
 	/**
 	 * Internal thread used to execute scripts (as root or not).
 	 */
-	private static class applyIptableRules extends
-			AsyncTask<Object, String, Integer> {
-
-		private int exitcode = -1;
-
-		@Override
-		protected Integer doInBackground(Object... parameters) {
-			final String script = (String) parameters[0];
-			final StringBuilder resources = (StringBuilder) parameters[1];
-			final String[] commands = script.split("\n");
-			try {
-				// check for SU
-				if (!Shell.SU.available())
-					return exitcode;
-				if (script != null && script.length() > 0) {
-					// apply the rules
-					List<String> rules = Shell.SU.run(commands);
-					if (rules != null && rules.size() > 0) {
-						for (String script2 : rules) {
-							resources.append(script2);
-							resources.append("\n");
-						}
-					}
-					exitcode = 0;
-				}
-			} catch (Exception e) {
-				if (resources != null)
-					resources.append("\n" + e);
-			}
-			return exitcode;
-		}
-	}
-
 	/**
 	 * Remove cache file when file uninstalled so apps appear at top of list if
 	 * they are reinstalled.
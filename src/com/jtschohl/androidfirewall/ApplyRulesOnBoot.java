@@ -39,29 +39,52 @@ public class ApplyRulesOnBoot {
 	public static void applyRules(Context context) {
 		final Context ctx = context.getApplicationContext();
 		final boolean enabled = Api.isEnabled(ctx.getApplicationContext());
-		String nflog = Api.PREF_LOGTARGET;
-		boolean logenabled = ctx.getSharedPreferences(Api.PREFS_NAME, 0)
+		final String nflog = Api.PREF_LOGTARGET;
+		final boolean logenabled = ctx.getSharedPreferences(Api.PREFS_NAME, 0)
 				.getBoolean(Api.PREF_LOGENABLED, false);
 		if (enabled) {
 			Log.d(TAG, "Applying rules during boot.");
-			if (Api.applySavedIptablesRules(context, false)) {
-				if ("NFLOG".equals(nflog)) {
-					if (logenabled){
-						Intent intent = new Intent(ctx.getApplicationContext(),
-								NflogService.class);
-						ctx.getApplicationContext().startService(intent);
-						Intent intent2 = new Intent(ctx.getApplicationContext(),
-								RootShell.class);
-						ctx.getApplicationContext().startService(intent2);
-					}
-					Log.d(TAG, "NFLOG in use starting service after reboot.");
+			BootLockdown.onBoot();
+			new Thread("AF boot lockdown") {
+				@Override
+				public void run() {
+					// stage one must be in before the full rules are queued,
+					// which remove it again
+					BootLockdown.lockdown(ctx);
+					applyFullRules(ctx, nflog, logenabled);
 				}
-				Log.d(TAG, "Enabled - Firewall successfully enabled on boot.");
-			}
+			}.start();
 		} else {
 			Log.d(TAG, "Failed - Disabling firewall during boot.");
 			Api.setEnabled(ctx.getApplicationContext(), false);
 		}
 	}
 
+	private static void applyFullRules(final Context ctx, final String nflog,
+			final boolean logenabled) {
+		RulesApplier.applySavedIptablesRules(ctx, false,
+				new RulesApplier.Callback() {
+					@Override
+					public void onComplete(boolean success) {
+						if (!success) {
+							return;
+						}
+						if ("NFLOG".equals(nflog)) {
+							if (logenabled) {
+								Intent intent = new Intent(ctx,
+										NflogService.class);
+								ctx.startService(intent);
+								Intent intent2 = new Intent(ctx,
+										RootShell.class);
+								ctx.startService(intent2);
+							}
+							Log.d(TAG,
+									"NFLOG in use starting service after reboot.");
+						}
+						Log.d(TAG,
+								"Enabled - Firewall successfully enabled on boot.");
+					}
+				});
+	}
+
 }
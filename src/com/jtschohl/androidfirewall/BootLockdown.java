@@ -0,0 +1,290 @@
+/**
+ * Boot lockdown, the first stage of applying the rules at boot.
+ *
+ * Copyright (C) 2012-2014	Jason Tschohl
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * @author Jason Tschohl
+ * @version 1.0
+ */
+
+package com.jtschohl.androidfirewall;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import android.app.Notification;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.jtschohl.androidfirewall.rules.FirewallConfig;
+import com.jtschohl.androidfirewall.rules.LockdownEmitter;
+import com.jtschohl.androidfirewall.rules.RuleCompiler;
+
+/**
+ * Applying the full rules at boot needs a root shell, the list of
+ * applications and every chain, so it takes a while during which the
+ * applications are not filtered. The rules are therefore applied in two
+ * stages: a small lockdown script, written after every successful apply, is
+ * run as soon as the boot broadcast arrives and blocks the applications.
+ * Then the full rules are applied and the same script removes the lockdown,
+ * so the full rules take over without an unfiltered moment. If the full
+ * rules fail the lockdown stays and a notification tells the user.
+ * <p>
+ * The time of each stage is logged and kept for the last boot.
+ */
+public final class BootLockdown {
+
+	final static String TAG = "{AF}";
+
+	/** own file, loading a profile clears the firewall preferences */
+	private static final String PREFS_BOOT = "BootLockdown";
+	/** true while the lockdown may be installed */
+	private static final String PREF_PENDING = "Pending";
+	/** wall clock time of the boot the lockdown ran in */
+	private static final String PREF_BOOT_TIME = "BootTime";
+	private static final String PREF_TIMINGS = "Timings";
+	private static final String PAYLOAD = "boot_lockdown.sh";
+	private static final int NOTIFY_FAILED = 2188;
+	/** two boot times closer than this are the same boot */
+	private static final long SAME_BOOT = 60 * 1000;
+
+	/** payload last written, to skip writing the same one again */
+	private static String stored = null;
+
+	// stage times, in ms since boot (0 if not reached)
+	private static long receivedAt = 0;
+	private static long lockedAt = 0;
+	private static long lockdownTime = 0;
+
+	private BootLockdown() {
+	}
+
+	/**
+	 * Write the lockdown for the next boot. Called after the full rules were
+	 * applied.
+	 *
+	 * @param ctx
+	 *            application context
+	 * @param cfg
+	 *            settings of the applied rules
+	 * @param header
+	 *            script lines setting $IPTABLES and $IP6TABLES
+	 */
+	static synchronized void store(Context ctx, FirewallConfig cfg,
+			String header) {
+		if (!cfg.ownerRanges) {
+			// the lockdown rejects the applications with one UID range
+			if (getPayload(ctx).delete()) {
+				Log.d(TAG, "No UID ranges, boot lockdown removed");
+			}
+			stored = null;
+			return;
+		}
+		final String payload = header
+				+ new LockdownEmitter().render(RuleCompiler
+						.compileLockdown(cfg));
+		if (payload.equals(stored)) {
+			return;
+		}
+		try {
+			final FileOutputStream out = new FileOutputStream(getPayload(ctx));
+			try {
+				out.write(payload.getBytes("UTF-8"));
+			} finally {
+				out.close();
+			}
+			stored = payload;
+		} catch (IOException e) {
+			Log.e(TAG, "Unable to store the boot lockdown: " + e);
+		}
+	}
+
+	/**
+	 * The boot broadcast arrived
+	 */
+	static synchronized void onBoot() {
+		receivedAt = SystemClock.elapsedRealtime();
+		lockedAt = 0;
+		Log.d(TAG, "Boot broadcast " + receivedAt + " ms after boot");
+	}
+
+	/**
+	 * Stage one: install the stored lockdown, once per boot
+	 *
+	 * @param ctx
+	 *            application context
+	 * @return true if the lockdown is installed
+	 */
+	static boolean lockdown(Context ctx) {
+		final File file = getPayload(ctx);
+		if (!file.exists()) {
+			Log.d(TAG, "No boot lockdown stored yet");
+			return false;
+		}
+		final SharedPreferences prefs = ctx.getSharedPreferences(PREFS_BOOT, 0);
+		final long bootTime = System.currentTimeMillis()
+				- SystemClock.elapsedRealtime();
+		if (Math.abs(prefs.getLong(PREF_BOOT_TIME, 0) - bootTime) < SAME_BOOT) {
+			// a second broadcast of the same boot, the rules may be in
+			return false;
+		}
+		final long start = SystemClock.elapsedRealtime();
+		final String payload;
+		try {
+			payload = readFile(file);
+		} catch (IOException e) {
+			Log.e(TAG, "Unable to read the boot lockdown: " + e);
+			return false;
+		}
+		// before it runs, so that the next apply removes it in any case
+		prefs.edit().putLong(PREF_BOOT_TIME, bootTime)
+				.putBoolean(PREF_PENDING, true).commit();
+		int code;
+		final StringBuilder res = new StringBuilder();
+		try {
+			code = Api.runScriptAsRoot(ctx, payload, res);
+		} catch (IOException e) {
+			code = -1;
+			res.append(e);
+		}
+		final long end = SystemClock.elapsedRealtime();
+		synchronized (BootLockdown.class) {
+			lockdownTime = end - start;
+			lockedAt = code == 0 ? end : 0;
+		}
+		if (code != 0) {
+			Log.e(TAG, "Boot lockdown failed (" + code + "): " + res);
+			return false;
+		}
+		Log.d(TAG, "Boot lockdown in " + (end - start) + " ms, " + end
+				+ " ms after boot");
+		return true;
+	}
+
+	/**
+	 * @return true if the script applying the full rules must remove the
+	 *         lockdown
+	 */
+	static boolean isPending(Context ctx) {
+		return ctx.getSharedPreferences(PREFS_BOOT, 0).getBoolean(
+				PREF_PENDING, false);
+	}
+
+	/**
+	 * @param chainName
+	 *            base name of the chains
+	 * @return script removing the lockdown of both families
+	 */
+	static String getReleaseScript(String chainName) {
+		final FirewallConfig cfg = new FirewallConfig();
+		cfg.chainName = chainName;
+		cfg.ipv6Enabled = true;
+		return LockdownEmitter.renderRelease(RuleCompiler.compileLockdown(cfg));
+	}
+
+	/**
+	 * Stage two is done, the lockdown was removed
+	 *
+	 * @param ctx
+	 *            application context
+	 * @param fullRules
+	 *            true if the full rules replaced it, false if the firewall
+	 *            was disabled
+	 */
+	static synchronized void released(Context ctx, boolean fullRules) {
+		ctx.getSharedPreferences(PREFS_BOOT, 0).edit()
+				.putBoolean(PREF_PENDING, false).commit();
+		if (receivedAt == 0) {
+			return;
+		}
+		final long now = SystemClock.elapsedRealtime();
+		final String timings = "broadcast " + receivedAt
+				+ " ms after boot, lockdown "
+				+ (lockedAt > 0 ? lockdownTime + " ms (in at " + lockedAt
+						+ " ms)" : "not installed") + ", "
+				+ (fullRules ? "full rules" : "disabled") + " after "
+				+ (now - receivedAt) + " ms (in at " + now + " ms)";
+		Log.d(TAG, "Boot stages: " + timings);
+		ctx.getSharedPreferences(PREFS_BOOT, 0).edit()
+				.putString(PREF_TIMINGS, timings).commit();
+		receivedAt = 0;
+	}
+
+	/**
+	 * Stage two failed, the lockdown is still in. Keeping it is the safe
+	 * side, but the user has to know why no application gets through.
+	 *
+	 * @param ctx
+	 *            application context
+	 * @param code
+	 *            exit code of the full rules
+	 * @param msg
+	 *            output of the full rules
+	 */
+	@SuppressWarnings("deprecation")
+	static void failed(Context ctx, int code, String msg) {
+		Log.e(TAG, "Full rules failed (" + code
+				+ "), boot lockdown kept: " + msg);
+		final CharSequence title = "Open Android Firewall";
+		final Notification notification = new Notification(
+				R.drawable.notify_icon, title, System.currentTimeMillis());
+		notification.flags |= Notification.FLAG_AUTO_CANCEL;
+		final PendingIntent contentIntent = PendingIntent.getActivity(ctx, 0,
+				new Intent(ctx, MainActivity.class), 0);
+		notification.setLatestEventInfo(ctx, title,
+				ctx.getString(R.string.boot_rules_failed), contentIntent);
+		((NotificationManager) ctx
+				.getSystemService(Context.NOTIFICATION_SERVICE)).notify(
+				NOTIFY_FAILED, notification);
+	}
+
+	/**
+	 * @return the stage times of the last boot, empty if unknown
+	 */
+	public static String getTimings(Context ctx) {
+		return ctx.getSharedPreferences(PREFS_BOOT, 0).getString(
+				PREF_TIMINGS, "");
+	}
+
+	private static File getPayload(Context ctx) {
+		return new File(ctx.getDir("bin", 0), PAYLOAD);
+	}
+
+	private static String readFile(File file) throws IOException {
+		final FileInputStream in = new FileInputStream(file);
+		try {
+			final byte[] buf = new byte[(int) file.length()];
+			int len = 0;
+			while (len < buf.length) {
+				final int n = in.read(buf, len, buf.length - len);
+				if (n < 0) {
+					break;
+				}
+				len += n;
+			}
+			return new String(buf, 0, len, "UTF-8");
+		} finally {
+			in.close();
+		}
+	}
+}
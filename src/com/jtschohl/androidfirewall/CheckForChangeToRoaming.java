@@ -26,24 +26,20 @@ package com.jtschohl.androidfirewall;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
-import android.net.ConnectivityManager;
-import android.net.NetworkInfo;
 
 public class CheckForChangeToRoaming extends BroadcastReceiver {
 
 	public void onReceive(Context context, Intent intent) {
-
-		ConnectivityManager connectmanager = (ConnectivityManager) context
-				.getSystemService(Context.CONNECTIVITY_SERVICE);
-		NetworkInfo[] roaminfo = connectmanager.getAllNetworkInfo();
-		for (NetworkInfo roam : roaminfo) {
-			if (roaminfo != null) {
-				if (roam.getType() == ConnectivityManager.TYPE_MOBILE)
-					if (roam.isConnectedOrConnecting() && roam.isRoaming()) {
-						Api.applyIptablesRules(context, false);
-					}
-			}
+		if (!Api.isEnabled(context)
+				|| !context.getSharedPreferences(Api.PREFS_NAME, 0)
+						.getBoolean(Api.PREF_ROAMENABLED, false)) {
+			return;
+		}
+		// both the home and the roaming 3G rules are installed, switching
+		// only replaces the jump between them
+		if (Api.roamingStateChanged(context)) {
+			RulesApplier.applyRoamingChange(context, false, null);
 		}
 	}
 
-}
\ No newline at end of file
+}
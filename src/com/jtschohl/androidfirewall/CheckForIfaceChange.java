@@ -31,11 +31,9 @@ public class CheckForIfaceChange extends BroadcastReceiver {
 
 	@Override
 	public void onReceive(final Context context, Intent intent) {
-		// This gets called during wifi/data/lan changes if Auto Firewall Rules
-		// are enabled
-		boolean autorules = context.getSharedPreferences(Api.PREFS_NAME, 0)
-				.getBoolean(Api.PREF_AUTORULES, false);
-		if (autorules) {
+		// This gets called during wifi/data/lan changes; new interfaces are
+		// always picked up, the rest only if Auto Firewall Rules are enabled
+		if (Api.isEnabled(context)) {
 			InterfaceIntent.performAction(context,
 					InterfaceIntent.ACTION_CONNECTIVITY_CHANGED);
 		}
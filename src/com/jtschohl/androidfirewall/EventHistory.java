@@ -0,0 +1,427 @@
+/**
+ * Queries over the stored firewall log events.
+ *
+ * Copyright (C) 2012-2014	Jason Tschohl
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * @author Jason Tschohl
+ * @version 1.0
+ */
+
+package com.jtschohl.androidfirewall;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.MappedByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import android.content.Context;
+import android.util.Log;
+
+/**
+ * Answers questions about the events of EventStore through the EventIndex
+ * of every segment, so a query reads only the blocks of records that can
+ * match instead of the whole history. The indexes are kept in memory; the
+ * ones of closed segments are also stored next to them, so they are built
+ * once.
+ */
+public final class EventHistory {
+
+	/** any UID, for histogram() */
+	public static final int ANY_UID = -1;
+	/** width of a histogram bucket, ms */
+	public static final long BUCKET = 60 * 1000;
+
+	/**
+	 * A value found by a query and the number of its events
+	 */
+	public static final class Count {
+		/** the UID or port, -1 for an address */
+		public final int id;
+		/** the address, null for a UID or port */
+		public final String address;
+		public final int count;
+
+		Count(int id, String address, int count) {
+			this.id = id;
+			this.address = address;
+			this.count = count;
+		}
+	}
+
+	private static final int KEY_UID = 0;
+	private static final int KEY_DST = 1;
+	private static final int KEY_PORT = 2;
+
+	private static EventHistory instance = null;
+
+	private final EventStore store;
+	/** indexes by segment name */
+	private final HashMap<String, EventIndex> indexes = new HashMap<String, EventIndex>();
+
+	private EventHistory(EventStore store) {
+		this.store = store;
+	}
+
+	/**
+	 * @return the history of this application
+	 */
+	public static synchronized EventHistory get(Context ctx) {
+		if (instance == null) {
+			instance = new EventHistory(EventStore.get(ctx));
+		}
+		return instance;
+	}
+
+	/**
+	 * @param from
+	 *            start time, ms (inclusive)
+	 * @param to
+	 *            end time, ms (exclusive)
+	 * @param n
+	 *            maximum number of UIDs returned
+	 * @param accepted
+	 *            true to count the accepted packets, false the blocked ones
+	 * @return the UIDs with the most events, the most first
+	 */
+	public List<Count> topApps(long from, long to, int n,
+			final boolean accepted) {
+		final LogSummary.Counter uids = new LogSummary.Counter();
+		query(-1, 0, from, to, new EventStore.Visitor() {
+			@Override
+			public boolean visit(EventStore.Record r) {
+				if (r.accepted == accepted) {
+					uids.add(r.uid);
+				}
+				return true;
+			}
+		});
+		final List<Count> res = sorted(uids, false);
+		return res.size() > n ? res.subList(0, n) : res;
+	}
+
+	/**
+	 * @param uid
+	 *            the UID
+	 * @param from
+	 *            start time, ms (inclusive)
+	 * @param to
+	 *            end time, ms (exclusive)
+	 * @return the destination addresses of the UID, the most used first
+	 */
+	public List<Count> destinations(final int uid, long from, long to) {
+		final LogSummary.Counter dsts = new LogSummary.Counter();
+		query(KEY_UID, uid, from, to, new EventStore.Visitor() {
+			@Override
+			public boolean visit(EventStore.Record r) {
+				if (r.uid != uid) {
+					return true;
+				}
+				if (r.addrLength == 4) {
+					dsts.add(r.dstIpv4() & 0xffffffffL);
+				} else {
+					dsts.add(r.getDst());
+				}
+				return true;
+			}
+		});
+		return sorted(dsts, true);
+	}
+
+	/**
+	 * @param address
+	 *            IPv4 or IPv6 address literal
+	 * @param from
+	 *            start time, ms (inclusive)
+	 * @param to
+	 *            end time, ms (exclusive)
+	 * @return the UIDs that sent packets to the address, the most first;
+	 *         empty if the address is no literal
+	 */
+	public List<Count> uidsForAddress(String address, long from, long to) {
+		final LogSummary.Counter uids = new LogSummary.Counter();
+		if (!isLiteral(address)) {
+			// InetAddress would look the name up
+			return sorted(uids, false);
+		}
+		final byte[] addr;
+		try {
+			addr = InetAddress.getByName(address).getAddress();
+		} catch (UnknownHostException e) {
+			return sorted(uids, false);
+		}
+		final EventStore.Record probe = new EventStore.Record();
+		probe.addrLength = addr.length;
+		System.arraycopy(addr, 0, probe.dst, 0, addr.length);
+		queryAddress(probe, from, to, uids);
+		if (addr.length == 4) {
+			// stored v4-mapped next to an IPv6 source
+			probe.addrLength = 16;
+			for (int i = 0; i < 10; i++) {
+				probe.dst[i] = 0;
+			}
+			probe.dst[10] = probe.dst[11] = (byte) 0xff;
+			System.arraycopy(addr, 0, probe.dst, 12, 4);
+			queryAddress(probe, from, to, uids);
+		}
+		return sorted(uids, false);
+	}
+
+	/**
+	 * Count the UIDs of the records with the destination of the probe
+	 */
+	private void queryAddress(final EventStore.Record probe, long from,
+			long to, final LogSummary.Counter uids) {
+		query(KEY_DST, EventIndex.dstKey(probe), from, to,
+				new EventStore.Visitor() {
+					@Override
+					public boolean visit(EventStore.Record r) {
+						if (r.addrLength != probe.addrLength) {
+							return true;
+						}
+						for (int i = 0; i < probe.addrLength; i++) {
+							if (r.dst[i] != probe.dst[i]) {
+								return true;
+							}
+						}
+						uids.add(r.uid);
+						return true;
+					}
+				});
+	}
+
+	/**
+	 * @return true for a dotted IPv4 or a colon separated IPv6 address, the
+	 *         only names InetAddress resolves without a lookup
+	 */
+	static boolean isLiteral(String address) {
+		if (address == null || address.length() == 0) {
+			return false;
+		}
+		if (address.indexOf(':') >= 0) {
+			for (int i = 0; i < address.length(); i++) {
+				final char c = address.charAt(i);
+				if (Character.digit(c, 16) < 0 && c != ':' && c != '.') {
+					return false;
+				}
+			}
+			return true;
+		}
+		final String[] parts = address.split("\\.", -1);
+		if (parts.length != 4) {
+			return false;
+		}
+		for (String part : parts) {
+			if (part.length() == 0 || part.length() > 3) {
+				return false;
+			}
+			for (int i = 0; i < part.length(); i++) {
+				if (part.charAt(i) < '0' || part.charAt(i) > '9') {
+					return false;
+				}
+			}
+			if (Integer.parseInt(part) > 255) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @param port
+	 *            destination port
+	 * @param from
+	 *            start time, ms (inclusive)
+	 * @param to
+	 *            end time, ms (exclusive)
+	 * @return the UIDs that sent packets to the port, the most first
+	 */
+	public List<Count> uidsForPort(final int port, long from, long to) {
+		final LogSummary.Counter uids = new LogSummary.Counter();
+		query(KEY_PORT, port, from, to, new EventStore.Visitor() {
+			@Override
+			public boolean visit(EventStore.Record r) {
+				if (r.dpt == port) {
+					uids.add(r.uid);
+				}
+				return true;
+			}
+		});
+		return sorted(uids, false);
+	}
+
+	/**
+	 * @param from
+	 *            start time, ms (inclusive)
+	 * @param to
+	 *            end time, ms (exclusive)
+	 * @param uid
+	 *            the UID, ANY_UID for all
+	 * @return number of events per BUCKET from the start time
+	 */
+	public int[] histogram(final long from, long to, final int uid) {
+		final int[] buckets = new int[(int) Math.max(0, (to - from
+				+ BUCKET - 1)
+				/ BUCKET)];
+		final EventStore.Visitor visitor = new EventStore.Visitor() {
+			@Override
+			public boolean visit(EventStore.Record r) {
+				if (uid == ANY_UID || r.uid == uid) {
+					buckets[(int) ((r.time - from) / BUCKET)]++;
+				}
+				return true;
+			}
+		};
+		if (uid == ANY_UID) {
+			query(-1, 0, from, to, visitor);
+		} else {
+			query(KEY_UID, uid, from, to, visitor);
+		}
+		return buckets;
+	}
+
+	/**
+	 * Read the records of the blocks that may hold a key in the time range
+	 *
+	 * @param kind
+	 *            KEY_UID, KEY_DST, KEY_PORT or -1 for every block
+	 * @param key
+	 *            the value looked for
+	 * @param from
+	 *            start time, ms (inclusive)
+	 * @param to
+	 *            end time, ms (exclusive)
+	 * @param visitor
+	 *            receives the records, it still has to check the key
+	 */
+	private synchronized void query(int kind, long key, long from, long to,
+			EventStore.Visitor visitor) {
+		final File[] segments = store.getSegments();
+		forget(segments);
+		final EventStore.Record r = new EventStore.Record();
+		for (int s = 0; s < segments.length; s++) {
+			final File segment = segments[s];
+			final MappedByteBuffer buf = EventStore.map(segment);
+			if (buf == null) {
+				continue;
+			}
+			final EventIndex idx = getIndex(segment, buf,
+					s == segments.length - 1);
+			final EventIndex.Blocks blocks;
+			if (kind == KEY_UID) {
+				blocks = idx.byUid.get((int) key);
+			} else if (kind == KEY_DST) {
+				blocks = idx.byDst.get(key);
+			} else if (kind == KEY_PORT) {
+				blocks = idx.byPort.get((int) key);
+			} else {
+				blocks = null;
+			}
+			if (kind >= 0 && blocks == null) {
+				continue;
+			}
+			final int count = blocks != null ? blocks.size : idx.blockCount;
+			for (int i = 0; i < count; i++) {
+				final int block = blocks != null ? blocks.blocks[i] : i;
+				if (!idx.overlaps(block, from, to)) {
+					continue;
+				}
+				if (!EventStore.scanRange(segment, buf, idx.offsets[block],
+						idx.blockEnd(block), from, to, r, visitor)) {
+					return;
+				}
+			}
+		}
+	}
+
+	/**
+	 * @param last
+	 *            true for the newest segment, which may still grow
+	 * @return the index of a segment, up to date
+	 */
+	private EventIndex getIndex(File segment, MappedByteBuffer buf,
+			boolean last) {
+		EventIndex idx = indexes.get(segment.getName());
+		if (idx == null) {
+			idx = last ? null : EventIndex.load(segment);
+			if (idx == null) {
+				idx = new EventIndex();
+			}
+			indexes.put(segment.getName(), idx);
+		}
+		if (!idx.stored) {
+			idx.extend(segment, buf);
+			if (!last) {
+				try {
+					idx.save(segment);
+				} catch (IOException e) {
+					Log.d(EventStore.TAG, "Unable to store the index of "
+							+ segment + ": " + e);
+				}
+			}
+		}
+		return idx;
+	}
+
+	/**
+	 * Drop the indexes of deleted segments
+	 */
+	private void forget(File[] segments) {
+		if (indexes.size() <= segments.length) {
+			return;
+		}
+		final Set<String> names = new HashSet<String>();
+		for (File segment : segments) {
+			names.add(segment.getName());
+		}
+		indexes.keySet().retainAll(names);
+	}
+
+	/**
+	 * @param addresses
+	 *            true if the keys are IPv4 addresses, false for UIDs/ports
+	 * @return the counted values, the most frequent first
+	 */
+	private static List<Count> sorted(LogSummary.Counter counter,
+			boolean addresses) {
+		final List<Count> res = new ArrayList<Count>(counter.size());
+		for (int i = 0; i < counter.size(); i++) {
+			if (i >= counter.primitiveSize()) {
+				res.add(new Count(-1, counter.otherAt(i), counter.countAt(i)));
+			} else if (addresses) {
+				res.add(new Count(-1, LogLine.formatIpv4((int) counter
+						.keyAt(i)), counter.countAt(i)));
+			} else {
+				res.add(new Count((int) counter.keyAt(i), null, counter
+						.countAt(i)));
+			}
+		}
+		Collections.sort(res, new Comparator<Count>() {
+			@Override
+			public int compare(Count a, Count b) {
+				return b.count < a.count ? -1 : (b.count == a.count ? 0 : 1);
+			}
+		});
+		return res;
+	}
+}
@@ -0,0 +1,310 @@
+/**
+ * Sparse index of an event log segment.
+ *
+ * Copyright (C) 2012-2014	Jason Tschohl
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * @author Jason Tschohl
+ * @version 1.0
+ */
+
+package com.jtschohl.androidfirewall;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The records of a segment are grouped in blocks of BLOCK_RECORDS. For
+ * every block the offset and the time range are kept, and for every UID,
+ * destination address and destination port the blocks holding it. A query
+ * only reads the blocks that can match; the records read are still checked,
+ * so a block listed for a key (e.g. a hash collision of two IPv6
+ * addresses) only costs the reading.
+ * <p>
+ * The index of a closed segment is written next to it; the one of the
+ * segment being written grows with it.
+ */
+final class EventIndex {
+
+	static final int BLOCK_RECORDS = 128;
+	private static final int MAGIC = 0x41464958; // "AFIX"
+	private static final int VERSION = 1;
+	private static final String SUFFIX = ".idx";
+
+	/**
+	 * Sorted block numbers
+	 */
+	static final class Blocks {
+		int[] blocks = new int[4];
+		int size = 0;
+
+		void add(int block) {
+			if (size > 0 && blocks[size - 1] == block) {
+				return;
+			}
+			if (size == blocks.length) {
+				final int[] grown = new int[size * 2];
+				System.arraycopy(blocks, 0, grown, 0, size);
+				blocks = grown;
+			}
+			blocks[size++] = block;
+		}
+	}
+
+	/** bytes of the segment indexed */
+	int length = EventStore.HEADER_SIZE;
+	/** number of blocks, the last one may still grow */
+	int blockCount = 0;
+	int[] offsets = new int[16];
+	long[] minTimes = new long[16];
+	long[] maxTimes = new long[16];
+	/** true once written next to the segment */
+	boolean stored = false;
+	/** records in the last block */
+	private int lastRecords = BLOCK_RECORDS;
+	final HashMap<Integer, Blocks> byUid = new HashMap<Integer, Blocks>();
+	final HashMap<Long, Blocks> byDst = new HashMap<Long, Blocks>();
+	final HashMap<Integer, Blocks> byPort = new HashMap<Integer, Blocks>();
+
+	/**
+	 * @return the index file of a segment
+	 */
+	static File getFile(File segment) {
+		return new File(segment.getPath() + SUFFIX);
+	}
+
+	/**
+	 * Index the records added to the segment since the last call
+	 *
+	 * @param segment
+	 *            the segment file
+	 * @param buf
+	 *            its mapping
+	 */
+	void extend(File segment, ByteBuffer buf) {
+		EventStore.scanRange(segment, buf, length, buf.limit(),
+				Long.MIN_VALUE, Long.MAX_VALUE, new EventStore.Record(),
+				new EventStore.Visitor() {
+					@Override
+					public boolean visit(EventStore.Record r) {
+						add(r);
+						return true;
+					}
+				});
+	}
+
+	/**
+	 * @return the end of a block in the segment
+	 */
+	int blockEnd(int block) {
+		return block + 1 < blockCount ? offsets[block + 1] : length;
+	}
+
+	/**
+	 * @return true if the block holds records of the time range
+	 */
+	boolean overlaps(int block, long from, long to) {
+		return minTimes[block] < to && maxTimes[block] >= from;
+	}
+
+	/**
+	 * @return the key of a destination address in byDst
+	 */
+	static long dstKey(EventStore.Record r) {
+		if (r.addrLength == 4) {
+			return r.dstIpv4() & 0xffffffffL;
+		}
+		long h = 0x9e3779b97f4a7c15L;
+		for (int i = 0; i < r.addrLength; i++) {
+			h = (h ^ (r.dst[i] & 0xff)) * 0x100000001b3L;
+		}
+		// IPv4 keys stay below 2^32
+		return h | (1L << 32);
+	}
+
+	private void add(EventStore.Record r) {
+		if (lastRecords == BLOCK_RECORDS) {
+			if (blockCount == offsets.length) {
+				grow();
+			}
+			offsets[blockCount] = r.offset;
+			minTimes[blockCount] = Long.MAX_VALUE;
+			maxTimes[blockCount] = Long.MIN_VALUE;
+			blockCount++;
+			lastRecords = 0;
+		}
+		final int block = blockCount - 1;
+		lastRecords++;
+		minTimes[block] = Math.min(minTimes[block], r.time);
+		maxTimes[block] = Math.max(maxTimes[block], r.time);
+		blocks(byUid, r.uid).add(block);
+		blocks(byDst, dstKey(r)).add(block);
+		if (r.dpt != LogLine.NONE) {
+			blocks(byPort, r.dpt).add(block);
+		}
+		length = r.offset + r.length;
+	}
+
+	private static <K> Blocks blocks(HashMap<K, Blocks> map, K key) {
+		Blocks b = map.get(key);
+		if (b == null) {
+			b = new Blocks();
+			map.put(key, b);
+		}
+		return b;
+	}
+
+	private void grow() {
+		final int n = offsets.length * 2;
+		final int[] o = new int[n];
+		final long[] min = new long[n];
+		final long[] max = new long[n];
+		System.arraycopy(offsets, 0, o, 0, blockCount);
+		System.arraycopy(minTimes, 0, min, 0, blockCount);
+		System.arraycopy(maxTimes, 0, max, 0, blockCount);
+		offsets = o;
+		minTimes = min;
+		maxTimes = max;
+	}
+
+	/**
+	 * Write the index of a closed segment next to it
+	 *
+	 * @throws IOException
+	 *             if it can't be written
+	 */
+	void save(File segment) throws IOException {
+		final File file = getFile(segment);
+		final File tmp = new File(file.getPath() + ".tmp");
+		final DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(new FileOutputStream(tmp)));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeLong(segment.length());
+			out.writeInt(length);
+			out.writeInt(blockCount);
+			for (int i = 0; i < blockCount; i++) {
+				out.writeInt(offsets[i]);
+				out.writeLong(minTimes[i]);
+				out.writeLong(maxTimes[i]);
+			}
+			out.writeInt(byUid.size());
+			for (Map.Entry<Integer, Blocks> e : byUid.entrySet()) {
+				out.writeLong(e.getKey());
+				writeBlocks(out, e.getValue());
+			}
+			out.writeInt(byDst.size());
+			for (Map.Entry<Long, Blocks> e : byDst.entrySet()) {
+				out.writeLong(e.getKey());
+				writeBlocks(out, e.getValue());
+			}
+			out.writeInt(byPort.size());
+			for (Map.Entry<Integer, Blocks> e : byPort.entrySet()) {
+				out.writeLong(e.getKey());
+				writeBlocks(out, e.getValue());
+			}
+		} finally {
+			out.close();
+		}
+		if (!tmp.renameTo(file)) {
+			tmp.delete();
+			throw new IOException("can't store " + file);
+		}
+		stored = true;
+	}
+
+	/**
+	 * @param segment
+	 *            a closed segment
+	 * @return its stored index, null if there is none or it is stale
+	 */
+	static EventIndex load(File segment) {
+		final File file = getFile(segment);
+		if (!file.exists()) {
+			return null;
+		}
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new BufferedInputStream(
+					new FileInputStream(file)));
+			if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+				return null;
+			}
+			if (in.readLong() != segment.length()) {
+				return null;
+			}
+			final EventIndex idx = new EventIndex();
+			idx.length = in.readInt();
+			idx.blockCount = in.readInt();
+			idx.offsets = new int[Math.max(idx.blockCount, 1)];
+			idx.minTimes = new long[idx.offsets.length];
+			idx.maxTimes = new long[idx.offsets.length];
+			for (int i = 0; i < idx.blockCount; i++) {
+				idx.offsets[i] = in.readInt();
+				idx.minTimes[i] = in.readLong();
+				idx.maxTimes[i] = in.readLong();
+			}
+			for (int n = in.readInt(); n > 0; n--) {
+				idx.byUid.put((int) in.readLong(), readBlocks(in));
+			}
+			for (int n = in.readInt(); n > 0; n--) {
+				idx.byDst.put(in.readLong(), readBlocks(in));
+			}
+			for (int n = in.readInt(); n > 0; n--) {
+				idx.byPort.put((int) in.readLong(), readBlocks(in));
+			}
+			idx.stored = true;
+			return idx;
+		} catch (IOException e) {
+			file.delete();
+			return null;
+		} finally {
+			if (in != null) {
+				try {
+					in.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+	}
+
+	private static void writeBlocks(DataOutputStream out, Blocks b)
+			throws IOException {
+		out.writeInt(b.size);
+		for (int i = 0; i < b.size; i++) {
+			out.writeInt(b.blocks[i]);
+		}
+	}
+
+	private static Blocks readBlocks(DataInputStream in) throws IOException {
+		final Blocks b = new Blocks();
+		b.size = in.readInt();
+		b.blocks = new int[Math.max(b.size, 1)];
+		for (int i = 0; i < b.size; i++) {
+			b.blocks[i] = in.readInt();
+		}
+		return b;
+	}
+}
@@ -0,0 +1,754 @@
+/**
+ * On-disk history of the firewall log events.
+ *
+ * Copyright (C) 2012-2014	Jason Tschohl
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * @author Jason Tschohl
+ * @version 1.0
+ */
+
+package com.jtschohl.androidfirewall;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * The kernel log wraps, is cleared by "Clear Log" and is gone after a
+ * reboot, and the NFLOG ring only lives as long as the process. Every
+ * event parsed from either source is therefore also appended to binary
+ * segment files:
+ *
+ * <pre>
+ * segment: int magic, int version, long creation time, records...
+ * record:  short length, byte flags, byte protocol, long time, int uid,
+ *          char source port, char destination port,
+ *          source and destination address (4 or 16 bytes each),
+ *          byte interface name length, interface name (ASCII)
+ * </pre>
+ *
+ * The ingesting threads only append to a buffer in memory; a writer thread
+ * writes it out at most once per second. A segment is closed after
+ * MAX_SEGMENT_SIZE bytes or MAX_SEGMENT_AGE, and the oldest segments are
+ * deleted beyond MAX_TOTAL_SIZE or MAX_AGE. Segments are read through
+ * memory mappings.
+ */
+public final class EventStore {
+
+	final static String TAG = "{AF}";
+
+	static final int MAGIC = 0x41464556; // "AFEV"
+	static final int VERSION = 1;
+	static final int HEADER_SIZE = 16;
+	/** bytes of a record before the addresses */
+	static final int FIXED_SIZE = 20;
+	static final int FLAG_ACCEPTED = 1;
+	static final int FLAG_IPV6 = 2;
+	/** protocol byte of an event without a protocol code */
+	static final int PROTO_UNKNOWN = 0xff;
+	/** port of an event without one */
+	static final int NO_PORT = 0;
+
+	private static final String DIR = "events";
+	private static final String PREFIX = "events-";
+	private static final String SUFFIX = ".seg";
+	private static final long MAX_SEGMENT_SIZE = 512 * 1024;
+	private static final long MAX_SEGMENT_AGE = 60 * 60 * 1000;
+	private static final long MAX_TOTAL_SIZE = 8 * 1024 * 1024;
+	private static final long MAX_AGE = 7 * 24 * 60 * 60 * 1000L;
+	private static final long FLUSH_INTERVAL = 1000;
+	/** events arriving faster than this are dropped until the next write */
+	private static final int MAX_PENDING = 1024 * 1024;
+
+	private static final String PREFS_EVENTS = "EventStore";
+	private static final String PREF_DMESG_BOOT = "DmesgBoot";
+	/** kernel time of the last dmesg line stored, to skip it next time */
+	private static final String PREF_DMESG_REJECT = "DmesgLastReject";
+	private static final String PREF_DMESG_ACCEPT = "DmesgLastAccept";
+	/**
+	 * hashes of the lines stored with that kernel time, lines sharing it
+	 * are told apart by their text
+	 */
+	private static final String PREF_DMESG_REJECT_LINES = "DmesgLastRejectLines";
+	private static final String PREF_DMESG_ACCEPT_LINES = "DmesgLastAcceptLines";
+	/** two boot times closer than this are the same boot */
+	private static final long SAME_BOOT = 60 * 1000;
+
+	/**
+	 * One stored event. The same instance is filled in for every record
+	 * read.
+	 */
+	public static final class Record {
+		/** wall clock time, ms */
+		public long time;
+		public int uid;
+		public boolean accepted;
+		/** protocol code of LogLine, LogLine.NONE if unknown */
+		public int proto;
+		/** ports, LogLine.NONE if none */
+		public int spt;
+		public int dpt;
+		/** address length, 4 or 16 */
+		public int addrLength;
+		public final byte[] src = new byte[16];
+		public final byte[] dst = new byte[16];
+		/** segment, position and length of the record */
+		public File segment;
+		public int offset;
+		public int length;
+		private ByteBuffer buf;
+		private int itfPos;
+
+		/**
+		 * @return the IPv4 destination as an int, valid for addrLength 4
+		 */
+		public int dstIpv4() {
+			return ((dst[0] & 0xff) << 24) | ((dst[1] & 0xff) << 16)
+					| ((dst[2] & 0xff) << 8) | (dst[3] & 0xff);
+		}
+
+		/**
+		 * @return the source address as text
+		 */
+		public String getSrc() {
+			return format(src, addrLength);
+		}
+
+		/**
+		 * @return the destination address as text
+		 */
+		public String getDst() {
+			return format(dst, addrLength);
+		}
+
+		/**
+		 * @return the interface name, empty if unknown
+		 */
+		public String getItf() {
+			final int len = buf.get(itfPos) & 0xff;
+			final char[] name = new char[len];
+			for (int i = 0; i < len; i++) {
+				name[i] = (char) (buf.get(itfPos + 1 + i) & 0xff);
+			}
+			return new String(name);
+		}
+
+		private static String format(byte[] addr, int len) {
+			final byte[] copy = new byte[len];
+			System.arraycopy(addr, 0, copy, 0, len);
+			try {
+				return InetAddress.getByAddress(copy).getHostAddress();
+			} catch (UnknownHostException e) {
+				return "";
+			}
+		}
+	}
+
+	/**
+	 * Receives the records of a scan
+	 */
+	public interface Visitor {
+		/**
+		 * @param r
+		 *            the record, only valid during the call
+		 * @return false to stop the scan
+		 */
+		boolean visit(Record r);
+	}
+
+	private static EventStore instance = null;
+
+	private final File dir;
+	private final Object lock = new Object();
+	/** records waiting for the writer, guarded by lock */
+	private byte[] pending = new byte[16 * 1024];
+	private int pendingLength = 0;
+	private int dropped = 0;
+	/** spare buffer swapped with pending by the writer */
+	private byte[] writing = new byte[16 * 1024];
+	// current segment, only used by the writer thread
+	private FileOutputStream out = null;
+	private long segmentCreated = 0;
+	private long segmentSize = 0;
+	/** parser of the dmesg ingestion */
+	private final LogLine dmesgLine = new LogLine();
+
+	private EventStore(File dir) {
+		this.dir = dir;
+		final Thread writer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				writeLoop();
+			}
+		}, "AF event log");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	/**
+	 * @return the store of this application
+	 */
+	public static synchronized EventStore get(Context ctx) {
+		if (instance == null) {
+			instance = new EventStore(new File(ctx.getFilesDir(), DIR));
+		}
+		return instance;
+	}
+
+	/**
+	 * Queue an event for the disk; does not touch it
+	 *
+	 * @param line
+	 *            the parsed line
+	 * @param accepted
+	 *            true for an accepted packet
+	 * @param time
+	 *            wall clock time, ms
+	 */
+	public void add(LogLine line, boolean accepted, long time) {
+		final boolean v6 = !line.srcV4 && line.getSrc() != null
+				|| !line.dstV4 && line.getDst() != null;
+		final int addrLen = v6 ? 16 : 4;
+		final int itfLen = Math.min(line.itfLength(), 255);
+		final int len = FIXED_SIZE + 2 * addrLen + 1 + itfLen;
+		synchronized (lock) {
+			if (pendingLength + len > pending.length) {
+				if (pending.length >= MAX_PENDING) {
+					dropped++;
+					return;
+				}
+				final byte[] grown = new byte[pending.length * 2];
+				System.arraycopy(pending, 0, grown, 0, pendingLength);
+				pending = grown;
+			}
+			final ByteBuffer b = ByteBuffer.wrap(pending, pendingLength, len);
+			b.putShort((short) len);
+			b.put((byte) ((accepted ? FLAG_ACCEPTED : 0) | (v6 ? FLAG_IPV6
+					: 0)));
+			b.put((byte) (line.proto >= 0 && line.proto < PROTO_UNKNOWN ? line.proto
+					: PROTO_UNKNOWN));
+			b.putLong(time);
+			b.putInt(line.uid);
+			b.putChar((char) (line.spt > 0 ? line.spt : NO_PORT));
+			b.putChar((char) (line.dpt > 0 ? line.dpt : NO_PORT));
+			if (v6) {
+				putAddress(b, line.srcV4 ? null : line.getSrc(), line.src);
+				putAddress(b, line.dstV4 ? null : line.getDst(), line.dst);
+			} else {
+				b.putInt(line.srcV4 ? line.src : 0);
+				b.putInt(line.dstV4 ? line.dst : 0);
+			}
+			b.put((byte) itfLen);
+			for (int i = 0; i < itfLen; i++) {
+				b.put((byte) line.itfCharAt(i));
+			}
+			pendingLength += len;
+			lock.notify();
+		}
+	}
+
+	/**
+	 * Store the firewall lines of a dmesg output that were not stored yet
+	 *
+	 * @param ctx
+	 *            application context
+	 * @param dmesg
+	 *            kernel log, lines like "<4>[ 1234.567890] [AndroidFirewall]
+	 *            ..."
+	 */
+	public void addDmesg(Context ctx, String dmesg) {
+		final SharedPreferences prefs = ctx.getSharedPreferences(
+				PREFS_EVENTS, 0);
+		final long now = System.currentTimeMillis();
+		final long bootTime = now - SystemClock.elapsedRealtime();
+		// the kernel clock stops in deep sleep like the uptime clock, the
+		// elapsed realtime would date the lines hours back after a sleep
+		final long kernelZero = now - SystemClock.uptimeMillis();
+		final boolean sameBoot = Math.abs(prefs.getLong(PREF_DMESG_BOOT, 0)
+				- bootTime) < SAME_BOOT;
+		// the log screen reads the two prefixes separately
+		final long[] last = new long[] {
+				sameBoot ? prefs.getLong(PREF_DMESG_REJECT, -1) : -1,
+				sameBoot ? prefs.getLong(PREF_DMESG_ACCEPT, -1) : -1 };
+		final List<List<Integer>> lines = new ArrayList<List<Integer>>();
+		lines.add(parseHashes(sameBoot ? prefs.getString(
+				PREF_DMESG_REJECT_LINES, "") : ""));
+		lines.add(parseHashes(sameBoot ? prefs.getString(
+				PREF_DMESG_ACCEPT_LINES, "") : ""));
+		// lines of the last kernel time stored before, not met again yet
+		final List<List<Integer>> stored = new ArrayList<List<Integer>>();
+		stored.add(new ArrayList<Integer>(lines.get(0)));
+		stored.add(new ArrayList<Integer>(lines.get(1)));
+		boolean changed = false;
+		int reject = dmesg.indexOf(NflogService.TAG_REJECT);
+		int accept = dmesg.indexOf(NflogService.TAG_ACCEPT);
+		synchronized (dmesgLine) {
+			while (reject >= 0 || accept >= 0) {
+				final boolean isAccept = reject < 0 || accept >= 0
+						&& accept < reject;
+				final int at = isAccept ? accept : reject;
+				final String tag = isAccept ? NflogService.TAG_ACCEPT
+						: NflogService.TAG_REJECT;
+				final int start = dmesg.lastIndexOf('\n', at) + 1;
+				int end = dmesg.indexOf('\n', at);
+				if (end < 0) {
+					end = dmesg.length();
+				}
+				// kernel time in microseconds, -1 if the line has none
+				final long micros = kernelTime(dmesg, start, at);
+				final int k = isAccept ? 1 : 0;
+				boolean store = micros < 0;
+				if (micros > last[k]) {
+					last[k] = micros;
+					lines.get(k).clear();
+					stored.get(k).clear();
+					store = true;
+				}
+				if (micros >= 0 && micros == last[k]) {
+					// the same text once more at the same time is another
+					// packet, unless it was stored before
+					final Integer hash = lineHash(dmesg, at, end);
+					if (!stored.get(k).remove(hash)) {
+						lines.get(k).add(hash);
+						store = true;
+					}
+				}
+				if (store) {
+					dmesgLine.parse(dmesg, at + tag.length(), end);
+					add(dmesgLine, isAccept, micros < 0 ? now : Math.min(now,
+							kernelZero + micros / 1000));
+					changed |= micros >= 0;
+				}
+				if (isAccept) {
+					accept = dmesg.indexOf(NflogService.TAG_ACCEPT, end);
+				} else {
+					reject = dmesg.indexOf(NflogService.TAG_REJECT, end);
+				}
+			}
+		}
+		if (changed) {
+			prefs.edit().putLong(PREF_DMESG_BOOT, bootTime)
+					.putLong(PREF_DMESG_REJECT, last[0])
+					.putLong(PREF_DMESG_ACCEPT, last[1])
+					.putString(PREF_DMESG_REJECT_LINES, formatHashes(lines.get(0)))
+					.putString(PREF_DMESG_ACCEPT_LINES, formatHashes(lines.get(1)))
+					.commit();
+		}
+	}
+
+	/**
+	 * @return hash of the text between start and end, like String.hashCode()
+	 *         without the substring
+	 */
+	private static int lineHash(String text, int start, int end) {
+		int h = 0;
+		for (int i = start; i < end; i++) {
+			h = 31 * h + text.charAt(i);
+		}
+		return h;
+	}
+
+	private static List<Integer> parseHashes(String value) {
+		final List<Integer> res = new ArrayList<Integer>();
+		for (String hash : value.split(",")) {
+			try {
+				res.add(Integer.parseInt(hash));
+			} catch (NumberFormatException e) {
+				// empty
+			}
+		}
+		return res;
+	}
+
+	private static String formatHashes(List<Integer> hashes) {
+		final StringBuilder res = new StringBuilder();
+		for (Integer hash : hashes) {
+			if (res.length() > 0) {
+				res.append(',');
+			}
+			res.append(hash);
+		}
+		return res.toString();
+	}
+
+	/**
+	 * Read the records of a time range, oldest first
+	 *
+	 * @param from
+	 *            start time, ms (inclusive)
+	 * @param to
+	 *            end time, ms (exclusive)
+	 * @param visitor
+	 *            receives the records
+	 */
+	public void scan(long from, long to, Visitor visitor) {
+		final File[] segments = getSegments();
+		final Record r = new Record();
+		for (File segment : segments) {
+			if (!scanSegment(segment, 0, from, to, r, visitor)) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Read the records of one segment
+	 *
+	 * @param segment
+	 *            the segment file
+	 * @param offset
+	 *            position of the first record to read, 0 for the first one
+	 * @param from
+	 *            start time, ms (inclusive)
+	 * @param to
+	 *            end time, ms (exclusive)
+	 * @param r
+	 *            record to fill in
+	 * @param visitor
+	 *            receives the records
+	 * @return false if the visitor stopped the scan
+	 */
+	boolean scanSegment(File segment, int offset, long from, long to,
+			Record r, Visitor visitor) {
+		final MappedByteBuffer buf = map(segment);
+		if (buf == null) {
+			return true;
+		}
+		return scanRange(segment, buf, offset, buf.limit(), from, to, r,
+				visitor);
+	}
+
+	/**
+	 * Read the records of a part of a mapped segment
+	 *
+	 * @param segment
+	 *            the segment file
+	 * @param buf
+	 *            its mapping
+	 * @param offset
+	 *            position of the first record to read, 0 for the first one
+	 * @param end
+	 *            position after the last record to read
+	 * @param from
+	 *            start time, ms (inclusive)
+	 * @param to
+	 *            end time, ms (exclusive)
+	 * @param r
+	 *            record to fill in
+	 * @param visitor
+	 *            receives the records
+	 * @return false if the visitor stopped the scan
+	 */
+	static boolean scanRange(File segment, ByteBuffer buf, int offset,
+			int end, long from, long to, Record r, Visitor visitor) {
+		int pos = Math.max(offset, HEADER_SIZE);
+		final int limit = Math.min(end, buf.limit());
+		r.segment = segment;
+		r.buf = buf;
+		while (pos + FIXED_SIZE <= limit) {
+			final int len = buf.getShort(pos) & 0xffff;
+			if (len < FIXED_SIZE || pos + len > limit) {
+				// a record being written
+				break;
+			}
+			// dmesg records may be older than the ones before them, the
+			// whole range is read
+			final long time = buf.getLong(pos + 4);
+			if (time >= from && time < to) {
+				read(buf, pos, r);
+				if (!visitor.visit(r)) {
+					return false;
+				}
+			}
+			pos += len;
+		}
+		return true;
+	}
+
+	/**
+	 * @return the segment files, oldest first
+	 */
+	File[] getSegments() {
+		final File[] files = dir.listFiles();
+		if (files == null) {
+			return new File[0];
+		}
+		final List<File> res = new ArrayList<File>(files.length);
+		for (File f : files) {
+			if (f.getName().startsWith(PREFIX)
+					&& f.getName().endsWith(SUFFIX)) {
+				res.add(f);
+			}
+		}
+		final File[] sorted = res.toArray(new File[res.size()]);
+		// zero-padded sequence numbers sort by name
+		Arrays.sort(sorted);
+		return sorted;
+	}
+
+	/**
+	 * @return number of events dropped because the writer fell behind
+	 */
+	public int getDropped() {
+		synchronized (lock) {
+			return dropped;
+		}
+	}
+
+	private static void read(ByteBuffer buf, int pos, Record r) {
+		r.offset = pos;
+		r.length = buf.getShort(pos) & 0xffff;
+		final int flags = buf.get(pos + 2);
+		final int proto = buf.get(pos + 3) & 0xff;
+		r.accepted = (flags & FLAG_ACCEPTED) != 0;
+		r.proto = proto == PROTO_UNKNOWN ? LogLine.NONE : proto;
+		r.time = buf.getLong(pos + 4);
+		r.uid = buf.getInt(pos + 12);
+		final int spt = buf.getChar(pos + 16);
+		final int dpt = buf.getChar(pos + 18);
+		r.spt = spt == NO_PORT ? LogLine.NONE : spt;
+		r.dpt = dpt == NO_PORT ? LogLine.NONE : dpt;
+		r.addrLength = (flags & FLAG_IPV6) != 0 ? 16 : 4;
+		int p = pos + FIXED_SIZE;
+		for (int i = 0; i < r.addrLength; i++) {
+			r.src[i] = buf.get(p++);
+		}
+		for (int i = 0; i < r.addrLength; i++) {
+			r.dst[i] = buf.get(p++);
+		}
+		r.itfPos = p;
+	}
+
+	static MappedByteBuffer map(File segment) {
+		FileInputStream in = null;
+		try {
+			in = new FileInputStream(segment);
+			final FileChannel ch = in.getChannel();
+			// the mapping stays valid after the channel is closed
+			return ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+		} catch (IOException e) {
+			Log.d(TAG, "Unable to read " + segment + ": " + e);
+			return null;
+		} finally {
+			if (in != null) {
+				try {
+					in.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return creation time of a segment, from its header
+	 */
+	private static long getCreated(File segment) {
+		final MappedByteBuffer buf = map(segment);
+		if (buf == null || buf.limit() < HEADER_SIZE
+				|| buf.getInt(0) != MAGIC) {
+			return 0;
+		}
+		return buf.getLong(8);
+	}
+
+	private static void putAddress(ByteBuffer b, String text, int ipv4) {
+		byte[] addr = null;
+		if (text != null) {
+			try {
+				// only literals are logged, no name lookup happens
+				addr = InetAddress.getByName(text).getAddress();
+			} catch (UnknownHostException e) {
+				addr = null;
+			} catch (SecurityException e) {
+				addr = null;
+			}
+		}
+		if (addr == null || addr.length != 16) {
+			// an IPv4 address next to an IPv6 one, stored v4-mapped
+			addr = new byte[16];
+			if (text == null) {
+				addr[10] = addr[11] = (byte) 0xff;
+				addr[12] = (byte) (ipv4 >>> 24);
+				addr[13] = (byte) (ipv4 >> 16);
+				addr[14] = (byte) (ipv4 >> 8);
+				addr[15] = (byte) ipv4;
+			}
+		}
+		b.put(addr);
+	}
+
+	private void writeLoop() {
+		long lastWrite = 0;
+		while (true) {
+			try {
+				synchronized (lock) {
+					while (pendingLength == 0) {
+						lock.wait();
+					}
+				}
+				final long wait = lastWrite + FLUSH_INTERVAL
+						- SystemClock.elapsedRealtime();
+				if (wait > 0) {
+					Thread.sleep(wait);
+				}
+			} catch (InterruptedException e) {
+				return;
+			}
+			final int len;
+			synchronized (lock) {
+				final byte[] full = pending;
+				len = pendingLength;
+				pending = writing.length >= full.length ? writing
+						: new byte[full.length];
+				pendingLength = 0;
+				writing = full;
+			}
+			lastWrite = SystemClock.elapsedRealtime();
+			try {
+				write(writing, len);
+			} catch (IOException e) {
+				Log.e(TAG, "Unable to store log events: " + e);
+				closeSegment();
+			}
+		}
+	}
+
+	private void write(byte[] data, int len) throws IOException {
+		final long now = System.currentTimeMillis();
+		if (out == null || segmentSize >= MAX_SEGMENT_SIZE
+				|| now - segmentCreated >= MAX_SEGMENT_AGE) {
+			closeSegment();
+			openSegment(now);
+			prune(now);
+		}
+		out.write(data, 0, len);
+		segmentSize += len;
+	}
+
+	/**
+	 * Start a new segment; records are never appended to one of an earlier
+	 * process, its last record may be cut off
+	 */
+	private void openSegment(long now) throws IOException {
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("can't create " + dir);
+		}
+		final File[] segments = getSegments();
+		long seq = 0;
+		if (segments.length > 0) {
+			final String name = segments[segments.length - 1].getName();
+			try {
+				seq = Long.parseLong(name.substring(PREFIX.length(),
+						name.length() - SUFFIX.length())) + 1;
+			} catch (NumberFormatException e) {
+				seq = segments.length;
+			}
+		}
+		final File file = new File(dir, PREFIX + String.format("%010d", seq)
+				+ SUFFIX);
+		out = new FileOutputStream(file, true);
+		final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		header.putInt(MAGIC).putInt(VERSION).putLong(now);
+		out.write(header.array());
+		segmentCreated = now;
+		segmentSize = HEADER_SIZE;
+	}
+
+	private void closeSegment() {
+		if (out != null) {
+			try {
+				out.close();
+			} catch (IOException e) {
+			}
+			out = null;
+		}
+	}
+
+	/**
+	 * Delete the oldest segments beyond the size and age limits
+	 */
+	private void prune(long now) {
+		final File[] segments = getSegments();
+		long total = 0;
+		for (File f : segments) {
+			total += f.length();
+		}
+		// the newest segment is the one being written
+		for (int i = 0; i < segments.length - 1; i++) {
+			final File next = segments[i + 1];
+			if (total <= MAX_TOTAL_SIZE && now - getCreated(next) <= MAX_AGE) {
+				break;
+			}
+			total -= segments[i].length();
+			if (!segments[i].delete()) {
+				break;
+			}
+			EventIndex.getFile(segments[i]).delete();
+			Log.d(TAG, "Event log segment removed: " + segments[i].getName());
+		}
+	}
+
+	/**
+	 * @return microseconds of the "[ 1234.567890]" kernel time between
+	 *         start and end, -1 if there is none
+	 */
+	private static long kernelTime(String text, int start, int end) {
+		final int open = text.indexOf('[', start);
+		if (open < 0 || open >= end) {
+			return -1;
+		}
+		long secs = 0;
+		long micros = 0;
+		int fraction = -1;
+		for (int i = open + 1; i < end; i++) {
+			final char c = text.charAt(i);
+			if (c == ' ' && fraction < 0 && secs == 0) {
+				continue;
+			} else if (c >= '0' && c <= '9') {
+				if (fraction < 0) {
+					secs = secs * 10 + (c - '0');
+				} else if (fraction < 6) {
+					micros = micros * 10 + (c - '0');
+					fraction++;
+				}
+			} else if (c == '.' && fraction < 0) {
+				fraction = 0;
+			} else if (c == ']' && fraction > 0) {
+				while (fraction++ < 6) {
+					micros *= 10;
+				}
+				return secs * 1000000 + micros;
+			} else {
+				return -1;
+			}
+		}
+		return -1;
+	}
+}
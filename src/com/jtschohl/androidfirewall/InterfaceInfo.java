@@ -28,24 +28,52 @@
 
 package com.jtschohl.androidfirewall;
 
+import java.util.ArrayList;
+import java.util.List;
+
 public class InterfaceInfo {
 	// firewall policy
 	boolean allowWifi = false;
-	String lanipv4 = "";
-	String lanipv6 = "";
+	// aggregated LAN networks
+	List<String> lanipv4 = new ArrayList<String>();
+	List<String> lanipv6 = new ArrayList<String>();
 
 	// supplementary info
 	String wifiName = "";
 	boolean netEnabled = false;
 	int netType = -1;
 
+	// connected Wi-Fi network, empty if none
+	String wifiSsid = "";
+	String wifiBssid = "";
+	// profile bound to that network, -1 if none; roaming between access
+	// points of the same network changes nothing
+	int ruleContext = -1;
+
+	/**
+	 * @return true if only the LAN prefixes differ, which only changes the
+	 *         LAN dispatch rules
+	 */
+	public boolean equalsExceptLan(InterfaceInfo that) {
+		return this.allowWifi == that.allowWifi
+				&& this.lanipv4.isEmpty() == that.lanipv4.isEmpty()
+				&& this.lanipv6.isEmpty() == that.lanipv6.isEmpty()
+				&& this.wifiName.equals(that.wifiName)
+				&& this.netEnabled == that.netEnabled
+				&& this.netType == that.netType
+				&& this.wifiSsid.equals(that.wifiSsid)
+				&& this.ruleContext == that.ruleContext;
+	}
+
 	public boolean equals(InterfaceInfo that) {
 		if (this.allowWifi != that.allowWifi
 				|| !this.lanipv4.equals(that.lanipv4)
 				|| !this.lanipv6.equals(that.lanipv6)
 				|| !this.wifiName.equals(that.wifiName)
 				|| this.netEnabled != that.netEnabled
-				|| this.netType != that.netType)
+				|| this.netType != that.netType
+				|| !this.wifiSsid.equals(that.wifiSsid)
+				|| this.ruleContext != that.ruleContext)
 			return false;
 		return true;
 	}
@@ -31,14 +31,24 @@ package com.jtschohl.androidfirewall;
 import android.app.IntentService;
 import android.content.Context;
 import android.content.Intent;
+import android.os.Handler;
+import android.os.Looper;
 import android.util.Log;
 
 public class InterfaceIntent extends IntentService {
 
 	final static String TAG = "{AF}";
 	public static final String ACTION_CONNECTIVITY_CHANGED = "connectivity_changed";
+	public static final String ACTION_CONNECTIVITY_SETTLED = "connectivity_settled";
 
 	private static Context ctx = null;
+	private static final Handler timer = new Handler(Looper.getMainLooper());
+	private static final Runnable settle = new Runnable() {
+		@Override
+		public void run() {
+			performAction(ctx, ACTION_CONNECTIVITY_SETTLED);
+		}
+	};
 
 	public InterfaceIntent() {
 		// If you forget this one, the app will crash
@@ -54,8 +64,31 @@ public class InterfaceIntent extends IntentService {
 
 	@Override
 	protected void onHandleIntent(Intent intent) {
-		if (InterfaceTracker.checkForNewCfg(ctx)) {
-			if (applyRules(ctx, false) == false) {
+		final long delay;
+		if (ACTION_CONNECTIVITY_SETTLED.equals(intent.getAction())) {
+			delay = InterfaceTracker.settle(ctx);
+		} else {
+			if (InterfaceInventory.scan(ctx)) {
+				// traffic on the new interface passes unfiltered until its
+				// dispatch rules are in, do not wait for the settle window
+				Log.d(TAG, "New interface type, adding its dispatch rules");
+				applyRules(ctx, false);
+			}
+			// networks bound to a profile need the state machine as well
+			if (!ctx.getSharedPreferences(Api.PREFS_NAME, 0).getBoolean(
+					Api.PREF_AUTORULES, false)
+					&& !RuleContexts.hasBindings(ctx)) {
+				return;
+			}
+			delay = InterfaceTracker.onConnectivityChange(ctx);
+		}
+		if (delay > 0) {
+			// every new change restarts the settle window
+			timer.removeCallbacks(settle);
+			timer.postDelayed(settle, delay);
+		} else if (delay == InterfaceTracker.APPLY_NOW
+				|| delay == InterfaceTracker.APPLY_LAN) {
+			if (applyNetworkRules(ctx, delay == InterfaceTracker.APPLY_LAN) == false) {
 				Log.e(TAG, "Unable to apply firewall rules");
 				Api.setEnabled(ctx, false);
 			}
@@ -68,6 +101,27 @@ public class InterfaceIntent extends IntentService {
 		}
 	}
 
+	/**
+	 * Apply the rules for the settled connection, switching to the profile
+	 * bound to the network if there is one
+	 *
+	 * @param lanOnly
+	 *            only the LAN networks changed
+	 */
+	private static boolean applyNetworkRules(Context context, boolean lanOnly) {
+		if (!Api.isEnabled(context)) {
+			Log.d(TAG, "Cannot apply rules.  Firewall is disabled.");
+			return true;
+		}
+		try {
+			return (lanOnly ? RulesApplier.applyLanChange(context, false, null)
+					: RulesApplier.applyNetworkRules(context, false, null))
+					.get();
+		} catch (InterruptedException e) {
+			return false;
+		}
+	}
+
 	public static boolean applyRules(Context context, boolean showErrors) {
 		boolean msg = false;
 		if (ctx != null) {
@@ -76,7 +130,12 @@ public class InterfaceIntent extends IntentService {
 						"Cannot apply rules.  Firewall is disabled.");
 				return true;
 			}
-			msg = Api.applySavedIptablesRules(ctx, showErrors);
+			try {
+				msg = RulesApplier.applySavedIptablesRules(ctx, showErrors,
+						null).get();
+			} catch (InterruptedException e) {
+				return false;
+			}
 			Log.d(TAG, "applyRules: "
 					+ (msg ? "success" : "failed"));
 		}
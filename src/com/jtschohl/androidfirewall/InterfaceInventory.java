@@ -0,0 +1,234 @@
+/**
+ * Inventory of the network interfaces seen on this device.
+ *
+ * Copyright (C) 2012-2014	Jason Tschohl
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * @author Jason Tschohl
+ * @version 1.0
+ */
+
+package com.jtschohl.androidfirewall;
+
+import java.io.File;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.StringTokenizer;
+import java.util.TreeSet;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Build;
+import android.util.Log;
+
+/**
+ * The interface lists of InterfaceTracker cover every vendor, but a phone
+ * only has a few of those interfaces, and every outgoing packet walks one
+ * dispatch rule per pattern. The names found in /sys/class/net and through
+ * NetworkInterface are remembered across restarts, and only the patterns
+ * matching one of them are compiled into rules. The other patterns are
+ * only walked by packets of no known interface, so an interface that shows
+ * up without a broadcast is still filtered. When an interface of an unseen
+ * pattern shows up, scan() reports it so the rules can be applied again
+ * right away.
+ */
+public final class InterfaceInventory {
+
+	final static String TAG = "{AF}";
+
+	/** own file, loading a profile clears the firewall preferences */
+	private static final String PREFS_INVENTORY = "InterfaceInventory";
+	/** pipe separated names of all interfaces seen so far (persisted) */
+	private static final String PREF_SEEN_ITFS = "SeenInterfaces";
+	private static final String SYS_CLASS_NET = "/sys/class/net";
+
+	private static TreeSet<String> seen = null;
+
+	private InterfaceInventory() {
+	}
+
+	/**
+	 * Look for interfaces that were not seen before and remember them
+	 *
+	 * @param ctx
+	 *            application context
+	 * @return true if an interface that matches no pattern used so far
+	 *         showed up, the dispatch rules must be rebuilt
+	 */
+	public static synchronized boolean scan(Context ctx) {
+		final TreeSet<String> names = getSeen(ctx);
+		final List<String> found = new ArrayList<String>();
+		final String[] sys = new File(SYS_CLASS_NET).list();
+		if (sys != null) {
+			for (String name : sys) {
+				found.add(name);
+			}
+		}
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.GINGERBREAD) {
+			addNetworkInterfaces(found);
+		}
+		boolean newPattern = false;
+		boolean changed = false;
+		for (String name : found) {
+			if (names.contains(name)) {
+				continue;
+			}
+			if (!newPattern && !isCovered(names, name)) {
+				newPattern = true;
+			}
+			Log.d(TAG, "New network interface: " + name);
+			names.add(name);
+			changed = true;
+		}
+		if (changed) {
+			save(ctx, names);
+		}
+		return newPattern;
+	}
+
+	/**
+	 * Keep the patterns matching an interface seen on this device. If
+	 * nothing is known yet, all patterns are kept.
+	 *
+	 * @param ctx
+	 *            application context
+	 * @param patterns
+	 *            iptables interface patterns, like "wlan+"
+	 * @return the patterns in use
+	 */
+	public static synchronized String[] filter(Context ctx, String[] patterns) {
+		final TreeSet<String> names = getSeen(ctx);
+		if (names.isEmpty()) {
+			return patterns;
+		}
+		final List<String> used = new ArrayList<String>();
+		for (String pattern : patterns) {
+			for (String name : names) {
+				if (matches(pattern, name)) {
+					used.add(pattern);
+					break;
+				}
+			}
+		}
+		return used.toArray(new String[used.size()]);
+	}
+
+	/**
+	 * The patterns left out by filter(), so that their interfaces can still
+	 * be caught by a rule after the dispatch rules.
+	 *
+	 * @param ctx
+	 *            application context
+	 * @param patterns
+	 *            iptables interface patterns, like "wlan+"
+	 * @return the patterns matching no interface seen so far
+	 */
+	public static synchronized String[] unseen(Context ctx, String[] patterns) {
+		final List<String> used = Arrays.asList(filter(ctx, patterns));
+		final List<String> res = new ArrayList<String>();
+		for (String pattern : patterns) {
+			if (!used.contains(pattern)) {
+				res.add(pattern);
+			}
+		}
+		return res.toArray(new String[res.size()]);
+	}
+
+	/**
+	 * Is the name matched by a pattern that is already in use, or by no
+	 * pattern at all?
+	 */
+	private static boolean isCovered(TreeSet<String> names, String name) {
+		boolean filtered = false;
+		for (String[] patterns : new String[][] { InterfaceTracker.ITFS_3G,
+				InterfaceTracker.ITFS_WIFI, InterfaceTracker.ITFS_VPN,
+				InterfaceTracker.ITFS_TETHER }) {
+			for (String pattern : patterns) {
+				if (!matches(pattern, name)) {
+					continue;
+				}
+				filtered = true;
+				for (String known : names) {
+					if (matches(pattern, known)) {
+						return true;
+					}
+				}
+			}
+		}
+		// a name no pattern matches needs no rule
+		return !filtered;
+	}
+
+	/**
+	 * @return true if the interface name matches the iptables pattern
+	 */
+	static boolean matches(String pattern, String name) {
+		if (pattern.endsWith("+")) {
+			return name.startsWith(pattern.substring(0, pattern.length() - 1));
+		}
+		return name.equals(pattern);
+	}
+
+	@TargetApi(Build.VERSION_CODES.GINGERBREAD)
+	private static void addNetworkInterfaces(List<String> found) {
+		try {
+			final Enumeration<NetworkInterface> en = NetworkInterface
+					.getNetworkInterfaces();
+			while (en != null && en.hasMoreElements()) {
+				found.add(en.nextElement().getName());
+			}
+		} catch (SocketException e) {
+			Log.e(TAG, "Error fetching network interface list");
+		}
+	}
+
+	private static TreeSet<String> getSeen(Context ctx) {
+		if (seen == null) {
+			seen = new TreeSet<String>();
+			final SharedPreferences prefs = ctx.getSharedPreferences(
+					PREFS_INVENTORY, 0);
+			String saved = prefs.getString(PREF_SEEN_ITFS, null);
+			if (saved == null) {
+				// kept with the firewall preferences before
+				saved = ctx.getSharedPreferences(Api.PREFS_NAME, 0).getString(
+						PREF_SEEN_ITFS, "");
+			}
+			final StringTokenizer tok = new StringTokenizer(saved, "|");
+			while (tok.hasMoreTokens()) {
+				seen.add(tok.nextToken());
+			}
+		}
+		return seen;
+	}
+
+	private static void save(Context ctx, TreeSet<String> names) {
+		final StringBuilder newnames = new StringBuilder();
+		for (String name : names) {
+			if (newnames.length() > 0) {
+				newnames.append('|');
+			}
+			newnames.append(name);
+		}
+		final SharedPreferences.Editor editor = ctx.getSharedPreferences(
+				PREFS_INVENTORY, 0).edit();
+		editor.putString(PREF_SEEN_ITFS, newnames.toString());
+		editor.commit();
+	}
+}
@@ -28,14 +28,22 @@
 
 package com.jtschohl.androidfirewall;
 
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
 import java.net.Inet4Address;
 import java.net.Inet6Address;
 import java.net.InetAddress;
 import java.net.InterfaceAddress;
 import java.net.NetworkInterface;
 import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Enumeration;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Locale;
 
 import android.annotation.TargetApi;
@@ -43,15 +51,60 @@ import android.content.Context;
 import android.net.ConnectivityManager;
 import android.net.DhcpInfo;
 import android.net.NetworkInfo;
+import android.net.wifi.WifiInfo;
 import android.net.wifi.WifiManager;
 import android.os.Build;
+import android.os.SystemClock;
+import android.preference.PreferenceManager;
 import android.util.Log;
 
+import com.jtschohl.androidfirewall.rules.CidrSet;
+
 public final class InterfaceTracker {
 
 	final static String TAG = "{AF}";
 	private static InterfaceInfo currentConfig = null;
 
+	/** returned by the state machine: apply the rules now */
+	public static final long APPLY_NOW = 0;
+	/** returned by the state machine: nothing to apply */
+	public static final long NOTHING_TO_APPLY = -1;
+	/** only the LAN networks changed, see Api.applyLanChange */
+	public static final long APPLY_LAN = -2;
+
+	/** preference holding the settle window (ms, as a string) */
+	public static final String PREF_SETTLE_WINDOW = "settlewindow";
+	private static final String DEFAULT_SETTLE_WINDOW = "2000";
+	/**
+	 * hysteresis: losing the connection must last this many settle windows
+	 * before the rules follow, short drop-outs do not cost two rebuilds
+	 */
+	private static final int DOWN_FACTOR = 2;
+	/**
+	 * a connection that never stops changing is applied after this many
+	 * settle windows anyway
+	 */
+	private static final int MAX_WAIT_FACTOR = 5;
+
+	/** config the connection is settling to, null if stable */
+	private static InterfaceInfo pendingConfig = null;
+	private static long firstChangeAt = 0;
+	private static long lastChangeAt = 0;
+
+	private static int transitions = 0;
+	private static int appliesRun = 0;
+	private static int appliesSuppressed = 0;
+
+	private static final String SYS_CLASS_NET = "/sys/class/net";
+	/** fingerprint of the interfaces at the last full scan, null if none */
+	private static String lastFingerprint = null;
+	/** LAN details found by the last full scan */
+	private static InterfaceInfo lastScan = null;
+	private static int fullScans = 0;
+	private static int skippedScans = 0;
+	private static long fullScanNanos = 0;
+	private static long fingerprintNanos = 0;
+
 	public static final String ITFS_WIFI[] = { "tiwlan+", "wlan+", "eth+",
 			"ra+" };
 	public static final String ITFS_3G[] = { "rmnet+", "pdp+", "ppp+", "uwbr+",
@@ -76,8 +129,9 @@ public final class InterfaceTracker {
 			DhcpInfo dhcp = wifi.getDhcpInfo();
 
 			if (dhcp != null) {
-				ret.lanipv4 = buildIP(dhcp.ipAddress) + "/"
-						+ buildIP(dhcp.netmask);
+				ret.lanipv4 = CidrSet.aggregate(Collections
+						.singletonList(buildIP(dhcp.ipAddress) + "/"
+								+ Integer.bitCount(dhcp.netmask)));
 				ret.wifiName = "UNKNOWN";
 			}
 		}
@@ -85,13 +139,16 @@ public final class InterfaceTracker {
 
 	private static class NewInterfaceScanner {
 
-		private static String truncAfter(String in, String regexp) {
-			return in.split(regexp)[0];
+		private static String truncAfter(String in, char c) {
+			final int pos = in.indexOf(c);
+			return pos < 0 ? in : in.substring(0, pos);
 		}
 
 		@TargetApi(Build.VERSION_CODES.GINGERBREAD)
 		public static void populateLanMasks(Context context, String[] names,
 				InterfaceInfo ret) {
+			final List<String> ipv4 = new ArrayList<String>();
+			final List<String> ipv6 = new ArrayList<String>();
 			try {
 				Enumeration<NetworkInterface> en = NetworkInterface
 						.getNetworkInterfaces();
@@ -104,13 +161,7 @@ public final class InterfaceTracker {
 						continue;
 					}
 
-					for (String pattern : ITFS_WIFI) {
-						if (intf.getName().startsWith(
-								truncAfter(pattern, "\\+"))) {
-							match = true;
-							break;
-						}
-					}
+					match = isWifi(intf.getName());
 					if (!match)
 						continue;
 					ret.wifiName = intf.getName();
@@ -120,14 +171,14 @@ public final class InterfaceTracker {
 					while (addrList.hasNext()) {
 						InterfaceAddress addr = addrList.next();
 						InetAddress ip = addr.getAddress();
-						String mask = truncAfter(ip.getHostAddress(), "%")
+						String mask = truncAfter(ip.getHostAddress(), '%')
 								+ "/" + addr.getNetworkPrefixLength();
 
 						if (ip instanceof Inet4Address) {
-							ret.lanipv4 = mask;
+							ipv4.add(mask);
 							ret.allowWifi = true;
 						} else if (ip instanceof Inet6Address) {
-							ret.lanipv6 = mask;
+							ipv6.add(mask);
 							ret.allowWifi = true;
 						}
 					}
@@ -135,6 +186,10 @@ public final class InterfaceTracker {
 			} catch (SocketException e) {
 				Log.e(TAG, "Error fetching network interface list");
 			}
+			// every prefix counts (ULA, global, link-local), not just the
+			// last one seen
+			ret.lanipv4 = CidrSet.aggregate(ipv4);
+			ret.lanipv6 = CidrSet.aggregate(ipv6);
 		}
 	}
 
@@ -167,45 +222,318 @@ public final class InterfaceTracker {
 			break;
 		}
 
+		if (info.getType() == ConnectivityManager.TYPE_WIFI) {
+			final WifiInfo wifi = getWifiInfo(context);
+			msg.wifiSsid = getSsid(wifi);
+			msg.wifiBssid = getBssid(wifi);
+			msg.ruleContext = RuleContexts.getBinding(context, msg.wifiSsid,
+					msg.wifiBssid);
+		}
+
 		if (Build.VERSION.SDK_INT < Build.VERSION_CODES.GINGERBREAD) {
 			OldInterfaceScanner.populateLanInfo(context, ITFS_WIFI, msg);
 		} else {
-			NewInterfaceScanner.populateLanMasks(context, ITFS_WIFI, msg);
+			populateLanMasks(context, msg);
 		}
 
 		return msg;
 	}
 
-	public static boolean checkForNewCfg(Context context) {
-		InterfaceInfo newCfg = getInterfaceDetails(context);
+	private static WifiInfo getWifiInfo(Context context) {
+		final WifiManager wifi = (WifiManager) context
+				.getSystemService(Context.WIFI_SERVICE);
+		return wifi != null ? wifi.getConnectionInfo() : null;
+	}
+
+	private static String getSsid(WifiInfo info) {
+		String ssid = info != null ? info.getSSID() : null;
+		if (ssid == null || ssid.equals("<unknown ssid>")) {
+			return "";
+		}
+		// quoted since Jelly Bean MR1, unless it isn't valid UTF-8
+		if (ssid.length() >= 2 && ssid.startsWith("\"") && ssid.endsWith("\"")) {
+			ssid = ssid.substring(1, ssid.length() - 1);
+		}
+		return ssid;
+	}
+
+	private static String getBssid(WifiInfo info) {
+		final String bssid = info != null ? info.getBSSID() : null;
+		return bssid != null ? bssid.toLowerCase(Locale.US) : "";
+	}
+
+	/**
+	 * @param context
+	 *            application context
+	 * @return the SSID of the connected Wi-Fi network, empty if none
+	 */
+	public static String getConnectedSsid(Context context) {
+		return getSsid(getWifiInfo(context));
+	}
 
+	/**
+	 * @param context
+	 *            application context
+	 * @return the BSSID (lower case) of the connected access point, empty if
+	 *         none
+	 */
+	public static String getConnectedBssid(Context context) {
+		return getBssid(getWifiInfo(context));
+	}
+
+	/**
+	 * Enumerate the interfaces and their addresses only if the fingerprint
+	 * of the interfaces changed since the last time
+	 */
+	private static void populateLanMasks(Context context, InterfaceInfo msg) {
+		long start = System.nanoTime();
+		final String fingerprint = getFingerprint();
+		long now = System.nanoTime();
+		fingerprintNanos += now - start;
+		if (fingerprint != null && lastScan != null
+				&& fingerprint.equals(lastFingerprint)) {
+			skippedScans++;
+			msg.lanipv4 = lastScan.lanipv4;
+			msg.lanipv6 = lastScan.lanipv6;
+			msg.wifiName = lastScan.wifiName;
+			msg.allowWifi = lastScan.allowWifi;
+			return;
+		}
+		start = now;
+		final InterfaceInfo scan = new InterfaceInfo();
+		NewInterfaceScanner.populateLanMasks(context, ITFS_WIFI, scan);
+		fullScanNanos += System.nanoTime() - start;
+		fullScans++;
+		lastFingerprint = fingerprint;
+		lastScan = scan;
+		msg.lanipv4 = scan.lanipv4;
+		msg.lanipv6 = scan.lanipv6;
+		msg.wifiName = scan.wifiName;
+		msg.allowWifi = scan.allowWifi;
+	}
+
+	/**
+	 * Cheap summary of the interface state: the operstate of every interface
+	 * in /sys/class/net and the addresses of the Wi-Fi interfaces that are
+	 * up.
+	 * 
+	 * @return the fingerprint, or null if /sys/class/net can't be read
+	 */
+	@TargetApi(Build.VERSION_CODES.GINGERBREAD)
+	private static String getFingerprint() {
+		final String[] names = new File(SYS_CLASS_NET).list();
+		if (names == null) {
+			return null;
+		}
+		Arrays.sort(names);
+		final StringBuilder res = new StringBuilder();
+		for (String name : names) {
+			final String state = readLine(SYS_CLASS_NET + "/" + name
+					+ "/operstate");
+			if (state == null) {
+				return null;
+			}
+			res.append(name).append('=').append(state).append(';');
+			if (!isWifi(name) || state.equals("down")) {
+				continue;
+			}
+			try {
+				final NetworkInterface intf = NetworkInterface.getByName(name);
+				if (intf != null) {
+					for (InterfaceAddress addr : intf.getInterfaceAddresses()) {
+						res.append(addr.getAddress().getHostAddress())
+								.append('/')
+								.append(addr.getNetworkPrefixLength())
+								.append(';');
+					}
+				}
+			} catch (SocketException e) {
+				return null;
+			}
+		}
+		return res.toString();
+	}
+
+	private static String readLine(String path) {
+		BufferedReader reader = null;
+		try {
+			reader = new BufferedReader(new FileReader(path), 64);
+			return reader.readLine();
+		} catch (IOException e) {
+			return null;
+		} finally {
+			if (reader != null) {
+				try {
+					reader.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+	}
+
+	private static boolean isWifi(String name) {
+		for (String pattern : ITFS_WIFI) {
+			if (name.startsWith(pattern.substring(0, pattern.length() - 1))) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return cost of the interface scans, for the log
+	 */
+	public static synchronized String getScanStats() {
+		return "full scans: " + fullScans + " (" + fullScanNanos / 1000
+				+ " us), skipped: " + skippedScans + ", fingerprints: "
+				+ fingerprintNanos / 1000 + " us";
+	}
+
+	public static synchronized int getFullScans() {
+		return fullScans;
+	}
+
+	public static synchronized int getSkippedScans() {
+		return skippedScans;
+	}
+
+	/**
+	 * @return average time of a full scan in microseconds
+	 */
+	public static synchronized long getAverageScanMicros() {
+		return fullScans == 0 ? 0 : fullScanNanos / 1000 / fullScans;
+	}
+
+	/**
+	 * Called for every connectivity change. Starts or extends the settle
+	 * window of the connection state machine.
+	 * 
+	 * @param context
+	 *            application context
+	 * @return APPLY_NOW, APPLY_LAN, NOTHING_TO_APPLY or the time (ms) until
+	 *         settle() should be called
+	 */
+	public static synchronized long onConnectivityChange(Context context) {
+		return update(context, getInterfaceDetails(context),
+				SystemClock.elapsedRealtime());
+	}
+
+	/**
+	 * Called when the settle window returned by onConnectivityChange or
+	 * settle has passed. The state is sampled again; a connection that is
+	 * still changing keeps settling.
+	 * 
+	 * @param context
+	 *            application context
+	 * @return APPLY_NOW, APPLY_LAN, NOTHING_TO_APPLY or the time (ms) until
+	 *         settle() should be called again
+	 */
+	public static synchronized long settle(Context context) {
+		if (pendingConfig == null) {
+			return NOTHING_TO_APPLY;
+		}
+		return update(context, getInterfaceDetails(context),
+				SystemClock.elapsedRealtime());
+	}
+
+	private static long update(Context context, InterfaceInfo newCfg, long now) {
+		final long window = getSettleWindow(context);
+		if (pendingConfig == null) {
+			if (currentConfig != null && currentConfig.equals(newCfg)) {
+				return NOTHING_TO_APPLY;
+			}
+			transitions++;
+			pendingConfig = newCfg;
+			firstChangeAt = now;
+			lastChangeAt = now;
+		} else if (!pendingConfig.equals(newCfg)) {
+			// the burst goes on, the earlier state is never applied
+			transitions++;
+			appliesSuppressed++;
+			pendingConfig = newCfg;
+			lastChangeAt = now;
+		}
+		long settleAt = lastChangeAt
+				+ (newCfg.netEnabled ? window : window * DOWN_FACTOR);
+		settleAt = Math.min(settleAt, firstChangeAt + window * MAX_WAIT_FACTOR);
+		if (now < settleAt) {
+			return settleAt - now;
+		}
+		pendingConfig = null;
 		if (currentConfig != null && currentConfig.equals(newCfg)) {
-			return false;
+			// flapped back to the state the rules were built for
+			appliesSuppressed++;
+			Log.d(TAG, "Connection settled back to the applied state, "
+					+ getStats());
+			return NOTHING_TO_APPLY;
 		}
+		final boolean lanOnly = currentConfig != null
+				&& currentConfig.equalsExceptLan(newCfg);
 		currentConfig = newCfg;
+		appliesRun++;
+		logNewCfg(newCfg);
+		Log.d(TAG, "Connection settled after " + (now - firstChangeAt)
+				+ " ms, " + getStats() + ", " + getScanStats());
+		return lanOnly ? APPLY_LAN : APPLY_NOW;
+	}
+
+	private static long getSettleWindow(Context context) {
+		try {
+			return Math.max(0, Long.parseLong(PreferenceManager
+					.getDefaultSharedPreferences(context).getString(
+							PREF_SETTLE_WINDOW, DEFAULT_SETTLE_WINDOW)));
+		} catch (NumberFormatException e) {
+			return Long.parseLong(DEFAULT_SETTLE_WINDOW);
+		}
+	}
 
+	/**
+	 * @return counters of the connection state machine, for the log
+	 */
+	public static synchronized String getStats() {
+		return "transitions: " + transitions + ", applies: " + appliesRun
+				+ ", suppressed: " + appliesSuppressed;
+	}
+
+	public static synchronized int getTransitionCount() {
+		return transitions;
+	}
+
+	public static synchronized int getAppliesRun() {
+		return appliesRun;
+	}
+
+	public static synchronized int getAppliesSuppressed() {
+		return appliesSuppressed;
+	}
+
+	private static void logNewCfg(InterfaceInfo newCfg) {
 		if (!newCfg.netEnabled) {
 			Log.i(TAG, "Now assuming NO connection (all interfaces down)");
 		} else {
 			if (newCfg.netType == ConnectivityManager.TYPE_WIFI) {
 				Log.i(TAG, "Now assuming wifi connection");
+				if (newCfg.wifiSsid.length() > 0) {
+					Log.i(TAG, "Connected to " + newCfg.wifiSsid + " ("
+							+ newCfg.wifiBssid + "), rule context "
+							+ newCfg.ruleContext);
+				}
 			} else if (newCfg.netType == ConnectivityManager.TYPE_MOBILE) {
 				Log.i(TAG, "Now assuming 3G connection");
 			}
 
-			if (!newCfg.lanipv4.equals("")) {
+			if (!newCfg.lanipv4.isEmpty()) {
 				Log.i(TAG, "IPv4 LAN netmask on " + newCfg.wifiName + ": "
 						+ newCfg.lanipv4);
 			}
-			if (!newCfg.lanipv6.equals("")) {
+			if (!newCfg.lanipv6.isEmpty()) {
 				Log.i(TAG, "IPv6 LAN netmask on " + newCfg.wifiName + ": "
 						+ newCfg.lanipv6);
 			}
 		}
-		return true;
 	}
 
-	public static InterfaceInfo getCurrentCfg(Context context) {
+	public static synchronized InterfaceInfo getCurrentCfg(Context context) {
 		if (currentConfig == null) {
 			currentConfig = getInterfaceDetails(context);
 		}
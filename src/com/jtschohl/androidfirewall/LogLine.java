@@ -0,0 +1,295 @@
+/**
+ * Parser of the kernel log lines of the firewall.
+ *
+ * Copyright (C) 2012-2014	Jason Tschohl
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * @author Jason Tschohl
+ * @version 1.0
+ */
+
+package com.jtschohl.androidfirewall;
+
+/**
+ * One LOG or NFLOG line, like "[AndroidFirewall] IN= OUT=wlan0
+ * SRC=10.0.0.5 DST=8.8.8.8 ... PROTO=UDP SPT=4000 DPT=53 ... UID=10050".
+ * The line is read once from left to right into primitive fields, and the
+ * same instance is reused for every line, so parsing allocates nothing.
+ * Values that have no primitive form (IPv6 addresses, unknown protocols)
+ * are kept as positions in the line.
+ */
+public final class LogLine {
+
+	public static final int UNKNOWN_UID = -99;
+	/** no value in the line */
+	public static final int NONE = -1;
+
+	public static final int PROTO_ICMP = 1;
+	public static final int PROTO_TCP = 6;
+	public static final int PROTO_UDP = 17;
+	public static final int PROTO_ICMPV6 = 58;
+	/** a protocol without a code, see getProto() */
+	public static final int PROTO_OTHER = -2;
+
+	public int uid;
+	/** IPv4 source address, valid if srcV4 */
+	public int src;
+	public boolean srcV4;
+	/** IPv4 destination address, valid if dstV4 */
+	public int dst;
+	public boolean dstV4;
+	/** protocol code, NONE or PROTO_OTHER */
+	public int proto;
+	public int spt;
+	public int dpt;
+
+	private String line;
+	// positions of the values, -1 if absent
+	private int srcStart, srcEnd;
+	private int dstStart, dstEnd;
+	private int protoStart, protoEnd;
+	private int itfStart, itfEnd;
+
+	/**
+	 * @param line
+	 *            a kernel log line
+	 * @param tag
+	 *            log prefix the line must contain, e.g. "[AndroidFirewall]"
+	 * @return false if the line is not a firewall line; the fields are then
+	 *         undefined
+	 */
+	public boolean parse(String line, String tag) {
+		final int at = line.indexOf(tag);
+		if (at < 0) {
+			return false;
+		}
+		parse(line, at + tag.length(), line.length());
+		return true;
+	}
+
+	/**
+	 * Parse the fields of a line inside a larger text, without copying it
+	 *
+	 * @param text
+	 *            the text
+	 * @param start
+	 *            position after the log prefix
+	 * @param limit
+	 *            end of the line
+	 */
+	public void parse(String text, int start, int limit) {
+		this.line = text;
+		uid = UNKNOWN_UID;
+		srcV4 = dstV4 = false;
+		proto = spt = dpt = NONE;
+		srcStart = dstStart = protoStart = itfStart = -1;
+		int pos = start;
+		while (pos < limit) {
+			// one "KEY=value" token
+			while (pos < limit && line.charAt(pos) == ' ') {
+				pos++;
+			}
+			int eq = pos;
+			while (eq < limit && line.charAt(eq) != '='
+					&& line.charAt(eq) != ' ') {
+				eq++;
+			}
+			int end = eq;
+			while (end < limit && line.charAt(end) != ' ') {
+				end++;
+			}
+			if (eq < limit && line.charAt(eq) == '=') {
+				value(pos, eq, eq + 1, end);
+			}
+			pos = end;
+		}
+	}
+
+	private void value(int key, int keyEnd, int start, int end) {
+		final int keyLen = keyEnd - key;
+		if (keyLen == 2 && line.startsWith("IN", key) && end > start
+				&& itfStart < 0) {
+			itfStart = start;
+			itfEnd = end;
+		} else if (keyLen == 3 && line.startsWith("OUT", key) && end > start) {
+			// the outgoing interface is the one the rules match
+			itfStart = start;
+			itfEnd = end;
+		} else if (keyLen == 3) {
+			final char c0 = line.charAt(key);
+			final char c1 = line.charAt(key + 1);
+			final char c2 = line.charAt(key + 2);
+			if (c0 == 'U' && c1 == 'I' && c2 == 'D') {
+				final int n = parseInt(start, end);
+				if (n != NONE) {
+					uid = n;
+				}
+			} else if (c0 == 'S' && c1 == 'R' && c2 == 'C') {
+				srcStart = start;
+				srcEnd = end;
+				src = parseIpv4(start, end);
+				srcV4 = src != NONE || isAllOnes(start, end);
+			} else if (c0 == 'D' && c1 == 'S' && c2 == 'T') {
+				dstStart = start;
+				dstEnd = end;
+				dst = parseIpv4(start, end);
+				dstV4 = dst != NONE || isAllOnes(start, end);
+			} else if (c0 == 'S' && c1 == 'P' && c2 == 'T') {
+				spt = parseInt(start, end);
+			} else if (c0 == 'D' && c1 == 'P' && c2 == 'T') {
+				dpt = parseInt(start, end);
+			}
+		} else if (keyLen == 5 && line.startsWith("PROTO", key)) {
+			protoStart = start;
+			protoEnd = end;
+			proto = parseProto(start, end);
+		}
+	}
+
+	/**
+	 * @return the source address, null if none
+	 */
+	public String getSrc() {
+		return srcStart < 0 ? null : line.substring(srcStart, srcEnd);
+	}
+
+	/**
+	 * @return the destination address, null if none
+	 */
+	public String getDst() {
+		return dstStart < 0 ? null : line.substring(dstStart, dstEnd);
+	}
+
+	/**
+	 * @return the protocol as in the line, e.g. "TCP", null if none
+	 */
+	public String getProto() {
+		return protoStart < 0 ? null : line.substring(protoStart, protoEnd);
+	}
+
+	/**
+	 * @return length of the interface name, 0 if none
+	 */
+	public int itfLength() {
+		return itfStart < 0 ? 0 : itfEnd - itfStart;
+	}
+
+	/**
+	 * @return character i of the interface name, OUT= or else IN=
+	 */
+	public char itfCharAt(int i) {
+		return line.charAt(itfStart + i);
+	}
+
+	/**
+	 * @param code
+	 *            protocol code, not PROTO_OTHER
+	 * @return the name the kernel logs for it
+	 */
+	public static String protoName(int code) {
+		switch (code) {
+		case PROTO_ICMP:
+			return "ICMP";
+		case PROTO_TCP:
+			return "TCP";
+		case PROTO_UDP:
+			return "UDP";
+		case PROTO_ICMPV6:
+			return "ICMPv6";
+		default:
+			return Integer.toString(code);
+		}
+	}
+
+	/**
+	 * @param addr
+	 *            IPv4 address
+	 * @return the dotted form
+	 */
+	public static String formatIpv4(int addr) {
+		return new StringBuilder(15).append(addr >>> 24).append('.')
+				.append((addr >> 16) & 0xff).append('.')
+				.append((addr >> 8) & 0xff).append('.').append(addr & 0xff)
+				.toString();
+	}
+
+	private int parseProto(int start, int end) {
+		final int len = end - start;
+		if (len == 3 && line.startsWith("TCP", start)) {
+			return PROTO_TCP;
+		} else if (len == 3 && line.startsWith("UDP", start)) {
+			return PROTO_UDP;
+		} else if (len == 4 && line.startsWith("ICMP", start)) {
+			return PROTO_ICMP;
+		} else if (len == 6 && line.startsWith("ICMPv6", start)) {
+			return PROTO_ICMPV6;
+		}
+		// the kernel logs unnamed protocols by number
+		final int n = parseInt(start, end);
+		return n != NONE ? n : PROTO_OTHER;
+	}
+
+	/**
+	 * @return the decimal number, NONE if there is none or it is too long
+	 */
+	private int parseInt(int start, int end) {
+		if (start == end || end - start > 9) {
+			return NONE;
+		}
+		int n = 0;
+		for (int i = start; i < end; i++) {
+			final char c = line.charAt(i);
+			if (c < '0' || c > '9') {
+				return NONE;
+			}
+			n = n * 10 + (c - '0');
+		}
+		return n;
+	}
+
+	/**
+	 * @return the address, NONE if it is no IPv4 address (or 255.255.255.255,
+	 *         see isAllOnes())
+	 */
+	private int parseIpv4(int start, int end) {
+		int addr = 0;
+		int part = 0;
+		int digits = 0;
+		int dots = 0;
+		for (int i = start; i < end; i++) {
+			final char c = line.charAt(i);
+			if (c >= '0' && c <= '9') {
+				part = part * 10 + (c - '0');
+				if (++digits > 3 || part > 255) {
+					return NONE;
+				}
+			} else if (c == '.' && digits > 0 && dots < 3) {
+				addr = (addr << 8) | part;
+				part = digits = 0;
+				dots++;
+			} else {
+				return NONE;
+			}
+		}
+		if (dots != 3 || digits == 0) {
+			return NONE;
+		}
+		return (addr << 8) | part;
+	}
+
+	private boolean isAllOnes(int start, int end) {
+		return end - start == 15 && line.startsWith("255.255.255.255", start);
+	}
+}
@@ -0,0 +1,266 @@
+/**
+ * Ring buffer of the most recent firewall log events.
+ *
+ * Copyright (C) 2012-2014	Jason Tschohl
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * @author Jason Tschohl
+ * @version 1.0
+ */
+
+package com.jtschohl.androidfirewall;
+
+/**
+ * Fixed capacity ring of parsed log events, one array per field, all
+ * allocated up front. The writer, the thread reading the nflog output,
+ * overwrites the oldest events and must not wait for long. Writer and
+ * readers share a lock (fences are not available on the releases we
+ * support), but a reader copies at most COPY_CHUNK events while holding it,
+ * so the writer waits for one short copy at most. Events overwritten
+ * between two chunks are left out of the snapshot.
+ */
+public final class LogRing {
+
+	/** smallest and largest capacity accepted */
+	public static final int MIN_CAPACITY = 16;
+	public static final int MAX_CAPACITY = 1 << 20;
+
+	/** most events copied by a snapshot while holding the lock */
+	private static final int COPY_CHUNK = 1024;
+
+	private static final int FLAG_ACCEPTED = 1;
+	private static final int FLAG_SRC_V4 = 2;
+	private static final int FLAG_DST_V4 = 4;
+
+	/**
+	 * One event, filled in by Snapshot.get()
+	 */
+	public static final class Event {
+		/** wall clock time, ms */
+		public long time;
+		public boolean accepted;
+		public int uid;
+		/** IPv4 addresses, valid if srcV4/dstV4 */
+		public int src;
+		public int dst;
+		public boolean srcV4;
+		public boolean dstV4;
+		/** protocol code of LogLine */
+		public int proto;
+		public int spt;
+		public int dpt;
+		/** the values without a primitive form, null if there are none */
+		public String srcText;
+		public String dstText;
+		public String protoText;
+	}
+
+	/**
+	 * Copy of the events at one point in time
+	 */
+	public static final class Snapshot {
+		private final long[] times;
+		private final int[] uids, srcs, dsts, protos, spts, dpts;
+		private final byte[] flags;
+		private final String[] texts;
+		private int count;
+
+		private Snapshot(int count) {
+			this.count = count;
+			times = new long[count];
+			uids = new int[count];
+			srcs = new int[count];
+			dsts = new int[count];
+			protos = new int[count];
+			spts = new int[count];
+			dpts = new int[count];
+			flags = new byte[count];
+			texts = new String[count];
+		}
+
+		/**
+		 * @return number of events, the oldest first
+		 */
+		public int size() {
+			return count;
+		}
+
+		/**
+		 * @param i
+		 *            index of the event
+		 * @param out
+		 *            the event to fill in
+		 */
+		public void get(int i, Event out) {
+			out.time = times[i];
+			out.uid = uids[i];
+			out.src = srcs[i];
+			out.dst = dsts[i];
+			out.proto = protos[i];
+			out.spt = spts[i];
+			out.dpt = dpts[i];
+			out.accepted = (flags[i] & FLAG_ACCEPTED) != 0;
+			out.srcV4 = (flags[i] & FLAG_SRC_V4) != 0;
+			out.dstV4 = (flags[i] & FLAG_DST_V4) != 0;
+			out.srcText = out.dstText = out.protoText = null;
+			if (texts[i] != null) {
+				// "src dst proto", "-" for a value with a primitive form
+				final String[] parts = texts[i].split(" ");
+				out.srcText = parts[0].equals("-") ? null : parts[0];
+				out.dstText = parts[1].equals("-") ? null : parts[1];
+				out.protoText = parts[2].equals("-") ? null : parts[2];
+			}
+		}
+	}
+
+	private final int capacity;
+	private final int mask;
+	private final long[] times;
+	private final int[] uids, srcs, dsts, protos, spts, dpts;
+	private final byte[] flags;
+	private final String[] texts;
+	/** guards the arrays and the positions below */
+	private final Object lock = new Object();
+	/** sequence number of the next event */
+	private long head = 0;
+	/** events before this one were cleared */
+	private long start = 0;
+
+	/**
+	 * @param capacity
+	 *            number of events kept, rounded up to a power of two
+	 */
+	public LogRing(int capacity) {
+		int size = MIN_CAPACITY;
+		while (size < capacity && size < MAX_CAPACITY) {
+			size <<= 1;
+		}
+		this.capacity = size;
+		mask = size - 1;
+		times = new long[size];
+		uids = new int[size];
+		srcs = new int[size];
+		dsts = new int[size];
+		protos = new int[size];
+		spts = new int[size];
+		dpts = new int[size];
+		flags = new byte[size];
+		texts = new String[size];
+	}
+
+	/**
+	 * @return number of events kept
+	 */
+	public int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * Append an event, overwriting the oldest one if the ring is full
+	 *
+	 * @param line
+	 *            the parsed line
+	 * @param accepted
+	 *            true for an accepted packet
+	 * @param time
+	 *            wall clock time, ms
+	 */
+	public void add(LogLine line, boolean accepted, long time) {
+		// built before taking the lock, most lines need none
+		final String text;
+		if ((line.srcV4 || line.getSrc() == null)
+				&& (line.dstV4 || line.getDst() == null)
+				&& line.proto != LogLine.PROTO_OTHER) {
+			text = null;
+		} else {
+			text = text(line.srcV4 ? null : line.getSrc())
+					+ ' '
+					+ text(line.dstV4 ? null : line.getDst())
+					+ ' '
+					+ text(line.proto == LogLine.PROTO_OTHER ? line.getProto()
+							: null);
+		}
+		synchronized (lock) {
+			final int i = (int) (head & mask);
+			times[i] = time;
+			uids[i] = line.uid;
+			srcs[i] = line.src;
+			dsts[i] = line.dst;
+			protos[i] = line.proto;
+			spts[i] = line.spt;
+			dpts[i] = line.dpt;
+			flags[i] = (byte) ((accepted ? FLAG_ACCEPTED : 0)
+					| (line.srcV4 ? FLAG_SRC_V4 : 0) | (line.dstV4 ? FLAG_DST_V4
+					: 0));
+			texts[i] = text;
+			head++;
+		}
+	}
+
+	/**
+	 * Copy the events, holding the lock for one chunk at a time
+	 *
+	 * @return the events since the last clear that were not overwritten
+	 *         before they were copied
+	 */
+	public Snapshot snapshot() {
+		long next;
+		final long end;
+		synchronized (lock) {
+			end = head;
+			next = Math.max(start, end - capacity);
+		}
+		final Snapshot snap = new Snapshot((int) (end - next));
+		int copied = 0;
+		while (next < end) {
+			synchronized (lock) {
+				// the writer lapped the events not copied yet
+				next = Math.max(next, head - capacity);
+				if (next >= end) {
+					break;
+				}
+				final int from = (int) (next & mask);
+				final int n = (int) Math.min(Math.min(end - next, COPY_CHUNK),
+						capacity - from);
+				System.arraycopy(times, from, snap.times, copied, n);
+				System.arraycopy(uids, from, snap.uids, copied, n);
+				System.arraycopy(srcs, from, snap.srcs, copied, n);
+				System.arraycopy(dsts, from, snap.dsts, copied, n);
+				System.arraycopy(protos, from, snap.protos, copied, n);
+				System.arraycopy(spts, from, snap.spts, copied, n);
+				System.arraycopy(dpts, from, snap.dpts, copied, n);
+				System.arraycopy(flags, from, snap.flags, copied, n);
+				System.arraycopy(texts, from, snap.texts, copied, n);
+				next += n;
+				copied += n;
+			}
+		}
+		snap.count = copied;
+		return snap;
+	}
+
+	/**
+	 * Forget the events added so far. The writer is not affected.
+	 */
+	public void clear() {
+		synchronized (lock) {
+			start = head;
+		}
+	}
+
+	private static String text(String value) {
+		return value != null ? value : "-";
+	}
+}
@@ -0,0 +1,406 @@
+/**
+ * Packet counts of the firewall log, per application.
+ *
+ * Copyright (C) 2012-2014	Jason Tschohl
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * @author Jason Tschohl
+ * @version 1.0
+ */
+
+package com.jtschohl.androidfirewall;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+import android.util.SparseArray;
+
+/**
+ * Counts the packets of the parsed log lines by UID and, per UID, by
+ * destination, protocol, source and destination port. The counters are
+ * keyed by the primitive fields of LogLine; only values without one (IPv6
+ * addresses) are counted by string. A summary that lives as long as a
+ * service can limit the values per counter: when a counter is full, the
+ * least counted half of its values is dropped, the totals stay exact.
+ */
+public final class LogSummary {
+
+	/**
+	 * Counts per value, in the order the values were first seen
+	 */
+	public static final class Counter {
+		/** most distinct values kept, 0 for no limit */
+		private final int limit;
+		private long[] table = new long[16];
+		/** position in keys + 1, 0 for a free slot */
+		private int[] index = new int[16];
+		private long[] keys = new long[8];
+		private int[] counts = new int[8];
+		private int size = 0;
+		/** values without a primitive key */
+		private HashMap<String, Integer> other = null;
+		private List<String> otherOrder = null;
+
+		public Counter() {
+			this(0);
+		}
+
+		/**
+		 * @param limit
+		 *            most distinct values kept, 0 for no limit
+		 */
+		public Counter(int limit) {
+			this.limit = limit;
+		}
+
+		/**
+		 * Count a value
+		 *
+		 * @param key
+		 *            the value
+		 */
+		public void add(long key) {
+			final int slot = slot(key);
+			if (index[slot] != 0) {
+				counts[index[slot] - 1]++;
+				return;
+			}
+			if (limit > 0 && size() >= limit) {
+				trim();
+				add(key);
+				return;
+			}
+			if (size == keys.length) {
+				final long[] k = new long[size * 2];
+				final int[] c = new int[size * 2];
+				System.arraycopy(keys, 0, k, 0, size);
+				System.arraycopy(counts, 0, c, 0, size);
+				keys = k;
+				counts = c;
+			}
+			keys[size] = key;
+			counts[size] = 1;
+			size++;
+			table[slot] = key;
+			index[slot] = size;
+			if (size * 2 > table.length) {
+				rehash();
+			}
+		}
+
+		/**
+		 * Count a value that has no primitive key
+		 */
+		public void add(String key) {
+			if (other == null) {
+				other = new HashMap<String, Integer>();
+				otherOrder = new ArrayList<String>();
+			}
+			final Integer count = other.get(key);
+			if (count == null && limit > 0 && size() >= limit) {
+				trim();
+				add(key);
+				return;
+			}
+			if (count == null) {
+				otherOrder.add(key);
+				other.put(key, 1);
+			} else {
+				other.put(key, count + 1);
+			}
+		}
+
+		/**
+		 * @return number of distinct values
+		 */
+		public int size() {
+			return size + (otherOrder != null ? otherOrder.size() : 0);
+		}
+
+		/**
+		 * @return the primitive key of value i (below primitiveSize())
+		 */
+		public long keyAt(int i) {
+			return keys[i];
+		}
+
+		/**
+		 * @return number of values with a primitive key, they come first
+		 */
+		public int primitiveSize() {
+			return size;
+		}
+
+		/**
+		 * @return the string key of value i (from primitiveSize() on)
+		 */
+		public String otherAt(int i) {
+			return otherOrder.get(i - size);
+		}
+
+		/**
+		 * @return the count of value i
+		 */
+		public int countAt(int i) {
+			return i < size ? counts[i] : other.get(otherOrder.get(i - size));
+		}
+
+		/**
+		 * @return a copy that is not affected by later counts
+		 */
+		public Counter copy() {
+			final Counter c = new Counter(limit);
+			c.table = table.clone();
+			c.index = index.clone();
+			c.keys = keys.clone();
+			c.counts = counts.clone();
+			c.size = size;
+			if (other != null) {
+				c.other = new HashMap<String, Integer>(other);
+				c.otherOrder = new ArrayList<String>(otherOrder);
+			}
+			return c;
+		}
+
+		/**
+		 * Drop the least counted half of the values, keeping the order of
+		 * the others
+		 */
+		private void trim() {
+			final int total = size();
+			final int[] sorted = new int[total];
+			for (int i = 0; i < total; i++) {
+				sorted[i] = countAt(i);
+			}
+			Arrays.sort(sorted);
+			final int keep = limit / 2;
+			final int threshold = keep > 0 ? sorted[total - keep]
+					: Integer.MAX_VALUE;
+			// values at the threshold are kept first come, first served
+			int ties = 0;
+			for (int i = total - keep; i < total; i++) {
+				if (sorted[i] == threshold) {
+					ties++;
+				}
+			}
+			int kept = 0;
+			for (int i = 0; i < size; i++) {
+				final int c = counts[i];
+				if (c > threshold || c == threshold && ties-- > 0) {
+					keys[kept] = keys[i];
+					counts[kept] = c;
+					kept++;
+				}
+			}
+			size = kept;
+			if (otherOrder != null) {
+				final List<String> order = new ArrayList<String>();
+				for (String key : otherOrder) {
+					final int c = other.get(key);
+					if (c > threshold || c == threshold && ties-- > 0) {
+						order.add(key);
+					} else {
+						other.remove(key);
+					}
+				}
+				otherOrder = order;
+			}
+			table = new long[table.length];
+			index = new int[table.length];
+			for (int i = 0; i < size; i++) {
+				final int slot = slot(keys[i]);
+				table[slot] = keys[i];
+				index[slot] = i + 1;
+			}
+		}
+
+		private int slot(long key) {
+			final int mask = table.length - 1;
+			int h = (int) (key ^ (key >>> 32));
+			h ^= (h >>> 16);
+			h *= 0x85ebca6b;
+			h ^= (h >>> 13);
+			int slot = h & mask;
+			while (index[slot] != 0 && table[slot] != key) {
+				slot = (slot + 1) & mask;
+			}
+			return slot;
+		}
+
+		private void rehash() {
+			table = new long[table.length * 2];
+			index = new int[table.length];
+			for (int i = 0; i < size; i++) {
+				final int slot = slot(keys[i]);
+				table[slot] = keys[i];
+				index[slot] = i + 1;
+			}
+		}
+	}
+
+	/**
+	 * Counts of one UID
+	 */
+	public static final class Entry {
+		public int total = 0;
+		public final Counter dst;
+		public final Counter proto;
+		public final Counter src;
+		public final Counter dpt;
+
+		Entry(int limit) {
+			dst = new Counter(limit);
+			proto = new Counter(limit);
+			src = new Counter(limit);
+			dpt = new Counter(limit);
+		}
+
+		private Entry(Entry from) {
+			total = from.total;
+			dst = from.dst.copy();
+			proto = from.proto.copy();
+			src = from.src.copy();
+			dpt = from.dpt.copy();
+		}
+	}
+
+	private final SparseArray<Entry> entries = new SparseArray<Entry>();
+	private final LogLine parsed = new LogLine();
+	/** most distinct values per counter, 0 for no limit */
+	private final int limit;
+
+	public LogSummary() {
+		this(0);
+	}
+
+	/**
+	 * @param limit
+	 *            most distinct values kept per counter, 0 for no limit
+	 */
+	public LogSummary(int limit) {
+		this.limit = limit;
+	}
+
+	/**
+	 * Count the firewall lines of a log
+	 *
+	 * @param log
+	 *            dmesg or nflog output
+	 * @param tag
+	 *            log prefix of the lines to count
+	 */
+	public void addAll(String log, String tag) {
+		// jump from prefix to prefix, the lines are never copied out
+		int at = log.indexOf(tag);
+		while (at >= 0) {
+			int end = log.indexOf('\n', at);
+			if (end < 0) {
+				end = log.length();
+			}
+			parsed.parse(log, at + tag.length(), end);
+			add(parsed);
+			at = log.indexOf(tag, end);
+		}
+	}
+
+	/**
+	 * Count one line
+	 *
+	 * @param line
+	 *            log line
+	 * @param tag
+	 *            log prefix the line must have to be counted
+	 * @return true if the line was counted
+	 */
+	public boolean add(String line, String tag) {
+		if (!parsed.parse(line, tag)) {
+			return false;
+		}
+		add(parsed);
+		return true;
+	}
+
+	/**
+	 * Count a parsed line
+	 */
+	public void add(LogLine line) {
+		Entry entry = entries.get(line.uid);
+		if (entry == null) {
+			entry = new Entry(limit);
+			entries.put(line.uid, entry);
+		}
+		entry.total++;
+		if (line.dstV4) {
+			entry.dst.add(line.dst & 0xffffffffL);
+		} else if (line.getDst() != null) {
+			entry.dst.add(line.getDst());
+		}
+		if (line.proto == LogLine.PROTO_OTHER) {
+			entry.proto.add(line.getProto());
+		} else if (line.proto != LogLine.NONE) {
+			entry.proto.add(line.proto);
+		}
+		if (line.srcV4) {
+			entry.src.add(line.src & 0xffffffffL);
+		} else if (line.getSrc() != null) {
+			entry.src.add(line.getSrc());
+		}
+		if (line.dpt != LogLine.NONE) {
+			entry.dpt.add(line.dpt);
+		}
+	}
+
+	/**
+	 * @return number of UIDs
+	 */
+	public int size() {
+		return entries.size();
+	}
+
+	/**
+	 * @return UID i, in ascending order (LogLine.UNKNOWN_UID for the
+	 *         kernel)
+	 */
+	public int uidAt(int i) {
+		return entries.keyAt(i);
+	}
+
+	/**
+	 * @return the counts of UID i
+	 */
+	public Entry entryAt(int i) {
+		return entries.valueAt(i);
+	}
+
+	/**
+	 * @return a copy that is not affected by later counts
+	 */
+	public LogSummary copy() {
+		final LogSummary c = new LogSummary(limit);
+		for (int i = 0; i < entries.size(); i++) {
+			c.entries.append(entries.keyAt(i), new Entry(entries.valueAt(i)));
+		}
+		return c;
+	}
+
+	/**
+	 * Forget all counts
+	 */
+	public void clear() {
+		entries.clear();
+	}
+}
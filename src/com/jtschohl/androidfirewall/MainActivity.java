@@ -1150,6 +1150,9 @@ public class MainActivity extends SherlockActivity implements
 		case R.id.help:
 			HelpDialog();
 			return true;
+		case R.id.bindnetwork:
+			bindProfileToNetwork();
+			return true;
 		case R.id.usersettings:
 			userSettings();
 			return true;
@@ -1413,7 +1416,7 @@ public class MainActivity extends SherlockActivity implements
 			toggleLANbutton(getApplicationContext());
 			toggleUserSettings(getApplicationContext());
 			if (Api.isEnabled(getApplicationContext())) {
-				Api.applyIptablesRules(getApplicationContext(), true);
+				RulesApplier.applyIptablesRules(getApplicationContext(), true, null);
 			} else {
 				Api.saveRules(getApplicationContext());
 			}
@@ -1525,21 +1528,19 @@ public class MainActivity extends SherlockActivity implements
 		final ProgressDialog progress = ProgressDialog.show(this,
 				res.getString(R.string.working),
 				res.getString(R.string.please_wait), true);
-		final Handler handler = new Handler() {
-			public void handleMessage(Message msg) {
+		RulesApplier.clearLog(this, new RulesApplier.Callback() {
+			@Override
+			public void onComplete(boolean success) {
 				try {
 					progress.dismiss();
 				} catch (Exception ex) {
 				}
-				if (!Api.hasRootAccess(MainActivity.this, true))
-					return;
-				if (Api.clearLog(MainActivity.this)) {
+				if (success) {
 					Toast.makeText(MainActivity.this, R.string.log_cleared,
 							Toast.LENGTH_SHORT).show();
 				}
 			}
-		};
-		handler.sendEmptyMessageDelayed(0, 100);
+		});
 	}
 
 	/**
@@ -1582,95 +1583,130 @@ public class MainActivity extends SherlockActivity implements
 				.getString(R.string.working), res
 				.getString(enabled ? R.string.applying_rules
 						: R.string.saving_rules), true);
+		if (enabled) {
+			Log.d(TAG, "Applying rules.");
+			RulesApplier.applyIptablesRules(MainActivity.this, true,
+					new RulesApplier.Callback() {
+						@Override
+						public void onProgress(RulesApplier.Phase phase) {
+							try {
+								progress.setMessage(res
+										.getString(phase == RulesApplier.Phase.CHECK_ROOT ? R.string.please_wait
+												: phase == RulesApplier.Phase.SAVE ? R.string.saving_rules
+														: R.string.applying_rules));
+							} catch (Exception ex) {
+							}
+						}
+
+						@Override
+						public void onComplete(boolean success) {
+							try {
+								progress.dismiss();
+							} catch (Exception ex) {
+							}
+							if (success) {
+								Toast.makeText(MainActivity.this,
+										R.string.rules_applied,
+										Toast.LENGTH_SHORT).show();
+								if (abs_menu != null) {
+									final MenuItem item_onoff = abs_menu
+											.findItem(R.id.enableipv4);
+									final MenuItem item_apply = abs_menu
+											.findItem(R.id.applyrules);
+									item_apply.setTitle(R.string.applyrules);
+									item_onoff.setChecked(true);
+								}
+								saveSelectedProfile();
+							} else {
+								Log.d(TAG, "Failed - Disabling firewall.");
+								Api.setEnabled(MainActivity.this, false);
+								if (abs_menu != null) {
+									final MenuItem item_onoff = abs_menu
+											.findItem(R.id.enableipv4);
+									final MenuItem item_apply = abs_menu
+											.findItem(R.id.applyrules);
+									item_apply.setTitle(R.string.saverules);
+									item_onoff.setChecked(false);
+								}
+							}
+							MainActivity.this.dirty = false;
+						}
+					});
+			return;
+		}
 		final Handler handler = new Handler() {
 			public void handleMessage(Message msg) {
-				SharedPreferences prefs = PreferenceManager
-						.getDefaultSharedPreferences(getApplicationContext());
-				int i;
 				try {
 					progress.dismiss();
 				} catch (Exception ex) {
 				}
-				if (enabled) {
-					Log.d(TAG, "Applying rules.");
-					if (Api.hasRootAccess(MainActivity.this, true)
-							&& Api.applyIptablesRules(MainActivity.this, true)) {
-						Toast.makeText(MainActivity.this,
-								R.string.rules_applied, Toast.LENGTH_SHORT)
-								.show();
-						if (abs_menu != null) {
-							final MenuItem item_onoff = abs_menu
-									.findItem(R.id.enableipv4);
-							final MenuItem item_apply = abs_menu
-									.findItem(R.id.applyrules);
-							item_apply.setTitle(R.string.applyrules);
-							item_onoff.setChecked(true);
-						}
-						i = prefs.getInt("itemPosition", 0);
-						if (i == 0) {
-							saveDefaultProfile();
-						}
-						if (i == 1) {
-							saveProfile1();
-						}
-						if (i == 2) {
-							saveProfile2();
-						}
-						if (i == 3) {
-							saveProfile3();
-						}
-						if (i == 4) {
-							saveProfile4();
-						}
-						if (i == 5) {
-							saveProfile5();
-						}
-					} else {
-						Log.d(TAG, "Failed - Disabling firewall.");
-						Api.setEnabled(MainActivity.this, false);
-						if (abs_menu != null) {
-							final MenuItem item_onoff = abs_menu
-									.findItem(R.id.enableipv4);
-							final MenuItem item_apply = abs_menu
-									.findItem(R.id.applyrules);
-							item_apply.setTitle(R.string.saverules);
-							item_onoff.setChecked(false);
-						}
-					}
-
-				}
-
-				else {
-					Log.d(TAG, "Saving rules.");
-					Api.saveRules(MainActivity.this);
-					Toast.makeText(MainActivity.this, R.string.rules_saved,
-							Toast.LENGTH_SHORT).show();
-					i = prefs.getInt("itemPosition", 0);
-					if (i == 0) {
-						saveDefaultProfile();
-					}
-					if (i == 1) {
-						saveProfile1();
-					}
-					if (i == 2) {
-						saveProfile2();
-					}
-					if (i == 3) {
-						saveProfile3();
-					}
-					if (i == 4) {
-						saveProfile4();
-					}
-					if (i == 5) {
-						saveProfile5();
-					}
-				}
+				Log.d(TAG, "Saving rules.");
+				Api.saveRules(MainActivity.this);
+				Toast.makeText(MainActivity.this, R.string.rules_saved,
+						Toast.LENGTH_SHORT).show();
+				saveSelectedProfile();
 				MainActivity.this.dirty = false;
 			}
 		};
 		handler.sendEmptyMessageDelayed(0, 100);
 	}
 
+	/**
+	 * Store the current rules in the profile selected in the drawer
+	 */
+	private void saveSelectedProfile() {
+		SharedPreferences prefs = PreferenceManager
+				.getDefaultSharedPreferences(getApplicationContext());
+		int i = prefs.getInt("itemPosition", 0);
+		if (i == 0) {
+			saveDefaultProfile();
+		}
+		if (i == 1) {
+			saveProfile1();
+		}
+		if (i == 2) {
+			saveProfile2();
+		}
+		if (i == 3) {
+			saveProfile3();
+		}
+		if (i == 4) {
+			saveProfile4();
+		}
+		if (i == 5) {
+			saveProfile5();
+		}
+	}
+
+	/**
+	 * Bind the selected profile to the connected Wi-Fi network, or remove the
+	 * binding if it exists
+	 */
+	private void bindProfileToNetwork() {
+		final String ssid = InterfaceTracker.getConnectedSsid(this);
+		if (ssid.length() == 0) {
+			Toast.makeText(this, R.string.bindnetwork_nowifi,
+					Toast.LENGTH_SHORT).show();
+			return;
+		}
+		final int profile = PreferenceManager.getDefaultSharedPreferences(
+				getApplicationContext()).getInt("itemPosition", 0);
+		if (RuleContexts.getBinding(this, ssid, null) == profile) {
+			RuleContexts.unbindSsid(this, ssid);
+			Toast.makeText(this, getString(R.string.bindnetwork_unbound, ssid),
+					Toast.LENGTH_LONG).show();
+		} else {
+			// store the working rules, the profile may never have been saved
+			saveSelectedProfile();
+			RuleContexts.bindSsid(this, ssid, profile);
+			Toast.makeText(this, getString(R.string.bindnetwork_bound, ssid),
+					Toast.LENGTH_LONG).show();
+		}
+		// let the connection state machine pick up the binding
+		InterfaceIntent.performAction(this,
+				InterfaceIntent.ACTION_CONNECTIVITY_CHANGED);
+	}
+
 	/**
 	 * Purge iptable rules, showing a visual indication
 	 */
@@ -1679,29 +1715,29 @@ public class MainActivity extends SherlockActivity implements
 		final ProgressDialog progress = ProgressDialog.show(this,
 				res.getString(R.string.working),
 				res.getString(R.string.deleting_rules), true);
-		final Handler handler = new Handler() {
-			public void handleMessage(Message msg) {
-				try {
-					progress.dismiss();
-				} catch (Exception ex) {
-				}
-				if (!Api.hasRootAccess(MainActivity.this, true))
-					return;
-				if (Api.purgeIptables(MainActivity.this, true)) {
-					Toast.makeText(MainActivity.this, R.string.rules_deleted,
-							Toast.LENGTH_SHORT).show();
-					if (abs_menu != null) {
-						final MenuItem item_onoff = abs_menu
-								.findItem(R.id.enableipv4);
-						final MenuItem item_apply = abs_menu
-								.findItem(R.id.applyrules);
-						item_apply.setTitle(R.string.saverules);
-						item_onoff.setChecked(false);
+		RulesApplier.purgeIptables(MainActivity.this, true,
+				new RulesApplier.Callback() {
+					@Override
+					public void onComplete(boolean success) {
+						try {
+							progress.dismiss();
+						} catch (Exception ex) {
+						}
+						if (success) {
+							Toast.makeText(MainActivity.this,
+									R.string.rules_deleted, Toast.LENGTH_SHORT)
+									.show();
+							if (abs_menu != null) {
+								final MenuItem item_onoff = abs_menu
+										.findItem(R.id.enableipv4);
+								final MenuItem item_apply = abs_menu
+										.findItem(R.id.applyrules);
+								item_apply.setTitle(R.string.saverules);
+								item_onoff.setChecked(false);
+							}
+						}
 					}
-				}
-			}
-		};
-		handler.sendEmptyMessageDelayed(0, 100);
+				});
 	}
 
 	/**
@@ -2031,7 +2067,7 @@ public class MainActivity extends SherlockActivity implements
 		toggleInputWifiButton(getApplicationContext());
 		toggleUserSettings(getApplicationContext());
 		if (Api.isEnabled(getApplicationContext())) {
-			Api.applyIptablesRules(getApplicationContext(), true);
+			RulesApplier.applyIptablesRules(getApplicationContext(), true, null);
 			if (abs_menu != null) {
 				final MenuItem item_onoff = abs_menu.findItem(R.id.enableipv4);
 				final MenuItem item_apply = abs_menu.findItem(R.id.applyrules);
@@ -2080,7 +2116,7 @@ public class MainActivity extends SherlockActivity implements
 		toggleInputWifiButton(getApplicationContext());
 		toggleUserSettings(getApplicationContext());
 		if (Api.isEnabled(getApplicationContext())) {
-			Api.applyIptablesRules(getApplicationContext(), true);
+			RulesApplier.applyIptablesRules(getApplicationContext(), true, null);
 			if (abs_menu != null) {
 				final MenuItem item_onoff = abs_menu.findItem(R.id.enableipv4);
 				final MenuItem item_apply = abs_menu.findItem(R.id.applyrules);
@@ -2129,7 +2165,7 @@ public class MainActivity extends SherlockActivity implements
 		toggleInputWifiButton(getApplicationContext());
 		toggleUserSettings(getApplicationContext());
 		if (Api.isEnabled(getApplicationContext())) {
-			Api.applyIptablesRules(getApplicationContext(), true);
+			RulesApplier.applyIptablesRules(getApplicationContext(), true, null);
 			if (abs_menu != null) {
 				final MenuItem item_onoff = abs_menu.findItem(R.id.enableipv4);
 				final MenuItem item_apply = abs_menu.findItem(R.id.applyrules);
@@ -2178,7 +2214,7 @@ public class MainActivity extends SherlockActivity implements
 		toggleInputWifiButton(getApplicationContext());
 		toggleUserSettings(getApplicationContext());
 		if (Api.isEnabled(getApplicationContext())) {
-			Api.applyIptablesRules(getApplicationContext(), true);
+			RulesApplier.applyIptablesRules(getApplicationContext(), true, null);
 			if (abs_menu != null) {
 				final MenuItem item_onoff = abs_menu.findItem(R.id.enableipv4);
 				final MenuItem item_apply = abs_menu.findItem(R.id.applyrules);
@@ -2227,7 +2263,7 @@ public class MainActivity extends SherlockActivity implements
 		toggleInputWifiButton(getApplicationContext());
 		toggleUserSettings(getApplicationContext());
 		if (Api.isEnabled(getApplicationContext())) {
-			Api.applyIptablesRules(getApplicationContext(), true);
+			RulesApplier.applyIptablesRules(getApplicationContext(), true, null);
 			if (abs_menu != null) {
 				final MenuItem item_onoff = abs_menu.findItem(R.id.enableipv4);
 				final MenuItem item_apply = abs_menu.findItem(R.id.applyrules);
@@ -2276,7 +2312,7 @@ public class MainActivity extends SherlockActivity implements
 		toggleInputWifiButton(getApplicationContext());
 		toggleUserSettings(getApplicationContext());
 		if (Api.isEnabled(getApplicationContext())) {
-			Api.applyIptablesRules(getApplicationContext(), true);
+			RulesApplier.applyIptablesRules(getApplicationContext(), true, null);
 			if (abs_menu != null) {
 				final MenuItem item_onoff = abs_menu.findItem(R.id.enableipv4);
 				final MenuItem item_apply = abs_menu.findItem(R.id.applyrules);
@@ -2686,13 +2722,27 @@ public class MainActivity extends SherlockActivity implements
 
 	private void getIptablesInfo() {
 		final Context ctx = getApplicationContext();
+		// listing the rules runs a root script, keep it off the UI thread
+		new AsyncTask<Void, Void, String>() {
+			@Override
+			protected String doInBackground(Void... params) {
+				return Api.showIptablesRules(ctx);
+			}
+
+			@Override
+			protected void onPostExecute(String iptables) {
+				writeIptablesInfo(iptables);
+			}
+		}.execute();
+	}
+
+	private void writeIptablesInfo(String iptables) {
 		File sdCard = Environment.getExternalStorageDirectory();
 		File dir = new File(sdCard.getAbsolutePath() + "/af_error_reports/");
 		String filename = "iptables.txt";
 		File file = new File(dir, filename);
 		FileOutputStream fout = null;
 		OutputStreamWriter output = null;
-		String iptables = Api.showIptablesRules(ctx);
 
 		try {
 			for (String str : iptables.split("\r\n")) {
@@ -25,13 +25,14 @@
 
 package com.jtschohl.androidfirewall;
 
-import java.util.LinkedList;
 import java.util.List;
 
 import android.app.Service;
+import android.content.Context;
 import android.content.Intent;
 import android.os.Binder;
 import android.os.IBinder;
+import android.preference.PreferenceManager;
 import android.util.Log;
 import eu.chainfire.libsuperuser.Shell;
 import eu.chainfire.libsuperuser.StreamGobbler;
@@ -46,8 +47,33 @@ public class NflogService extends Service {
 	private final IBinder mBinder = new Binder();
 	private Shell.Interactive rootSession;
 
-	private static final int MAX_ENTRIES = 128;
-	private static LinkedList<String> circ = new LinkedList<String>();
+	/** preference holding the number of events kept (as a string) */
+	public static final String PREF_LOG_CAPACITY = "logcapacity";
+	private static final String DEFAULT_LOG_CAPACITY = "10000";
+	/**
+	 * the most recent events, written by the shell thread; the shell of a
+	 * stopped service may still deliver lines while the next one starts,
+	 * the ring lets the writers take turns
+	 */
+	private static volatile LogRing ring = null;
+	/** set once the service is stopped, its shell must not add any more */
+	private volatile boolean destroyed = false;
+	/** parser of the shell thread */
+	private final LogLine parsed = new LogLine();
+	/** history on disk */
+	private EventStore store;
+
+	/** log prefixes of the rejected and the accepted packets */
+	static final String TAG_REJECT = "[AndroidFirewall]";
+	static final String TAG_ACCEPT = "[AndroidFirewallAccept]";
+	/** most destinations, sources, protocols and ports counted per UID */
+	private static final int SUMMARY_LIMIT = 256;
+	/*
+	 * counts of every line since the last clear, updated as the lines
+	 * arrive; unlike the events in the ring they are never dropped
+	 */
+	private static final LogSummary rejected = new LogSummary(SUMMARY_LIMIT);
+	private static final LogSummary accepted = new LogSummary(SUMMARY_LIMIT);
 
 	@Override
 	public IBinder onBind(Intent intent) {
@@ -57,6 +83,12 @@ public class NflogService extends Service {
 	public void onCreate() {
 		nflogPath = Api.getNflogPath(getApplicationContext());
 		Log.d(TAG, "Starting " + nflogPath);
+		final int capacity = getCapacity(getApplicationContext());
+		// a smaller setting takes effect in the next process
+		if (ring == null || ring.getCapacity() < capacity) {
+			ring = new LogRing(capacity);
+		}
+		store = EventStore.get(getApplicationContext());
 
 		rootSession = new Shell.Builder()
 				.useSU()
@@ -65,12 +97,7 @@ public class NflogService extends Service {
 
 					@Override
 					public void onLine(String line) {
-						synchronized (circ) {
-							while (circ.size() >= MAX_ENTRIES) {
-								circ.removeFirst();
-							}
-							circ.addLast(line);
-						}
+						add(line);
 					}
 				})
 
@@ -81,34 +108,126 @@ public class NflogService extends Service {
 							stopSelf();
 						} else {
 							Log.i(TAG, "nflog shell started");
-							rootSession.addCommand(nflogPath + " " + queueNum);
+							final Shell.Interactive session = rootSession;
+							if (session != null) {
+								session.addCommand(nflogPath + " " + queueNum);
+							}
 						}
 					}
 				});
 	}
 
+	/**
+	 * @return the recent events as log lines, the oldest first
+	 */
 	public static String fetchLogs() {
-		StringBuilder sb = new StringBuilder();
-		synchronized (circ) {
-			for (int i = 0; i < circ.size(); i++) {
-				String e = circ.get(i);
-				Log.d(TAG, "Fetching logs " + e);
-				sb.append(e + "\n");
+		final LogRing events = ring;
+		if (events == null) {
+			return "";
+		}
+		final LogRing.Snapshot snap = events.snapshot();
+		final LogRing.Event e = new LogRing.Event();
+		final StringBuilder sb = new StringBuilder(snap.size() * 80);
+		for (int i = 0; i < snap.size(); i++) {
+			snap.get(i, e);
+			sb.append(e.accepted ? TAG_ACCEPT : TAG_REJECT);
+			sb.append(" SRC=").append(
+					e.srcV4 ? LogLine.formatIpv4(e.src) : e.srcText);
+			sb.append(" DST=").append(
+					e.dstV4 ? LogLine.formatIpv4(e.dst) : e.dstText);
+			if (e.proto != LogLine.NONE) {
+				sb.append(" PROTO=").append(
+						e.protoText != null ? e.protoText : LogLine
+								.protoName(e.proto));
+			}
+			if (e.spt != LogLine.NONE) {
+				sb.append(" SPT=").append(e.spt);
 			}
+			if (e.dpt != LogLine.NONE) {
+				sb.append(" DPT=").append(e.dpt);
+			}
+			if (e.uid != LogLine.UNKNOWN_UID) {
+				sb.append(" UID=").append(e.uid);
+			}
+			sb.append('\n');
 		}
 		return sb.toString();
 	}
 
 	public static void clearLog() {
-		synchronized (circ) {
-			while (circ.size() > 0) {
-				circ.remove();
-			}
+		final LogRing events = ring;
+		if (events != null) {
+			events.clear();
+		}
+		synchronized (rejected) {
+			rejected.clear();
+		}
+		synchronized (accepted) {
+			accepted.clear();
 		}
 	}
 
+	/**
+	 * Add a line of the nflog output to the ring and to the counts of its
+	 * log prefix. Called by the shell thread.
+	 */
+	private void add(String line) {
+		if (destroyed) {
+			return;
+		}
+		// the accept prefix does not contain the reject one
+		final boolean accept;
+		if (parsed.parse(line, TAG_REJECT)) {
+			accept = false;
+		} else if (parsed.parse(line, TAG_ACCEPT)) {
+			accept = true;
+		} else {
+			return;
+		}
+		final long now = System.currentTimeMillis();
+		final LogRing events = ring;
+		if (events != null) {
+			events.add(parsed, accept, now);
+		}
+		store.add(parsed, accept, now);
+		final LogSummary summary = accept ? accepted : rejected;
+		synchronized (summary) {
+			summary.add(parsed);
+		}
+	}
+
+	/**
+	 * @return the number of events to keep, from the settings
+	 */
+	private static int getCapacity(Context ctx) {
+		try {
+			return Integer.parseInt(PreferenceManager
+					.getDefaultSharedPreferences(ctx).getString(
+							PREF_LOG_CAPACITY, DEFAULT_LOG_CAPACITY));
+		} catch (NumberFormatException e) {
+			return Integer.parseInt(DEFAULT_LOG_CAPACITY);
+		}
+	}
+
+	/**
+	 * The counts are updated by the shell thread, synchronize on the
+	 * returned summary while reading it.
+	 * 
+	 * @param tag
+	 *            log prefix, TAG_REJECT or TAG_ACCEPT
+	 * @return the counts of the lines with that prefix
+	 */
+	public static LogSummary getSummary(String tag) {
+		return TAG_ACCEPT.equals(tag) ? accepted : rejected;
+	}
+
 	public void onDestroy() {
 		Log.e(TAG, "Received request to kill nflog");
-		/* FIXME: we should really be closing the shell through libsuperuser */
+		destroyed = true;
+		if (rootSession != null) {
+			// the nflog command never ends, close() would wait for it
+			rootSession.kill();
+			rootSession = null;
+		}
 	}
 }
\ No newline at end of file
@@ -0,0 +1,280 @@
+/**
+ * Pool of long-lived root shells used to run the firewall scripts.
+ *
+ * Copyright (C) 2012-2014	Jason Tschohl
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * @author Jason Tschohl
+ * @version 1.0
+ */
+
+package com.jtschohl.androidfirewall;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import android.os.SystemClock;
+import android.util.Log;
+import eu.chainfire.libsuperuser.Shell;
+
+/**
+ * Spawning su and getting it authorized costs several hundred milliseconds,
+ * so instead of one su process per script a few interactive root shells are
+ * kept open and reused. A shell that was idle for a while is health checked
+ * before use, a dead or wedged shell is replaced by a new one and shells that
+ * are not used for IDLE_TIMEOUT are closed.
+ * <p>
+ * Every script runs in a subshell, so "exit" ends the script rather than the
+ * pooled shell, variables do not leak between scripts and the real exit code
+ * of the script is returned.
+ */
+public final class RootSessionPool {
+
+	public static final String TAG = "{AF}";
+
+	/** exit code if no root shell could be used */
+	public static final int EXIT_NO_ROOT = -1;
+
+	/** maximum number of root shells open at the same time */
+	private static final int POOL_SIZE = 2;
+	/** close shells not used for this long (ms) */
+	private static final long IDLE_TIMEOUT = 5 * 60 * 1000;
+	/** health check shells not used for this long (ms) */
+	private static final long CHECK_AFTER = 30 * 1000;
+	/** time to wait for the su prompt (ms) */
+	private static final long OPEN_TIMEOUT = 60 * 1000;
+	/** time allowed for a health check (ms) */
+	private static final long CHECK_TIMEOUT = 5 * 1000;
+
+	private static final LinkedList<Session> idleSessions = new LinkedList<Session>();
+	private static final Object lock = new Object();
+	/** number of open shells, idle or busy */
+	private static int openSessions = 0;
+	private static Timer reaper = null;
+
+	private static final class Session {
+		final Shell.Interactive shell;
+		long lastUsed;
+
+		Session(Shell.Interactive shell) {
+			this.shell = shell;
+			this.lastUsed = SystemClock.elapsedRealtime();
+		}
+	}
+
+	/**
+	 * Result of a command block
+	 */
+	private static final class Result {
+		final CountDownLatch done = new CountDownLatch(1);
+		int exitCode = EXIT_NO_ROOT;
+		List<String> output;
+	}
+
+	private RootSessionPool() {
+	}
+
+	/**
+	 * Run a script in a pooled root shell. Blocks until the script is done.
+	 *
+	 * @param script
+	 *            the script
+	 * @param res
+	 *            receives the output (stdout and stderr), may be null
+	 * @param timeout
+	 *            maximum time to wait for the script (ms)
+	 * @return the exit code of the script, or EXIT_NO_ROOT
+	 */
+	public static int run(String script, StringBuilder res, long timeout) {
+		final Session session;
+		try {
+			session = acquire();
+		} catch (InterruptedException e) {
+			return EXIT_NO_ROOT;
+		}
+		if (session == null) {
+			return EXIT_NO_ROOT;
+		}
+		final Result result = execute(session, "(\n" + script + "\n)", timeout);
+		if (result.output != null && res != null) {
+			for (String line : result.output) {
+				res.append(line).append('\n');
+			}
+		}
+		if (result.exitCode < 0) {
+			Log.e(TAG, "root shell failed with " + result.exitCode
+					+ ", discarding it");
+			discard(session);
+			return EXIT_NO_ROOT;
+		}
+		release(session);
+		return result.exitCode;
+	}
+
+	private static Result execute(Session session, String command, long timeout) {
+		final Result result = new Result();
+		session.shell.addCommand(command, 0,
+				new Shell.OnCommandResultListener() {
+					@Override
+					public void onCommandResult(int commandCode,
+							int exitCode, List<String> output) {
+						result.exitCode = exitCode;
+						result.output = output;
+						result.done.countDown();
+					}
+				});
+		try {
+			if (!result.done.await(timeout, TimeUnit.MILLISECONDS)) {
+				Log.e(TAG, "root shell timed out after " + timeout + " ms");
+				result.exitCode = Shell.OnCommandResultListener.WATCHDOG_EXIT;
+			}
+		} catch (InterruptedException e) {
+			result.exitCode = Shell.OnCommandResultListener.WATCHDOG_EXIT;
+		}
+		return result;
+	}
+
+	/**
+	 * Take a healthy idle shell, open a new one if the pool is not full, or
+	 * wait for a busy one
+	 */
+	private static Session acquire() throws InterruptedException {
+		while (true) {
+			Session session = null;
+			synchronized (lock) {
+				if (!idleSessions.isEmpty()) {
+					// most recently used first, it is the least likely to be
+					// stale
+					session = idleSessions.removeLast();
+				} else if (openSessions < POOL_SIZE) {
+					openSessions++;
+				} else {
+					lock.wait();
+					continue;
+				}
+			}
+			if (session == null) {
+				session = open();
+				if (session == null) {
+					synchronized (lock) {
+						openSessions--;
+						lock.notifyAll();
+					}
+				}
+				return session;
+			}
+			if (isHealthy(session)) {
+				return session;
+			}
+			Log.d(TAG, "root shell failed the health check, reopening");
+			discard(session);
+		}
+	}
+
+	private static boolean isHealthy(Session session) {
+		if (!session.shell.isRunning()) {
+			return false;
+		}
+		if (SystemClock.elapsedRealtime() - session.lastUsed < CHECK_AFTER) {
+			return true;
+		}
+		final Result result = execute(session, "echo af_alive", CHECK_TIMEOUT);
+		return result.exitCode == 0 && result.output != null
+				&& result.output.contains("af_alive");
+	}
+
+	private static Session open() {
+		final Result result = new Result();
+		final Shell.Interactive shell = new Shell.Builder().useSU()
+				.setAutoHandler(false).setWantSTDERR(true)
+				.setWatchdogTimeout(0).setMinimalLogging(true)
+				.open(new Shell.OnCommandResultListener() {
+					@Override
+					public void onCommandResult(int commandCode,
+							int exitCode, List<String> output) {
+						result.exitCode = exitCode;
+						result.done.countDown();
+					}
+				});
+		try {
+			if (!result.done.await(OPEN_TIMEOUT, TimeUnit.MILLISECONDS)) {
+				result.exitCode = Shell.OnCommandResultListener.WATCHDOG_EXIT;
+			}
+		} catch (InterruptedException e) {
+			result.exitCode = Shell.OnCommandResultListener.WATCHDOG_EXIT;
+		}
+		if (result.exitCode != Shell.OnCommandResultListener.SHELL_RUNNING) {
+			Log.e(TAG, "Can't open root shell: exitCode " + result.exitCode);
+			shell.kill();
+			return null;
+		}
+		Log.d(TAG, "Root shell opened");
+		return new Session(shell);
+	}
+
+	private static void release(Session session) {
+		session.lastUsed = SystemClock.elapsedRealtime();
+		synchronized (lock) {
+			idleSessions.add(session);
+			scheduleReaper();
+			lock.notifyAll();
+		}
+	}
+
+	private static void discard(Session session) {
+		session.shell.kill();
+		synchronized (lock) {
+			openSessions--;
+			lock.notifyAll();
+		}
+	}
+
+	/**
+	 * Close the shells that were idle for IDLE_TIMEOUT. Must hold the lock.
+	 */
+	private static void scheduleReaper() {
+		if (reaper == null) {
+			reaper = new Timer("AF root shell reaper", true);
+		}
+		reaper.schedule(new TimerTask() {
+			@Override
+			public void run() {
+				final long now = SystemClock.elapsedRealtime();
+				final List<Session> expired = new LinkedList<Session>();
+				synchronized (lock) {
+					final Iterator<Session> it = idleSessions.iterator();
+					while (it.hasNext()) {
+						final Session session = it.next();
+						if (now - session.lastUsed >= IDLE_TIMEOUT) {
+							it.remove();
+							openSessions--;
+							expired.add(session);
+						}
+					}
+					lock.notifyAll();
+				}
+				for (Session session : expired) {
+					Log.d(TAG, "Closing idle root shell");
+					session.shell.close();
+				}
+			}
+		}, IDLE_TIMEOUT);
+	}
+}
@@ -68,6 +68,13 @@ public class RootShell extends Service {
 
 	private final static int MAX_RETRIES = 10;
 
+	/** maximum number of script lines written to the shell at once */
+	private final static int BATCH_SIZE = 32;
+	/** prefix of the per-line status written by a batch */
+	private final static String STATUS_MARKER = "__AF_STATUS__";
+	/** exit code of a script whose line printed no status marker */
+	private final static int EXIT_NO_STATUS = 2;
+
 	private static LinkedList<RootCommand> waitQueue = new LinkedList<RootCommand>();
 
 	public final static int EXIT_NO_ROOT_ACCESS = -1;
@@ -262,19 +269,53 @@ public class RootShell extends Service {
 		} while (false);
 	}
 
-	private static void submitNextCommand(final RootCommand state) {
-		String s = state.script.get(state.commandIndex);
+	/**
+	 * Wrap a script line so the shell reports its exit status and retries it
+	 * on retryExitCode. A line only runs if the one before it completed
+	 * (successfully, unless #NOCHK#): after an error, or a line that died or
+	 * was merged into another one without reporting, the rest of the batch
+	 * is skipped.
+	 */
+	private static String batchLine(String cmd, int index, boolean nochk,
+			int retryExitCode) {
+		return "if [ \"$AF_NEXT\" = " + index
+				+ " ] ; then AF_TRY=0 ; while : ; do { " + cmd
+				+ "\n} 2>&1 ; AF_RC=$? ; echo \"" + STATUS_MARKER + " " + index
+				+ " $AF_RC\" ; [ $AF_RC = " + retryExitCode
+				+ " ] && [ $AF_TRY -lt " + MAX_RETRIES
+				+ " ] || break ; AF_TRY=$((AF_TRY+1)) ; done ; "
+				+ (nochk ? "" : "[ $AF_RC = 0 ] && ") + "AF_NEXT="
+				+ (index + 1) + " ; fi";
+	}
 
-		if (s.startsWith("#NOCHK# ")) {
-			s = s.replaceFirst("#NOCHK# ", "");
-			state.ignoreExitCode = true;
-		} else {
-			state.ignoreExitCode = false;
+	private static boolean isNoCheck(String cmd) {
+		return cmd.startsWith("#NOCHK# ");
+	}
+
+	private static String stripNoCheck(String cmd) {
+		return isNoCheck(cmd) ? cmd.replaceFirst("#NOCHK# ", "") : cmd;
+	}
+
+	/**
+	 * Write the next BATCH_SIZE lines of the script to the shell in one go.
+	 * Each line is followed by a status marker, so the output can be split
+	 * up per line afterwards and the usual #NOCHK#, retry and
+	 * lastCommandResult handling applies as if the lines had been sent one
+	 * by one.
+	 */
+	private static void submitNextCommand(final RootCommand state) {
+		final int first = state.commandIndex;
+		final int last = Math.min(state.script.size(), first + BATCH_SIZE);
+		final List<String> batch = new ArrayList<String>();
+		batch.add("AF_NEXT=" + first);
+		for (int i = first; i < last; i++) {
+			final String s = state.script.get(i);
+			batch.add(batchLine(stripNoCheck(s), i, isNoCheck(s),
+					state.retryExitCode));
 		}
-		state.lastCommand = s;
-		state.lastCommandResult = new StringBuilder();
+		startCommand(state);
 
-		rootSession.addCommand(s, 0, new Shell.OnCommandResultListener() {
+		rootSession.addCommand(batch, 0, new Shell.OnCommandResultListener() {
 
 			@Override
 			public void onCommandResult(int commandCode, int exitCode,
@@ -283,7 +324,11 @@ public class RootShell extends Service {
 				ListIterator<String> iter = output.listIterator();
 				while (iter.hasNext()) {
 					String line = iter.next();
-					if (!line.equals("")) {
+					if (line.startsWith(STATUS_MARKER)) {
+						if (onStatus(state, line)) {
+							return;
+						}
+					} else if (!line.equals("")) {
 						if (state.res != null) {
 							state.res.append(line + "\n");
 						}
@@ -291,47 +336,106 @@ public class RootShell extends Service {
 					}
 				}
 
-				if (exitCode >= 0 && exitCode == state.retryExitCode
-						&& state.retryCount < MAX_RETRIES) {
-					state.retryCount++;
-					Log.d(TAG, "command '" + state.lastCommand
-							+ "' exited with status " + exitCode
-							+ ", retrying (attempt " + state.retryCount + "/"
-							+ MAX_RETRIES + ")");
-					submitNextCommand(state);
-					return;
-				}
-
-				state.commandIndex++;
-				state.retryCount = 0;
-
-				boolean errorExit = exitCode != 0 && !state.ignoreExitCode;
-				if (state.commandIndex >= state.script.size() || errorExit) {
-					complete(state, exitCode);
-					if (exitCode < 0) {
-						rootState = STATE_FAILED;
-						Log.e(TAG, "libsuperuser error " + exitCode
-								+ " on command '" + state.lastCommand + "'");
-					} else {
-						if (errorExit) {
-							Log.i(TAG, "command '" + state.lastCommand
-									+ "' exited with status " + exitCode
-									+ "\nOutput:\n" + state.lastCommandResult);
-						}
-						rootState = STATE_READY;
-					}
-					runNextSubmission();
+				if (exitCode < 0) {
+					finish(state, exitCode, false);
+				} else if (state.commandIndex >= state.script.size()) {
+					finish(state, 0, false);
+				} else if (state.commandIndex < last) {
+					// the line never completed (a syntax error, or merged
+					// into another one) and the rest of the batch was
+					// skipped, sending it again would not help
+					Log.e(TAG, "no status for command '" + state.lastCommand
+							+ "'");
+					finish(state, EXIT_NO_STATUS, true);
 				} else {
+					// the batch is done, send the next one
 					submitNextCommand(state);
 				}
 			}
 		});
 	}
 
+	/**
+	 * Prepare the state for the command at commandIndex
+	 */
+	private static void startCommand(RootCommand state) {
+		if (state.commandIndex < state.script.size()) {
+			final String s = state.script.get(state.commandIndex);
+			state.ignoreExitCode = isNoCheck(s);
+			state.lastCommand = stripNoCheck(s);
+		}
+		state.lastCommandResult = new StringBuilder();
+	}
+
+	/**
+	 * Handle the status marker of a script line
+	 *
+	 * @return true if the script is complete
+	 */
+	private static boolean onStatus(RootCommand state, String line) {
+		final String[] fields = line.split(" ");
+		final int index;
+		final int exitCode;
+		try {
+			index = Integer.parseInt(fields[1]);
+			exitCode = Integer.parseInt(fields[2]);
+		} catch (RuntimeException e) {
+			Log.e(TAG, "bad status line '" + line + "'");
+			return false;
+		}
+		if (index != state.commandIndex) {
+			// the expected line reported nothing, the exit codes that follow
+			// belong to other lines
+			Log.e(TAG, "status of command " + index + " while waiting for "
+					+ state.commandIndex + " '" + state.lastCommand + "'");
+			finish(state, EXIT_NO_STATUS, true);
+			return true;
+		}
+
+		if (exitCode == state.retryExitCode && state.retryCount < MAX_RETRIES) {
+			// the shell retries the command by itself
+			state.retryCount++;
+			Log.d(TAG, "command '" + state.lastCommand + "' exited with status "
+					+ exitCode + ", retrying (attempt " + state.retryCount + "/"
+					+ MAX_RETRIES + ")");
+			state.lastCommandResult = new StringBuilder();
+			return false;
+		}
+
+		state.commandIndex++;
+		state.retryCount = 0;
+
+		boolean errorExit = exitCode != 0 && !state.ignoreExitCode;
+		if (state.commandIndex >= state.script.size() || errorExit) {
+			finish(state, exitCode, errorExit);
+			return true;
+		}
+		startCommand(state);
+		return false;
+	}
+
+	private static void finish(RootCommand state, int exitCode,
+			boolean errorExit) {
+		complete(state, exitCode);
+		if (exitCode < 0) {
+			rootState = STATE_FAILED;
+			Log.e(TAG, "libsuperuser error " + exitCode + " on command '"
+					+ state.lastCommand + "'");
+		} else {
+			if (errorExit) {
+				Log.i(TAG, "command '" + state.lastCommand
+						+ "' exited with status " + exitCode + "\nOutput:\n"
+						+ state.lastCommandResult);
+			}
+			rootState = STATE_READY;
+		}
+		runNextSubmission();
+	}
+
 	private static void startShellInBackground() {
 		Log.d(TAG, "Starting root shell...");
 		rootSession = new Shell.Builder().useSU().setWantSTDERR(true)
-				.setWatchdogTimeout(5).setMinimalLogging(true)
+				.setWatchdogTimeout(15).setMinimalLogging(true)
 				.open(new Shell.OnCommandResultListener() {
 					public void onCommandResult(int commandCode, int exitCode,
 							List<String> output) {
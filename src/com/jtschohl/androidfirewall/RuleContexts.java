@@ -0,0 +1,376 @@
+/**
+ * Profiles bound to Wi-Fi networks.
+ *
+ * Copyright (C) 2012-2014	Jason Tschohl
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * @author Jason Tschohl
+ * @version 1.0
+ */
+
+package com.jtschohl.androidfirewall;
+
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeSet;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.content.SharedPreferences.Editor;
+import android.preference.PreferenceManager;
+import android.util.Log;
+
+import com.jtschohl.androidfirewall.rules.FirewallConfig;
+import com.jtschohl.androidfirewall.rules.RuleCompiler;
+import com.jtschohl.androidfirewall.rules.Ruleset;
+
+/**
+ * A rule context is one of the saved profiles bound to Wi-Fi networks, by
+ * SSID or by the BSSID of one access point (which wins over the SSID). When
+ * the connection settles on a bound network the profile becomes the working
+ * set of rules, as if it had been loaded by hand, and when a network without
+ * binding is joined the profile chosen by the user before comes back.
+ * <p>
+ * The rulesets of the bound profiles are compiled while the rules writer is
+ * idle, so joining a known network only installs the changes against the
+ * applied ruleset. Only the parts that depend on the connection (the LAN
+ * networks and the roaming state) are compiled again if they differ.
+ */
+public final class RuleContexts {
+
+	final static String TAG = "{AF}";
+
+	/**
+	 * bindings ("ssid:name" or "bssid:address" to the profile position) and
+	 * the switch state
+	 */
+	public static final String PREFS_CONTEXTS = "RuleContexts";
+	private static final String KEY_SSID = "ssid:";
+	private static final String KEY_BSSID = "bssid:";
+	/** profile switched to for a network, -1 if the user's choice is used */
+	private static final String PREF_ACTIVE = "ActiveContext";
+	/** profile in use before the first switch */
+	private static final String PREF_MANUAL = "ManualContext";
+
+	/**
+	 * A ruleset compiled ahead of time
+	 */
+	static final class Compiled {
+		final int profile;
+		/** hash of the profile settings it was compiled from */
+		final int stamp;
+		final FirewallConfig cfg;
+		Ruleset rules;
+
+		Compiled(int profile, int stamp, FirewallConfig cfg, Ruleset rules) {
+			this.profile = profile;
+			this.stamp = stamp;
+			this.cfg = cfg;
+			this.rules = rules;
+		}
+	}
+
+	private static final Map<Integer, Compiled> compiled = new HashMap<Integer, Compiled>();
+	private static int hits = 0;
+	private static int misses = 0;
+
+	private RuleContexts() {
+	}
+
+	/**
+	 * @return the names of the profile preference files, by position
+	 */
+	private static String[] getProfileNames() {
+		return new String[] { Api.PREF_PROFILE, Api.PREF_PROFILE1,
+				Api.PREF_PROFILE2, Api.PREF_PROFILE3, Api.PREF_PROFILE4,
+				Api.PREF_PROFILE5 };
+	}
+
+	private static SharedPreferences getProfile(Context ctx, int profile) {
+		return ctx.getSharedPreferences(getProfileNames()[profile],
+				Context.MODE_PRIVATE);
+	}
+
+	/**
+	 * @return position of the profile in use
+	 */
+	private static int getCurrentProfile(Context ctx) {
+		return PreferenceManager.getDefaultSharedPreferences(ctx).getInt(
+				"itemPosition", 0);
+	}
+
+	/**
+	 * Bind a profile to all access points of a network
+	 *
+	 * @param ctx
+	 *            application context
+	 * @param ssid
+	 *            name of the network
+	 * @param profile
+	 *            position of the profile
+	 */
+	public static void bindSsid(Context ctx, String ssid, int profile) {
+		bind(ctx, KEY_SSID + ssid, profile);
+	}
+
+	/**
+	 * Bind a profile to one access point
+	 *
+	 * @param ctx
+	 *            application context
+	 * @param bssid
+	 *            address of the access point
+	 * @param profile
+	 *            position of the profile
+	 */
+	public static void bindBssid(Context ctx, String bssid, int profile) {
+		bind(ctx, KEY_BSSID + bssid.toLowerCase(Locale.US), profile);
+	}
+
+	public static void unbindSsid(Context ctx, String ssid) {
+		bind(ctx, KEY_SSID + ssid, -1);
+	}
+
+	public static void unbindBssid(Context ctx, String bssid) {
+		bind(ctx, KEY_BSSID + bssid.toLowerCase(Locale.US), -1);
+	}
+
+	private static void bind(Context ctx, String key, int profile) {
+		if (profile >= getProfileNames().length) {
+			throw new IllegalArgumentException("no profile " + profile);
+		}
+		final Editor editor = ctx.getSharedPreferences(PREFS_CONTEXTS, 0)
+				.edit();
+		if (profile < 0) {
+			editor.remove(key);
+		} else {
+			editor.putInt(key, profile);
+		}
+		editor.commit();
+	}
+
+	/**
+	 * @param ctx
+	 *            application context
+	 * @param ssid
+	 *            name of the network, may be empty
+	 * @param bssid
+	 *            address of the access point, may be empty
+	 * @return the profile bound to the access point or else the network, -1
+	 *         if none
+	 */
+	public static int getBinding(Context ctx, String ssid, String bssid) {
+		final SharedPreferences prefs = ctx.getSharedPreferences(
+				PREFS_CONTEXTS, 0);
+		if (bssid != null && bssid.length() > 0) {
+			final int profile = prefs.getInt(
+					KEY_BSSID + bssid.toLowerCase(Locale.US), -1);
+			if (profile >= 0) {
+				return profile;
+			}
+		}
+		if (ssid != null && ssid.length() > 0) {
+			return prefs.getInt(KEY_SSID + ssid, -1);
+		}
+		return -1;
+	}
+
+	/**
+	 * @return true if any network is bound to a profile
+	 */
+	public static boolean hasBindings(Context ctx) {
+		return !getBoundProfiles(ctx).isEmpty();
+	}
+
+	private static TreeSet<Integer> getBoundProfiles(Context ctx) {
+		final TreeSet<Integer> profiles = new TreeSet<Integer>();
+		for (Entry<String, ?> entry : ctx.getSharedPreferences(
+				PREFS_CONTEXTS, 0).getAll().entrySet()) {
+			final String key = entry.getKey();
+			if ((key.startsWith(KEY_SSID) || key.startsWith(KEY_BSSID))
+					&& entry.getValue() instanceof Integer) {
+				profiles.add((Integer) entry.getValue());
+			}
+		}
+		return profiles;
+	}
+
+	/**
+	 * Decide which profile the connection calls for and remember the switch
+	 *
+	 * @param ctx
+	 *            application context
+	 * @param itf
+	 *            the settled connection
+	 * @return the profile to switch to, -1 to keep the one in use
+	 */
+	static synchronized int select(Context ctx, InterfaceInfo itf) {
+		final SharedPreferences prefs = ctx.getSharedPreferences(
+				PREFS_CONTEXTS, 0);
+		final int current = getCurrentProfile(ctx);
+		int active = prefs.getInt(PREF_ACTIVE, -1);
+		if (active >= 0 && active != current) {
+			// another profile was loaded by hand since the switch
+			active = -1;
+		}
+		int wanted;
+		int nextActive;
+		if (itf.ruleContext >= 0) {
+			wanted = itf.ruleContext;
+			nextActive = wanted;
+		} else if (itf.netEnabled && active >= 0) {
+			// left the bound network
+			wanted = prefs.getInt(PREF_MANUAL, current);
+			nextActive = -1;
+		} else {
+			// no connection (yet), keep the rules in use
+			wanted = current;
+			nextActive = active;
+		}
+		if (wanted != current && getProfile(ctx, wanted).getAll().isEmpty()) {
+			Log.w(TAG, "Profile " + wanted
+					+ " was never saved, keeping the rules in use");
+			wanted = current;
+			nextActive = active;
+		}
+		final Editor editor = prefs.edit();
+		if (active < 0 && nextActive >= 0) {
+			editor.putInt(PREF_MANUAL, current);
+		}
+		editor.putInt(PREF_ACTIVE, nextActive);
+		editor.commit();
+		return wanted != current ? wanted : -1;
+	}
+
+	/**
+	 * Get the ruleset of a profile for the connection, compiled ahead of time
+	 * if possible. The ruleset is handed over, it is not kept.
+	 *
+	 * @param ctx
+	 *            application context
+	 * @param profile
+	 *            position of the profile
+	 * @param itf
+	 *            the settled connection
+	 * @return the settings and ruleset of the profile
+	 */
+	static synchronized Compiled take(Context ctx, int profile,
+			InterfaceInfo itf) {
+		final SharedPreferences prefs = getProfile(ctx, profile);
+		Compiled c = compiled.remove(profile);
+		if (c == null || c.stamp != prefs.getAll().hashCode()) {
+			misses++;
+			c = compile(ctx, profile, prefs);
+		} else {
+			hits++;
+			final boolean roaming = c.cfg.roamingEnabled && Api.isRoaming(ctx);
+			if (!c.cfg.lanIpv4.equals(itf.lanipv4)
+					|| !c.cfg.lanIpv6.equals(itf.lanipv6)
+					|| c.cfg.roaming != roaming) {
+				// compiled for another connection
+				c.cfg.lanIpv4 = itf.lanipv4;
+				c.cfg.lanIpv6 = itf.lanipv6;
+				c.cfg.roaming = roaming;
+				c.rules = RuleCompiler.compile(c.cfg);
+			}
+		}
+		Log.d(TAG, "Precompiled rule contexts used: " + hits + ", missed: "
+				+ misses);
+		return c;
+	}
+
+	/**
+	 * Make a profile the working set of rules, like loading it by hand
+	 *
+	 * @param ctx
+	 *            application context
+	 * @param profile
+	 *            position of the profile
+	 */
+	static void activate(Context ctx, int profile) {
+		final Editor editRules = ctx.getSharedPreferences(Api.PREFS_NAME,
+				Context.MODE_PRIVATE).edit();
+		editRules.clear();
+		for (Entry<String, ?> entry : getProfile(ctx, profile).getAll()
+				.entrySet()) {
+			Object rule = entry.getValue();
+			String keys = entry.getKey();
+			if (rule instanceof Boolean)
+				editRules.putBoolean(keys, ((Boolean) rule).booleanValue());
+			else if (rule instanceof Float)
+				editRules.putFloat(keys, ((Float) rule).floatValue());
+			else if (rule instanceof String)
+				editRules.putString(keys, ((String) rule));
+			else if (rule instanceof Long)
+				editRules.putLong(keys, ((Long) rule).longValue());
+			else if (rule instanceof Integer)
+				editRules.putInt(keys, ((Integer) rule).intValue());
+		}
+		editRules.commit();
+		final Editor editor = PreferenceManager.getDefaultSharedPreferences(
+				ctx).edit();
+		editor.putInt("itemPosition", profile);
+		editor.commit();
+	}
+
+	/**
+	 * Compile the rulesets of the bound profiles (and of the profile to go
+	 * back to) that are not up to date. The profile in use is left out, its
+	 * ruleset is the applied one.
+	 *
+	 * @param ctx
+	 *            application context
+	 */
+	static synchronized void precompile(Context ctx) {
+		final TreeSet<Integer> wanted = getBoundProfiles(ctx);
+		final SharedPreferences prefs = ctx.getSharedPreferences(
+				PREFS_CONTEXTS, 0);
+		if (prefs.getInt(PREF_ACTIVE, -1) >= 0) {
+			wanted.add(prefs.getInt(PREF_MANUAL, 0));
+		}
+		wanted.remove(getCurrentProfile(ctx));
+		compiled.keySet().retainAll(wanted);
+		for (Integer profile : wanted) {
+			if (profile < 0 || profile >= getProfileNames().length) {
+				continue;
+			}
+			final SharedPreferences saved = getProfile(ctx, profile);
+			final Compiled c = compiled.get(profile);
+			if (c != null && c.stamp == saved.getAll().hashCode()
+					|| saved.getAll().isEmpty()) {
+				continue;
+			}
+			compiled.put(profile, compile(ctx, profile, saved));
+			Log.d(TAG, "Precompiled the rules of profile " + profile);
+		}
+	}
+
+	/**
+	 * Drop the precompiled rulesets, the installed applications changed
+	 */
+	static synchronized void invalidate() {
+		compiled.clear();
+	}
+
+	private static Compiled compile(Context ctx, int profile,
+			SharedPreferences prefs) {
+		final FirewallConfig cfg = Api.getFirewallConfig(ctx, prefs);
+		Api.readSavedUids(cfg, prefs);
+		return new Compiled(profile, prefs.getAll().hashCode(), cfg,
+				RuleCompiler.compile(cfg));
+	}
+}
@@ -0,0 +1,581 @@
+/**
+ * Applies and purges the firewall rules in the background.
+ *
+ * Copyright (C) 2012-2014	Jason Tschohl
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * @author Jason Tschohl
+ * @version 1.0
+ */
+
+package com.jtschohl.androidfirewall;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+/**
+ * Non-blocking front end for Api.applyIptablesRules,
+ * Api.applySavedIptablesRules, Api.purgeIptables and the other root scripts
+ * touching the chains or the log (Api.purgeIp6tables, Api.clearLog). The
+ * caller gets a Request handle right away and the Callback is told about each
+ * phase and the result on the main thread.
+ * <p>
+ * All requests are run by one writer thread, so two rule scripts never run at
+ * the same time. Every request gets a generation number that grows by one
+ * per request. Requests that arrive while a script is running wait in a
+ * single pending batch: a request for the same action, or a roaming or LAN
+ * switch, joins the batch, an apply and a network switch join each other
+ * (the batch then switches, as it does when both a roaming and a LAN switch
+ * join) and a request for another action replaces it, the replaced
+ * requests are reported as cancelled. Since the script always installs the
+ * latest saved state, one run of the batch serves all of its requests and
+ * no more than one script runs per trigger burst, however many triggers
+ * fire. Clearing the log and purging the IPv6 rules never replace nor join
+ * a rules batch, they queue up behind it.
+ */
+public final class RulesApplier {
+
+	public static final String TAG = "{AF}";
+
+	/** steps of a request, reported to Callback.onProgress */
+	public enum Phase {
+		/** checking for root access */
+		CHECK_ROOT,
+		/** saving the selected applications */
+		SAVE,
+		/** compiling and installing the rules */
+		APPLY,
+		/** removing the rules */
+		PURGE,
+		/** switching the 3G rules between home and roaming */
+		ROAMING,
+		/** applying the rules bound to the connected network */
+		CONTEXT,
+		/** replacing the LAN dispatch rules for new LAN networks */
+		LAN,
+		/** removing the IPv6 rules */
+		PURGE_IPV6,
+		/** clearing the firewall log */
+		CLEAR_LOG
+	}
+
+	/**
+	 * Receives the progress and result of a request on the main thread
+	 */
+	public static abstract class Callback {
+
+		/**
+		 * A new phase started
+		 */
+		public void onProgress(Phase phase) {
+		}
+
+		/**
+		 * The request is done
+		 *
+		 * @param success
+		 *            true if the rules were applied (or purged)
+		 */
+		public abstract void onComplete(boolean success);
+
+		/**
+		 * The request was cancelled, or replaced by a later request, before
+		 * it changed the rules
+		 */
+		public void onCancelled() {
+		}
+	}
+
+	/**
+	 * Handle of a queued request
+	 */
+	public static final class Request {
+		private final long generation;
+		private final Callback cb;
+		private boolean save;
+		private boolean cancelled = false;
+		private boolean done = false;
+		private boolean success = false;
+
+		private Request(long generation, Callback cb, boolean save) {
+			this.generation = generation;
+			this.cb = cb;
+			this.save = save;
+		}
+
+		/**
+		 * @return the generation of this request
+		 */
+		public long getGeneration() {
+			return generation;
+		}
+
+		/**
+		 * Cancel the request. A request that is already installing the rules
+		 * runs to completion, so the firewall is never left half applied.
+		 *
+		 * @return true if the request will not change the rules
+		 */
+		public boolean cancel() {
+			synchronized (lock) {
+				if (done || running != null && running.requests.contains(this)) {
+					return false;
+				}
+				cancelled = true;
+				return true;
+			}
+		}
+
+		public boolean isCancelled() {
+			synchronized (lock) {
+				return cancelled;
+			}
+		}
+
+		public boolean isDone() {
+			synchronized (lock) {
+				return done;
+			}
+		}
+
+		/**
+		 * Wait for the result. Must not be called on the main thread.
+		 *
+		 * @return true if the request succeeded, false if it failed or was
+		 *         cancelled
+		 */
+		public boolean get() throws InterruptedException {
+			synchronized (lock) {
+				while (!done) {
+					lock.wait();
+				}
+				return success && !cancelled;
+			}
+		}
+	}
+
+	/**
+	 * Requests run together by one script
+	 */
+	private static final class Batch {
+		final Context ctx;
+		Phase action;
+		final List<Request> requests = new ArrayList<Request>();
+		boolean showErrors = false;
+
+		Batch(Context ctx, Phase action) {
+			this.ctx = ctx;
+			this.action = action;
+		}
+
+		long generation() {
+			return requests.get(requests.size() - 1).generation;
+		}
+	}
+
+	private static final Object lock = new Object();
+	/** generation of the last submitted request */
+	private static long lastGeneration = 0;
+	/** all requests up to this generation are done */
+	private static long completedGeneration = 0;
+	/** batches waiting for the writer, only the last one takes requests */
+	private static final LinkedList<Batch> queue = new LinkedList<Batch>();
+	private static Batch running = null;
+	private static Thread writer = null;
+	private static Handler mainHandler = null;
+
+	private RulesApplier() {
+	}
+
+	/**
+	 * Save the selected applications and apply the rules, like
+	 * Api.applyIptablesRules
+	 *
+	 * @param ctx
+	 *            context
+	 * @param showErrors
+	 *            indicates if errors should be alerted
+	 * @param cb
+	 *            callback, may be null
+	 * @return handle of the request
+	 */
+	public static Request applyIptablesRules(Context ctx, boolean showErrors,
+			Callback cb) {
+		return submit(ctx, showErrors, cb, Phase.APPLY, true);
+	}
+
+	/**
+	 * Apply the saved rules, like Api.applySavedIptablesRules
+	 */
+	public static Request applySavedIptablesRules(Context ctx,
+			boolean showErrors, Callback cb) {
+		return submit(ctx, showErrors, cb, Phase.APPLY, false);
+	}
+
+	/**
+	 * Remove the rules, like Api.purgeIptables
+	 */
+	public static Request purgeIptables(Context ctx, boolean showErrors,
+			Callback cb) {
+		return submit(ctx, showErrors, cb, Phase.PURGE, false);
+	}
+
+	/**
+	 * Remove the IPv6 rules, like Api.purgeIp6tables
+	 */
+	public static Request purgeIp6tables(Context ctx, boolean showErrors,
+			Callback cb) {
+		return submit(ctx, showErrors, cb, Phase.PURGE_IPV6, false);
+	}
+
+	/**
+	 * Clear the firewall log, like Api.clearLog
+	 */
+	public static Request clearLog(Context ctx, Callback cb) {
+		return submit(ctx, true, cb, Phase.CLEAR_LOG, false);
+	}
+
+	/**
+	 * Follow a change of the roaming state, like Api.applyRoamingChange. The
+	 * request joins any pending request, which installs the current roaming
+	 * state anyway.
+	 */
+	public static Request applyRoamingChange(Context ctx, boolean showErrors,
+			Callback cb) {
+		return submit(ctx, showErrors, cb, Phase.ROAMING, false);
+	}
+
+	/**
+	 * Follow a change of the LAN networks, like Api.applyLanChange. The
+	 * request joins any pending rules request, which installs the current
+	 * LAN networks anyway.
+	 */
+	public static Request applyLanChange(Context ctx, boolean showErrors,
+			Callback cb) {
+		return submit(ctx, showErrors, cb, Phase.LAN, false);
+	}
+
+	/**
+	 * Apply the rules for the connected network, like Api.applyNetworkRules.
+	 * The request joins a pending apply, which then switches to the rules
+	 * bound to the network as well.
+	 */
+	public static Request applyNetworkRules(Context ctx, boolean showErrors,
+			Callback cb) {
+		return submit(ctx, showErrors, cb, Phase.CONTEXT, false);
+	}
+
+	/**
+	 * @return the generation of the last submitted request
+	 */
+	public static long getLastGeneration() {
+		synchronized (lock) {
+			return lastGeneration;
+		}
+	}
+
+	/**
+	 * @return the generation up to which all requests are done
+	 */
+	public static long getCompletedGeneration() {
+		synchronized (lock) {
+			return completedGeneration;
+		}
+	}
+
+	/**
+	 * Wait until all requests up to a generation are done. Must not be called
+	 * on the main thread.
+	 *
+	 * @param generation
+	 *            generation to wait for
+	 * @param timeout
+	 *            maximum time to wait (ms)
+	 * @return true if the generation is done
+	 */
+	public static boolean awaitGeneration(long generation, long timeout)
+			throws InterruptedException {
+		final long deadline = System.currentTimeMillis() + timeout;
+		synchronized (lock) {
+			while (completedGeneration < generation) {
+				final long left = deadline - System.currentTimeMillis();
+				if (left <= 0) {
+					return false;
+				}
+				lock.wait(left);
+			}
+			return true;
+		}
+	}
+
+	private static synchronized Handler getMainHandler() {
+		if (mainHandler == null) {
+			mainHandler = new Handler(Looper.getMainLooper());
+		}
+		return mainHandler;
+	}
+
+	private static Request submit(Context context, boolean showErrors,
+			Callback cb, Phase action, boolean save) {
+		final Context ctx = context.getApplicationContext();
+		final List<Request> replaced = new ArrayList<Request>();
+		final Request req;
+		synchronized (lock) {
+			req = new Request(++lastGeneration, cb, save);
+			Batch pending = queue.isEmpty() ? null : queue.getLast();
+			if (pending != null && pending.action != action
+					&& !joins(pending.action, action)
+					&& !(isRules(pending.action) && isRules(action))) {
+				// a batch of its own behind the pending one
+				pending = null;
+			}
+			if (pending != null && pending.action != action
+					&& !joins(pending.action, action)) {
+				for (Request old : pending.requests) {
+					if (old.save) {
+						// keep the selection the user saved
+						req.save = true;
+					}
+					old.cancelled = true;
+					old.done = true;
+					replaced.add(old);
+				}
+				Log.d(TAG, "apply request " + req.generation + " replaces "
+						+ replaced.size() + " pending request(s)");
+				queue.removeLast();
+				pending = null;
+			}
+			if (pending == null) {
+				pending = new Batch(ctx, action);
+				queue.add(pending);
+			} else {
+				if (action == Phase.CONTEXT) {
+					pending.action = action;
+				} else if (pending.action != action
+						&& isSwitch(pending.action) && isSwitch(action)) {
+					// neither switch installs the other one
+					pending.action = Phase.CONTEXT;
+				}
+				Log.d(TAG, "apply request " + req.generation
+						+ " coalesced with " + pending.requests.size()
+						+ " pending request(s)");
+			}
+			pending.requests.add(req);
+			pending.showErrors |= showErrors;
+			if (writer == null) {
+				writer = new Thread("AF rules writer") {
+					@Override
+					public void run() {
+						writeLoop();
+					}
+				};
+				writer.setDaemon(true);
+				writer.start();
+			}
+			lock.notifyAll();
+		}
+		for (Request old : replaced) {
+			postCancelled(old.cb);
+		}
+		return req;
+	}
+
+	/**
+	 * @return true if a request for action can be served by a pending batch
+	 *         for another action
+	 */
+	private static boolean joins(Phase pendingAction, Phase action) {
+		if (isSwitch(action)) {
+			return isRules(pendingAction);
+		}
+		// a network switch also applies the saved rules
+		return pendingAction == Phase.APPLY && action == Phase.CONTEXT
+				|| pendingAction == Phase.CONTEXT && action == Phase.APPLY;
+	}
+
+	/**
+	 * @return true for the actions only replacing a few applied rules
+	 */
+	private static boolean isSwitch(Phase action) {
+		return action == Phase.ROAMING || action == Phase.LAN;
+	}
+
+	/**
+	 * @return true for the actions installing or removing the rules, which
+	 *         replace each other while they are pending
+	 */
+	private static boolean isRules(Phase action) {
+		return action == Phase.APPLY || action == Phase.PURGE
+				|| action == Phase.ROAMING || action == Phase.CONTEXT
+				|| action == Phase.LAN;
+	}
+
+	private static void writeLoop() {
+		while (true) {
+			final Batch batch;
+			synchronized (lock) {
+				while (queue.isEmpty()) {
+					try {
+						lock.wait();
+					} catch (InterruptedException e) {
+						// the writer lives as long as the process
+					}
+				}
+				batch = queue.removeFirst();
+				final List<Request> live = new ArrayList<Request>();
+				for (Request req : batch.requests) {
+					if (req.cancelled) {
+						req.done = true;
+						postCancelled(req.cb);
+					} else {
+						live.add(req);
+					}
+				}
+				batch.requests.retainAll(live);
+				if (live.isEmpty()) {
+					updateCompleted();
+					continue;
+				}
+				running = batch;
+			}
+			boolean success = false;
+			try {
+				success = runBatch(batch);
+			} catch (RuntimeException e) {
+				Log.e(TAG, "apply failed: " + e);
+			} finally {
+				synchronized (lock) {
+					running = null;
+					for (Request req : batch.requests) {
+						req.done = true;
+						req.success = success;
+						if (req.cb != null) {
+							post(req.cb, success);
+						}
+					}
+					updateCompleted();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Everything before the first queued batch is done. Must hold the lock.
+	 */
+	private static void updateCompleted() {
+		if (queue.isEmpty()) {
+			completedGeneration = lastGeneration;
+		} else {
+			completedGeneration = queue.getFirst().requests.get(0).generation - 1;
+		}
+		lock.notifyAll();
+	}
+
+	/**
+	 * Run the phases of a batch
+	 *
+	 * @return true if all phases succeeded
+	 */
+	private static boolean runBatch(Batch batch) {
+		boolean save = false;
+		for (Request req : batch.requests) {
+			save |= req.save;
+		}
+		Log.d(TAG, "running " + batch.action + " for " + batch.requests.size()
+				+ " request(s) up to generation " + batch.generation());
+		if (batch.action == Phase.ROAMING) {
+			// the root shell is already known to work, skip the round trip
+			progress(batch, Phase.ROAMING);
+			return Api.applyRoamingChange(batch.ctx, batch.showErrors);
+		}
+		if (batch.action == Phase.LAN) {
+			progress(batch, Phase.LAN);
+			return Api.applyLanChange(batch.ctx, batch.showErrors);
+		}
+		progress(batch, Phase.CHECK_ROOT);
+		if (!Api.hasRootAccess(batch.ctx, batch.showErrors)) {
+			return false;
+		}
+		if (batch.action == Phase.CLEAR_LOG) {
+			progress(batch, Phase.CLEAR_LOG);
+			return Api.clearLog(batch.ctx);
+		}
+		if (batch.action == Phase.PURGE_IPV6) {
+			progress(batch, Phase.PURGE_IPV6);
+			return Api.purgeIp6tables(batch.ctx, batch.showErrors);
+		}
+		if (save) {
+			progress(batch, Phase.SAVE);
+			Api.saveRules(batch.ctx);
+		}
+		progress(batch, batch.action);
+		if (batch.action == Phase.PURGE) {
+			return Api.purgeIptables(batch.ctx, batch.showErrors);
+		}
+		final boolean success;
+		if (batch.action == Phase.CONTEXT) {
+			success = Api.applyNetworkRules(batch.ctx, batch.showErrors);
+		} else {
+			success = Api.applySavedIptablesRules(batch.ctx, batch.showErrors);
+		}
+		if (success) {
+			// the writer is idle until the next trigger, get the rules of
+			// the other networks ready
+			RuleContexts.precompile(batch.ctx);
+		}
+		return success;
+	}
+
+	private static void progress(Batch batch, final Phase phase) {
+		for (Request req : batch.requests) {
+			final Callback cb = req.cb;
+			if (cb != null) {
+				getMainHandler().post(new Runnable() {
+					@Override
+					public void run() {
+						cb.onProgress(phase);
+					}
+				});
+			}
+		}
+	}
+
+	private static void postCancelled(final Callback cb) {
+		if (cb == null) {
+			return;
+		}
+		getMainHandler().post(new Runnable() {
+			@Override
+			public void run() {
+				cb.onCancelled();
+			}
+		});
+	}
+
+	private static void post(final Callback cb, final boolean success) {
+		getMainHandler().post(new Runnable() {
+			@Override
+			public void run() {
+				cb.onComplete(success);
+			}
+		});
+	}
+}
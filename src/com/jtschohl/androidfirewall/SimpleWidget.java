@@ -32,9 +32,6 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.SharedPreferences;
 import android.os.Bundle;
-import android.os.Handler;
-import android.os.Looper;
-import android.os.Message;
 import android.preference.PreferenceManager;
 import android.widget.RemoteViews;
 import android.widget.Toast;
@@ -74,39 +71,28 @@ public class SimpleWidget extends AppWidgetProvider {
 				return;
 			}
 
-			final Handler toaster = new Handler() {
-				public void handleMessage(Message msg) {
-					if (msg.arg1 != 0)
-						Toast.makeText(context, msg.arg1, Toast.LENGTH_SHORT)
-								.show();
-				}
-			};
-			// prevents ANR
-			new Thread() {
+			final Context ctx = context.getApplicationContext();
+			// the script runs on the rules writer thread, prevents ANR
+			final RulesApplier.Callback toaster = new RulesApplier.Callback() {
 				@Override
-				public void run() {
-					Looper.prepare();
-					final Message msg = new Message();
+				public void onComplete(boolean success) {
+					final int msg;
 					if (enabled) {
-						if (Api.applySavedIptablesRules(context, false)) {
-							msg.arg1 = R.string.toast_enabled;
-							toaster.sendMessage(msg);
-						} else {
-							msg.arg1 = R.string.toast_error_enabling;
-							toaster.sendMessage(msg);
-						}
+						msg = success ? R.string.toast_enabled
+								: R.string.toast_error_enabling;
 					} else {
-						if (Api.purgeIptables(context, false)) {
-							msg.arg1 = R.string.toast_disabled;
-							toaster.sendMessage(msg);
-						} else {
-							msg.arg1 = R.string.toast_error_disabling;
-							toaster.sendMessage(msg);
-						}
+						msg = success ? R.string.toast_disabled
+								: R.string.toast_error_disabling;
 					}
-					Api.setEnabled(context, enabled);
+					Toast.makeText(ctx, msg, Toast.LENGTH_SHORT).show();
+					Api.setEnabled(ctx, enabled);
 				}
-			}.start();
+			};
+			if (enabled) {
+				RulesApplier.applySavedIptablesRules(ctx, false, toaster);
+			} else {
+				RulesApplier.purgeIptables(ctx, false, toaster);
+			}
 		}
 	}
 
@@ -0,0 +1,340 @@
+/**
+ * Capabilities of the root toolchain and the kernel.
+ *
+ * Copyright (C) 2012-2014	Jason Tschohl
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * @author Jason Tschohl
+ * @version 1.0
+ */
+
+package com.jtschohl.androidfirewall;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.TreeSet;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.content.pm.PackageManager.NameNotFoundException;
+import android.os.Build;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Every script used to start with a header looking for busybox in four
+ * places, testing grep and running "iptables --version". None of that
+ * changes before the next boot or app update, so it is probed once, with a
+ * single root script, and the results are kept in a preferences file of
+ * their own. Scripts then start with a few assignments, and the rules are
+ * compiled for what the device supports: the wait option, the restore
+ * binaries, the log targets, UID ranges in the owner match and nftables.
+ */
+public final class Toolchain {
+
+	final static String TAG = "{AF}";
+
+	/** own file, loading a profile clears the firewall preferences */
+	private static final String PREFS_TOOLCHAIN = "Toolchain";
+	/** output of the probe, key=value lines */
+	private static final String PREF_PROBE = "Probe";
+	/** wall clock time of the boot the probe ran in */
+	private static final String PREF_BOOT_TIME = "BootTime";
+	/** app version the probe and the binaries belong to */
+	private static final String PREF_VERSION = "Version";
+	private static final String PREF_BINARIES = "BinariesVersion";
+	/** two boot times closer than this are the same boot */
+	private static final long SAME_BOOT = 60 * 1000;
+	private static final String PROBE_CHAIN = "af-probe";
+	/** exit code of the shell for a command it can't find or run */
+	private static final int NOT_FOUND = 127;
+	private static final int NOT_EXECUTABLE = 126;
+
+	private static Toolchain current = null;
+
+	/** busybox binary, null if there is none */
+	public final String busybox;
+	/** grep command */
+	public final String grep;
+	/** echo command */
+	public final String echo;
+	/** iptables binary */
+	public final String iptables;
+	public final boolean ip6tables;
+	public final boolean iptablesRestore;
+	public final boolean ip6tablesRestore;
+	/** iptables waits for the xtables lock with -w */
+	public final boolean waitLock;
+	/** the owner match takes UID ranges */
+	public final boolean ownerRange;
+	/** nft is installed and the kernel has nf_tables */
+	public final boolean nft;
+	/** iptables targets the kernel has, e.g. "LOG", "NFLOG" */
+	private final TreeSet<String> targets = new TreeSet<String>();
+	/** ip6tables targets, IPv6 logging may be built without the IPv4 one */
+	private final TreeSet<String> targets6 = new TreeSet<String>();
+
+	private Toolchain(String probe) throws IOException {
+		String bb = null;
+		String gr = null;
+		String ipt = "iptables";
+		boolean ip6 = false;
+		boolean restore = false;
+		boolean restore6 = false;
+		boolean wait = false;
+		boolean range = false;
+		boolean nf = false;
+		final BufferedReader r = new BufferedReader(new StringReader(probe));
+		String line;
+		while ((line = r.readLine()) != null) {
+			final int eq = line.indexOf('=');
+			if (eq < 0) {
+				continue;
+			}
+			final String key = line.substring(0, eq);
+			final String value = line.substring(eq + 1).trim();
+			if (key.equals("busybox")) {
+				bb = value;
+			} else if (key.equals("grep")) {
+				gr = value;
+			} else if (key.equals("iptables")) {
+				ipt = value;
+			} else if (key.equals("ip6tables")) {
+				ip6 = found(value);
+			} else if (key.equals("restore")) {
+				restore = found(value);
+			} else if (key.equals("restore6")) {
+				restore6 = found(value);
+			} else if (key.equals("wait")) {
+				wait = true;
+			} else if (key.equals("range")) {
+				range = true;
+			} else if (key.equals("nft")) {
+				nf = true;
+			} else if (key.equals("target") && value.length() > 0) {
+				targets.add(value);
+			} else if (key.equals("target6") && value.length() > 0) {
+				targets6.add(value);
+			}
+		}
+		if (gr == null) {
+			throw new IOException("no grep found");
+		}
+		busybox = bb;
+		grep = gr.equals("busybox") ? bb + " grep" : gr;
+		// the bundled busybox was preferred to the system tools
+		echo = bb != null && gr.equals("busybox") ? bb + " echo" : "echo";
+		iptables = ipt;
+		ip6tables = ip6;
+		iptablesRestore = restore;
+		ip6tablesRestore = restore6;
+		waitLock = wait;
+		ownerRange = range;
+		nft = nf;
+	}
+
+	/**
+	 * @return the probed toolchain, probing it if this boot or app version
+	 *         has no results yet; null if the probe failed (no root)
+	 */
+	public static synchronized Toolchain get(Context ctx) {
+		if (current != null) {
+			return current;
+		}
+		final SharedPreferences prefs = ctx.getSharedPreferences(
+				PREFS_TOOLCHAIN, 0);
+		final long bootTime = System.currentTimeMillis()
+				- SystemClock.elapsedRealtime();
+		final int version = getVersion(ctx);
+		String probe = prefs.getString(PREF_PROBE, "");
+		if (probe.length() == 0
+				|| prefs.getInt(PREF_VERSION, -1) != version
+				|| Math.abs(prefs.getLong(PREF_BOOT_TIME, 0) - bootTime) >= SAME_BOOT) {
+			probe = probe(ctx);
+			if (probe == null) {
+				return null;
+			}
+			prefs.edit().putString(PREF_PROBE, probe)
+					.putLong(PREF_BOOT_TIME, bootTime)
+					.putInt(PREF_VERSION, version).commit();
+		}
+		try {
+			current = new Toolchain(probe);
+		} catch (IOException e) {
+			Log.e(TAG, "Unusable toolchain: " + e);
+			return null;
+		}
+		Log.d(TAG, "Toolchain: " + current);
+		return current;
+	}
+
+	/**
+	 * Forget the results, the next call to get() probes again. Called when
+	 * the bundled binaries were installed.
+	 */
+	public static synchronized void invalidate(Context ctx) {
+		current = null;
+		ctx.getSharedPreferences(PREFS_TOOLCHAIN, 0).edit()
+				.remove(PREF_PROBE).commit();
+	}
+
+	/**
+	 * @return true if the bundled binaries were installed by this app
+	 *         version, so they need not be checked again
+	 */
+	static boolean hasBinaries(Context ctx) {
+		return ctx.getSharedPreferences(PREFS_TOOLCHAIN, 0).getInt(
+				PREF_BINARIES, -1) == getVersion(ctx);
+	}
+
+	/**
+	 * The bundled binaries are installed
+	 */
+	static void setBinaries(Context ctx) {
+		ctx.getSharedPreferences(PREFS_TOOLCHAIN, 0).edit()
+				.putInt(PREF_BINARIES, getVersion(ctx)).commit();
+	}
+
+	/**
+	 * @param target
+	 *            iptables target, e.g. "NFLOG"
+	 * @param ipv6
+	 *            true for the ip6tables target
+	 * @return true if the kernel has the target for the family
+	 */
+	public boolean hasTarget(String target, boolean ipv6) {
+		return (ipv6 ? targets6 : targets).contains(target);
+	}
+
+	/**
+	 * @return script lines setting $IPTABLES, $IP6TABLES, $BUSYBOX, $GREP and
+	 *         $ECHO, without probing
+	 */
+	public String getHeader() {
+		final String wait = waitLock ? " -w" : "";
+		return "IPTABLES=\"" + iptables + wait + "\"\n" + "IP6TABLES=\""
+				+ "ip6tables" + wait + "\"\n" + "BUSYBOX="
+				+ (busybox != null ? busybox : "busybox") + "\n" + "GREP=\""
+				+ grep + "\"\n" + "ECHO=\"" + echo + "\"\n";
+	}
+
+	@Override
+	public String toString() {
+		return "busybox " + busybox + ", grep " + grep + ", iptables "
+				+ iptables + ", ip6tables " + ip6tables + ", restore "
+				+ iptablesRestore + "/" + ip6tablesRestore + ", wait "
+				+ waitLock + ", owner ranges " + ownerRange + ", nft " + nft
+				+ ", targets " + targets + ", IPv6 targets " + targets6;
+	}
+
+	/**
+	 * Probe the binaries with a single root script
+	 *
+	 * @return the key=value lines, null if the script failed
+	 */
+	private static String probe(Context ctx) {
+		final String dir = ctx.getDir("bin", 0).getAbsolutePath();
+		final String myiptables = Build.VERSION.SDK_INT >= Build.VERSION_CODES.ICE_CREAM_SANDWICH ? "iptables"
+				: dir + "/iptables_armv5";
+		final String script = ""
+				+ "for b in "
+				+ Api.getBusyBoxPath(ctx).trim()
+				+ " busybox /system/xbin/busybox /system/bin/busybox ; do\n"
+				+ "	if $b --help >/dev/null 2>&1 ; then\n"
+				+ "		echo busybox=$b\n"
+				+ "		BUSYBOX=$b\n"
+				+ "		break\n"
+				+ "	fi\n"
+				+ "done\n"
+				+ "if [ -n \"$BUSYBOX\" ] && [ \"$BUSYBOX\" = \""
+				+ Api.getBusyBoxPath(ctx).trim()
+				+ "\" ] ; then\n"
+				+ "	echo grep=busybox\n"
+				+ "elif echo 1 | grep -q 1 >/dev/null 2>&1 ; then\n"
+				+ "	echo grep=grep\n"
+				+ "elif [ -n \"$BUSYBOX\" ] && echo 1 | $BUSYBOX grep -q 1 >/dev/null 2>&1 ; then\n"
+				+ "	echo grep=busybox\n"
+				+ "fi\n"
+				+ "IPT=iptables\n"
+				+ "if "
+				+ myiptables
+				+ " --version >/dev/null 2>&1 ; then\n"
+				+ "	IPT="
+				+ myiptables
+				+ "\n"
+				+ "fi\n"
+				+ "echo iptables=$IPT\n"
+				+ "ip6tables --version >/dev/null 2>&1 </dev/null\n"
+				+ "echo ip6tables=$?\n"
+				+ "iptables-restore --help >/dev/null 2>&1 </dev/null\n"
+				+ "echo restore=$?\n"
+				+ "ip6tables-restore --help >/dev/null 2>&1 </dev/null\n"
+				+ "echo restore6=$?\n"
+				+ "$IPT -w -L OUTPUT -n >/dev/null 2>&1 && echo wait=1\n"
+				+ "while read t ; do echo target=$t ; done </proc/net/ip_tables_targets\n"
+				// targets of modules not loaded yet are missing from the list
+				+ "$IPT -N " + PROBE_CHAIN + " >/dev/null 2>&1\n"
+				+ "$IPT -A " + PROBE_CHAIN + " -j LOG >/dev/null 2>&1 && echo target=LOG\n"
+				+ "$IPT -A " + PROBE_CHAIN + " -j NFLOG >/dev/null 2>&1 && echo target=NFLOG\n"
+				+ "$IPT -A " + PROBE_CHAIN + " -m owner --uid-owner "
+				+ "10000:10001 -j RETURN >/dev/null 2>&1 && echo range=1\n"
+				+ "$IPT -F " + PROBE_CHAIN + " >/dev/null 2>&1\n"
+				+ "$IPT -X " + PROBE_CHAIN + " >/dev/null 2>&1\n"
+				+ "while read t ; do echo target6=$t ; done 2>/dev/null </proc/net/ip6_tables_targets\n"
+				+ "ip6tables -N " + PROBE_CHAIN + " >/dev/null 2>&1\n"
+				+ "ip6tables -A " + PROBE_CHAIN + " -j LOG >/dev/null 2>&1 && echo target6=LOG\n"
+				+ "ip6tables -A " + PROBE_CHAIN + " -j NFLOG >/dev/null 2>&1 && echo target6=NFLOG\n"
+				+ "ip6tables -F " + PROBE_CHAIN + " >/dev/null 2>&1\n"
+				+ "ip6tables -X " + PROBE_CHAIN + " >/dev/null 2>&1\n"
+				+ "nft list tables >/dev/null 2>&1 && echo nft=1\n"
+				+ "exit 0\n";
+		final long start = SystemClock.elapsedRealtime();
+		final StringBuilder res = new StringBuilder();
+		try {
+			if (Api.runScriptAsRoot(ctx, script, res) != 0) {
+				Log.e(TAG, "Toolchain probe failed: " + res);
+				return null;
+			}
+		} catch (IOException e) {
+			Log.e(TAG, "Toolchain probe failed: " + e);
+			return null;
+		}
+		Log.d(TAG, "Toolchain probed in "
+				+ (SystemClock.elapsedRealtime() - start) + " ms");
+		return res.toString();
+	}
+
+	/**
+	 * @return true unless the exit code says the command is missing
+	 */
+	private static boolean found(String code) {
+		try {
+			final int n = Integer.parseInt(code);
+			return n != NOT_FOUND && n != NOT_EXECUTABLE;
+		} catch (NumberFormatException e) {
+			return false;
+		}
+	}
+
+	private static int getVersion(Context ctx) {
+		try {
+			return ctx.getPackageManager().getPackageInfo(
+					ctx.getPackageName(), 0).versionCode;
+		} catch (NameNotFoundException e) {
+			return 0;
+		}
+	}
+}
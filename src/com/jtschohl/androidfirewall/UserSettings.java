@@ -32,8 +32,6 @@ import android.content.SharedPreferences.OnSharedPreferenceChangeListener;
 import android.content.res.Resources;
 import android.os.Build;
 import android.os.Bundle;
-import android.os.Handler;
-import android.os.Message;
 import android.preference.CheckBoxPreference;
 import android.preference.PreferenceCategory;
 import android.preference.PreferenceManager;
@@ -159,21 +157,19 @@ public class UserSettings extends SherlockPreferenceActivity implements
 		final ProgressDialog progress = ProgressDialog.show(this,
 				res.getString(R.string.working),
 				res.getString(R.string.deleting_rules), true);
-		final Handler handler = new Handler() {
-			public void handleMessage(Message msg) {
+		RulesApplier.purgeIp6tables(this, true, new RulesApplier.Callback() {
+			@Override
+			public void onComplete(boolean success) {
 				try {
 					progress.dismiss();
 				} catch (Exception ex) {
 				}
-				if (!Api.hasRootAccess(getApplicationContext(), true))
-					return;
-				if (Api.purgeIp6tables(getApplicationContext(), true)) {
+				if (success) {
 					Toast.makeText(getApplicationContext(),
 							R.string.rules_deleted, Toast.LENGTH_SHORT).show();
 				}
 			}
-		};
-		handler.sendEmptyMessageDelayed(0, 100);
+		});
 	}
 
 	/**
@@ -190,7 +186,7 @@ public class UserSettings extends SherlockPreferenceActivity implements
 		}
 		editor.commit();
 		if (Api.isEnabled(this)) {
-			Api.applySavedIptablesRules(this, true);
+			RulesApplier.applySavedIptablesRules(this, true, null);
 		}
 	}
 
@@ -222,7 +218,7 @@ public class UserSettings extends SherlockPreferenceActivity implements
 			getApplicationContext().stopService(intent2);
 		}
 		if (Api.isEnabled(this)) {
-			Api.applySavedIptablesRules(this, true);
+			RulesApplier.applySavedIptablesRules(this, true, null);
 		}
 	}
 	
@@ -254,7 +250,7 @@ public class UserSettings extends SherlockPreferenceActivity implements
 			getApplicationContext().stopService(intent2);
 		}
 		if (Api.isEnabled(this)) {
-			Api.applySavedIptablesRules(this, true);
+			RulesApplier.applySavedIptablesRules(this, true, null);
 		}
 	}
 
@@ -270,7 +266,7 @@ public class UserSettings extends SherlockPreferenceActivity implements
 			editor.putBoolean(Api.PREF_IP6TABLES, enabled);
 			editor.commit();
 			if (Api.isEnabled(this)) {
-				Api.applySavedIptablesRules(this, true);
+				RulesApplier.applySavedIptablesRules(this, true, null);
 			}
 		} else {
 			editor.putBoolean(Api.PREF_IP6TABLES, false);
@@ -356,7 +352,7 @@ public class UserSettings extends SherlockPreferenceActivity implements
 		editor.putBoolean(Api.PREF_TETHER, enabled);
 		editor.commit();
 		if (Api.isEnabled(this)) {
-			Api.applySavedIptablesRules(this, true);
+			RulesApplier.applySavedIptablesRules(this, true, null);
 		}
 	}
 
@@ -387,7 +383,7 @@ public class UserSettings extends SherlockPreferenceActivity implements
 		editor.putBoolean(Api.PREF_INPUTENABLED, enabled);
 		editor.commit();
 		if (Api.isEnabled(this)) {
-			Api.applySavedIptablesRules(this, true);
+			RulesApplier.applySavedIptablesRules(this, true, null);
 		}
 	}
 	
@@ -103,15 +103,22 @@ public class WidgetActivity extends Activity implements OnClickListener {
 	@Override
 	public void onClick(View v) {
 		if (v.getId() == R.id.enableFirewall) {
-			if (Api.applySavedIptablesRules(getApplicationContext(), false)) {
-				Toast.makeText(getApplicationContext(), R.string.toast_enabled,
-						Toast.LENGTH_SHORT).show();
-				Api.setEnabled(getApplicationContext(), true);
-			} else {
-				Toast.makeText(getApplicationContext(),
-						R.string.toast_error_enabling, Toast.LENGTH_SHORT)
-						.show();
-			}
+			final Context ctx = getApplicationContext();
+			RulesApplier.applySavedIptablesRules(ctx, false,
+					new RulesApplier.Callback() {
+						@Override
+						public void onComplete(boolean success) {
+							if (success) {
+								Toast.makeText(ctx, R.string.toast_enabled,
+										Toast.LENGTH_SHORT).show();
+								Api.setEnabled(ctx, true);
+							} else {
+								Toast.makeText(ctx,
+										R.string.toast_error_enabling,
+										Toast.LENGTH_SHORT).show();
+							}
+						}
+					});
 			finish();
 		}
 		if (v.getId() == R.id.disableFirewall) {
@@ -125,15 +132,22 @@ public class WidgetActivity extends Activity implements OnClickListener {
 				Toast.makeText(getApplicationContext(), R.string.widget_fail,
 						Toast.LENGTH_SHORT).show();
 			} else {
-				if (Api.purgeIptables(getApplicationContext(), false)) {
-					Toast.makeText(getApplicationContext(),
-							R.string.toast_disabled, Toast.LENGTH_SHORT).show();
-					Api.setEnabled(getApplicationContext(), false);
-				} else {
-					Toast.makeText(getApplicationContext(),
-							R.string.toast_error_disabling, Toast.LENGTH_SHORT)
-							.show();
-				}
+				final Context ctx = getApplicationContext();
+				RulesApplier.purgeIptables(ctx, false,
+						new RulesApplier.Callback() {
+							@Override
+							public void onComplete(boolean success) {
+								if (success) {
+									Toast.makeText(ctx, R.string.toast_disabled,
+											Toast.LENGTH_SHORT).show();
+									Api.setEnabled(ctx, false);
+								} else {
+									Toast.makeText(ctx,
+											R.string.toast_error_disabling,
+											Toast.LENGTH_SHORT).show();
+								}
+							}
+						});
 			}
 			finish();
 		}
@@ -170,7 +184,7 @@ public class WidgetActivity extends Activity implements OnClickListener {
 			boolean enabled = prefs.getBoolean(Api.PREF_ENABLED, false);
 			final String pwd = prefs3.getString("password", "");
 			if (enabled) {
-				Api.applyIptablesRules(getApplicationContext(), true);
+				RulesApplier.applyIptablesRules(getApplicationContext(), true, null);
 				Api.setEnabled(getApplicationContext(), true);
 			}
 			if (!enabled) {
@@ -179,7 +193,7 @@ public class WidgetActivity extends Activity implements OnClickListener {
 							R.string.widget_fail, Toast.LENGTH_SHORT).show();
 				} else {
 					Api.saveRules(getApplicationContext());
-					Api.purgeIptables(getApplicationContext(), true);
+					RulesApplier.purgeIptables(getApplicationContext(), true, null);
 					Api.setEnabled(getApplicationContext(), false);
 				}
 			}
@@ -218,7 +232,7 @@ public class WidgetActivity extends Activity implements OnClickListener {
 			boolean enabled = prefs.getBoolean(Api.PREF_ENABLED, false);
 			final String pwd = prefs3.getString("password", "");
 			if (enabled) {
-				Api.applyIptablesRules(getApplicationContext(), true);
+				RulesApplier.applyIptablesRules(getApplicationContext(), true, null);
 				Api.setEnabled(getApplicationContext(), true);
 			}
 			if (!enabled) {
@@ -227,7 +241,7 @@ public class WidgetActivity extends Activity implements OnClickListener {
 							R.string.widget_fail, Toast.LENGTH_SHORT).show();
 				} else {
 					Api.saveRules(getApplicationContext());
-					Api.purgeIptables(getApplicationContext(), true);
+					RulesApplier.purgeIptables(getApplicationContext(), true, null);
 					Api.setEnabled(getApplicationContext(), false);
 				}
 			}
@@ -266,7 +280,7 @@ public class WidgetActivity extends Activity implements OnClickListener {
 			boolean enabled = prefs.getBoolean(Api.PREF_ENABLED, false);
 			final String pwd = prefs3.getString("password", "");
 			if (enabled) {
-				Api.applyIptablesRules(getApplicationContext(), true);
+				RulesApplier.applyIptablesRules(getApplicationContext(), true, null);
 				Api.setEnabled(getApplicationContext(), true);
 			}
 			if (!enabled) {
@@ -275,7 +289,7 @@ public class WidgetActivity extends Activity implements OnClickListener {
 							R.string.widget_fail, Toast.LENGTH_SHORT).show();
 				} else {
 					Api.saveRules(getApplicationContext());
-					Api.purgeIptables(getApplicationContext(), true);
+					RulesApplier.purgeIptables(getApplicationContext(), true, null);
 					Api.setEnabled(getApplicationContext(), false);
 				}
 			}
@@ -314,7 +328,7 @@ public class WidgetActivity extends Activity implements OnClickListener {
 			boolean enabled = prefs.getBoolean(Api.PREF_ENABLED, false);
 			final String pwd = prefs3.getString("password", "");
 			if (enabled) {
-				Api.applyIptablesRules(getApplicationContext(), true);
+				RulesApplier.applyIptablesRules(getApplicationContext(), true, null);
 				Api.setEnabled(getApplicationContext(), true);
 			}
 			if (!enabled) {
@@ -323,7 +337,7 @@ public class WidgetActivity extends Activity implements OnClickListener {
 							R.string.widget_fail, Toast.LENGTH_SHORT).show();
 				} else {
 					Api.saveRules(getApplicationContext());
-					Api.purgeIptables(getApplicationContext(), true);
+					RulesApplier.purgeIptables(getApplicationContext(), true, null);
 					Api.setEnabled(getApplicationContext(), false);
 				}
 			}
@@ -362,7 +376,7 @@ public class WidgetActivity extends Activity implements OnClickListener {
 			boolean enabled = prefs.getBoolean(Api.PREF_ENABLED, false);
 			final String pwd = prefs3.getString("password", "");
 			if (enabled) {
-				Api.applyIptablesRules(getApplicationContext(), true);
+				RulesApplier.applyIptablesRules(getApplicationContext(), true, null);
 				Api.setEnabled(getApplicationContext(), true);
 			}
 			if (!enabled) {
@@ -371,7 +385,7 @@ public class WidgetActivity extends Activity implements OnClickListener {
 							R.string.widget_fail, Toast.LENGTH_SHORT).show();
 				} else {
 					Api.saveRules(getApplicationContext());
-					Api.purgeIptables(getApplicationContext(), true);
+					RulesApplier.purgeIptables(getApplicationContext(), true, null);
 					Api.setEnabled(getApplicationContext(), false);
 				}
 			}
@@ -410,7 +424,7 @@ public class WidgetActivity extends Activity implements OnClickListener {
 			boolean enabled = prefs.getBoolean(Api.PREF_ENABLED, false);
 			final String pwd = prefs3.getString("password", "");
 			if (enabled) {
-				Api.applyIptablesRules(getApplicationContext(), true);
+				RulesApplier.applyIptablesRules(getApplicationContext(), true, null);
 				Api.setEnabled(getApplicationContext(), true);
 			}
 			if (!enabled) {
@@ -419,7 +433,7 @@ public class WidgetActivity extends Activity implements OnClickListener {
 							R.string.widget_fail, Toast.LENGTH_SHORT).show();
 				} else {
 					Api.saveRules(getApplicationContext());
-					Api.purgeIptables(getApplicationContext(), true);
+					RulesApplier.purgeIptables(getApplicationContext(), true, null);
 					Api.setEnabled(getApplicationContext(), false);
 				}
 			}
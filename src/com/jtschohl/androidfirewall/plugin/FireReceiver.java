@@ -38,6 +38,7 @@ import android.widget.Toast;
 
 import com.jtschohl.androidfirewall.Api;
 import com.jtschohl.androidfirewall.R;
+import com.jtschohl.androidfirewall.RulesApplier;
 
 /**
  * Many thanks to the Tasker and Locale Development teams for great products and
@@ -112,42 +113,56 @@ public final class FireReceiver extends BroadcastReceiver {
 			LoadProfile5(context);
 		}
 		if (i == 6) {
-			boolean toastenabled = context.getSharedPreferences(Api.PREFS_NAME,
-					0).getBoolean(Api.PREF_TASKERNOTIFY, false);
-			if (Api.applySavedIptablesRules(context, false)) {
-				if (toastenabled) {
-					msg.arg1 = R.string.toast_enabled;
-					handler.sendMessage(msg);
-				}
-				Api.setEnabled(context, true);
-			} else {
-				if (toastenabled) {
-					msg.arg1 = R.string.toast_error_enabling;
-					handler.sendMessage(msg);
-				}
-			}
+			final boolean toastenabled = context.getSharedPreferences(
+					Api.PREFS_NAME, 0).getBoolean(Api.PREF_TASKERNOTIFY, false);
+			final Context ctx = context.getApplicationContext();
+			RulesApplier.applySavedIptablesRules(ctx, false,
+					new RulesApplier.Callback() {
+						@Override
+						public void onComplete(boolean success) {
+							if (success) {
+								if (toastenabled) {
+									msg.arg1 = R.string.toast_enabled;
+									handler.sendMessage(msg);
+								}
+								Api.setEnabled(ctx, true);
+							} else {
+								if (toastenabled) {
+									msg.arg1 = R.string.toast_error_enabling;
+									handler.sendMessage(msg);
+								}
+							}
+						}
+					});
 		}
 		if (i == 7) {
 			final SharedPreferences prefs2 = context.getSharedPreferences(
 					Api.PREFS_NAME, 0);
-			boolean toastenabled = context.getSharedPreferences(Api.PREFS_NAME,
-					0).getBoolean(Api.PREF_TASKERNOTIFY, false);
+			final boolean toastenabled = context.getSharedPreferences(
+					Api.PREFS_NAME, 0).getBoolean(Api.PREF_TASKERNOTIFY, false);
 			final String oldPwd = prefs2.getString(Api.PREF_PASSWORD, "");
 			final String newPwd = context.getSharedPreferences(Api.PREFS_NAME,
 					0).getString("validationPassword", "");
 			if (oldPwd.length() == 0 && newPwd.length() == 0) {
-				if (Api.purgeIptables(context, false)) {
-					if (toastenabled) {
-						msg.arg1 = R.string.toast_disabled;
-						handler.sendMessage(msg);
-					}
-					Api.setEnabled(context, false);
-				} else {
-					if (toastenabled) {
-						msg.arg1 = R.string.toast_error_disabling;
-						handler.sendMessage(msg);
-					}
-				}
+				final Context ctx = context.getApplicationContext();
+				RulesApplier.purgeIptables(ctx, false,
+						new RulesApplier.Callback() {
+							@Override
+							public void onComplete(boolean success) {
+								if (success) {
+									if (toastenabled) {
+										msg.arg1 = R.string.toast_disabled;
+										handler.sendMessage(msg);
+									}
+									Api.setEnabled(ctx, false);
+								} else {
+									if (toastenabled) {
+										msg.arg1 = R.string.toast_error_disabling;
+										handler.sendMessage(msg);
+									}
+								}
+							}
+						});
 			} else {
 				msg.arg1 = R.string.widget_fail;
 				handler.sendMessage(msg);
@@ -182,14 +197,14 @@ public final class FireReceiver extends BroadcastReceiver {
 		Api.applications = null;
 		toggleUserSettings(context);
 		if (Api.isEnabled(context)) {
-			Api.applyIptablesRules(context, true);
+			RulesApplier.applyIptablesRules(context, true, null);
 			if (toastenabled) {
 				Toast.makeText(context, R.string.tasker_profile,
 						Toast.LENGTH_LONG).show();
 			}
 		} else {
 			Api.saveRules(context);
-			Api.purgeIptables(context, true);
+			RulesApplier.purgeIptables(context, true, null);
 			if (toastenabled) {
 				Toast.makeText(context, R.string.tasker_profile_disabled,
 						Toast.LENGTH_LONG).show();
@@ -224,14 +239,14 @@ public final class FireReceiver extends BroadcastReceiver {
 		Api.applications = null;
 		toggleUserSettings(context);
 		if (Api.isEnabled(context)) {
-			Api.applyIptablesRules(context, true);
+			RulesApplier.applyIptablesRules(context, true, null);
 			if (toastenabled) {
 				Toast.makeText(context, R.string.tasker_profile,
 						Toast.LENGTH_LONG).show();
 			}
 		} else {
 			Api.saveRules(context);
-			Api.purgeIptables(context, true);
+			RulesApplier.purgeIptables(context, true, null);
 			if (toastenabled) {
 				Toast.makeText(context, R.string.tasker_profile_disabled,
 						Toast.LENGTH_LONG).show();
@@ -266,14 +281,14 @@ public final class FireReceiver extends BroadcastReceiver {
 		Api.applications = null;
 		toggleUserSettings(context);
 		if (Api.isEnabled(context)) {
-			Api.applyIptablesRules(context, true);
+			RulesApplier.applyIptablesRules(context, true, null);
 			if (toastenabled) {
 				Toast.makeText(context, R.string.tasker_profile,
 						Toast.LENGTH_LONG).show();
 			}
 		} else {
 			Api.saveRules(context);
-			Api.purgeIptables(context, true);
+			RulesApplier.purgeIptables(context, true, null);
 			if (toastenabled) {
 				Toast.makeText(context, R.string.tasker_profile_disabled,
 						Toast.LENGTH_LONG).show();
@@ -308,14 +323,14 @@ public final class FireReceiver extends BroadcastReceiver {
 		Api.applications = null;
 		toggleUserSettings(context);
 		if (Api.isEnabled(context)) {
-			Api.applyIptablesRules(context, true);
+			RulesApplier.applyIptablesRules(context, true, null);
 			if (toastenabled) {
 				Toast.makeText(context, R.string.tasker_profile,
 						Toast.LENGTH_LONG).show();
 			}
 		} else {
 			Api.saveRules(context);
-			Api.purgeIptables(context, true);
+			RulesApplier.purgeIptables(context, true, null);
 			if (toastenabled) {
 				Toast.makeText(context, R.string.tasker_profile_disabled,
 						Toast.LENGTH_LONG).show();
@@ -350,14 +365,14 @@ public final class FireReceiver extends BroadcastReceiver {
 		Api.applications = null;
 		toggleUserSettings(context);
 		if (Api.isEnabled(context)) {
-			Api.applyIptablesRules(context, true);
+			RulesApplier.applyIptablesRules(context, true, null);
 			if (toastenabled) {
 				Toast.makeText(context, R.string.tasker_profile,
 						Toast.LENGTH_LONG).show();
 			}
 		} else {
 			Api.saveRules(context);
-			Api.purgeIptables(context, true);
+			RulesApplier.purgeIptables(context, true, null);
 			if (toastenabled) {
 				Toast.makeText(context, R.string.tasker_profile_disabled,
 						Toast.LENGTH_LONG).show();
@@ -392,14 +407,14 @@ public final class FireReceiver extends BroadcastReceiver {
 		Api.applications = null;
 		toggleUserSettings(context);
 		if (Api.isEnabled(context)) {
-			Api.applyIptablesRules(context, true);
+			RulesApplier.applyIptablesRules(context, true, null);
 			if (toastenabled) {
 				Toast.makeText(context, R.string.tasker_profile,
 						Toast.LENGTH_LONG).show();
 			}
 		} else {
 			Api.saveRules(context);
-			Api.purgeIptables(context, true);
+			RulesApplier.purgeIptables(context, true, null);
 			if (toastenabled) {
 				Toast.makeText(context, R.string.tasker_profile_disabled,
 						Toast.LENGTH_LONG).show();
@@ -0,0 +1,71 @@
+/**
+ * A user defined firewall chain.
+ *
+ * Copyright (C) 2012-2014	Jason Tschohl
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * @author Jason Tschohl
+ * @version 1.0
+ */
+
+package com.jtschohl.androidfirewall.rules;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Ordered list of rules. The list holds the final order of the chain, so
+ * emitters only ever need to append.
+ */
+public final class Chain implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	public final String name;
+	private final List<Rule> rules = new ArrayList<Rule>();
+
+	public Chain(String name) {
+		this.name = name;
+	}
+
+	/**
+	 * Add a rule at the end of the chain
+	 */
+	public Chain append(Target target, Match... matches) {
+		rules.add(new Rule(target, matches));
+		return this;
+	}
+
+	/**
+	 * Add a rule at the beginning of the chain (same as "iptables -I")
+	 */
+	public Chain insert(Target target, Match... matches) {
+		rules.add(0, new Rule(target, matches));
+		return this;
+	}
+
+	/**
+	 * @return the rules of this chain, in evaluation order
+	 */
+	public List<Rule> getRules() {
+		return Collections.unmodifiableList(rules);
+	}
+
+	public int size() {
+		return rules.size();
+	}
+}
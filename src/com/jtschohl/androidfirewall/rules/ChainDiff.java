@@ -0,0 +1,170 @@
+/**
+ * Computes the edits turning one version of a chain into another.
+ *
+ * Copyright (C) 2012-2014	Jason Tschohl
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * @author Jason Tschohl
+ * @version 1.0
+ */
+
+package com.jtschohl.androidfirewall.rules;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Minimal list of deletes and inserts between two rule lists, expressed as
+ * iptables rule positions. Deletes come first (highest position first, so
+ * earlier positions stay valid), followed by the inserts in ascending order.
+ * If the rules only changed in place, as the LAN dispatch rules do when the
+ * Wi-Fi subnet changes, the edits are replacements instead, one per changed
+ * rule.
+ */
+public final class ChainDiff {
+
+	/**
+	 * Above this many cells the longest common subsequence is not computed
+	 * and the changed middle part of the chain is simply replaced.
+	 */
+	private static final int MAX_LCS_CELLS = 250000;
+
+	/**
+	 * A single edit. Positions are 1-based, like iptables -D/-I.
+	 */
+	public static final class Edit {
+		public final boolean insert;
+		/** replace the rule at position (iptables -R) */
+		public final boolean replace;
+		public final int position;
+		/** rule to insert or replace with, null for deletes */
+		public final Rule rule;
+
+		private Edit(boolean insert, int position, Rule rule) {
+			this(insert, false, position, rule);
+		}
+
+		private Edit(boolean insert, boolean replace, int position, Rule rule) {
+			this.insert = insert;
+			this.replace = replace;
+			this.position = position;
+			this.rule = rule;
+		}
+	}
+
+	private ChainDiff() {
+	}
+
+	/**
+	 * @param from
+	 *            rules currently in the chain
+	 * @param to
+	 *            wanted rules
+	 * @return the edits, empty if both lists are the same
+	 */
+	public static List<Edit> diff(List<Rule> from, List<Rule> to) {
+		// skip the common head and tail, which is all there is for the usual
+		// single-app toggle
+		int head = 0;
+		while (head < from.size() && head < to.size()
+				&& from.get(head).equals(to.get(head))) {
+			head++;
+		}
+		int tail = 0;
+		while (tail < from.size() - head && tail < to.size() - head
+				&& from.get(from.size() - 1 - tail).equals(
+						to.get(to.size() - 1 - tail))) {
+			tail++;
+		}
+		final int n = from.size() - head - tail;
+		final int m = to.size() - head - tail;
+		final boolean[] keepFrom = new boolean[n];
+		final boolean[] keepTo = new boolean[m];
+		if (n > 0 && m > 0 && (long) n * m <= MAX_LCS_CELLS) {
+			lcs(from, to, head, n, m, keepFrom, keepTo);
+		}
+		if (n == m) {
+			int changed = 0;
+			int kept = 0;
+			for (int i = 0; i < n; i++) {
+				if (!from.get(head + i).equals(to.get(head + i))) {
+					changed++;
+				}
+				if (keepFrom[i]) {
+					kept++;
+				}
+			}
+			// a replacement costs one operation, a delete plus insert two
+			if (changed <= 2 * (n - kept)) {
+				return replace(from, to, head, n);
+			}
+		}
+		final List<Edit> edits = new ArrayList<Edit>();
+		for (int i = n - 1; i >= 0; i--) {
+			if (!keepFrom[i]) {
+				edits.add(new Edit(false, head + i + 1, null));
+			}
+		}
+		for (int j = 0; j < m; j++) {
+			if (!keepTo[j]) {
+				edits.add(new Edit(true, head + j + 1, to.get(head + j)));
+			}
+		}
+		return edits;
+	}
+
+	/**
+	 * Replace the rules of the middle parts that differ in place
+	 */
+	private static List<Edit> replace(List<Rule> from, List<Rule> to,
+			int head, int n) {
+		final List<Edit> edits = new ArrayList<Edit>();
+		for (int i = 0; i < n; i++) {
+			if (!from.get(head + i).equals(to.get(head + i))) {
+				edits.add(new Edit(false, true, head + i + 1, to.get(head + i)));
+			}
+		}
+		return edits;
+	}
+
+	/**
+	 * Mark the rules of the longest common subsequence of the middle parts
+	 */
+	private static void lcs(List<Rule> from, List<Rule> to, int head, int n,
+			int m, boolean[] keepFrom, boolean[] keepTo) {
+		final int[][] len = new int[n + 1][m + 1];
+		for (int i = n - 1; i >= 0; i--) {
+			for (int j = m - 1; j >= 0; j--) {
+				if (from.get(head + i).equals(to.get(head + j))) {
+					len[i][j] = len[i + 1][j + 1] + 1;
+				} else {
+					len[i][j] = Math.max(len[i + 1][j], len[i][j + 1]);
+				}
+			}
+		}
+		int i = 0;
+		int j = 0;
+		while (i < n && j < m) {
+			if (from.get(head + i).equals(to.get(head + j))) {
+				keepFrom[i++] = true;
+				keepTo[j++] = true;
+			} else if (len[i + 1][j] >= len[i][j + 1]) {
+				i++;
+			} else {
+				j++;
+			}
+		}
+	}
+}
@@ -0,0 +1,164 @@
+/**
+ * Aggregation of address prefixes.
+ *
+ * Copyright (C) 2012-2014	Jason Tschohl
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * @author Jason Tschohl
+ * @version 1.0
+ */
+
+package com.jtschohl.androidfirewall.rules;
+
+import java.math.BigInteger;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Turns the addresses of an interface ("192.168.1.5/24") into the smallest
+ * list of networks covering them: host bits are cleared, duplicates and
+ * networks inside other networks are dropped and sibling networks are
+ * merged into their parent. A new address inside a known network therefore
+ * does not add a rule.
+ */
+public final class CidrSet {
+
+	private static final class Prefix {
+		final BigInteger value;
+		final int length;
+		final int bits;
+
+		Prefix(BigInteger value, int length, int bits) {
+			this.value = value;
+			this.length = length;
+			this.bits = bits;
+		}
+
+		BigInteger size() {
+			return BigInteger.ONE.shiftLeft(bits - length);
+		}
+
+		boolean contains(Prefix other) {
+			return other.length >= length
+					&& other.value.shiftRight(bits - length).equals(
+							value.shiftRight(bits - length));
+		}
+	}
+
+	private CidrSet() {
+	}
+
+	/**
+	 * @param cidrs
+	 *            addresses or networks of one family, like "10.0.0.7/8" or
+	 *            "fe80::1/64"; a missing length means a single address
+	 * @return the aggregated networks, sorted by address; entries that can't
+	 *         be parsed are dropped
+	 */
+	public static List<String> aggregate(Collection<String> cidrs) {
+		final List<Prefix> prefixes = new ArrayList<Prefix>();
+		for (String cidr : cidrs) {
+			final Prefix p = parse(cidr);
+			if (p != null) {
+				prefixes.add(p);
+			}
+		}
+		Collections.sort(prefixes, new Comparator<Prefix>() {
+			@Override
+			public int compare(Prefix a, Prefix b) {
+				final int c = a.value.compareTo(b.value);
+				return c != 0 ? c : a.length - b.length;
+			}
+		});
+		final List<Prefix> merged = new ArrayList<Prefix>();
+		for (Prefix p : prefixes) {
+			if (!merged.isEmpty()) {
+				final Prefix last = merged.get(merged.size() - 1);
+				if (last.bits == p.bits && last.contains(p)) {
+					continue;
+				}
+			}
+			merged.add(p);
+			// merge with the sibling before it, as often as possible
+			while (merged.size() >= 2) {
+				final Prefix b = merged.get(merged.size() - 1);
+				final Prefix a = merged.get(merged.size() - 2);
+				if (a.bits != b.bits || a.length != b.length || a.length == 0
+						|| a.value.testBit(a.bits - a.length)
+						|| !a.value.add(a.size()).equals(b.value)) {
+					break;
+				}
+				merged.remove(merged.size() - 1);
+				merged.set(merged.size() - 1, new Prefix(a.value,
+						a.length - 1, a.bits));
+			}
+		}
+		final List<String> res = new ArrayList<String>(merged.size());
+		for (Prefix p : merged) {
+			res.add(format(p));
+		}
+		return res;
+	}
+
+	private static Prefix parse(String cidr) {
+		final int slash = cidr.indexOf('/');
+		final String addr = slash < 0 ? cidr : cidr.substring(0, slash);
+		final byte[] bytes;
+		try {
+			// only literals are passed in, no name lookup happens
+			bytes = InetAddress.getByName(addr).getAddress();
+		} catch (UnknownHostException e) {
+			return null;
+		} catch (SecurityException e) {
+			return null;
+		}
+		final int bits = bytes.length * 8;
+		int length = bits;
+		if (slash >= 0) {
+			try {
+				length = Integer.parseInt(cidr.substring(slash + 1));
+			} catch (NumberFormatException e) {
+				return null;
+			}
+		}
+		if (length < 0 || length > bits) {
+			return null;
+		}
+		BigInteger value = new BigInteger(1, bytes);
+		// clear the host bits
+		value = value.shiftRight(bits - length).shiftLeft(bits - length);
+		return new Prefix(value, length, bits);
+	}
+
+	private static String format(Prefix p) {
+		final byte[] raw = p.value.toByteArray();
+		final byte[] bytes = new byte[p.bits / 8];
+		// toByteArray has a sign byte or leading zeros dropped
+		final int n = Math.min(raw.length, bytes.length);
+		System.arraycopy(raw, raw.length - n, bytes, bytes.length - n, n);
+		try {
+			return InetAddress.getByAddress(bytes).getHostAddress() + "/"
+					+ p.length;
+		} catch (UnknownHostException e) {
+			// only thrown for a bad length
+			throw new IllegalStateException(e);
+		}
+	}
+}
@@ -0,0 +1,200 @@
+/**
+ * Applies only the difference to the previously applied ruleset.
+ *
+ * Copyright (C) 2012-2014	Jason Tschohl
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * @author Jason Tschohl
+ * @version 1.0
+ */
+
+package com.jtschohl.androidfirewall.rules;
+
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Instead of flushing and refilling every chain, only the rules that changed
+ * since the last apply are deleted, inserted or replaced in place. Before touching anything the
+ * script compares the number of rules in each chain with what was applied
+ * last time; if anything else changed the chains (drift) or the delta fails,
+ * the full emitter output runs instead.
+ */
+public class DeltaEmitter implements Emitter {
+
+	private final Ruleset applied;
+	private final Emitter full;
+	private final boolean restore;
+
+	/**
+	 * @param applied
+	 *            the ruleset currently in the kernel, or null if unknown
+	 * @param full
+	 *            emitter used when no delta can be applied
+	 */
+	public DeltaEmitter(Ruleset applied, Emitter full) {
+		this.applied = applied;
+		this.full = full;
+		this.restore = full instanceof RestoreEmitter;
+	}
+
+	@Override
+	public String render(Ruleset rules) {
+		if (!isCompatible(applied, rules)) {
+			return full.render(rules);
+		}
+		final StringBuilder res = new StringBuilder();
+		res.append("AF_DRIFT=0\n");
+		for (Table table : rules.getTables()) {
+			ShellEmitter.appendPrologue(res, table);
+			appendDriftCheck(res, applied.get(table.family));
+		}
+		res.append("if [ $AF_DRIFT = 0 ] ; then\n");
+		for (Table table : rules.getTables()) {
+			appendDelta(res, applied.get(table.family), table);
+		}
+		res.append("fi\n");
+		res.append("if [ $AF_DRIFT = 1 ] ; then\n");
+		res.append(full.render(rules));
+		res.append("fi\n");
+		return res.toString();
+	}
+
+	/**
+	 * Append the shell commands replacing the rules of one chain that changed
+	 * in place, without any drift check
+	 *
+	 * @param res
+	 *            receives the commands
+	 * @param applied
+	 *            the ruleset currently in the kernel
+	 * @param rules
+	 *            the wanted ruleset
+	 * @param chain
+	 *            name of the chain
+	 * @return the number of replaced rules, or -1 if the chain did not only
+	 *         change in place
+	 */
+	public static int appendReplace(StringBuilder res, Ruleset applied,
+			Ruleset rules, String chain) {
+		final StringBuilder edits = new StringBuilder();
+		int count = 0;
+		for (Table table : rules.getTables()) {
+			final Table old = applied.get(table.family);
+			if (old == null || old.getChain(chain) == null
+					|| table.getChain(chain) == null) {
+				return -1;
+			}
+			for (ChainDiff.Edit edit : ChainDiff.diff(old.getChain(chain)
+					.getRules(), table.getChain(chain).getRules())) {
+				if (!edit.replace) {
+					return -1;
+				}
+				edits.append(table.family.binary).append(" -R ").append(chain)
+						.append(' ').append(edit.position).append(' ')
+						.append(IptablesSyntax.spec(edit.rule, true))
+						.append(" || exit 1\n");
+				count++;
+			}
+		}
+		res.append(edits);
+		return count;
+	}
+
+	/**
+	 * A delta is only possible if both rulesets have the same tables, chains
+	 * and hooks, and no custom script is involved.
+	 */
+	static boolean isCompatible(Ruleset from, Ruleset to) {
+		if (from == null || from.getTables().size() != to.getTables().size()) {
+			return false;
+		}
+		for (Table table : to.getTables()) {
+			final Table old = from.get(table.family);
+			if (old == null || old.getCustomScript() != null
+					|| table.getCustomScript() != null
+					|| old.getHooks().size() != table.getHooks().size()) {
+				return false;
+			}
+			for (int i = 0; i < table.getHooks().size(); i++) {
+				final Table.Hook a = old.getHooks().get(i);
+				final Table.Hook b = table.getHooks().get(i);
+				if (!a.builtin.equals(b.builtin) || !a.chain.equals(b.chain)) {
+					return false;
+				}
+			}
+			final Iterator<Chain> oldChains = old.getChains().iterator();
+			for (Chain chain : table.getChains()) {
+				if (!oldChains.hasNext()
+						|| !oldChains.next().name.equals(chain.name)) {
+					return false;
+				}
+			}
+			if (oldChains.hasNext()) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Compare the number of rules of each chain with the applied ruleset
+	 */
+	private static void appendDriftCheck(StringBuilder res, Table old) {
+		res.append("AF_RULES=\"$(").append(old.family.binary)
+				.append(" -S 2>/dev/null)\"\n");
+		for (Chain chain : old.getChains()) {
+			res.append("[ \"$($ECHO \"$AF_RULES\" | $GREP -c '^-A ")
+					.append(chain.name).append(" ')\" = \"")
+					.append(chain.size()).append("\" ] || AF_DRIFT=1\n");
+		}
+	}
+
+	private void appendDelta(StringBuilder res, Table old, Table table) {
+		final StringBuilder edits = new StringBuilder();
+		for (Chain chain : table.getChains()) {
+			final List<ChainDiff.Edit> diff = ChainDiff.diff(old.getChain(
+					chain.name).getRules(), chain.getRules());
+			for (ChainDiff.Edit edit : diff) {
+				if (!restore) {
+					edits.append(table.family.binary).append(' ');
+				}
+				edits.append(edit.replace ? "-R " : edit.insert ? "-I " : "-D ")
+						.append(chain.name).append(' ').append(edit.position);
+				if (edit.insert || edit.replace) {
+					edits.append(' ').append(
+							IptablesSyntax.spec(edit.rule, !restore));
+				}
+				edits.append(restore ? "\n" : " || AF_DRIFT=1\n");
+			}
+		}
+		if (edits.length() == 0) {
+			return;
+		}
+		if (!restore) {
+			res.append(edits);
+			return;
+		}
+		res.append(table.family.restoreVar).append('=')
+				.append(table.family.restoreName).append('\n');
+		res.append("if ! $").append(table.family.restoreVar)
+				.append(" --noflush <<'__AF_DELTA_EOF__'\n");
+		res.append("*filter\n").append(edits).append("COMMIT\n");
+		res.append("__AF_DELTA_EOF__\n");
+		res.append("then\n");
+		res.append("AF_DRIFT=1\n");
+		res.append("fi\n");
+	}
+}
@@ -0,0 +1,38 @@
+/**
+ * Renders a compiled ruleset.
+ *
+ * Copyright (C) 2012-2014	Jason Tschohl
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * @author Jason Tschohl
+ * @version 1.0
+ */
+
+package com.jtschohl.androidfirewall.rules;
+
+/**
+ * An emitter turns a Ruleset into a shell script that installs it. The
+ * script expects the variables set by the Api script header ($IPTABLES,
+ * $IP6TABLES, $GREP, ...).
+ */
+public interface Emitter {
+
+	/**
+	 * @param rules
+	 *            compiled ruleset
+	 * @return shell script installing the ruleset
+	 */
+	String render(Ruleset rules);
+}
@@ -0,0 +1,45 @@
+/**
+ * Address family of a firewall table.
+ *
+ * Copyright (C) 2012-2014	Jason Tschohl
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * @author Jason Tschohl
+ * @version 1.0
+ */
+
+package com.jtschohl.androidfirewall.rules;
+
+public enum Family {
+	IPV4("$IPTABLES", "IPTABLES_RESTORE", "iptables-restore", "ip"),
+	IPV6("$IP6TABLES", "IP6TABLES_RESTORE", "ip6tables-restore", "ip6");
+
+	/** shell variable holding the iptables binary (set by the script header) */
+	public final String binary;
+	/** name of the shell variable holding the iptables-restore binary */
+	public final String restoreVar;
+	/** default name of the iptables-restore binary */
+	public final String restoreName;
+	/** nftables address family */
+	public final String nftFamily;
+
+	private Family(String binary, String restoreVar, String restoreName,
+			String nftFamily) {
+		this.binary = binary;
+		this.restoreVar = restoreVar;
+		this.restoreName = restoreName;
+		this.nftFamily = nftFamily;
+	}
+}
@@ -0,0 +1,153 @@
+/**
+ * Everything the rule compiler needs to know about the firewall settings.
+ *
+ * Copyright (C) 2012-2014	Jason Tschohl
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * @author Jason Tschohl
+ * @version 1.0
+ */
+
+package com.jtschohl.androidfirewall.rules;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Plain settings holder filled in by Api from the preferences, the
+ * interface tracker and the package manager. It does not depend on Android
+ * so rule generation can run on any JVM.
+ */
+public final class FirewallConfig {
+
+	/** special application UID used to indicate "Any application" */
+	public static final int SPECIAL_UID_ANY = -10;
+	/** special application UID used to indicate the Linux Kernel */
+	public static final int SPECIAL_UID_KERNEL = -11;
+	/** first UID of the applications (Process.FIRST_APPLICATION_UID) */
+	public static final int FIRST_APP_UID = 10000;
+
+	/** base name of our chains */
+	public String chainName = "";
+	public boolean whitelist = true;
+
+	public boolean logEnabled = false;
+	public boolean logAcceptEnabled = false;
+	/** "LOG", "NFLOG" or "" */
+	public String logTarget = "";
+	/** the same for the IPv6 table, the kernel may lack the IPv6 target */
+	public String logTargetIpv6 = "";
+
+	public boolean vpnEnabled = false;
+	public boolean lanEnabled = false;
+	public boolean ipv6Enabled = false;
+	public boolean tetherEnabled = false;
+	public boolean inputEnabled = false;
+	/** true if roaming rules are enabled */
+	public boolean roamingEnabled = false;
+	/** true if roaming rules are enabled and the device is roaming now */
+	public boolean roaming = false;
+	/** true if the VPN packet marks (Android 4.4+) must be honoured */
+	public boolean vpnMarks = false;
+
+	/** UIDs of the dhcp and wifi system users, -1 if unknown */
+	public int dhcpUid = -1;
+	public int wifiUid = -1;
+
+	/** current LAN networks (empty if not connected to a LAN) */
+	public List<String> lanIpv4 = new ArrayList<String>();
+	public List<String> lanIpv6 = new ArrayList<String>();
+
+	/** interface patterns per interface class */
+	public String[] itfs3g = new String[0];
+	public String[] itfsWifi = new String[0];
+	public String[] itfsVpn = new String[0];
+	public String[] itfsTether = new String[0];
+	/**
+	 * 3G and Wi-Fi patterns of no interface seen so far, still dispatched
+	 * after the others in case such an interface shows up
+	 */
+	public String[] itfs3gUnseen = new String[0];
+	public String[] itfsWifiUnseen = new String[0];
+
+	/** selected UIDs per interface class */
+	public List<Integer> uids3g = new ArrayList<Integer>();
+	public List<Integer> uidsWifi = new ArrayList<Integer>();
+	public List<Integer> uidsRoaming = new ArrayList<Integer>();
+	public List<Integer> uidsVpn = new ArrayList<Integer>();
+	public List<Integer> uidsLan = new ArrayList<Integer>();
+	public List<Integer> uidsInputWifi = new ArrayList<Integer>();
+
+	/**
+	 * sorted UIDs of all installed applications, used to merge selected UIDs
+	 * into ranges (null if unknown)
+	 */
+	public int[] installedUids = null;
+
+	/** the owner match of the kernel takes UID ranges */
+	public boolean ownerRanges = true;
+	/** user-defined shell script run while the rules are built */
+	public String customScript = "";
+
+	/**
+	 * Hash of every setting, so that equal digests compile to the same
+	 * ruleset. A field added to this class must be added here as well.
+	 *
+	 * @return hex SHA-1 digest
+	 */
+	public String digest() {
+		final StringBuilder res = new StringBuilder();
+		res.append(chainName).append('\0').append(whitelist).append(',')
+				.append(logEnabled).append(',').append(logAcceptEnabled)
+				.append(',').append(logTarget).append(',')
+				.append(logTargetIpv6).append('\0')
+				.append(vpnEnabled).append(',').append(lanEnabled)
+				.append(',').append(ipv6Enabled).append(',')
+				.append(tetherEnabled).append(',').append(inputEnabled)
+				.append(',').append(roamingEnabled).append(',')
+				.append(roaming).append(',').append(vpnMarks).append(',')
+				.append(dhcpUid).append(',').append(wifiUid).append(',')
+				.append(ownerRanges).append('\0')
+				.append(lanIpv4).append(lanIpv6).append('\0')
+				.append(Arrays.toString(itfs3g))
+				.append(Arrays.toString(itfsWifi))
+				.append(Arrays.toString(itfsVpn))
+				.append(Arrays.toString(itfsTether))
+				.append(Arrays.toString(itfs3gUnseen))
+				.append(Arrays.toString(itfsWifiUnseen)).append('\0')
+				.append(uids3g).append(uidsWifi).append(uidsRoaming)
+				.append(uidsVpn).append(uidsLan).append(uidsInputWifi)
+				.append('\0').append(Arrays.toString(installedUids))
+				.append('\0').append(customScript);
+		try {
+			final byte[] hash = MessageDigest.getInstance("SHA-1").digest(
+					res.toString().getBytes("UTF-8"));
+			final StringBuilder hex = new StringBuilder(hash.length * 2);
+			for (byte b : hash) {
+				hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(
+						Character.forDigit(b & 0xf, 16));
+			}
+			return hex.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
@@ -0,0 +1,113 @@
+/**
+ * Renders rules using the iptables command line syntax.
+ *
+ * Copyright (C) 2012-2014	Jason Tschohl
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * @author Jason Tschohl
+ * @version 1.0
+ */
+
+package com.jtschohl.androidfirewall.rules;
+
+/**
+ * Shared by the shell and iptables-restore emitters.
+ */
+final class IptablesSyntax {
+
+	private IptablesSyntax() {
+	}
+
+	/**
+	 * Render a rule specification, e.g. "-m owner --uid-owner 10001 -j RETURN"
+	 *
+	 * @param rule
+	 *            the rule
+	 * @param quoteBang
+	 *            true to quote "!" for the shell
+	 * @return the rule specification
+	 */
+	static String spec(Rule rule, boolean quoteBang) {
+		final StringBuilder res = new StringBuilder();
+		for (Match m : rule.matches) {
+			res.append(' ');
+			appendMatch(res, m, quoteBang);
+		}
+		res.append(' ');
+		appendTarget(res, rule.target);
+		return res.toString().substring(1);
+	}
+
+	private static void appendMatch(StringBuilder res, Match m,
+			boolean quoteBang) {
+		switch (m.type) {
+		case OWNER:
+			res.append("-m owner --uid-owner ").append(m.uidFrom);
+			if (m.uidTo != m.uidFrom) {
+				res.append(':').append(m.uidTo);
+			}
+			break;
+		case OUT_INTERFACE:
+			res.append("-o ").append(m.value);
+			break;
+		case DESTINATION:
+			if (m.negated) {
+				res.append(quoteBang ? "'!' " : "! ");
+			}
+			res.append("-d ").append(m.value);
+			break;
+		case PROTOCOL:
+			res.append("-p ").append(m.value);
+			if (m.sport != Match.ANY_PORT) {
+				res.append(" --sport ").append(m.sport);
+			}
+			if (m.dport != Match.ANY_PORT) {
+				res.append(" --dport ").append(m.dport);
+			}
+			break;
+		case MARK:
+			res.append("-m mark --mark ").append(m.value);
+			break;
+		case LIMIT:
+			res.append("-m limit --limit ").append(m.value);
+			break;
+		case STATE:
+			res.append("-m state --state ").append(m.value);
+			break;
+		}
+	}
+
+	private static void appendTarget(StringBuilder res, Target t) {
+		switch (t.type) {
+		case JUMP:
+			res.append("-j ").append(t.value);
+			break;
+		case GOTO:
+			res.append("-g ").append(t.value);
+			break;
+		case LOG:
+			res.append("-j LOG --log-prefix \"").append(t.value)
+					.append("\" --log-level 4 --log-uid");
+			break;
+		case NFLOG:
+			res.append("-j NFLOG --nflog-prefix \"").append(t.value)
+					.append("\" --nflog-group 0");
+			break;
+		default:
+			res.append("-j ").append(t.type.name());
+			break;
+		}
+	}
+}
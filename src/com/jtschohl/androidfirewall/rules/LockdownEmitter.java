@@ -0,0 +1,94 @@
+/**
+ * Renders the boot lockdown.
+ *
+ * Copyright (C) 2012-2014	Jason Tschohl
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * @author Jason Tschohl
+ * @version 1.0
+ */
+
+package com.jtschohl.androidfirewall.rules;
+
+/**
+ * Installs the ruleset of RuleCompiler.compileLockdown with as few commands
+ * as possible: no binary probing, no shadow chains. The script only needs
+ * $IPTABLES and $IP6TABLES. The release script removes the lockdown again;
+ * it is run after the full rules are in, so there is no unfiltered moment.
+ */
+public class LockdownEmitter implements Emitter {
+
+	// exit codes of the generated script
+	private static final int EXIT_FLUSH = 17;
+	private static final int EXIT_RULE = 30;
+	private static final int EXIT_HOOK = 11;
+
+	@Override
+	public String render(Ruleset rules) {
+		final StringBuilder res = new StringBuilder();
+		for (Table table : rules.getTables()) {
+			final String ipt = table.family.binary;
+			for (Chain chain : table.getChains()) {
+				res.append(ipt).append(" -N ").append(chain.name)
+						.append(" 2>/dev/null\n");
+				res.append(ipt).append(" -F ").append(chain.name)
+						.append(" || exit ").append(EXIT_FLUSH).append('\n');
+				for (Rule rule : chain.getRules()) {
+					res.append(ipt).append(" -A ").append(chain.name)
+							.append(' ')
+							.append(IptablesSyntax.spec(rule, true))
+							.append(" || exit ").append(EXIT_RULE)
+							.append('\n');
+				}
+			}
+			for (Table.Hook hook : table.getHooks()) {
+				res.append("while ").append(ipt).append(" -D ")
+						.append(hook.builtin).append(" -j ")
+						.append(hook.chain)
+						.append(" 2>/dev/null ; do : ; done\n");
+				res.append(ipt).append(" -I ").append(hook.builtin)
+						.append(" 1 -j ").append(hook.chain)
+						.append(" || exit ").append(EXIT_HOOK).append('\n');
+			}
+		}
+		return res.toString();
+	}
+
+	/**
+	 * @param rules
+	 *            the lockdown ruleset
+	 * @return shell script removing the lockdown, harmless if it is not
+	 *         installed
+	 */
+	public static String renderRelease(Ruleset rules) {
+		final StringBuilder res = new StringBuilder();
+		for (Table table : rules.getTables()) {
+			final String ipt = table.family.binary;
+			for (Table.Hook hook : table.getHooks()) {
+				res.append("while ").append(ipt).append(" -D ")
+						.append(hook.builtin).append(" -j ")
+						.append(hook.chain)
+						.append(" 2>/dev/null ; do : ; done\n");
+			}
+			for (Chain chain : table.getChains()) {
+				res.append(ipt).append(" -F ").append(chain.name)
+						.append(" 2>/dev/null\n");
+				res.append(ipt).append(" -X ").append(chain.name)
+						.append(" 2>/dev/null\n");
+			}
+		}
+		return res.toString();
+	}
+}
@@ -0,0 +1,148 @@
+/**
+ * A single packet match of a firewall rule.
+ *
+ * Copyright (C) 2012-2014	Jason Tschohl
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * @author Jason Tschohl
+ * @version 1.0
+ */
+
+package com.jtschohl.androidfirewall.rules;
+
+import java.io.Serializable;
+
+/**
+ * Immutable packet match. Use the static factory methods to create one.
+ */
+public final class Match implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	public enum Type {
+		/** owning UID (or UID range) of the socket */
+		OWNER,
+		/** outgoing interface (iptables wildcard syntax, e.g. "wlan+") */
+		OUT_INTERFACE,
+		/** destination address or prefix */
+		DESTINATION,
+		/** protocol with optional source/destination port */
+		PROTOCOL,
+		/** packet mark value/mask */
+		MARK,
+		/** rate limit */
+		LIMIT,
+		/** connection tracking state */
+		STATE
+	}
+
+	/** the highest UID used for "all UIDs" matches */
+	public static final int MAX_UID = 999999999;
+
+	/** no port */
+	public static final int ANY_PORT = -1;
+
+	public final Type type;
+	/** true if the match is inverted */
+	public final boolean negated;
+	/** interface, address, protocol, mark, rate or states */
+	public final String value;
+	/** first UID of an OWNER match */
+	public final int uidFrom;
+	/** last UID of an OWNER match (same as uidFrom for a single UID) */
+	public final int uidTo;
+	/** source port of a PROTOCOL match */
+	public final int sport;
+	/** destination port of a PROTOCOL match */
+	public final int dport;
+
+	private Match(Type type, boolean negated, String value, int uidFrom,
+			int uidTo, int sport, int dport) {
+		this.type = type;
+		this.negated = negated;
+		this.value = value;
+		this.uidFrom = uidFrom;
+		this.uidTo = uidTo;
+		this.sport = sport;
+		this.dport = dport;
+	}
+
+	public static Match owner(int uid) {
+		return owner(uid, uid);
+	}
+
+	public static Match owner(int from, int to) {
+		return new Match(Type.OWNER, false, null, from, to, ANY_PORT, ANY_PORT);
+	}
+
+	/**
+	 * Matches the sockets of every UID (used for the kernel hacks)
+	 */
+	public static Match anyOwner() {
+		return owner(0, MAX_UID);
+	}
+
+	public static Match outInterface(String itf) {
+		return new Match(Type.OUT_INTERFACE, false, itf, 0, 0, ANY_PORT,
+				ANY_PORT);
+	}
+
+	public static Match destination(String prefix, boolean negated) {
+		return new Match(Type.DESTINATION, negated, prefix, 0, 0, ANY_PORT,
+				ANY_PORT);
+	}
+
+	public static Match protocol(String proto, int sport, int dport) {
+		return new Match(Type.PROTOCOL, false, proto, 0, 0, sport, dport);
+	}
+
+	public static Match mark(String markAndMask) {
+		return new Match(Type.MARK, false, markAndMask, 0, 0, ANY_PORT,
+				ANY_PORT);
+	}
+
+	public static Match limit(String rate) {
+		return new Match(Type.LIMIT, false, rate, 0, 0, ANY_PORT, ANY_PORT);
+	}
+
+	public static Match state(String states) {
+		return new Match(Type.STATE, false, states, 0, 0, ANY_PORT, ANY_PORT);
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (!(o instanceof Match)) {
+			return false;
+		}
+		final Match that = (Match) o;
+		return this.type == that.type && this.negated == that.negated
+				&& (this.value == null ? that.value == null : this.value
+						.equals(that.value)) && this.uidFrom == that.uidFrom
+				&& this.uidTo == that.uidTo && this.sport == that.sport
+				&& this.dport == that.dport;
+	}
+
+	@Override
+	public int hashCode() {
+		int h = type.hashCode();
+		h = 31 * h + (negated ? 1 : 0);
+		h = 31 * h + (value == null ? 0 : value.hashCode());
+		h = 31 * h + uidFrom;
+		h = 31 * h + uidTo;
+		h = 31 * h + sport;
+		h = 31 * h + dport;
+		return h;
+	}
+}
@@ -0,0 +1,309 @@
+/**
+ * Renders a ruleset as an nftables script.
+ *
+ * Copyright (C) 2012-2014	Jason Tschohl
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * @author Jason Tschohl
+ * @version 1.0
+ */
+
+package com.jtschohl.androidfirewall.rules;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Installs the ruleset as one nftables table per address family, replaced
+ * atomically by a single "nft -f" call. Consecutive per-UID rules of a chain
+ * become one "meta skuid vmap" lookup, so classifying a packet no longer walks
+ * one rule per application. If nft refuses the script, the fallback emitter
+ * installs the iptables rules instead; on success our iptables hooks are
+ * removed so packets are not filtered twice.
+ */
+public class NftEmitter implements Emitter {
+
+	private static final String EOF_MARKER = "__AF_NFT_EOF__";
+
+	private final String tableName;
+	private final Emitter fallback;
+
+	/**
+	 * @param tableName
+	 *            name of the nftables tables (the chain name preference)
+	 * @param fallback
+	 *            emitter used if nft fails
+	 */
+	public NftEmitter(String tableName, Emitter fallback) {
+		this.tableName = tableName;
+		this.fallback = fallback;
+	}
+
+	@Override
+	public String render(Ruleset rules) {
+		final StringBuilder res = new StringBuilder();
+		res.append("NFT=nft\n");
+		res.append("if $NFT -f /dev/stdin <<'").append(EOF_MARKER)
+				.append("'\n");
+		res.append(script(rules));
+		res.append(EOF_MARKER).append('\n');
+		res.append("then\n");
+		for (Table table : rules.getTables()) {
+			for (Table.Hook hook : table.getHooks()) {
+				res.append("while ").append(table.family.binary)
+						.append(" -D ").append(hook.builtin).append(" -j ")
+						.append(hook.chain).append(" 2>/dev/null ; do : ; done\n");
+			}
+		}
+		res.append("else\n");
+		res.append(fallback.render(rules));
+		res.append("fi\n");
+		return res.toString();
+	}
+
+	/**
+	 * Render the nft script. Existing tables of both families are deleted
+	 * first (declaring a table before deleting it keeps the delete from
+	 * failing if it does not exist), all in the same transaction.
+	 *
+	 * @param rules
+	 *            the ruleset
+	 * @return the script for "nft -f"
+	 */
+	public String script(Ruleset rules) {
+		final StringBuilder res = new StringBuilder();
+		for (Family family : Family.values()) {
+			res.append("table ").append(family.nftFamily).append(' ')
+					.append(tableName).append('\n');
+			res.append("delete table ").append(family.nftFamily).append(' ')
+					.append(tableName).append('\n');
+		}
+		for (Table table : rules.getTables()) {
+			res.append("table ").append(table.family.nftFamily).append(' ')
+					.append(tableName).append(" {\n");
+			// declare every chain first, so jumps never refer to a chain
+			// that does not exist yet
+			for (Chain chain : table.getChains()) {
+				res.append("\tchain ").append(chain.name).append(" {\n\t}\n");
+			}
+			for (Chain chain : table.getChains()) {
+				res.append("\tchain ").append(chain.name).append(" {\n");
+				appendRules(res, table.family, chain.getRules());
+				res.append("\t}\n");
+			}
+			for (Table.Hook hook : table.getHooks()) {
+				res.append("\tchain ").append(hook.builtin).append(" {\n");
+				res.append("\t\ttype filter hook ")
+						.append(hook.builtin.toLowerCase(Locale.US))
+						.append(" priority 0; policy accept;\n");
+				res.append("\t\tjump ").append(hook.chain).append('\n');
+				res.append("\t}\n");
+			}
+			res.append("}\n");
+		}
+		return res.toString();
+	}
+
+	/**
+	 * Render the rules of a chain, merging runs of per-UID verdicts into a
+	 * verdict map
+	 */
+	private static void appendRules(StringBuilder res, Family family,
+			List<Rule> rules) {
+		final List<Rule> run = new ArrayList<Rule>();
+		for (Rule rule : rules) {
+			if (isMapEntry(rule) && !overlaps(run, rule)) {
+				run.add(rule);
+				continue;
+			}
+			appendRun(res, family, run);
+			run.clear();
+			if (isMapEntry(rule)) {
+				run.add(rule);
+			} else {
+				appendRule(res, family, rule);
+			}
+		}
+		appendRun(res, family, run);
+	}
+
+	/**
+	 * @return true if the rule only matches on a UID (range) and ends in a
+	 *         verdict, so it can be an entry of a verdict map
+	 */
+	private static boolean isMapEntry(Rule rule) {
+		if (rule.matches.size() != 1
+				|| rule.matches.get(0).type != Match.Type.OWNER) {
+			return false;
+		}
+		switch (rule.target.type) {
+		case RETURN:
+		case ACCEPT:
+		case JUMP:
+		case GOTO:
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	/**
+	 * The first matching rule wins, so a rule whose UIDs overlap an earlier
+	 * entry cannot join the same map
+	 */
+	private static boolean overlaps(List<Rule> run, Rule rule) {
+		final Match m = rule.matches.get(0);
+		for (Rule r : run) {
+			final Match o = r.matches.get(0);
+			if (m.uidFrom <= o.uidTo && o.uidFrom <= m.uidTo) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static void appendRun(StringBuilder res, Family family,
+			List<Rule> run) {
+		if (run.size() == 1) {
+			appendRule(res, family, run.get(0));
+			return;
+		}
+		if (run.isEmpty()) {
+			return;
+		}
+		res.append("\t\tmeta skuid vmap { ");
+		for (int i = 0; i < run.size(); i++) {
+			if (i > 0) {
+				res.append(", ");
+			}
+			final Rule rule = run.get(i);
+			appendUids(res, rule.matches.get(0));
+			res.append(" : ");
+			appendTarget(res, rule.target);
+		}
+		res.append(" }\n");
+	}
+
+	private static void appendRule(StringBuilder res, Family family, Rule rule) {
+		res.append("\t\t");
+		for (Match m : rule.matches) {
+			appendMatch(res, family, m);
+			res.append(' ');
+		}
+		appendTarget(res, rule.target);
+		res.append('\n');
+	}
+
+	private static void appendUids(StringBuilder res, Match m) {
+		res.append(m.uidFrom);
+		if (m.uidTo != m.uidFrom) {
+			res.append('-').append(m.uidTo);
+		}
+	}
+
+	private static void appendMatch(StringBuilder res, Family family, Match m) {
+		switch (m.type) {
+		case OWNER:
+			res.append("meta skuid ");
+			appendUids(res, m);
+			break;
+		case OUT_INTERFACE:
+			// iptables uses "+" as the wildcard, nftables "*"
+			res.append("oifname \"").append(m.value.replace('+', '*'))
+					.append('"');
+			break;
+		case DESTINATION:
+			res.append(family.nftFamily).append(" daddr ");
+			if (m.negated) {
+				res.append("!= ");
+			}
+			res.append(m.value);
+			break;
+		case PROTOCOL:
+			if (m.sport == Match.ANY_PORT && m.dport == Match.ANY_PORT) {
+				res.append("meta l4proto ").append(m.value);
+				break;
+			}
+			if (m.sport != Match.ANY_PORT) {
+				res.append(m.value).append(" sport ").append(m.sport);
+			}
+			if (m.dport != Match.ANY_PORT) {
+				if (m.sport != Match.ANY_PORT) {
+					res.append(' ');
+				}
+				res.append(m.value).append(" dport ").append(m.dport);
+			}
+			break;
+		case MARK:
+			// "value/mask"
+			final int slash = m.value.indexOf('/');
+			if (slash < 0) {
+				res.append("meta mark ").append(m.value);
+			} else {
+				res.append("meta mark and ")
+						.append(m.value.substring(slash + 1)).append(" == ")
+						.append(m.value.substring(0, slash));
+			}
+			break;
+		case LIMIT:
+			res.append("limit rate ").append(limitRate(m.value));
+			break;
+		case STATE:
+			res.append("ct state ").append(m.value.toLowerCase(Locale.US));
+			break;
+		}
+	}
+
+	/**
+	 * Translate an iptables rate ("1000/min") to nftables syntax
+	 * ("1000/minute")
+	 */
+	private static String limitRate(String rate) {
+		final int slash = rate.indexOf('/');
+		if (slash < 0) {
+			return rate + "/second";
+		}
+		final String unit = rate.substring(slash + 1);
+		final String[] units = { "second", "minute", "hour", "day" };
+		for (String u : units) {
+			if (u.startsWith(unit)) {
+				return rate.substring(0, slash + 1) + u;
+			}
+		}
+		return rate;
+	}
+
+	private static void appendTarget(StringBuilder res, Target t) {
+		switch (t.type) {
+		case JUMP:
+			res.append("jump ").append(t.value);
+			break;
+		case GOTO:
+			res.append("goto ").append(t.value);
+			break;
+		case LOG:
+			res.append("log prefix \"").append(t.value)
+					.append("\" level warn flags skuid");
+			break;
+		case NFLOG:
+			res.append("log prefix \"").append(t.value).append("\" group 0");
+			break;
+		default:
+			res.append(t.type.name().toLowerCase(Locale.US));
+			break;
+		}
+	}
+}
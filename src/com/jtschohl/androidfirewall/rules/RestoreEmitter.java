@@ -0,0 +1,88 @@
+/**
+ * Renders a ruleset as iptables-restore payloads.
+ *
+ * Copyright (C) 2012-2014	Jason Tschohl
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * @author Jason Tschohl
+ * @version 1.0
+ */
+
+package com.jtschohl.androidfirewall.rules;
+
+/**
+ * Commits each table with a single "iptables-restore --noflush" call, so the
+ * kernel swaps all chains in one transaction instead of one read-modify-write
+ * per rule. Chain creation and hooks stay in the shell prologue so the
+ * payload can rely on them. If the restore binary is missing or refuses the
+ * payload, the per-rule commands of the ShellEmitter run instead. Tables with
+ * a custom script always use the per-rule commands, since the script relies
+ * on running between the generated rules.
+ */
+public class RestoreEmitter implements Emitter {
+
+	private static final String EOF_MARKER = "__AF_RESTORE_EOF__";
+
+	@Override
+	public String render(Ruleset rules) {
+		final StringBuilder res = new StringBuilder();
+		for (Table table : rules.getTables()) {
+			res.append(table.family.restoreVar).append('=')
+					.append(table.family.restoreName).append('\n');
+			ShellEmitter.appendPrologue(res, table);
+			if (table.getCustomScript() != null) {
+				ShellEmitter.appendBody(res, table);
+				continue;
+			}
+			res.append("# Commit the rules in one transaction, one command per rule if that fails\n");
+			res.append("if ! $").append(table.family.restoreVar)
+					.append(" --noflush <<'").append(EOF_MARKER).append("'\n");
+			res.append(payload(table));
+			res.append(EOF_MARKER).append('\n');
+			res.append("then\n");
+			ShellEmitter.appendReplace(res, table);
+			res.append("else\n");
+			ShellEmitter.appendHooksToTop(res, table);
+			res.append("fi\n");
+		}
+		return res.toString();
+	}
+
+	/**
+	 * Render the iptables-restore payload of a table. Declaring a chain in
+	 * --noflush mode flushes it, so the payload replaces our chains and
+	 * leaves everything else alone. The hooks are moved by the shell after
+	 * the commit, a -D of a missing jump would fail the whole payload.
+	 *
+	 * @param table
+	 *            the table
+	 * @return the payload
+	 */
+	public static String payload(Table table) {
+		final StringBuilder res = new StringBuilder();
+		res.append("*filter\n");
+		for (Chain chain : table.getChains()) {
+			res.append(':').append(chain.name).append(" - [0:0]\n");
+		}
+		for (Chain chain : table.getChains()) {
+			for (Rule rule : chain.getRules()) {
+				res.append("-A ").append(chain.name).append(' ')
+						.append(IptablesSyntax.spec(rule, false)).append('\n');
+			}
+		}
+		res.append("COMMIT\n");
+		return res.toString();
+	}
+}
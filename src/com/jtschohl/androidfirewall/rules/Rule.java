@@ -0,0 +1,73 @@
+/**
+ * A single firewall rule.
+ *
+ * Copyright (C) 2012-2014	Jason Tschohl
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * @author Jason Tschohl
+ * @version 1.0
+ */
+
+package com.jtschohl.androidfirewall.rules;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Immutable rule: all matches must apply for the target to be taken.
+ */
+public final class Rule implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	public final List<Match> matches;
+	public final Target target;
+
+	public Rule(Target target, Match... matches) {
+		this.target = target;
+		this.matches = Collections.unmodifiableList(Arrays.asList(matches));
+	}
+
+	/**
+	 * @param type
+	 *            match type
+	 * @return the first match of the given type, or null
+	 */
+	public Match getMatch(Match.Type type) {
+		for (Match m : matches) {
+			if (m.type == type) {
+				return m;
+			}
+		}
+		return null;
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (!(o instanceof Rule)) {
+			return false;
+		}
+		final Rule that = (Rule) o;
+		return this.target.equals(that.target)
+				&& this.matches.equals(that.matches);
+	}
+
+	@Override
+	public int hashCode() {
+		return 31 * target.hashCode() + matches.hashCode();
+	}
+}
@@ -0,0 +1,535 @@
+/**
+ * Compiles the firewall settings into a ruleset.
+ *
+ * Copyright (C) 2009-2011  Rodrigo Zechin Rosauro
+ * Copyright (C) 2012-2014	Jason Tschohl
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * @author Rodrigo Zechin Rosauro
+ * @author Jason Tschohl
+ * @version 1.0
+ *
+ *          Many thanks to Ventz for his independent work with the VPN rules
+ *          and figuring out how to get the VPN functionality he wanted and
+ *          then forwarding the rules to me to implement in the app.
+ */
+
+package com.jtschohl.androidfirewall.rules;
+
+import java.util.List;
+
+/**
+ * Turns a FirewallConfig into a Ruleset. The same policy is compiled for
+ * IPv4 and (if enabled) IPv6; only the LAN networks differ between them.
+ * <p>
+ * In white list mode, selecting "any application" for VPN or LAN lets every
+ * packet of that class through. The old script generator rejected them all
+ * after the (empty) list of selected UIDs, so "any" blocked everything.
+ */
+public final class RuleCompiler {
+
+	/** log prefixes, also used by the log parser */
+	public static final String LOG_PREFIX = "[AndroidFirewall]";
+	public static final String LOG_PREFIX_ACCEPT = "[AndroidFirewallAccept]";
+
+	/** longest chain name iptables takes (XT_EXTENSION_MAXNAMELEN - 1) */
+	public static final int MAX_CHAIN_NAME_LENGTH = 28;
+
+	private static final String LOG_RATE = "1000/min";
+	/** UID used by tethering (dnsmasq) */
+	private static final int TETHER_UID = 9999;
+
+	private final FirewallConfig cfg;
+	/** owner rules saved by merging UIDs into ranges */
+	private int uidRulesSaved = 0;
+
+	private RuleCompiler(FirewallConfig cfg) {
+		this.cfg = cfg;
+	}
+
+	/**
+	 * Compile the firewall rules
+	 *
+	 * @param cfg
+	 *            firewall settings
+	 * @return the compiled ruleset
+	 */
+	public static Ruleset compile(FirewallConfig cfg) {
+		checkChainName(cfg.chainName);
+		final RuleCompiler compiler = new RuleCompiler(cfg);
+		final Ruleset rules = new Ruleset();
+		compiler.compileTable(rules.add(Family.IPV4), cfg.lanIpv4);
+		if (cfg.ipv6Enabled) {
+			compiler.compileTable(rules.add(Family.IPV6), cfg.lanIpv6);
+		}
+		rules.setUidRulesSaved(compiler.uidRulesSaved);
+		return rules;
+	}
+
+	/**
+	 * Check that iptables takes the names of all our chains, including the
+	 * shadow chains the rules are built in by ShellEmitter
+	 *
+	 * @throws IllegalArgumentException
+	 *             if the base name is too long
+	 */
+	static void checkChainName(String chainName) {
+		for (String chain : chainNames(chainName)) {
+			final String shadow = ShellEmitter.shadowName(chainName, chain);
+			if (shadow.length() > MAX_CHAIN_NAME_LENGTH) {
+				throw new IllegalArgumentException("chain name \""
+						+ chainName + "\" is too long: \"" + shadow
+						+ "\" has " + shadow.length()
+						+ " characters, iptables takes "
+						+ MAX_CHAIN_NAME_LENGTH);
+			}
+		}
+	}
+
+	/**
+	 * Compile the boot lockdown, the rules that hold until the full rules are
+	 * in: applications and root are rejected, except for the DNS and DHCP
+	 * queries of root. System UIDs and packets without a socket (the kernel)
+	 * pass.
+	 *
+	 * @param cfg
+	 *            firewall settings, only the chain name and IPv6 are used
+	 * @return the lockdown ruleset
+	 */
+	public static Ruleset compileLockdown(FirewallConfig cfg) {
+		final Ruleset rules = new Ruleset();
+		compileLockdownTable(rules.add(Family.IPV4), cfg.chainName, 67);
+		if (cfg.ipv6Enabled) {
+			compileLockdownTable(rules.add(Family.IPV6), cfg.chainName, 547);
+		}
+		return rules;
+	}
+
+	/**
+	 * @return name of the boot lockdown chain
+	 */
+	public static String lockdownChainName(String chainName) {
+		return chainName + "-boot";
+	}
+
+	private static void compileLockdownTable(Table table, String chainName,
+			int dhcpPort) {
+		final Chain boot = table.chain(lockdownChainName(chainName));
+		table.addHook("OUTPUT", boot.name);
+		boot.append(Target.RETURN, Match.outInterface("lo"));
+		boot.append(Target.RETURN, Match.owner(0),
+				Match.protocol("udp", Match.ANY_PORT, 53));
+		boot.append(Target.RETURN, Match.owner(0),
+				Match.protocol("tcp", Match.ANY_PORT, 53));
+		boot.append(Target.RETURN, Match.owner(0),
+				Match.protocol("udp", Match.ANY_PORT, dhcpPort));
+		boot.append(Target.REJECT, Match.owner(0));
+		boot.append(Target.REJECT,
+				Match.owner(FirewallConfig.FIRST_APP_UID, Match.MAX_UID));
+	}
+
+	/**
+	 * Fill the LAN dispatch chain: one rule per LAN network, shared by all
+	 * Wi-Fi interfaces; the gotos return to main like the jumps they replace.
+	 * A change of the LAN networks only changes this chain.
+	 *
+	 * @param lanDispatch
+	 *            the empty chain
+	 * @param chainName
+	 *            base name of the chains
+	 * @param lanNets
+	 *            the LAN networks of the family
+	 */
+	public static void compileLanDispatch(Chain lanDispatch,
+			String chainName, List<String> lanNets) {
+		for (String net : lanNets) {
+			lanDispatch.append(Target.gotoChain(chainName + "-lan"),
+					Match.destination(net, false));
+		}
+		if (!lanNets.isEmpty()) {
+			lanDispatch.append(Target.gotoChain(chainName + "-wifi"));
+		}
+	}
+
+	/**
+	 * @return name of the LAN dispatch chain
+	 */
+	public static String lanDispatchChainName(String chainName) {
+		return chainName + "-lan-dispatch";
+	}
+
+	/**
+	 * Names of the chains created by the compiler
+	 */
+	public static String[] chainNames(String chainName) {
+		return new String[] { chainName, chainName + "-3g",
+				chainName + "-wifi", chainName + "-reject",
+				chainName + "-accept", chainName + "-input-accept",
+				chainName + "-input-drop", chainName + "-vpn",
+				chainName + "-lan", chainName + "-input",
+				chainName + "-3g-home", chainName + "-3g-roam",
+				chainName + "-lan-dispatch", chainName + "-unseen" };
+	}
+
+	private void compileTable(Table table, List<String> lanNets) {
+		final String name = cfg.chainName;
+		// create all chains up front, in a stable order
+		for (String chain : chainNames(name)) {
+			table.chain(chain);
+		}
+		final Chain main = table.chain(name);
+		final Chain chain3g = table.chain(name + "-3g");
+		final Chain wifi = table.chain(name + "-wifi");
+		final Chain reject = table.chain(name + "-reject");
+		final Chain accept = table.chain(name + "-accept");
+		final Chain inputAccept = table.chain(name + "-input-accept");
+		final Chain inputDrop = table.chain(name + "-input-drop");
+		final Chain vpn = table.chain(name + "-vpn");
+		final Chain lan = table.chain(name + "-lan");
+		final Chain input = table.chain(name + "-input");
+		final Chain home = table.chain(name + "-3g-home");
+		final Chain roam = table.chain(name + "-3g-roam");
+		final Chain lanDispatch = table.chain(name + "-lan-dispatch");
+		final Chain unseen = table.chain(name + "-unseen");
+
+		table.addHook("INPUT", input.name);
+		table.addHook("OUTPUT", main.name);
+
+		// fix for WiFi slow DNS lookups
+		main.append(Target.RETURN, Match.owner(0),
+				Match.protocol("udp", Match.ANY_PORT, 53));
+		main.append(Target.RETURN, Match.owner(1000),
+				Match.protocol("udp", Match.ANY_PORT, 123));
+
+		compileLogChains(table.family, reject, inputDrop, accept, inputAccept);
+
+		if (cfg.tetherEnabled) {
+			for (int uid : new int[] { 0, TETHER_UID }) {
+				main.append(Target.RETURN, Match.owner(uid),
+						Match.protocol("udp", 67, 68));
+				main.append(Target.RETURN, Match.owner(uid),
+						Match.protocol("udp", 53, Match.ANY_PORT));
+				main.append(Target.RETURN, Match.owner(uid),
+						Match.protocol("tcp", 53, Match.ANY_PORT));
+				main.append(Target.RETURN, Match.owner(uid),
+						Match.protocol("udp", Match.ANY_PORT, 53));
+				main.append(Target.RETURN, Match.owner(uid),
+						Match.protocol("tcp", Match.ANY_PORT, 53));
+			}
+		}
+		if (table.family == Family.IPV4 && cfg.customScript.length() > 0) {
+			table.setCustomScript(cfg.customScript, main);
+		}
+
+		// main rules (per interface)
+		for (String itf : cfg.itfs3g) {
+			main.append(Target.jump(chain3g.name), Match.outInterface(itf));
+		}
+		final Chain wifiEntry = !cfg.lanEnabled ? wifi
+				: !lanNets.isEmpty() ? lanDispatch : null;
+		if (wifiEntry != null) {
+			for (String itf : cfg.itfsWifi) {
+				main.append(Target.jump(wifiEntry.name),
+						Match.outInterface(itf));
+			}
+		}
+		if (cfg.itfs3gUnseen.length > 0 || cfg.itfsWifiUnseen.length > 0) {
+			// an interface of a pruned pattern may show up before the rules
+			// are applied again, it must not pass unfiltered; the known
+			// interfaces leave this chain first
+			main.append(Target.jump(unseen.name));
+			unseen.append(Target.RETURN, Match.outInterface("lo"));
+			for (String[] itfs : new String[][] { cfg.itfs3g, cfg.itfsWifi }) {
+				for (String itf : itfs) {
+					unseen.append(Target.RETURN, Match.outInterface(itf));
+				}
+			}
+			for (String itf : cfg.itfs3gUnseen) {
+				unseen.append(Target.jump(chain3g.name),
+						Match.outInterface(itf));
+			}
+			if (wifiEntry != null) {
+				for (String itf : cfg.itfsWifiUnseen) {
+					unseen.append(Target.jump(wifiEntry.name),
+							Match.outInterface(itf));
+				}
+			}
+		}
+		final boolean lanPending = wifiEntry == null
+				&& (cfg.itfsWifi.length > 0 || cfg.itfsWifiUnseen.length > 0);
+		if (cfg.lanEnabled) {
+			compileLanDispatch(lanDispatch, name, lanNets);
+		}
+		if (lanPending) {
+			// for preventing leaks after device connects to WiFi: when a
+			// device gets an ip the intent needs to fire so block connection
+			// until Auto rules fire
+			wifi.append(Target.REJECT);
+		}
+		if (cfg.vpnEnabled) {
+			for (String itf : cfg.itfsVpn) {
+				main.append(Target.jump(vpn.name), Match.outInterface(itf));
+			}
+			if (cfg.vpnMarks) {
+				main.append(Target.gotoChain(vpn.name),
+						Match.mark("0x3c/0xfffc"));
+				main.append(Target.gotoChain(vpn.name),
+						Match.mark("0x40/0xfff8"));
+			}
+		}
+		if (cfg.tetherEnabled) {
+			for (String itf : cfg.itfsTether) {
+				main.append(Target.RETURN, Match.outInterface(itf));
+			}
+		}
+
+		// filtering rules
+		final Target target = cfg.whitelist ? Target.RETURN : Target
+				.jump(reject.name);
+		final boolean any3g = cfg.uids3g.indexOf(FirewallConfig.SPECIAL_UID_ANY) >= 0;
+		final boolean anyWifi = cfg.uidsWifi
+				.indexOf(FirewallConfig.SPECIAL_UID_ANY) >= 0;
+		if (cfg.whitelist && !anyWifi) {
+			// When "white listing" wifi, we need to ensure that the dhcp and
+			// wifi users are allowed
+			if (cfg.dhcpUid != -1) {
+				wifi.append(Target.RETURN, Match.owner(cfg.dhcpUid));
+			}
+			if (cfg.wifiUid != -1) {
+				wifi.append(Target.RETURN, Match.owner(cfg.wifiUid));
+			}
+		}
+		// with roaming rules both variants are compiled and the 3G chain goes
+		// to one of them, so a roaming change only replaces that rule
+		final boolean split = cfg.roamingEnabled && !any3g;
+		if (any3g && !cfg.whitelist) {
+			/* block any application on this interface */
+			chain3g.append(target);
+		} else if (split) {
+			insertUids(home, cfg.uids3g, target);
+			insertUids(roam, cfg.uidsRoaming, target);
+			chain3g.append(Target.gotoChain(cfg.roaming ? roam.name
+					: home.name));
+		} else {
+			/* release/block individual applications on this interface */
+			insertUids(chain3g, cfg.uids3g, target);
+		}
+		chain3g.insert(Target.RETURN, Match.owner(TETHER_UID));
+		if (anyWifi && !cfg.whitelist) {
+			wifi.append(target);
+		} else {
+			appendUids(wifi, cfg.uidsWifi, target);
+		}
+		if (split) {
+			compileDefault(main, home, reject, accept, cfg.uids3g, any3g);
+			compileDefault(null, roam, reject, accept, cfg.uids3g, any3g);
+		} else {
+			compileDefault(main, chain3g, reject, accept, cfg.uids3g, any3g);
+		}
+		compileDefault(main, wifi, reject, accept, cfg.uidsWifi, anyWifi);
+		if (cfg.vpnEnabled) {
+			compileClass(vpn, reject, target, cfg.uidsVpn);
+		}
+		if (cfg.lanEnabled) {
+			compileClass(lan, reject, target, cfg.uidsLan);
+		}
+		if (cfg.inputEnabled) {
+			compileInput(input, inputDrop, inputAccept, target);
+		}
+	}
+
+	/**
+	 * Fill the reject/accept chains, with logging if enabled
+	 */
+	private void compileLogChains(Family family, Chain reject,
+			Chain inputDrop, Chain accept, Chain inputAccept) {
+		final String target = family == Family.IPV6 ? cfg.logTargetIpv6
+				: cfg.logTarget;
+		if (cfg.logEnabled) {
+			final Target log = logTarget(target, LOG_PREFIX);
+			if (log != null) {
+				appendLog(reject, log);
+				if (cfg.inputEnabled) {
+					appendLog(inputDrop, log);
+				}
+			}
+		}
+		reject.append(Target.REJECT);
+		if (cfg.inputEnabled) {
+			inputDrop.append(Target.REJECT);
+		}
+		if (cfg.logAcceptEnabled) {
+			final Target log = logTarget(target, LOG_PREFIX_ACCEPT);
+			if (log != null) {
+				appendLog(accept, log);
+				accept.append(Target.RETURN);
+				if (cfg.inputEnabled) {
+					appendLog(inputAccept, log);
+					inputAccept.append(Target.RETURN);
+				}
+			}
+		}
+	}
+
+	private static Target logTarget(String target, String prefix) {
+		if (target.equals("LOG")) {
+			return Target.log(prefix);
+		} else if (target.equals("NFLOG")) {
+			return Target.nflog(prefix);
+		}
+		return null;
+	}
+
+	private static void appendLog(Chain chain, Target log) {
+		if (log.type == Target.Type.LOG) {
+			chain.append(log, Match.limit(LOG_RATE));
+		} else {
+			chain.append(log);
+		}
+	}
+
+	/**
+	 * Insert one rule per UID range at the head of the chain
+	 */
+	private void insertUids(Chain chain, List<Integer> uids, Target target) {
+		final List<int[]> ranges = compactUids(uids);
+		for (int i = ranges.size() - 1; i >= 0; i--) {
+			final int[] range = ranges.get(i);
+			chain.insert(target, Match.owner(range[0], range[1]));
+		}
+	}
+
+	/**
+	 * Append one rule per UID range to the chain
+	 */
+	private void appendUids(Chain chain, List<Integer> uids, Target target) {
+		for (int[] range : compactUids(uids)) {
+			chain.append(target, Match.owner(range[0], range[1]));
+		}
+	}
+
+	private List<int[]> compactUids(List<Integer> uids) {
+		final List<int[]> ranges = cfg.ownerRanges ? UidRanges.compact(uids,
+				cfg.installedUids) : UidRanges.single(uids);
+		int selected = 0;
+		for (Integer uid : uids) {
+			if (uid >= 0) {
+				selected++;
+			}
+		}
+		uidRulesSaved += selected - ranges.size();
+		return ranges;
+	}
+
+	/**
+	 * Default verdict of the 3G and Wi-Fi chains, including the kernel hacks.
+	 * The accept logging rules go to main, unless it is null.
+	 */
+	private void compileDefault(Chain main, Chain chain, Chain reject,
+			Chain accept, List<Integer> uids, boolean any) {
+		final boolean kernel = uids.indexOf(FirewallConfig.SPECIAL_UID_KERNEL) >= 0;
+		if (cfg.whitelist) {
+			if (any) {
+				return;
+			}
+			if (kernel) {
+				// hack to allow kernel packets on white-list
+				if (cfg.logAcceptEnabled && main != null) {
+					main.append(Target.jump(accept.name), Match.anyOwner());
+				}
+				chain.append(Target.jump(reject.name), Match.anyOwner());
+			} else {
+				if (cfg.logAcceptEnabled && main != null) {
+					main.append(Target.jump(accept.name));
+				}
+				chain.append(Target.jump(reject.name));
+			}
+		} else if (kernel) {
+			// hack to BLOCK kernel packets on black-list
+			chain.append(Target.RETURN, Match.anyOwner());
+			if (cfg.logAcceptEnabled && main != null) {
+				main.append(Target.jump(accept.name));
+			}
+			chain.append(Target.jump(reject.name));
+		}
+	}
+
+	/**
+	 * Rules of the VPN and LAN chains
+	 */
+	private void compileClass(Chain chain, Chain reject, Target target,
+			List<Integer> uids) {
+		final boolean any = uids.indexOf(FirewallConfig.SPECIAL_UID_ANY) >= 0;
+		final boolean kernel = uids.indexOf(FirewallConfig.SPECIAL_UID_KERNEL) >= 0;
+		if (any && !cfg.whitelist) {
+			chain.append(target);
+		} else {
+			insertUids(chain, uids, target);
+		}
+		if (cfg.whitelist) {
+			// "any" passes, like on 3G and Wi-Fi
+			if (!any) {
+				if (kernel) {
+					chain.append(Target.jump(reject.name), Match.anyOwner());
+				} else {
+					chain.append(Target.jump(reject.name));
+				}
+			}
+		} else if (kernel) {
+			chain.append(Target.RETURN, Match.anyOwner());
+			chain.append(Target.jump(reject.name));
+		}
+	}
+
+	/**
+	 * Rules of the input chain
+	 */
+	private void compileInput(Chain input, Chain inputDrop, Chain inputAccept,
+			Target target) {
+		final List<Integer> uids = cfg.uidsInputWifi;
+		final boolean any = uids.indexOf(FirewallConfig.SPECIAL_UID_ANY) >= 0;
+		final boolean kernel = uids.indexOf(FirewallConfig.SPECIAL_UID_KERNEL) >= 0;
+		if (any && !cfg.whitelist) {
+			input.append(target);
+		} else {
+			insertUids(input, uids, target);
+		}
+		if (cfg.whitelist) {
+			if (!any) {
+				if (kernel) {
+					input.append(Target.jump(inputDrop.name), Match.anyOwner());
+				} else {
+					input.append(Target.jump(inputDrop.name));
+				}
+			}
+			if (cfg.logAcceptEnabled) {
+				if (kernel && !any) {
+					input.append(Target.jump(inputAccept.name),
+							Match.anyOwner());
+				} else {
+					input.append(Target.jump(inputAccept.name));
+				}
+			}
+		} else if (kernel) {
+			input.append(Target.RETURN, Match.anyOwner());
+			input.append(Target.jump(inputDrop.name));
+			if (cfg.logAcceptEnabled) {
+				input.append(Target.jump(inputAccept.name));
+			}
+		}
+		input.insert(Target.RETURN, Match.owner(0));
+		input.insert(Target.ACCEPT, Match.state("ESTABLISHED,RELATED"));
+	}
+}
@@ -0,0 +1,141 @@
+/**
+ * A compiled firewall ruleset.
+ *
+ * Copyright (C) 2012-2014	Jason Tschohl
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * @author Jason Tschohl
+ * @version 1.0
+ */
+
+package com.jtschohl.androidfirewall.rules;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Output of the RuleCompiler: one table per enabled address family.
+ */
+public final class Ruleset implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	private final List<Table> tables = new ArrayList<Table>();
+	private int uidRulesSaved = 0;
+
+	public Table add(Family family) {
+		final Table table = new Table(family);
+		tables.add(table);
+		return table;
+	}
+
+	/**
+	 * @return the table for the given family, or null if the family is not
+	 *         firewalled
+	 */
+	public Table get(Family family) {
+		for (Table table : tables) {
+			if (table.family == family) {
+				return table;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Replace one chain without compiling the ruleset again. The rulesets
+	 * share all other chains, neither may be changed afterwards.
+	 *
+	 * @param family
+	 *            family of the table holding the chain
+	 * @param chain
+	 *            replaces the chain of the same name
+	 * @return the new ruleset
+	 */
+	public Ruleset copyWith(Family family, Chain chain) {
+		final Ruleset copy = new Ruleset();
+		for (Table table : tables) {
+			copy.tables.add(table.family == family ? table.copyWith(chain)
+					: table);
+		}
+		copy.uidRulesSaved = uidRulesSaved;
+		return copy;
+	}
+
+	public List<Table> getTables() {
+		return Collections.unmodifiableList(tables);
+	}
+
+	/**
+	 * @return true if any table runs a user-defined script
+	 */
+	public boolean hasCustomScript() {
+		for (Table table : tables) {
+			if (table.getCustomScript() != null) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return number of rules in all tables
+	 */
+	public int ruleCount() {
+		int count = 0;
+		for (Table table : tables) {
+			count += table.ruleCount();
+		}
+		return count;
+	}
+
+	/**
+	 * @return number of owner rules saved by merging UIDs into ranges
+	 */
+	public int getUidRulesSaved() {
+		return uidRulesSaved;
+	}
+
+	void setUidRulesSaved(int saved) {
+		this.uidRulesSaved = saved;
+	}
+
+	/**
+	 * Check whether a UID is covered by a merged UID range. A newly
+	 * installed application may get such a UID, so the rules must be
+	 * recompiled to keep it from inheriting the verdict of the range.
+	 *
+	 * @param uid
+	 *            the UID
+	 * @return true if a range rule (other than "all UIDs") contains it
+	 */
+	public boolean rangeContains(int uid) {
+		for (Table table : tables) {
+			for (Chain chain : table.getChains()) {
+				for (Rule rule : chain.getRules()) {
+					final Match m = rule.getMatch(Match.Type.OWNER);
+					if (m != null && m.uidFrom != m.uidTo
+							&& m.uidTo != Match.MAX_UID && m.uidFrom <= uid
+							&& uid <= m.uidTo) {
+						return true;
+					}
+				}
+			}
+		}
+		return false;
+	}
+}
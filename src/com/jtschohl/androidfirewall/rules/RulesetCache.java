@@ -0,0 +1,196 @@
+/**
+ * On-disk cache of compiled rulesets.
+ *
+ * Copyright (C) 2012-2014	Jason Tschohl
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * @author Jason Tschohl
+ * @version 1.0
+ */
+
+package com.jtschohl.androidfirewall.rules;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Compiled rulesets by FirewallConfig.digest(), one file each, so that a
+ * new process (boot, widget, Tasker) with unchanged settings neither
+ * compiles nor renders the rules. Next to the ruleset the script of the
+ * full emitter is kept, the one used when no ruleset is known to be
+ * applied. The most recently used entries are kept.
+ */
+public final class RulesetCache {
+
+	/** bump when the ruleset classes or the emitters change */
+	private static final int FORMAT = 1;
+	private static final String SUFFIX = ".ruleset";
+
+	/**
+	 * A cached ruleset
+	 */
+	public static final class Entry {
+		public final Ruleset rules;
+		/** class name of the emitter that rendered the payload */
+		public final String emitter;
+		/** full install script, null if not rendered yet */
+		public final String payload;
+
+		Entry(Ruleset rules, String emitter, String payload) {
+			this.rules = rules;
+			this.emitter = emitter;
+			this.payload = payload;
+		}
+
+		/**
+		 * @return the payload if it was rendered by the given emitter
+		 */
+		public String getPayload(Emitter full) {
+			return full.getClass().getName().equals(emitter) ? payload : null;
+		}
+	}
+
+	private final File dir;
+	private final int maxEntries;
+	private int hits = 0;
+	private int misses = 0;
+
+	/**
+	 * @param dir
+	 *            directory of the cache files, created if necessary
+	 * @param maxEntries
+	 *            number of rulesets to keep
+	 */
+	public RulesetCache(File dir, int maxEntries) {
+		this.dir = dir;
+		this.maxEntries = maxEntries;
+	}
+
+	/**
+	 * @param key
+	 *            digest of the settings
+	 * @return the cached ruleset, or null if unknown or unreadable
+	 */
+	public synchronized Entry get(String key) {
+		final File file = new File(dir, key + SUFFIX);
+		if (!file.exists()) {
+			misses++;
+			return null;
+		}
+		ObjectInputStream in = null;
+		try {
+			in = new ObjectInputStream(new BufferedInputStream(
+					new FileInputStream(file)));
+			if (in.readInt() != FORMAT || !key.equals(in.readUTF())) {
+				misses++;
+				return null;
+			}
+			final Ruleset rules = (Ruleset) in.readObject();
+			final String emitter = (String) in.readObject();
+			final String payload = (String) in.readObject();
+			// most recently used
+			file.setLastModified(System.currentTimeMillis());
+			hits++;
+			return new Entry(rules, emitter, payload);
+		} catch (IOException e) {
+			file.delete();
+		} catch (ClassNotFoundException e) {
+			file.delete();
+		} catch (ClassCastException e) {
+			file.delete();
+		} finally {
+			if (in != null) {
+				try {
+					in.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+		misses++;
+		return null;
+	}
+
+	/**
+	 * Store a ruleset, dropping the least recently used ones over the limit
+	 *
+	 * @param key
+	 *            digest of the settings
+	 * @param rules
+	 *            the ruleset compiled from them
+	 * @param full
+	 *            the emitter of the payload
+	 * @param payload
+	 *            script of the full emitter, null if not rendered
+	 * @throws IOException
+	 *             if the entry can't be written
+	 */
+	public synchronized void put(String key, Ruleset rules, Emitter full,
+			String payload) throws IOException {
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("can't create " + dir);
+		}
+		final File tmp = new File(dir, key + ".tmp");
+		final ObjectOutputStream out = new ObjectOutputStream(
+				new BufferedOutputStream(new FileOutputStream(tmp)));
+		try {
+			out.writeInt(FORMAT);
+			out.writeUTF(key);
+			out.writeObject(rules);
+			out.writeObject(full.getClass().getName());
+			// may be longer than writeUTF allows
+			out.writeObject(payload);
+		} finally {
+			out.close();
+		}
+		// readers never see a partial entry
+		if (!tmp.renameTo(new File(dir, key + SUFFIX))) {
+			tmp.delete();
+			throw new IOException("can't store " + key);
+		}
+		trim();
+	}
+
+	private void trim() {
+		final File[] files = dir.listFiles();
+		if (files == null || files.length <= maxEntries) {
+			return;
+		}
+		Arrays.sort(files, new Comparator<File>() {
+			@Override
+			public int compare(File a, File b) {
+				final long diff = b.lastModified() - a.lastModified();
+				return diff < 0 ? -1 : diff > 0 ? 1 : 0;
+			}
+		});
+		for (int i = maxEntries; i < files.length; i++) {
+			files[i].delete();
+		}
+	}
+
+	/**
+	 * @return hit and miss counts, for the log
+	 */
+	public synchronized String getStats() {
+		return "ruleset cache hits: " + hits + ", misses: " + misses;
+	}
+}
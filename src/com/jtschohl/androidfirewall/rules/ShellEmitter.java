@@ -0,0 +1,276 @@
+/**
+ * Renders a ruleset as one iptables command per rule.
+ *
+ * Copyright (C) 2012-2014	Jason Tschohl
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * @author Jason Tschohl
+ * @version 1.0
+ */
+
+package com.jtschohl.androidfirewall.rules;
+
+/**
+ * The legacy backend: one iptables call per rule. Works everywhere, including
+ * the bundled iptables binary on old releases, and is the only backend able
+ * to run custom scripts.
+ * <p>
+ * Flushing and refilling the live chains would let packets through (white
+ * list) or block everything (black list) while the rules are rewritten, so
+ * the new rules are built in shadow chains ("&lt;chain&gt;-b-*") first. The
+ * jumps from the built-in chains are then repointed with a single -R each,
+ * the old chains are deleted and the shadow chains renamed, leaving the usual
+ * chain names behind. Tables with a custom script are still flushed in place,
+ * since the script adds its own rules to the live chains.
+ */
+public class ShellEmitter implements Emitter {
+
+	// exit codes of the generated script
+	private static final int EXIT_VERSION = 1;
+	private static final int EXIT_CREATE = 3;
+	private static final int EXIT_HOOK = 11;
+	private static final int EXIT_FLUSH = 17;
+	private static final int EXIT_RULE = 30;
+	private static final int EXIT_SWAP = 40;
+
+	/** inserted after the base chain name to get the shadow chain name */
+	private static final String SHADOW = "-b";
+
+	@Override
+	public String render(Ruleset rules) {
+		final StringBuilder res = new StringBuilder();
+		for (Table table : rules.getTables()) {
+			if (table.getCustomScript() != null) {
+				appendPrologue(res, table);
+				appendBody(res, table);
+			} else {
+				appendSwap(res, table);
+			}
+		}
+		return res.toString();
+	}
+
+	/**
+	 * Replace the rules of a table without flushing a live chain (or using
+	 * the flush if the table has a custom script). Requires the prologue to
+	 * have run.
+	 */
+	static void appendReplace(StringBuilder res, Table table) {
+		if (table.getCustomScript() != null) {
+			appendBody(res, table);
+		} else {
+			appendSwap(res, table);
+		}
+	}
+
+	/**
+	 * Binary check, chain creation and hooks. Idempotent, never changes the
+	 * rules of an existing chain.
+	 */
+	static void appendPrologue(StringBuilder res, Table table) {
+		final String ipt = table.family.binary;
+		res.append(ipt).append(" --version || exit ").append(EXIT_VERSION)
+				.append('\n');
+		res.append("# Create the droidwall chains if necessary\n");
+		for (Chain chain : table.getChains()) {
+			res.append(ipt).append(" -L ").append(chain.name)
+					.append(" >/dev/null 2>/dev/null || ").append(ipt)
+					.append(" --new ").append(chain.name).append(" || exit ")
+					.append(EXIT_CREATE).append('\n');
+		}
+		res.append("# Add the droidwall chains to the built-in chains if necessary\n");
+		for (Table.Hook hook : table.getHooks()) {
+			// the exact rule, a name match would also find "<chain>-boot"
+			res.append(ipt).append(" -C ").append(hook.builtin)
+					.append(" -j ").append(hook.chain)
+					.append(" 2>/dev/null || ").append(ipt).append(" -A ")
+					.append(hook.builtin).append(" -j ").append(hook.chain)
+					.append(" || exit ").append(EXIT_HOOK).append('\n');
+		}
+	}
+
+	/**
+	 * Move the hooks of a table to the top of the built-in chains. The new
+	 * jump is inserted before the old ones are deleted, so the chain stays
+	 * hooked throughout, and a missing old jump is no error.
+	 */
+	static void appendHooksToTop(StringBuilder res, Table table) {
+		final String ipt = table.family.binary;
+		for (Table.Hook hook : table.getHooks()) {
+			res.append(ipt).append(" -I ").append(hook.builtin)
+					.append(" 1 -j ").append(hook.chain).append(" || exit ")
+					.append(EXIT_HOOK + 1).append('\n');
+			res.append("while AF_POS=$(").append(ipt).append(" -L ")
+					.append(hook.builtin)
+					.append(" -n --line-numbers | while read n t r ; do [ \"$t\" = \"")
+					.append(hook.chain)
+					.append("\" ] && [ \"$n\" != 1 ] && $ECHO $n && break ; done) ; [ -n \"$AF_POS\" ] ; do\n");
+			res.append(ipt).append(" -D ").append(hook.builtin)
+					.append(" $AF_POS || exit ").append(EXIT_HOOK)
+					.append('\n');
+			res.append("done\n");
+		}
+	}
+
+	/**
+	 * Flush, refill and move the hooks to the top of the built-in chains.
+	 * Requires the prologue to have run.
+	 */
+	static void appendBody(StringBuilder res, Table table) {
+		final String ipt = table.family.binary;
+		res.append("# Flush existing rules\n");
+		for (Chain chain : table.getChains()) {
+			res.append(ipt).append(" -F ").append(chain.name)
+					.append(" || exit ").append(EXIT_FLUSH).append('\n');
+		}
+		res.append("# Filtering rules\n");
+		Chain last = null;
+		for (Chain chain : table.getChains()) {
+			if (chain.name.equals(table.getCustomScriptChain())) {
+				// filled last so the custom script sees all other chains
+				last = chain;
+			} else {
+				appendRules(res, table, chain);
+			}
+		}
+		if (last != null) {
+			appendRules(res, table, last);
+		}
+		appendHooksToTop(res, table);
+	}
+
+	/**
+	 * Build the rules in shadow chains, repoint the hooks, then drop the old
+	 * chains and rename the shadow ones. Works whether or not the prologue
+	 * has run.
+	 */
+	private static void appendSwap(StringBuilder res, Table table) {
+		final String ipt = table.family.binary;
+		final String base = baseName(table);
+		res.append(ipt).append(" --version || exit ").append(EXIT_VERSION)
+				.append('\n');
+		res.append("# Build the new rules in shadow chains\n");
+		for (Chain chain : table.getChains()) {
+			final String shadow = shadowName(base, chain.name);
+			res.append(ipt).append(" -N ").append(shadow)
+					.append(" 2>/dev/null\n");
+			// left over by an interrupted apply
+			res.append(ipt).append(" -F ").append(shadow).append(" || exit ")
+					.append(EXIT_FLUSH).append('\n');
+		}
+		for (Chain chain : table.getChains()) {
+			final String shadow = shadowName(base, chain.name);
+			for (Rule rule : chain.getRules()) {
+				res.append(ipt).append(" -A ").append(shadow).append(' ')
+						.append(IptablesSyntax.spec(
+								shadowRule(table, base, rule), true))
+						.append(" || exit ").append(EXIT_RULE).append('\n');
+			}
+		}
+		res.append("# Repoint the built-in chains at the shadow chains\n");
+		for (Table.Hook hook : table.getHooks()) {
+			final String shadow = shadowName(base, hook.chain);
+			res.append("AF_POS=$(").append(ipt).append(" -L ")
+					.append(hook.builtin)
+					.append(" -n --line-numbers | while read n t r ; do [ \"$t\" = \"")
+					.append(hook.chain)
+					.append("\" ] && $ECHO $n && break ; done)\n");
+			res.append("if [ -n \"$AF_POS\" ] ; then\n");
+			res.append(ipt).append(" -R ").append(hook.builtin)
+					.append(" $AF_POS -j ").append(shadow).append(" || exit ")
+					.append(EXIT_HOOK).append('\n');
+			res.append("else\n");
+			res.append(ipt).append(" -I ").append(hook.builtin)
+					.append(" 1 -j ").append(shadow).append(" || exit ")
+					.append(EXIT_HOOK + 1).append('\n');
+			res.append("fi\n");
+			// duplicate jumps to the old chain would keep it referenced
+			res.append("while ").append(ipt).append(" -D ")
+					.append(hook.builtin).append(" -j ").append(hook.chain)
+					.append(" 2>/dev/null ; do : ; done\n");
+		}
+		res.append("# Drop the old chains and rename the shadow chains\n");
+		for (Chain chain : table.getChains()) {
+			res.append(ipt).append(" -F ").append(chain.name)
+					.append(" 2>/dev/null\n");
+		}
+		for (Chain chain : table.getChains()) {
+			res.append(ipt).append(" -X ").append(chain.name)
+					.append(" 2>/dev/null\n");
+		}
+		for (Chain chain : table.getChains()) {
+			res.append(ipt).append(" -E ")
+					.append(shadowName(base, chain.name)).append(' ')
+					.append(chain.name).append(" || exit ").append(EXIT_SWAP)
+					.append('\n');
+		}
+	}
+
+	/**
+	 * @return the name all chains of the table start with (the main chain)
+	 */
+	private static String baseName(Table table) {
+		String base = null;
+		for (Chain chain : table.getChains()) {
+			if (base == null || chain.name.length() < base.length()) {
+				base = chain.name;
+			}
+		}
+		return base;
+	}
+
+	static String shadowName(String base, String chain) {
+		return base + SHADOW + chain.substring(base.length());
+	}
+
+	/**
+	 * @return the rule with jumps to our chains pointing at the shadow chains
+	 */
+	private static Rule shadowRule(Table table, String base, Rule rule) {
+		final Target t = rule.target;
+		if ((t.type != Target.Type.JUMP && t.type != Target.Type.GOTO)
+				|| table.getChain(t.value) == null) {
+			return rule;
+		}
+		final String shadow = shadowName(base, t.value);
+		final Match[] matches = rule.matches.toArray(new Match[0]);
+		return new Rule(t.type == Target.Type.JUMP ? Target.jump(shadow)
+				: Target.gotoChain(shadow), matches);
+	}
+
+	private static void appendRules(StringBuilder res, Table table,
+			Chain chain) {
+		final boolean custom = chain.name.equals(table.getCustomScriptChain());
+		int index = 0;
+		for (Rule rule : chain.getRules()) {
+			if (custom && index == table.getCustomScriptIndex()) {
+				appendCustomScript(res, table.getCustomScript());
+			}
+			res.append(table.family.binary).append(" -A ").append(chain.name)
+					.append(' ').append(IptablesSyntax.spec(rule, true))
+					.append(" || exit ").append(EXIT_RULE).append('\n');
+			index++;
+		}
+		if (custom && index <= table.getCustomScriptIndex()) {
+			appendCustomScript(res, table.getCustomScript());
+		}
+	}
+
+	private static void appendCustomScript(StringBuilder res, String script) {
+		res.append("\n# BEGIN OF CUSTOM SCRIPT (user-defined)\n");
+		res.append(script);
+		res.append("\n# END OF CUSTOM SCRIPT (user-defined)\n\n");
+	}
+}
@@ -0,0 +1,151 @@
+/**
+ * The firewall chains of one address family.
+ *
+ * Copyright (C) 2012-2014	Jason Tschohl
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * @author Jason Tschohl
+ * @version 1.0
+ */
+
+package com.jtschohl.androidfirewall.rules;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * User chains of the filter table for one family, plus the jumps from the
+ * built-in chains (OUTPUT, INPUT) into them.
+ */
+public final class Table implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * Jump from a built-in chain into one of our chains. Hooks are always
+	 * kept in the first position of the built-in chain.
+	 */
+	public static final class Hook implements Serializable {
+
+		private static final long serialVersionUID = 1L;
+
+		public final String builtin;
+		public final String chain;
+
+		public Hook(String builtin, String chain) {
+			this.builtin = builtin;
+			this.chain = chain;
+		}
+	}
+
+	public final Family family;
+	private final Map<String, Chain> chains = new LinkedHashMap<String, Chain>();
+	private final List<Hook> hooks = new ArrayList<Hook>();
+
+	/** user-defined shell script, run while the given chain is filled */
+	private String customScript = null;
+	private String customScriptChain = null;
+	private int customScriptIndex = -1;
+
+	public Table(Family family) {
+		this.family = family;
+	}
+
+	/**
+	 * Get a chain, creating it if necessary
+	 */
+	public Chain chain(String name) {
+		Chain chain = chains.get(name);
+		if (chain == null) {
+			chain = new Chain(name);
+			chains.put(name, chain);
+		}
+		return chain;
+	}
+
+	public Chain getChain(String name) {
+		return chains.get(name);
+	}
+
+	/**
+	 * @return the chains in creation order
+	 */
+	public Collection<Chain> getChains() {
+		return Collections.unmodifiableCollection(chains.values());
+	}
+
+	public void addHook(String builtin, String chain) {
+		hooks.add(new Hook(builtin, chain));
+	}
+
+	public List<Hook> getHooks() {
+		return Collections.unmodifiableList(hooks);
+	}
+
+	/**
+	 * Run a user-defined script after the current last rule of a chain.
+	 * Only emitters that can run shell commands are able to honour this.
+	 */
+	public void setCustomScript(String script, Chain chain) {
+		this.customScript = script;
+		this.customScriptChain = chain.name;
+		this.customScriptIndex = chain.size();
+	}
+
+	public String getCustomScript() {
+		return customScript;
+	}
+
+	public String getCustomScriptChain() {
+		return customScriptChain;
+	}
+
+	public int getCustomScriptIndex() {
+		return customScriptIndex;
+	}
+
+	/**
+	 * @param chain
+	 *            replaces the chain of the same name
+	 * @return a copy of the table sharing all other chains
+	 */
+	Table copyWith(Chain chain) {
+		final Table copy = new Table(family);
+		for (Chain c : chains.values()) {
+			copy.chains.put(c.name, c.name.equals(chain.name) ? chain : c);
+		}
+		copy.hooks.addAll(hooks);
+		copy.customScript = customScript;
+		copy.customScriptChain = customScriptChain;
+		copy.customScriptIndex = customScriptIndex;
+		return copy;
+	}
+
+	/**
+	 * @return total number of rules in all chains
+	 */
+	public int ruleCount() {
+		int count = 0;
+		for (Chain chain : chains.values()) {
+			count += chain.size();
+		}
+		return count;
+	}
+}
@@ -0,0 +1,90 @@
+/**
+ * The verdict of a firewall rule.
+ *
+ * Copyright (C) 2012-2014	Jason Tschohl
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * @author Jason Tschohl
+ * @version 1.0
+ */
+
+package com.jtschohl.androidfirewall.rules;
+
+import java.io.Serializable;
+
+/**
+ * Immutable rule target. Use the constants or the static factory methods.
+ */
+public final class Target implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	public enum Type {
+		RETURN, ACCEPT, REJECT,
+		/** jump to a user chain and come back */
+		JUMP,
+		/** go to a user chain without coming back */
+		GOTO,
+		/** kernel log (dmesg) */
+		LOG,
+		/** netlink log (read by the nflog binary) */
+		NFLOG
+	}
+
+	public static final Target RETURN = new Target(Type.RETURN, null);
+	public static final Target ACCEPT = new Target(Type.ACCEPT, null);
+	public static final Target REJECT = new Target(Type.REJECT, null);
+
+	public final Type type;
+	/** chain name for JUMP/GOTO, log prefix for LOG/NFLOG */
+	public final String value;
+
+	private Target(Type type, String value) {
+		this.type = type;
+		this.value = value;
+	}
+
+	public static Target jump(String chain) {
+		return new Target(Type.JUMP, chain);
+	}
+
+	public static Target gotoChain(String chain) {
+		return new Target(Type.GOTO, chain);
+	}
+
+	public static Target log(String prefix) {
+		return new Target(Type.LOG, prefix);
+	}
+
+	public static Target nflog(String prefix) {
+		return new Target(Type.NFLOG, prefix);
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (!(o instanceof Target)) {
+			return false;
+		}
+		final Target that = (Target) o;
+		return this.type == that.type
+				&& (this.value == null ? that.value == null : this.value
+						.equals(that.value));
+	}
+
+	@Override
+	public int hashCode() {
+		return 31 * type.hashCode() + (value == null ? 0 : value.hashCode());
+	}
+}
@@ -0,0 +1,115 @@
+/**
+ * Merges selected UIDs into owner ranges.
+ *
+ * Copyright (C) 2012-2014	Jason Tschohl
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * @author Jason Tschohl
+ * @version 1.0
+ */
+
+package com.jtschohl.androidfirewall.rules;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Turns a list of selected UIDs into as few "--uid-owner from:to" ranges as
+ * possible. Adjacent UIDs are always merged. Above
+ * FirewallConfig.FIRST_APP_UID the gap between two selected UIDs is also
+ * bridged if no installed application owns a UID inside it, so the range
+ * only covers UIDs with the same verdict or nobody at all. Gaps are only bridged within the application UIDs of one
+ * user: system UIDs have daemons such as dhcp without a package, and the
+ * isolated processes (99000-99999) and the other users' applications
+ * (100000 and up) are not in the list of installed applications.
+ */
+final class UidRanges {
+
+	/** last UID handed out to installed applications (per user) */
+	static final int LAST_APPLICATION_UID = 19999;
+	/** UIDs of one user (UserHandle.PER_USER_RANGE) */
+	static final int PER_USER_RANGE = 100000;
+
+	private UidRanges() {
+	}
+
+	/**
+	 * @param uids
+	 *            selected UIDs, special (negative) UIDs are skipped
+	 * @param installed
+	 *            sorted UIDs of all installed applications, null if unknown
+	 *            (then only adjacent UIDs are merged)
+	 * @return the ranges as {from, to} pairs, in ascending order
+	 */
+	static List<int[]> compact(List<Integer> uids, int[] installed) {
+		final int[] sorted = new int[uids.size()];
+		int count = 0;
+		for (Integer uid : uids) {
+			if (uid >= 0) {
+				sorted[count++] = uid;
+			}
+		}
+		Arrays.sort(sorted, 0, count);
+		final List<int[]> ranges = new ArrayList<int[]>();
+		int[] range = null;
+		for (int i = 0; i < count; i++) {
+			final int uid = sorted[i];
+			if (range != null
+					&& (uid <= range[1] + 1 || canBridge(range[1], uid,
+							installed))) {
+				range[1] = uid;
+			} else {
+				range = new int[] { uid, uid };
+				ranges.add(range);
+			}
+		}
+		return ranges;
+	}
+
+	/**
+	 * For kernels whose owner match takes no ranges
+	 *
+	 * @param uids
+	 *            selected UIDs, special (negative) UIDs are skipped
+	 * @return one {uid, uid} pair per UID, in ascending order
+	 */
+	static List<int[]> single(List<Integer> uids) {
+		final List<int[]> ranges = new ArrayList<int[]>();
+		for (int[] range : compact(uids, null)) {
+			for (int uid = range[0]; uid <= range[1]; uid++) {
+				ranges.add(new int[] { uid, uid });
+			}
+		}
+		return ranges;
+	}
+
+	/**
+	 * @return true if both are application UIDs of the same user and no
+	 *         installed application owns a UID between them (both exclusive)
+	 */
+	private static boolean canBridge(int from, int to, int[] installed) {
+		if (installed == null || from / PER_USER_RANGE != to / PER_USER_RANGE
+				|| from % PER_USER_RANGE < FirewallConfig.FIRST_APP_UID
+				|| to % PER_USER_RANGE > LAST_APPLICATION_UID) {
+			return false;
+		}
+		int pos = Arrays.binarySearch(installed, from + 1);
+		if (pos < 0) {
+			pos = -pos - 1;
+		}
+		return pos >= installed.length || installed[pos] >= to;
+	}
+}
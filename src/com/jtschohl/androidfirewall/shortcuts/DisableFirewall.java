@@ -24,8 +24,10 @@ package com.jtschohl.androidfirewall.shortcuts;
 
 import com.jtschohl.androidfirewall.Api;
 import com.jtschohl.androidfirewall.R;
+import com.jtschohl.androidfirewall.RulesApplier;
 
 import android.app.Activity;
+import android.content.Context;
 import android.content.SharedPreferences;
 import android.os.Bundle;
 import android.os.Handler;
@@ -51,15 +53,21 @@ public class DisableFirewall extends Activity {
 		final String newPwd = getApplicationContext().getSharedPreferences(
 				Api.PREFS_NAME, 0).getString("validationPassword", "");
 		if (oldPwd.length() == 0 && newPwd.length() == 0) {
-			if (Api.purgeIptables(getApplicationContext(), false)) {
-
-				msg.arg1 = R.string.toast_disabled;
-				handler.sendMessage(msg);
-				Api.setEnabled(getApplicationContext(), false);
-			} else {
-				msg.arg1 = R.string.toast_error_disabling;
-				handler.sendMessage(msg);
-			}
+			final Context ctx = getApplicationContext();
+			RulesApplier.purgeIptables(ctx, false,
+					new RulesApplier.Callback() {
+						@Override
+						public void onComplete(boolean success) {
+							if (success) {
+								msg.arg1 = R.string.toast_disabled;
+								handler.sendMessage(msg);
+								Api.setEnabled(ctx, false);
+							} else {
+								msg.arg1 = R.string.toast_error_disabling;
+								handler.sendMessage(msg);
+							}
+						}
+					});
 		} else {
 			msg.arg1 = R.string.widget_fail;
 			handler.sendMessage(msg);
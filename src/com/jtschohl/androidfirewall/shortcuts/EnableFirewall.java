@@ -23,6 +23,7 @@
 package com.jtschohl.androidfirewall.shortcuts;
 
 import android.app.Activity;
+import android.content.Context;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Message;
@@ -30,6 +31,7 @@ import android.widget.Toast;
 
 import com.jtschohl.androidfirewall.Api;
 import com.jtschohl.androidfirewall.R;
+import com.jtschohl.androidfirewall.RulesApplier;
 
 public class EnableFirewall extends Activity {
 
@@ -44,14 +46,21 @@ public class EnableFirewall extends Activity {
 			}
 		};
 		final Message msg = new Message();
-		if (Api.applySavedIptablesRules(getApplicationContext(), false)) {
-				msg.arg1 = R.string.toast_enabled;
-				handler.sendMessage(msg);
-			Api.setEnabled(getApplicationContext(), true);
-		} else {
-				msg.arg1 = R.string.toast_error_enabling;
-				handler.sendMessage(msg);
-		}
+		final Context ctx = getApplicationContext();
+		RulesApplier.applySavedIptablesRules(ctx, false,
+				new RulesApplier.Callback() {
+					@Override
+					public void onComplete(boolean success) {
+						if (success) {
+							msg.arg1 = R.string.toast_enabled;
+							handler.sendMessage(msg);
+							Api.setEnabled(ctx, true);
+						} else {
+							msg.arg1 = R.string.toast_error_enabling;
+							handler.sendMessage(msg);
+						}
+					}
+				});
 		finish();
 	}
 }
\ No newline at end of file
@@ -34,6 +34,7 @@ import android.widget.Toast;
 
 import com.jtschohl.androidfirewall.Api;
 import com.jtschohl.androidfirewall.R;
+import com.jtschohl.androidfirewall.RulesApplier;
 
 public class Profile3 extends Activity {
 
@@ -74,14 +75,14 @@ public class Profile3 extends Activity {
 		Api.applications = null;
 		toggleUserSettings(getApplicationContext());
 		if (Api.isEnabled(getApplicationContext())) {
-			Api.applyIptablesRules(getApplicationContext(), true);
+			RulesApplier.applyIptablesRules(getApplicationContext(), true, null);
 			if (toastenabled) {
 				Toast.makeText(getApplicationContext(), R.string.tasker_profile,
 						Toast.LENGTH_LONG).show();
 			}
 		} else {
 			Api.saveRules(getApplicationContext());
-			Api.purgeIptables(getApplicationContext(), true);
+			RulesApplier.purgeIptables(getApplicationContext(), true, null);
 			if (toastenabled) {
 				Toast.makeText(getApplicationContext(), R.string.tasker_profile_disabled,
 						Toast.LENGTH_LONG).show();
@@ -23,6 +23,7 @@ package com.jtschohl.androidfirewall;
 
 import android.app.Activity;
 import android.content.Context;
+import android.os.AsyncTask;
 import android.os.Bundle;
 import android.util.Log;
 import android.view.KeyEvent;
@@ -45,15 +46,30 @@ public class showLog extends Activity {
 
 		final String logtarget = getApplicationContext().getSharedPreferences(
 				Api.PREFS_NAME, 0).getString(Api.PREF_LOGTARGET, "");
-		if (logtarget.equals("LOG")) {
-			String logs = Api.showLog(getApplicationContext());
-			TextView text = (TextView) findViewById(R.id.showlogs);
-			Log.d(logs, "debugaf");
-			text.setText(logs);
-		}
-		if (logtarget.equals("NFLOG")){
-			setData("");
-	        populateData(this);
+		if (logtarget.equals("LOG") || logtarget.equals("NFLOG")) {
+			setData(getString(R.string.please_wait));
+			// the kernel log needs root and the history reads its segments
+			new AsyncTask<Void, Void, String>() {
+				@Override
+				protected String doInBackground(Void... params) {
+					final Context ctx = getApplicationContext();
+					return logtarget.equals("LOG") ? Api.showLog(ctx) : Api
+							.showNflog(ctx);
+				}
+
+				@Override
+				protected void onPostExecute(String logs) {
+					if (isFinishing()) {
+						return;
+					}
+					if (logs == null) {
+						setData(getString(R.string.log_parse_error));
+					} else {
+						Log.d(logs, "debugaf");
+						setData(logs);
+					}
+				}
+			}.execute();
 		}
 	}
 
@@ -66,10 +82,6 @@ public class showLog extends Activity {
 		}
 	}
 	
-	protected void populateData(final Context ctx) {
-			parseAndSet(ctx, NflogService.fetchLogs());
-			return;
-	}
 	@Override
 	public boolean onKeyDown(int keyCode, KeyEvent event) {
 		if ((keyCode == KeyEvent.KEYCODE_BACK)) {
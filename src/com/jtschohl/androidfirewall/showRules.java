@@ -22,6 +22,8 @@
 package com.jtschohl.androidfirewall;
 
 import android.app.Activity;
+import android.content.Context;
+import android.os.AsyncTask;
 import android.os.Bundle;
 import android.util.Log;
 import android.view.KeyEvent;
@@ -33,10 +35,21 @@ public class showRules extends Activity {
 	public void onCreate(Bundle savedInstanceState) {
 		super.onCreate(savedInstanceState);
 		this.setContentView(R.layout.rules_layout);
-		String rules = Api.showIptablesRules(getApplicationContext());
-		TextView text = (TextView) findViewById(R.id.showrules);
-		Log.d(rules, "debugaf");
-		text.setText(rules);
+		final Context ctx = getApplicationContext();
+		final TextView text = (TextView) findViewById(R.id.showrules);
+		// listing the rules runs a root script, keep it off the UI thread
+		new AsyncTask<Void, Void, String>() {
+			@Override
+			protected String doInBackground(Void... params) {
+				return Api.showIptablesRules(ctx);
+			}
+
+			@Override
+			protected void onPostExecute(String rules) {
+				Log.d(rules, "debugaf");
+				text.setText(rules);
+			}
+		}.execute();
 	}
 
 	@Override
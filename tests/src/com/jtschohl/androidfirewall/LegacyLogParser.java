@@ -0,0 +1,100 @@
+/**
+ * The log aggregation as it was before LogLine, for the benchmark.
+ *
+ * Copyright (C) 2012-2014	Jason Tschohl
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * @author Jason Tschohl
+ * @version 1.0
+ */
+
+package com.jtschohl.androidfirewall;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.HashMap;
+
+import android.util.SparseArray;
+
+/**
+ * Counting loop of Api.showLog()/parseLog() before the shared parser, minus
+ * the formatting: every line is split off, each field is found with its own
+ * indexOf() and counted by substring.
+ */
+final class LegacyLogParser {
+
+	static final class LogInfo {
+		int totalBlocked;
+		final HashMap<String, Integer> dstBlocked = new HashMap<String, Integer>();
+		final HashMap<String, Integer> srcBlocked = new HashMap<String, Integer>();
+		final HashMap<String, Integer> dptBlocked = new HashMap<String, Integer>();
+		final HashMap<String, Integer> protoBlocked = new HashMap<String, Integer>();
+	}
+
+	private LegacyLogParser() {
+	}
+
+	static SparseArray<LogInfo> parse(String log, String logstring)
+			throws IOException {
+		final BufferedReader r = new BufferedReader(new StringReader(log));
+		final Integer unknownUID = -99;
+		String line;
+		int start, end;
+		Integer appid;
+		final SparseArray<LogInfo> map = new SparseArray<LogInfo>();
+		LogInfo loginfo = null;
+		while ((line = r.readLine()) != null) {
+			if (line.indexOf(logstring) == -1)
+				continue;
+			appid = unknownUID;
+			if (((start = line.indexOf("UID=")) != -1)
+					&& ((end = line.indexOf(" ", start)) != -1)) {
+				appid = Integer.parseInt(line.substring(start + 4, end));
+			}
+			loginfo = map.get(appid);
+			if (loginfo == null) {
+				loginfo = new LogInfo();
+				map.put(appid, loginfo);
+			}
+			loginfo.totalBlocked += 1;
+			if (((start = line.indexOf("DST=")) != -1)
+					&& ((end = line.indexOf(" ", start)) != -1)) {
+				count(loginfo.dstBlocked, line.substring(start + 4, end));
+			}
+			if (((start = line.indexOf("PROTO=")) != -1)
+					&& ((end = line.indexOf(" ", start)) != -1)) {
+				count(loginfo.protoBlocked, line.substring(start + 6, end));
+			}
+			if (((start = line.indexOf("SRC=")) != -1)
+					&& ((end = line.indexOf(" ", start)) != -1)) {
+				count(loginfo.srcBlocked, line.substring(start + 4, end));
+			}
+			if (((start = line.indexOf("DPT=")) != -1)
+					&& ((end = line.indexOf(" ", start)) != -1)) {
+				count(loginfo.dptBlocked, line.substring(start + 4, end));
+			}
+		}
+		return map;
+	}
+
+	private static void count(HashMap<String, Integer> map, String key) {
+		if (map.containsKey(key)) {
+			map.put(key, map.get(key) + 1);
+		} else {
+			map.put(key, 1);
+		}
+	}
+}
@@ -0,0 +1,214 @@
+/**
+ * Tests of the log line parser.
+ *
+ * Copyright (C) 2012-2014	Jason Tschohl
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * @author Jason Tschohl
+ * @version 1.0
+ */
+
+package com.jtschohl.androidfirewall;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class LogLineTest {
+
+	static final String TAG = "[AndroidFirewall]";
+
+	static final String TCP = "<4>[ 5412.774505] [AndroidFirewall] IN="
+			+ " OUT=wlan0 SRC=192.168.1.23 DST=173.194.70.94 LEN=60"
+			+ " TOS=0x00 PREC=0x00 TTL=64 ID=4660 DF PROTO=TCP SPT=41352"
+			+ " DPT=443 WINDOW=14600 RES=0x00 SYN URGP=0 UID=10050 GID=10050";
+	static final String UDP = "<4>[ 5413.001207] [AndroidFirewall] IN="
+			+ " OUT=rmnet0 SRC=10.34.1.7 DST=8.8.8.8 LEN=59 TOS=0x00"
+			+ " PREC=0x00 TTL=64 ID=0 DF PROTO=UDP SPT=5353 DPT=53 LEN=39"
+			+ " UID=10061 GID=10061";
+	static final String ICMP = "<4>[ 5413.552000] [AndroidFirewall] IN="
+			+ " OUT=wlan0 SRC=192.168.1.23 DST=192.168.1.1 LEN=84 TOS=0x00"
+			+ " PREC=0x00 TTL=64 ID=0 DF PROTO=ICMP TYPE=8 CODE=0 ID=2817"
+			+ " SEQ=1 UID=0 GID=0";
+	static final String IPV6 = "<4>[ 5414.100230] [AndroidFirewall] IN="
+			+ " OUT=wlan0 SRC=2001:0db8:0000:0000:0000:0000:0000:0017"
+			+ " DST=2a00:1450:4001:0811:0000:0000:0000:200e LEN=80 TC=0"
+			+ " HOPLIMIT=64 FLOWLBL=0 PROTO=TCP SPT=50412 DPT=443"
+			+ " WINDOW=14400 RES=0x00 SYN URGP=0 UID=10050 GID=10050";
+	static final String ICMPV6 = "<4>[ 5414.200000] [AndroidFirewall] IN="
+			+ " OUT=wlan0 SRC=fe80:0000:0000:0000:0000:0000:0000:0017"
+			+ " DST=ff02:0000:0000:0000:0000:0000:0000:0002 LEN=56 TC=0"
+			+ " HOPLIMIT=255 FLOWLBL=0 PROTO=ICMPv6 TYPE=133 CODE=0";
+
+	private final LogLine line = new LogLine();
+
+	@Test
+	public void tcp() {
+		assertTrue(line.parse(TCP, TAG));
+		assertEquals(10050, line.uid);
+		assertTrue(line.srcV4);
+		assertEquals("192.168.1.23", LogLine.formatIpv4(line.src));
+		assertTrue(line.dstV4);
+		assertEquals("173.194.70.94", LogLine.formatIpv4(line.dst));
+		assertEquals(LogLine.PROTO_TCP, line.proto);
+		assertEquals(41352, line.spt);
+		assertEquals(443, line.dpt);
+		assertEquals("wlan0", itf());
+	}
+
+	@Test
+	public void udp() {
+		assertTrue(line.parse(UDP, TAG));
+		assertEquals(10061, line.uid);
+		assertEquals("8.8.8.8", LogLine.formatIpv4(line.dst));
+		assertEquals(LogLine.PROTO_UDP, line.proto);
+		assertEquals(5353, line.spt);
+		assertEquals(53, line.dpt);
+		assertEquals("rmnet0", itf());
+	}
+
+	@Test
+	public void icmpHasNoPorts() {
+		assertTrue(line.parse(ICMP, TAG));
+		assertEquals(0, line.uid);
+		assertEquals(LogLine.PROTO_ICMP, line.proto);
+		assertEquals(LogLine.NONE, line.spt);
+		assertEquals(LogLine.NONE, line.dpt);
+		assertEquals("ICMP", line.getProto());
+	}
+
+	@Test
+	public void ipv6AddressesStayText() {
+		assertTrue(line.parse(IPV6, TAG));
+		assertFalse(line.srcV4);
+		assertFalse(line.dstV4);
+		assertEquals("2001:0db8:0000:0000:0000:0000:0000:0017",
+				line.getSrc());
+		assertEquals("2a00:1450:4001:0811:0000:0000:0000:200e",
+				line.getDst());
+		assertEquals(LogLine.PROTO_TCP, line.proto);
+		assertEquals(443, line.dpt);
+		assertEquals(10050, line.uid);
+	}
+
+	@Test
+	public void icmpv6WithoutUid() {
+		assertTrue(line.parse(ICMPV6, TAG));
+		assertEquals(LogLine.PROTO_ICMPV6, line.proto);
+		assertEquals("ICMPv6", LogLine.protoName(line.proto));
+		assertEquals(LogLine.UNKNOWN_UID, line.uid);
+		assertEquals(LogLine.NONE, line.dpt);
+	}
+
+	@Test
+	public void otherProtocols() {
+		assertTrue(line.parse(TAG + " OUT=wlan0 SRC=10.0.0.1 DST=10.0.0.2"
+				+ " PROTO=47 UID=1000", TAG));
+		assertEquals(47, line.proto);
+		assertTrue(line.parse(TAG + " OUT=wlan0 SRC=10.0.0.1 DST=10.0.0.2"
+				+ " PROTO=SCTP UID=1000", TAG));
+		assertEquals(LogLine.PROTO_OTHER, line.proto);
+		assertEquals("SCTP", line.getProto());
+	}
+
+	@Test
+	public void otherTagsAreSkipped() {
+		assertFalse(line.parse("<6>[ 12.0] wlan0: associated", TAG));
+		assertFalse(line.parse(TCP, "[AndroidFirewallAccept]"));
+	}
+
+	@Test
+	public void truncatedLines() {
+		// cut off by the kernel log buffer in the middle of a value
+		assertTrue(line.parse(TCP.substring(0, TCP.indexOf("DST=") + 9), TAG));
+		assertTrue(line.srcV4);
+		assertFalse(line.dstV4);
+		assertEquals("173.1", line.getDst());
+		assertEquals(LogLine.NONE, line.proto);
+		assertEquals(LogLine.UNKNOWN_UID, line.uid);
+
+		assertTrue(line.parse(TAG + " OUT=wlan0 SRC=10.0.0.1 DPT=", TAG));
+		assertEquals(LogLine.NONE, line.dpt);
+		assertNull(line.getDst());
+
+		assertTrue(line.parse(TAG, TAG));
+		assertEquals(LogLine.UNKNOWN_UID, line.uid);
+		assertNull(line.getSrc());
+		assertNull(line.getProto());
+		assertEquals(0, line.itfLength());
+	}
+
+	@Test
+	public void malformedValues() {
+		assertTrue(line.parse(TAG + " IN=wlan0 OUT= SRC=999.1.1.1"
+				+ " DST=1.2.3 PROTO=TCP SPT=-1 DPT=4x3 UID=10050a", TAG));
+		assertFalse(line.srcV4);
+		assertEquals("999.1.1.1", line.getSrc());
+		assertFalse(line.dstV4);
+		assertEquals(LogLine.NONE, line.spt);
+		assertEquals(LogLine.NONE, line.dpt);
+		assertEquals(LogLine.UNKNOWN_UID, line.uid);
+		// without OUT= the incoming interface is reported
+		assertEquals("wlan0", itf());
+
+		assertTrue(line.parse(TAG + " SRC=1..2.3 DST=1.2.3.4. UID=12345678901",
+				TAG));
+		assertFalse(line.srcV4);
+		assertFalse(line.dstV4);
+		assertEquals(LogLine.UNKNOWN_UID, line.uid);
+
+		// no '=' at all, or a key without a value
+		assertTrue(line.parse(TAG + " garbage == =5 UID UID=", TAG));
+		assertEquals(LogLine.UNKNOWN_UID, line.uid);
+	}
+
+	@Test
+	public void broadcastAddress() {
+		// all ones is the same int as NONE
+		assertTrue(line.parse(TAG + " OUT=wlan0 SRC=192.168.1.23"
+				+ " DST=255.255.255.255 PROTO=UDP SPT=68 DPT=67 UID=1014", TAG));
+		assertTrue(line.dstV4);
+		assertEquals("255.255.255.255", LogLine.formatIpv4(line.dst));
+	}
+
+	@Test
+	public void reusedRecordIsReset() {
+		assertTrue(line.parse(TCP, TAG));
+		assertTrue(line.parse(ICMPV6, TAG));
+		assertEquals(LogLine.UNKNOWN_UID, line.uid);
+		assertEquals(LogLine.NONE, line.spt);
+		assertFalse(line.srcV4);
+	}
+
+	@Test
+	public void parsesInsideALargerText() {
+		final String log = UDP + "\n" + TCP + "\n";
+		final int start = log.indexOf(TAG, UDP.length()) + TAG.length();
+		line.parse(log, start, log.indexOf('\n', start));
+		assertEquals(10050, line.uid);
+		assertEquals(443, line.dpt);
+	}
+
+	private String itf() {
+		final StringBuilder res = new StringBuilder();
+		for (int i = 0; i < line.itfLength(); i++) {
+			res.append(line.itfCharAt(i));
+		}
+		return res.toString();
+	}
+}
@@ -0,0 +1,166 @@
+/**
+ * Log parser benchmark, the shared parser against the old loop.
+ *
+ * Copyright (C) 2012-2014	Jason Tschohl
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * @author Jason Tschohl
+ * @version 1.0
+ */
+
+package com.jtschohl.androidfirewall;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import android.util.SparseArray;
+
+/**
+ * Counts a synthetic dmesg of 20,000 lines (run with "mvn test -Pbench";
+ * -Dbench.iterations and -Dbench.lines change the defaults): half TCP, a
+ * third UDP, the rest ICMP and IPv6, over 40 UIDs, with one unrelated
+ * kernel line in ten. Prints the median time of the old loop and of
+ * LogSummary.
+ */
+public class LogParserBenchmark {
+
+	private static final int ITERATIONS = Integer.getInteger(
+			"bench.iterations", 30);
+	private static final int LINES = Integer.getInteger("bench.lines", 20000);
+	private static final String TAG = LogLineTest.TAG;
+
+	private static String log;
+
+	@BeforeClass
+	public static void setUp() {
+		final Random random = new Random(42);
+		final StringBuilder res = new StringBuilder(LINES * 200);
+		for (int i = 0; i < LINES; i++) {
+			final int kind = random.nextInt(30);
+			final int uid = 10000 + random.nextInt(40);
+			res.append("<4>[ ").append(1000 + i / 100).append('.')
+					.append(100000 + i).append("] ");
+			if (kind < 3) {
+				res.append("wlan0: RX beacon, signal -").append(40 + kind)
+						.append('\n');
+				continue;
+			}
+			res.append(TAG).append(" IN= OUT=wlan0 SRC=");
+			if (kind < 6) {
+				res.append("2001:0db8:0000:0000:0000:0000:0000:0017 DST=2a00:1450:4001:0811:0000:0000:0000:")
+						.append(Integer.toHexString(0x2000 + random
+								.nextInt(64)))
+						.append(" LEN=80 TC=0 HOPLIMIT=64 FLOWLBL=0 PROTO=TCP");
+			} else {
+				res.append("192.168.1.23 DST=").append(
+						random.nextInt(4) == 0 ? "8.8.8.8" : "173.194.70."
+								+ random.nextInt(256));
+				res.append(" LEN=60 TOS=0x00 PREC=0x00 TTL=64 ID=")
+						.append(random.nextInt(65536)).append(" DF PROTO=");
+				res.append(kind < 9 ? "ICMP" : kind < 19 ? "UDP" : "TCP");
+			}
+			if (kind < 6 || kind >= 9) {
+				res.append(" SPT=").append(32768 + random.nextInt(28000))
+						.append(" DPT=")
+						.append(kind < 19 && kind >= 9 ? 53 : 443);
+			} else {
+				res.append(" TYPE=8 CODE=0 ID=").append(random.nextInt(65536))
+						.append(" SEQ=1");
+			}
+			res.append(" UID=").append(uid).append(" GID=").append(uid)
+					.append('\n');
+		}
+		log = res.toString();
+	}
+
+	private interface Op {
+		Object run() throws Exception;
+	}
+
+	private static long time(String name, Op op) throws Exception {
+		for (int i = 0; i < ITERATIONS; i++) {
+			op.run();
+		}
+		final long[] times = new long[ITERATIONS];
+		for (int i = 0; i < ITERATIONS; i++) {
+			final long start = System.nanoTime();
+			op.run();
+			times[i] = System.nanoTime() - start;
+		}
+		Arrays.sort(times);
+		final long median = times[ITERATIONS / 2];
+		System.out.println(String.format("%-48s %9.3f ms", name + " ("
+				+ LINES + " lines)", median / 1e6));
+		return median;
+	}
+
+	@Test
+	public void countLog() throws Exception {
+		// both count the same packets per UID
+		final SparseArray<LegacyLogParser.LogInfo> old = LegacyLogParser
+				.parse(log, TAG);
+		final LogSummary summary = new LogSummary();
+		summary.addAll(log, TAG);
+		assertEquals(old.size(), summary.size());
+		for (int i = 0; i < old.size(); i++) {
+			assertEquals(old.keyAt(i), summary.uidAt(i));
+			assertEquals(old.valueAt(i).totalBlocked,
+					summary.entryAt(i).total);
+			assertEquals(old.valueAt(i).dstBlocked.size(),
+					summary.entryAt(i).dst.size());
+		}
+
+		final long before = time("count, old indexOf/substring loop",
+				new Op() {
+					@Override
+					public Object run() throws Exception {
+						return LegacyLogParser.parse(log, TAG);
+					}
+				});
+		final long after = time("count, LogSummary.addAll", new Op() {
+			@Override
+			public Object run() {
+				final LogSummary summary = new LogSummary();
+				summary.addAll(log, TAG);
+				return summary;
+			}
+		});
+		System.out.println(String.format("LogSummary takes %.0f%% of the old time",
+				after * 100.0 / before));
+	}
+
+	@Test
+	public void parseLines() throws Exception {
+		final String[] lines = log.split("\n");
+		final LogLine line = new LogLine();
+		time("parse lines, LogLine", new Op() {
+			@Override
+			public Object run() {
+				int sum = 0;
+				for (String l : lines) {
+					if (line.parse(l, TAG)) {
+						sum += line.uid + line.dpt;
+					}
+				}
+				return sum;
+			}
+		});
+	}
+}
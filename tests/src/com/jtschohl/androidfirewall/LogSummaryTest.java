@@ -0,0 +1,112 @@
+/**
+ * Tests of the log counts.
+ *
+ * Copyright (C) 2012-2014	Jason Tschohl
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * @author Jason Tschohl
+ * @version 1.0
+ */
+
+package com.jtschohl.androidfirewall;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class LogSummaryTest {
+
+	private static final String TAG = LogLineTest.TAG;
+
+	@Test
+	public void countsPerUidAndValue() {
+		final LogSummary summary = new LogSummary();
+		summary.addAll("<6>[ 1.0] boot\n" + LogLineTest.TCP + "\n"
+				+ LogLineTest.UDP + "\n" + LogLineTest.TCP + "\n"
+				+ LogLineTest.IPV6 + "\n" + LogLineTest.ICMPV6, TAG);
+		// ascending UIDs, the kernel first
+		assertEquals(3, summary.size());
+		assertEquals(LogLine.UNKNOWN_UID, summary.uidAt(0));
+		assertEquals(10050, summary.uidAt(1));
+		assertEquals(10061, summary.uidAt(2));
+
+		final LogSummary.Entry app = summary.entryAt(1);
+		assertEquals(3, app.total);
+		// the IPv4 destination first, the IPv6 one after it
+		assertEquals(2, app.dst.size());
+		assertEquals(1, app.dst.primitiveSize());
+		assertEquals("173.194.70.94",
+				LogLine.formatIpv4((int) app.dst.keyAt(0)));
+		assertEquals(2, app.dst.countAt(0));
+		assertEquals("2a00:1450:4001:0811:0000:0000:0000:200e",
+				app.dst.otherAt(1));
+		assertEquals(1, app.dst.countAt(1));
+		assertEquals(1, app.proto.size());
+		assertEquals(LogLine.PROTO_TCP, app.proto.keyAt(0));
+		assertEquals(3, app.proto.countAt(0));
+		assertEquals(443, app.dpt.keyAt(0));
+		assertEquals(3, app.dpt.countAt(0));
+	}
+
+	@Test
+	public void onlyLinesWithTheTagCount() {
+		final LogSummary summary = new LogSummary();
+		assertFalse(summary.add(LogLineTest.TCP, "[AndroidFirewallAccept]"));
+		assertTrue(summary.add(LogLineTest.TCP, TAG));
+		summary.addAll(LogLineTest.TCP.replace(TAG,
+				"[AndroidFirewallAccept]"), TAG);
+		assertEquals(1, summary.size());
+		assertEquals(1, summary.entryAt(0).total);
+	}
+
+	@Test
+	public void limitKeepsTheMostCountedValues() {
+		final LogSummary summary = new LogSummary(4);
+		final LogLine line = new LogLine();
+		for (int port = 1; port <= 8; port++) {
+			final int times = port == 2 || port == 5 ? 3 : 1;
+			for (int i = 0; i < times; i++) {
+				assertTrue(line.parse(TAG + " SRC=10.0.0.1 DST=10.0.0.2"
+						+ " PROTO=TCP DPT=" + port + " UID=10050", TAG));
+				summary.add(line);
+			}
+		}
+		final LogSummary.Counter dpt = summary.entryAt(0).dpt;
+		assertTrue(dpt.size() <= 4);
+		assertEquals(2, dpt.keyAt(0));
+		assertEquals(3, dpt.countAt(0));
+		assertEquals(5, dpt.keyAt(1));
+		assertEquals(3, dpt.countAt(1));
+		// the totals stay exact
+		assertEquals(12, summary.entryAt(0).total);
+	}
+
+	@Test
+	public void copyIsIndependent() {
+		final LogSummary summary = new LogSummary();
+		summary.add(LogLineTest.TCP, TAG);
+		final LogSummary copy = summary.copy();
+		summary.add(LogLineTest.TCP, TAG);
+		summary.add(LogLineTest.UDP, TAG);
+		assertEquals(1, copy.size());
+		assertEquals(1, copy.entryAt(0).total);
+		assertEquals(1, copy.entryAt(0).dst.countAt(0));
+		summary.clear();
+		assertEquals(0, summary.size());
+		assertEquals(1, copy.size());
+	}
+}
@@ -0,0 +1,183 @@
+/**
+ * Tests of the delta emitter.
+ *
+ * Copyright (C) 2012-2014	Jason Tschohl
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * @author Jason Tschohl
+ * @version 1.0
+ */
+
+package com.jtschohl.androidfirewall.rules;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class DeltaEmitterTest {
+
+	private static FirewallConfig config(Integer... wifi) {
+		final FirewallConfig cfg = RuleCompilerTest.config();
+		for (Integer uid : wifi) {
+			cfg.uidsWifi.add(uid);
+		}
+		return cfg;
+	}
+
+	/**
+	 * @return the lines changing rules, between the drift checks and the
+	 *         full fallback
+	 */
+	private static List<String> edits(String script) {
+		final List<String> lines = ShellEmitterTest.lines(script);
+		final List<String> res = new ArrayList<String>();
+		for (String line : lines.subList(
+				lines.indexOf("if [ $AF_DRIFT = 0 ] ; then") + 1,
+				lines.indexOf("if [ $AF_DRIFT = 1 ] ; then") - 1)) {
+			res.add(line);
+		}
+		return res;
+	}
+
+	@Test
+	public void unknownOrIncompatibleRulesRenderInFull() {
+		final Emitter full = new ShellEmitter();
+		final Ruleset rules = RuleCompiler.compile(config(10005));
+		assertEquals(full.render(rules),
+				new DeltaEmitter(null, full).render(rules));
+
+		final FirewallConfig cfg = config(10005);
+		cfg.ipv6Enabled = true;
+		final Ruleset ipv6 = RuleCompiler.compile(cfg);
+		assertEquals(full.render(ipv6),
+				new DeltaEmitter(rules, full).render(ipv6));
+
+		cfg.ipv6Enabled = false;
+		cfg.customScript = "echo custom";
+		final Ruleset custom = RuleCompiler.compile(cfg);
+		assertEquals(full.render(custom),
+				new DeltaEmitter(rules, full).render(custom));
+	}
+
+	@Test
+	public void unchangedRulesOnlyCheckForDrift() {
+		final Ruleset rules = RuleCompiler.compile(config(10005));
+		final String script = new DeltaEmitter(rules, new ShellEmitter())
+				.render(RuleCompiler.compile(config(10005)));
+		assertTrue(edits(script).isEmpty());
+		assertTrue(ShellEmitterTest.lines(script).contains(
+				"[ \"$($ECHO \"$AF_RULES\" | $GREP -c '^-A droidwall-wifi ')\""
+						+ " = \"4\" ] || AF_DRIFT=1"));
+	}
+
+	@Test
+	public void selectingAnApplicationInsertsOneRule() {
+		final Ruleset applied = RuleCompiler.compile(config(10005));
+		final String script = new DeltaEmitter(applied, new ShellEmitter())
+				.render(RuleCompiler.compile(config(10005, 10009)));
+		final List<String> edits = edits(script);
+		assertEquals(1, edits.size());
+		assertEquals("$IPTABLES -I droidwall-wifi 4"
+				+ " -m owner --uid-owner 10009 -j RETURN || AF_DRIFT=1",
+				edits.get(0));
+	}
+
+	@Test
+	public void unselectingAnApplicationDeletesOneRule() {
+		final Ruleset applied = RuleCompiler.compile(config(10005, 10009));
+		final List<String> edits = edits(new DeltaEmitter(applied,
+				new ShellEmitter()).render(RuleCompiler.compile(config(10009))));
+		assertEquals(1, edits.size());
+		assertEquals("$IPTABLES -D droidwall-wifi 3 || AF_DRIFT=1",
+				edits.get(0));
+	}
+
+	@Test
+	public void restoreDeltaIsOneTransaction() {
+		final Ruleset applied = RuleCompiler.compile(config(10005));
+		final String script = new DeltaEmitter(applied, new RestoreEmitter())
+				.render(RuleCompiler.compile(config(10005, 10009)));
+		final List<String> edits = edits(script);
+		assertEquals("if ! $IPTABLES_RESTORE --noflush <<'__AF_DELTA_EOF__'",
+				edits.get(1));
+		assertEquals("*filter", edits.get(2));
+		assertEquals("-I droidwall-wifi 4 -m owner --uid-owner 10009 -j RETURN",
+				edits.get(3));
+		assertEquals("COMMIT", edits.get(4));
+		// the full restore runs if the transaction fails
+		assertTrue(script.contains("then\nAF_DRIFT=1\nfi\n"));
+		assertTrue(script.contains("if [ $AF_DRIFT = 1 ] ; then\n"
+				+ "IPTABLES_RESTORE=iptables-restore\n"));
+	}
+
+	@Test
+	public void lanChangeIsReplacedInPlace() {
+		final FirewallConfig cfg = config(10005);
+		cfg.lanEnabled = true;
+		cfg.lanIpv4.add("192.168.1.0/24");
+		final Ruleset applied = RuleCompiler.compile(cfg);
+		final Chain dispatch = new Chain(
+				RuleCompiler.lanDispatchChainName("droidwall"));
+		final List<String> nets = new ArrayList<String>();
+		nets.add("10.0.0.0/24");
+		RuleCompiler.compileLanDispatch(dispatch, "droidwall", nets);
+		final Ruleset rules = applied.copyWith(Family.IPV4, dispatch);
+
+		final StringBuilder res = new StringBuilder();
+		assertEquals(1, DeltaEmitter.appendReplace(res, applied, rules,
+				dispatch.name));
+		assertEquals("$IPTABLES -R droidwall-lan-dispatch 1"
+				+ " -d 10.0.0.0/24 -g droidwall-lan || exit 1\n",
+				res.toString());
+		// the chains not replaced are shared
+		assertTrue(rules.get(Family.IPV4).getChain("droidwall-wifi") == applied
+				.get(Family.IPV4).getChain("droidwall-wifi"));
+
+		// a second network is no longer an in-place change
+		nets.add("10.1.0.0/24");
+		final Chain grown = new Chain(dispatch.name);
+		RuleCompiler.compileLanDispatch(grown, "droidwall", nets);
+		final StringBuilder none = new StringBuilder();
+		assertEquals(-1, DeltaEmitter.appendReplace(none, applied,
+				applied.copyWith(Family.IPV4, grown), grown.name));
+		assertEquals(0, none.length());
+	}
+
+	@Test
+	public void compatibility() {
+		final Ruleset a = RuleCompiler.compile(config(10005));
+		assertTrue(DeltaEmitter.isCompatible(a,
+				RuleCompiler.compile(config(10009))));
+		final FirewallConfig renamed = config(10005);
+		renamed.chainName = "droidwall10";
+		assertFalse(DeltaEmitter.isCompatible(a,
+				RuleCompiler.compile(renamed)));
+	}
+
+	@Test
+	public void scriptIsValidShell() throws Exception {
+		final Ruleset applied = RuleCompiler.compile(config(10005));
+		final Ruleset rules = RuleCompiler.compile(config(10005, 10009));
+		assertEquals(0, Shells.syntaxCheck(new DeltaEmitter(applied,
+				new ShellEmitter()).render(rules)));
+		assertEquals(0, Shells.syntaxCheck(new DeltaEmitter(applied,
+				new RestoreEmitter()).render(rules)));
+	}
+}
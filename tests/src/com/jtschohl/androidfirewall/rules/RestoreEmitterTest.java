@@ -0,0 +1,112 @@
+/**
+ * Tests of the iptables-restore emitter.
+ *
+ * Copyright (C) 2012-2014	Jason Tschohl
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * @author Jason Tschohl
+ * @version 1.0
+ */
+
+package com.jtschohl.androidfirewall.rules;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+
+import org.junit.Test;
+
+public class RestoreEmitterTest {
+
+	private static Ruleset compile(boolean ipv6) {
+		final FirewallConfig cfg = RuleCompilerTest.config();
+		cfg.ipv6Enabled = ipv6;
+		cfg.uidsWifi.add(10005);
+		return RuleCompiler.compile(cfg);
+	}
+
+	@Test
+	public void payloadDeclaresEveryChainAndAppendsTheRules() {
+		final Table table = compile(false).get(Family.IPV4);
+		final List<String> payload = ShellEmitterTest.lines(RestoreEmitter
+				.payload(table));
+		assertEquals("*filter", payload.get(0));
+		assertEquals("COMMIT", payload.get(payload.size() - 1));
+		int declared = 0;
+		int appended = 0;
+		for (String line : payload) {
+			if (line.startsWith(":")) {
+				assertTrue(line, line.endsWith(" - [0:0]"));
+				declared++;
+			} else if (line.startsWith("-A ")) {
+				appended++;
+			}
+		}
+		assertEquals(table.getChains().size(), declared);
+		assertEquals(table.ruleCount(), appended);
+		assertTrue(payload.contains("-A droidwall-wifi"
+				+ " -m owner --uid-owner 10005 -j RETURN"));
+		// no shell involved: the hooks are moved by the caller
+		for (String line : payload) {
+			assertFalse(line, line.contains("$"));
+			assertFalse(line, line.contains("OUTPUT"));
+		}
+	}
+
+	@Test
+	public void payloadDoesNotQuoteNegation() {
+		final Table table = new Table(Family.IPV4);
+		table.chain("x").append(Target.RETURN,
+				Match.destination("10.0.0.0/8", true));
+		assertTrue(RestoreEmitter.payload(table).contains(
+				"-A x ! -d 10.0.0.0/8 -j RETURN\n"));
+	}
+
+	@Test
+	public void fallsBackToOneCommandPerRule() {
+		final String script = new RestoreEmitter().render(compile(true));
+		final List<String> lines = ShellEmitterTest.lines(script);
+		assertTrue(lines.contains("IPTABLES_RESTORE=iptables-restore"));
+		assertTrue(lines.contains("IP6TABLES_RESTORE=ip6tables-restore"));
+		assertTrue(lines.contains("if ! $IPTABLES_RESTORE --noflush"
+				+ " <<'__AF_RESTORE_EOF__'"));
+		// the fallback swaps shadow chains, the restore path moves the hooks
+		final int fallback = lines.indexOf("then");
+		final int restored = lines.indexOf("else");
+		assertTrue(fallback > 0 && restored > fallback);
+		assertTrue(lines.subList(fallback, restored).contains(
+				"$IPTABLES -N droidwall-b-wifi 2>/dev/null"));
+		assertTrue(lines.subList(restored, lines.size()).contains(
+				"$IPTABLES -I OUTPUT 1 -j droidwall || exit 12"));
+	}
+
+	@Test
+	public void customScriptSkipsTheRestore() {
+		final FirewallConfig cfg = RuleCompilerTest.config();
+		cfg.customScript = "echo custom";
+		final String script = new RestoreEmitter().render(RuleCompiler
+				.compile(cfg));
+		assertFalse(script.contains("--noflush"));
+		assertTrue(script.contains("\necho custom\n"));
+	}
+
+	@Test
+	public void scriptIsValidShell() throws Exception {
+		assertEquals(0,
+				Shells.syntaxCheck(new RestoreEmitter().render(compile(true))));
+	}
+}
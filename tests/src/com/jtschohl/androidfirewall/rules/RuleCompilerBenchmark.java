@@ -0,0 +1,195 @@
+/**
+ * Rule generation benchmark for large configurations.
+ *
+ * Copyright (C) 2012-2014	Jason Tschohl
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * @author Jason Tschohl
+ * @version 1.0
+ */
+
+package com.jtschohl.androidfirewall.rules;
+
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Compiles and renders a configuration with 5,000 selected UIDs per
+ * interface class. Run with "mvn test -Pbench"; -Dbench.iterations and
+ * -Dbench.uids change the defaults. Prints the median time per operation.
+ */
+public class RuleCompilerBenchmark {
+
+	private static final int ITERATIONS = Integer.getInteger(
+			"bench.iterations", 30);
+	private static final int UIDS = Integer.getInteger("bench.uids", 5000);
+
+	private static FirewallConfig cfg;
+	private static FirewallConfig toggled;
+
+	private interface Op {
+		Object run();
+	}
+
+	/**
+	 * Twice as many applications as selected ones, a few of them uninstalled
+	 * since. The selection comes in runs of ten applications, the other
+	 * runs are selected for roaming and LAN.
+	 */
+	private static FirewallConfig config() {
+		final FirewallConfig cfg = RuleCompilerTest.config();
+		cfg.vpnEnabled = true;
+		cfg.lanEnabled = true;
+		cfg.inputEnabled = true;
+		cfg.roamingEnabled = true;
+		cfg.ipv6Enabled = true;
+		cfg.logEnabled = true;
+		cfg.logAcceptEnabled = true;
+		cfg.logTarget = "NFLOG";
+		cfg.lanIpv4.add("192.168.1.0/24");
+		cfg.lanIpv6.add("fd00::/64");
+		final int[] installed = new int[UIDS * 2];
+		int count = 0;
+		for (int i = 0; i < UIDS * 2; i++) {
+			final int uid = FirewallConfig.FIRST_APP_UID + i;
+			if (i % 7 != 6) {
+				installed[count++] = uid;
+			}
+			if ((i / 10) % 2 == 0) {
+				cfg.uids3g.add(uid);
+				cfg.uidsWifi.add(uid);
+				cfg.uidsVpn.add(uid);
+				cfg.uidsInputWifi.add(uid);
+			} else {
+				cfg.uidsRoaming.add(uid);
+				cfg.uidsLan.add(uid);
+			}
+		}
+		cfg.installedUids = Arrays.copyOf(installed, count);
+		return cfg;
+	}
+
+	@BeforeClass
+	public static void setUp() {
+		cfg = config();
+		toggled = config();
+		toggled.uidsWifi.remove(Integer.valueOf(FirewallConfig.FIRST_APP_UID
+				+ UIDS));
+	}
+
+	private static long time(String name, Op op) {
+		// warm up, then keep the median
+		for (int i = 0; i < ITERATIONS; i++) {
+			op.run();
+		}
+		final long[] times = new long[ITERATIONS];
+		Object res = null;
+		for (int i = 0; i < ITERATIONS; i++) {
+			final long start = System.nanoTime();
+			res = op.run();
+			times[i] = System.nanoTime() - start;
+		}
+		assertTrue(res != null);
+		Arrays.sort(times);
+		final long median = times[ITERATIONS / 2];
+		System.out.println(String.format("%-48s %9.3f ms", name + " ("
+				+ UIDS + " UIDs)", median / 1e6));
+		return median;
+	}
+
+	@Test
+	public void compile() {
+		time("compile, UID ranges", new Op() {
+			@Override
+			public Object run() {
+				return RuleCompiler.compile(cfg);
+			}
+		});
+		final FirewallConfig single = config();
+		single.ownerRanges = false;
+		time("compile, one rule per UID", new Op() {
+			@Override
+			public Object run() {
+				return RuleCompiler.compile(single);
+			}
+		});
+		time("digest", new Op() {
+			@Override
+			public Object run() {
+				return cfg.digest();
+			}
+		});
+		final Ruleset rules = RuleCompiler.compile(cfg);
+		final Ruleset all = RuleCompiler.compile(single);
+		System.out.println(rules.ruleCount() + " rules with ranges, "
+				+ all.ruleCount() + " without");
+		assertTrue(rules.ruleCount() < all.ruleCount());
+	}
+
+	@Test
+	public void render() {
+		final Ruleset rules = RuleCompiler.compile(cfg);
+		time("render shell", new Op() {
+			@Override
+			public Object run() {
+				return new ShellEmitter().render(rules);
+			}
+		});
+		time("render iptables-restore", new Op() {
+			@Override
+			public Object run() {
+				return new RestoreEmitter().render(rules);
+			}
+		});
+		time("render nftables", new Op() {
+			@Override
+			public Object run() {
+				return new NftEmitter("droidwall", new ShellEmitter())
+						.render(rules);
+			}
+		});
+	}
+
+	@Test
+	public void delta() {
+		final FirewallConfig single = config();
+		single.ownerRanges = false;
+		final Ruleset applied = RuleCompiler.compile(single);
+		final FirewallConfig change = config();
+		change.ownerRanges = false;
+		change.uidsWifi.remove(Integer.valueOf(FirewallConfig.FIRST_APP_UID
+				+ UIDS));
+		final Ruleset rules = RuleCompiler.compile(change);
+		time("delta, one application toggled", new Op() {
+			@Override
+			public Object run() {
+				return new DeltaEmitter(applied, new RestoreEmitter())
+						.render(rules);
+			}
+		});
+		time("compile and delta, ranges", new Op() {
+			@Override
+			public Object run() {
+				return new DeltaEmitter(RuleCompiler.compile(cfg),
+						new RestoreEmitter()).render(RuleCompiler
+						.compile(toggled));
+			}
+		});
+	}
+}
@@ -0,0 +1,407 @@
+/**
+ * Tests of the rule compiler.
+ *
+ * Copyright (C) 2012-2014	Jason Tschohl
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * @author Jason Tschohl
+ * @version 1.0
+ */
+
+package com.jtschohl.androidfirewall.rules;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+public class RuleCompilerTest {
+
+	/**
+	 * @return a white list with one 3G, Wi-Fi and VPN interface each
+	 */
+	static FirewallConfig config() {
+		final FirewallConfig cfg = new FirewallConfig();
+		cfg.chainName = "droidwall";
+		cfg.itfs3g = new String[] { "rmnet+" };
+		cfg.itfsWifi = new String[] { "wlan+" };
+		cfg.itfsVpn = new String[] { "tun+" };
+		cfg.dhcpUid = 1014;
+		cfg.wifiUid = 1010;
+		return cfg;
+	}
+
+	/**
+	 * @return the rules of a chain as iptables specifications
+	 */
+	static List<String> specs(Ruleset rules, Family family, String chain) {
+		final Table table = rules.get(family);
+		assertNotNull(family.name(), table);
+		final Chain c = table.getChain(chain);
+		assertNotNull(chain, c);
+		final List<String> res = new ArrayList<String>();
+		for (Rule rule : c.getRules()) {
+			res.add(IptablesSyntax.spec(rule, false));
+		}
+		return res;
+	}
+
+	static List<String> specs(Ruleset rules, String chain) {
+		return specs(rules, Family.IPV4, chain);
+	}
+
+	@Test
+	public void createsEveryChainAndHook() {
+		final Ruleset rules = RuleCompiler.compile(config());
+		assertEquals(1, rules.getTables().size());
+		final Table table = rules.get(Family.IPV4);
+		final List<String> names = new ArrayList<String>();
+		for (Chain chain : table.getChains()) {
+			names.add(chain.name);
+		}
+		assertEquals(Arrays.asList(RuleCompiler.chainNames("droidwall")),
+				names);
+		assertEquals(2, table.getHooks().size());
+		assertEquals("INPUT", table.getHooks().get(0).builtin);
+		assertEquals("droidwall-input", table.getHooks().get(0).chain);
+		assertEquals("OUTPUT", table.getHooks().get(1).builtin);
+		assertEquals("droidwall", table.getHooks().get(1).chain);
+		assertNull(table.getCustomScript());
+	}
+
+	@Test
+	public void dispatchesPerInterface() {
+		final FirewallConfig cfg = config();
+		cfg.vpnEnabled = true;
+		final List<String> main = specs(RuleCompiler.compile(cfg), "droidwall");
+		assertTrue(main.contains("-o rmnet+ -j droidwall-3g"));
+		assertTrue(main.contains("-o wlan+ -j droidwall-wifi"));
+		assertTrue(main.contains("-o tun+ -j droidwall-vpn"));
+		// DNS and NTP of the system pass first
+		assertEquals("-m owner --uid-owner 0 -p udp --dport 53 -j RETURN",
+				main.get(0));
+	}
+
+	@Test
+	public void whitelistReturnsSelectedAndRejectsTheRest() {
+		final FirewallConfig cfg = config();
+		cfg.uidsWifi.add(10005);
+		cfg.uids3g.add(10007);
+		final Ruleset rules = RuleCompiler.compile(cfg);
+		assertEquals(Arrays.asList(
+				"-m owner --uid-owner 1014 -j RETURN",
+				"-m owner --uid-owner 1010 -j RETURN",
+				"-m owner --uid-owner 10005 -j RETURN",
+				"-j droidwall-reject"), specs(rules, "droidwall-wifi"));
+		assertEquals(Arrays.asList(
+				"-m owner --uid-owner 9999 -j RETURN",
+				"-m owner --uid-owner 10007 -j RETURN",
+				"-j droidwall-reject"), specs(rules, "droidwall-3g"));
+		assertEquals(Arrays.asList("-j REJECT"),
+				specs(rules, "droidwall-reject"));
+	}
+
+	@Test
+	public void blacklistRejectsSelectedOnly() {
+		final FirewallConfig cfg = config();
+		cfg.whitelist = false;
+		cfg.uidsWifi.add(10005);
+		final Ruleset rules = RuleCompiler.compile(cfg);
+		assertEquals(Arrays.asList(
+				"-m owner --uid-owner 10005 -j droidwall-reject"),
+				specs(rules, "droidwall-wifi"));
+		assertEquals(Arrays.asList("-m owner --uid-owner 9999 -j RETURN"),
+				specs(rules, "droidwall-3g"));
+	}
+
+	@Test
+	public void kernelHackMatchesEveryOwner() {
+		final FirewallConfig cfg = config();
+		cfg.uidsWifi.add(FirewallConfig.SPECIAL_UID_KERNEL);
+		List<String> wifi = specs(RuleCompiler.compile(cfg), "droidwall-wifi");
+		assertEquals("-m owner --uid-owner 0:" + Match.MAX_UID
+				+ " -j droidwall-reject", wifi.get(wifi.size() - 1));
+
+		cfg.whitelist = false;
+		wifi = specs(RuleCompiler.compile(cfg), "droidwall-wifi");
+		assertEquals(Arrays.asList("-m owner --uid-owner 0:" + Match.MAX_UID
+				+ " -j RETURN", "-j droidwall-reject"), wifi);
+	}
+
+	@Test
+	public void anyApplication() {
+		final FirewallConfig cfg = config();
+		cfg.vpnEnabled = true;
+		cfg.lanEnabled = true;
+		cfg.lanIpv4.add("192.168.1.0/24");
+		cfg.uidsWifi.add(FirewallConfig.SPECIAL_UID_ANY);
+		cfg.uidsVpn.add(FirewallConfig.SPECIAL_UID_ANY);
+		cfg.uidsLan.add(FirewallConfig.SPECIAL_UID_ANY);
+		// white list: "any" passes, without the dhcp/wifi exceptions
+		Ruleset rules = RuleCompiler.compile(cfg);
+		assertTrue(specs(rules, "droidwall-wifi").isEmpty());
+		assertTrue(specs(rules, "droidwall-vpn").isEmpty());
+		assertTrue(specs(rules, "droidwall-lan").isEmpty());
+
+		// black list: "any" rejects everything
+		cfg.whitelist = false;
+		cfg.uids3g.add(FirewallConfig.SPECIAL_UID_ANY);
+		rules = RuleCompiler.compile(cfg);
+		assertEquals(Arrays.asList("-j droidwall-reject"),
+				specs(rules, "droidwall-wifi"));
+		assertEquals(Arrays.asList("-m owner --uid-owner 9999 -j RETURN",
+				"-j droidwall-reject"), specs(rules, "droidwall-3g"));
+		assertEquals(Arrays.asList("-j droidwall-reject"),
+				specs(rules, "droidwall-vpn"));
+		assertEquals(Arrays.asList("-j droidwall-reject"),
+				specs(rules, "droidwall-lan"));
+	}
+
+	@Test
+	public void roamingGoesToOneVariant() {
+		final FirewallConfig cfg = config();
+		cfg.roamingEnabled = true;
+		cfg.uids3g.add(10005);
+		cfg.uidsRoaming.add(10006);
+		Ruleset rules = RuleCompiler.compile(cfg);
+		assertEquals(Arrays.asList("-m owner --uid-owner 9999 -j RETURN",
+				"-g droidwall-3g-home"), specs(rules, "droidwall-3g"));
+		assertEquals(Arrays.asList("-m owner --uid-owner 10005 -j RETURN",
+				"-j droidwall-reject"), specs(rules, "droidwall-3g-home"));
+		assertEquals(Arrays.asList("-m owner --uid-owner 10006 -j RETURN",
+				"-j droidwall-reject"), specs(rules, "droidwall-3g-roam"));
+
+		cfg.roaming = true;
+		final Ruleset roaming = RuleCompiler.compile(cfg);
+		assertEquals(Arrays.asList("-m owner --uid-owner 9999 -j RETURN",
+				"-g droidwall-3g-roam"), specs(roaming, "droidwall-3g"));
+		// only the goto differs, so a roaming change is a single replace
+		assertEquals(specs(rules, "droidwall-3g-roam"),
+				specs(roaming, "droidwall-3g-roam"));
+	}
+
+	@Test
+	public void roamingWithoutSplitWhenAnyOn3g() {
+		final FirewallConfig cfg = config();
+		cfg.roamingEnabled = true;
+		cfg.uids3g.add(FirewallConfig.SPECIAL_UID_ANY);
+		final Ruleset rules = RuleCompiler.compile(cfg);
+		assertEquals(Arrays.asList("-m owner --uid-owner 9999 -j RETURN"),
+				specs(rules, "droidwall-3g"));
+		assertTrue(specs(rules, "droidwall-3g-roam").isEmpty());
+	}
+
+	@Test
+	public void lanDispatchPerFamily() {
+		final FirewallConfig cfg = config();
+		cfg.lanEnabled = true;
+		cfg.ipv6Enabled = true;
+		cfg.lanIpv4.add("192.168.1.0/24");
+		cfg.lanIpv6.add("fd00::/64");
+		cfg.lanIpv6.add("fe80::/64");
+		cfg.uidsLan.add(10005);
+		final Ruleset rules = RuleCompiler.compile(cfg);
+		assertEquals(2, rules.getTables().size());
+		assertTrue(specs(rules, "droidwall").contains(
+				"-o wlan+ -j droidwall-lan-dispatch"));
+		assertEquals(Arrays.asList("-d 192.168.1.0/24 -g droidwall-lan",
+				"-g droidwall-wifi"), specs(rules, "droidwall-lan-dispatch"));
+		assertEquals(Arrays.asList("-d fd00::/64 -g droidwall-lan",
+				"-d fe80::/64 -g droidwall-lan", "-g droidwall-wifi"),
+				specs(rules, Family.IPV6, "droidwall-lan-dispatch"));
+		assertEquals(Arrays.asList("-m owner --uid-owner 10005 -j RETURN",
+				"-j droidwall-reject"), specs(rules, "droidwall-lan"));
+	}
+
+	@Test
+	public void lanWithoutNetworkBlocksWifi() {
+		final FirewallConfig cfg = config();
+		cfg.lanEnabled = true;
+		final Ruleset rules = RuleCompiler.compile(cfg);
+		for (String rule : specs(rules, "droidwall")) {
+			assertFalse(rule, rule.startsWith("-o wlan+"));
+		}
+		assertEquals("-j REJECT", specs(rules, "droidwall-wifi").get(0));
+	}
+
+	@Test
+	public void lanDispatchAloneMatchesTheFullCompile() {
+		final FirewallConfig cfg = config();
+		cfg.lanEnabled = true;
+		cfg.lanIpv4.add("10.0.0.0/8");
+		final Ruleset rules = RuleCompiler.compile(cfg);
+		final Chain chain = new Chain(
+				RuleCompiler.lanDispatchChainName("droidwall"));
+		RuleCompiler.compileLanDispatch(chain, "droidwall", cfg.lanIpv4);
+		assertEquals(rules.get(Family.IPV4).getChain(chain.name).getRules(),
+				chain.getRules());
+	}
+
+	@Test
+	public void unseenInterfacesAreStillFiltered() {
+		final FirewallConfig cfg = config();
+		cfg.itfs3gUnseen = new String[] { "ccmni+" };
+		final Ruleset rules = RuleCompiler.compile(cfg);
+		assertTrue(specs(rules, "droidwall").contains("-j droidwall-unseen"));
+		assertEquals(Arrays.asList("-o lo -j RETURN", "-o rmnet+ -j RETURN",
+				"-o wlan+ -j RETURN", "-o ccmni+ -j droidwall-3g"),
+				specs(rules, "droidwall-unseen"));
+	}
+
+	@Test
+	public void inputChain() {
+		final FirewallConfig cfg = config();
+		cfg.inputEnabled = true;
+		cfg.uidsInputWifi.add(10005);
+		assertEquals(Arrays.asList(
+				"-m state --state ESTABLISHED,RELATED -j ACCEPT",
+				"-m owner --uid-owner 0 -j RETURN",
+				"-m owner --uid-owner 10005 -j RETURN",
+				"-j droidwall-input-drop"),
+				specs(RuleCompiler.compile(cfg), "droidwall-input"));
+	}
+
+	@Test
+	public void logging() {
+		final FirewallConfig cfg = config();
+		cfg.logEnabled = true;
+		cfg.logTarget = "LOG";
+		assertEquals(Arrays.asList("-m limit --limit 1000/min -j LOG"
+				+ " --log-prefix \"[AndroidFirewall]\" --log-level 4"
+				+ " --log-uid", "-j REJECT"),
+				specs(RuleCompiler.compile(cfg), "droidwall-reject"));
+
+		cfg.logTarget = "NFLOG";
+		assertEquals(Arrays.asList("-j NFLOG --nflog-prefix"
+				+ " \"[AndroidFirewall]\" --nflog-group 0", "-j REJECT"),
+				specs(RuleCompiler.compile(cfg), "droidwall-reject"));
+
+		cfg.logTarget = "";
+		assertEquals(Arrays.asList("-j REJECT"),
+				specs(RuleCompiler.compile(cfg), "droidwall-reject"));
+	}
+
+	@Test
+	public void ipv6LogTargetOfItsOwn() {
+		final FirewallConfig cfg = config();
+		cfg.ipv6Enabled = true;
+		cfg.logEnabled = true;
+		cfg.logTarget = "NFLOG";
+		cfg.logTargetIpv6 = "LOG";
+		final Ruleset rules = RuleCompiler.compile(cfg);
+		assertEquals(Arrays.asList("-j NFLOG --nflog-prefix"
+				+ " \"[AndroidFirewall]\" --nflog-group 0", "-j REJECT"),
+				specs(rules, "droidwall-reject"));
+		assertEquals(Arrays.asList("-m limit --limit 1000/min -j LOG"
+				+ " --log-prefix \"[AndroidFirewall]\" --log-level 4"
+				+ " --log-uid", "-j REJECT"),
+				specs(rules, Family.IPV6, "droidwall-reject"));
+
+		// no IPv6 target, the IPv6 table rejects without logging
+		cfg.logTargetIpv6 = "";
+		final String digest = cfg.digest();
+		assertEquals(Arrays.asList("-j REJECT"), specs(
+				RuleCompiler.compile(cfg), Family.IPV6, "droidwall-reject"));
+		cfg.logTargetIpv6 = "LOG";
+		assertFalse(digest.equals(cfg.digest()));
+	}
+
+	@Test
+	public void chainNameLength() {
+		final FirewallConfig cfg = config();
+		// the longest shadow chain is "<name>-b-input-accept"
+		cfg.chainName = "1234droidwall";
+		RuleCompiler.compile(cfg);
+		cfg.chainName = "12345droidwall";
+		try {
+			RuleCompiler.compile(cfg);
+			fail("compiled " + cfg.chainName);
+		} catch (IllegalArgumentException e) {
+			assertTrue(e.getMessage(), e.getMessage().contains(
+					"\"12345droidwall-b-input-accept\" has 29 characters"));
+		}
+	}
+
+	@Test
+	public void customScriptOnlyInIpv4() {
+		final FirewallConfig cfg = config();
+		cfg.ipv6Enabled = true;
+		cfg.customScript = "$IPTABLES -A droidwall -j RETURN";
+		final Ruleset rules = RuleCompiler.compile(cfg);
+		assertEquals(cfg.customScript, rules.get(Family.IPV4)
+				.getCustomScript());
+		assertEquals("droidwall", rules.get(Family.IPV4)
+				.getCustomScriptChain());
+		assertNull(rules.get(Family.IPV6).getCustomScript());
+		assertTrue(rules.hasCustomScript());
+	}
+
+	@Test
+	public void selectedUidsAreMergedIntoRanges() {
+		final FirewallConfig cfg = config();
+		cfg.installedUids = new int[] { 10001, 10002, 10003, 10010, 10020 };
+		cfg.uidsWifi.addAll(Arrays.asList(10001, 10002, 10003, 10010));
+		Ruleset rules = RuleCompiler.compile(cfg);
+		assertEquals(Arrays.asList(
+				"-m owner --uid-owner 1014 -j RETURN",
+				"-m owner --uid-owner 1010 -j RETURN",
+				"-m owner --uid-owner 10001:10010 -j RETURN",
+				"-j droidwall-reject"), specs(rules, "droidwall-wifi"));
+		assertEquals(3, rules.getUidRulesSaved());
+		assertTrue(rules.rangeContains(10005));
+		assertFalse(rules.rangeContains(10011));
+
+		cfg.ownerRanges = false;
+		rules = RuleCompiler.compile(cfg);
+		// dhcp, wifi, four applications and the reject
+		assertEquals(7, specs(rules, "droidwall-wifi").size());
+		assertEquals(0, rules.getUidRulesSaved());
+	}
+
+	@Test
+	public void digestFollowsTheSettings() {
+		final FirewallConfig a = config();
+		final FirewallConfig b = config();
+		assertEquals(a.digest(), b.digest());
+		b.uidsWifi.add(10005);
+		assertFalse(a.digest().equals(b.digest()));
+		a.uidsWifi.add(10005);
+		assertEquals(a.digest(), b.digest());
+		b.lanIpv4.add("192.168.1.0/24");
+		assertFalse(a.digest().equals(b.digest()));
+	}
+
+	@Test
+	public void lockdown() {
+		final FirewallConfig cfg = config();
+		cfg.ipv6Enabled = true;
+		final Ruleset rules = RuleCompiler.compileLockdown(cfg);
+		assertEquals(Arrays.asList("-o lo -j RETURN",
+				"-m owner --uid-owner 0 -p udp --dport 53 -j RETURN",
+				"-m owner --uid-owner 0 -p tcp --dport 53 -j RETURN",
+				"-m owner --uid-owner 0 -p udp --dport 547 -j RETURN",
+				"-m owner --uid-owner 0 -j REJECT",
+				"-m owner --uid-owner 10000:" + Match.MAX_UID + " -j REJECT"),
+				specs(rules, Family.IPV6, "droidwall-boot"));
+	}
+}
@@ -0,0 +1,131 @@
+/**
+ * Tests of the per-rule shell emitter.
+ *
+ * Copyright (C) 2012-2014	Jason Tschohl
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * @author Jason Tschohl
+ * @version 1.0
+ */
+
+package com.jtschohl.androidfirewall.rules;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+public class ShellEmitterTest {
+
+	static List<String> lines(String script) {
+		return Arrays.asList(script.split("\n"));
+	}
+
+	private static Ruleset compile() {
+		final FirewallConfig cfg = RuleCompilerTest.config();
+		cfg.uidsWifi.add(10005);
+		cfg.lanEnabled = true;
+		cfg.lanIpv4.add("192.168.1.0/24");
+		return RuleCompiler.compile(cfg);
+	}
+
+	@Test
+	public void buildsShadowChainsAndSwapsThem() {
+		final List<String> script = lines(new ShellEmitter()
+				.render(compile()));
+		assertEquals("$IPTABLES --version || exit 1", script.get(0));
+		assertTrue(script.contains("$IPTABLES -N droidwall-b-wifi 2>/dev/null"));
+		assertTrue(script.contains("$IPTABLES -A droidwall-b-wifi"
+				+ " -m owner --uid-owner 10005 -j RETURN || exit 30"));
+		// jumps between our chains point at the shadow chains
+		assertTrue(script.contains("$IPTABLES -A droidwall-b"
+				+ " -o wlan+ -j droidwall-b-lan-dispatch || exit 30"));
+		assertTrue(script.contains("$IPTABLES -A droidwall-b-lan-dispatch"
+				+ " -d 192.168.1.0/24 -g droidwall-b-lan || exit 30"));
+		assertTrue(script.contains("$IPTABLES -R OUTPUT $AF_POS"
+				+ " -j droidwall-b || exit 11"));
+		assertTrue(script.contains("$IPTABLES -E droidwall-b-wifi"
+				+ " droidwall-wifi || exit 40"));
+		// the live chains are never flushed before the swap
+		final int swap = script.indexOf("$IPTABLES -R OUTPUT $AF_POS"
+				+ " -j droidwall-b || exit 11");
+		final int flush = script.indexOf("$IPTABLES -F droidwall 2>/dev/null");
+		assertTrue(swap >= 0 && flush > swap);
+	}
+
+	@Test
+	public void everyRuleIsEmittedOnce() {
+		final Ruleset rules = compile();
+		int count = 0;
+		for (String line : lines(new ShellEmitter().render(rules))) {
+			if (line.startsWith("$IPTABLES -A ")) {
+				count++;
+			}
+		}
+		assertEquals(rules.ruleCount(), count);
+	}
+
+	@Test
+	public void customScriptRunsBetweenTheRules() {
+		final FirewallConfig cfg = RuleCompilerTest.config();
+		cfg.customScript = "$IPTABLES -A droidwall -o usb+ -j RETURN";
+		final String script = new ShellEmitter().render(RuleCompiler
+				.compile(cfg));
+		final List<String> lines = lines(script);
+		// flushed in place: the prologue creates and hooks the live chains
+		assertTrue(lines.contains("$IPTABLES -L droidwall >/dev/null"
+				+ " 2>/dev/null || $IPTABLES --new droidwall || exit 3"));
+		assertTrue(lines.contains("$IPTABLES -C OUTPUT -j droidwall"
+				+ " 2>/dev/null || $IPTABLES -A OUTPUT -j droidwall || exit 11"));
+		assertTrue(lines.contains("$IPTABLES -F droidwall || exit 17"));
+		assertFalse(script.contains("droidwall-b"));
+		// after the DNS and NTP rules, before the interface dispatch
+		final int custom = lines.indexOf(cfg.customScript);
+		final int ntp = lines.indexOf("$IPTABLES -A droidwall -m owner"
+				+ " --uid-owner 1000 -p udp --dport 123 -j RETURN || exit 30");
+		final int dispatch = lines.indexOf("$IPTABLES -A droidwall"
+				+ " -o wlan+ -j droidwall-wifi || exit 30");
+		assertTrue(ntp >= 0 && custom > ntp && dispatch > custom);
+		// the hooks end up first in the built-in chains
+		assertTrue(lines.contains("$IPTABLES -I OUTPUT 1 -j droidwall"
+				+ " || exit 12"));
+	}
+
+	@Test
+	public void ipv6UsesItsOwnBinary() {
+		final FirewallConfig cfg = RuleCompilerTest.config();
+		cfg.ipv6Enabled = true;
+		final String script = new ShellEmitter().render(RuleCompiler
+				.compile(cfg));
+		assertTrue(script.contains("$IP6TABLES -E droidwall-b-wifi"
+				+ " droidwall-wifi || exit 40"));
+	}
+
+	@Test
+	public void scriptIsValidShell() throws Exception {
+		final FirewallConfig cfg = RuleCompilerTest.config();
+		cfg.ipv6Enabled = true;
+		cfg.customScript = "echo custom";
+		final Ruleset rules = RuleCompiler.compile(cfg);
+		assertEquals(0, Shells.syntaxCheck(new ShellEmitter().render(rules)));
+		cfg.customScript = "";
+		assertEquals(0, Shells.syntaxCheck(new ShellEmitter()
+				.render(RuleCompiler.compile(cfg))));
+	}
+}
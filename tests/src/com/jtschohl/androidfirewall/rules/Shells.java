@@ -0,0 +1,62 @@
+/**
+ * Shell helpers of the emitter tests.
+ *
+ * Copyright (C) 2012-2014	Jason Tschohl
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * @author Jason Tschohl
+ * @version 1.0
+ */
+
+package com.jtschohl.androidfirewall.rules;
+
+import java.io.File;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import org.junit.Assume;
+
+final class Shells {
+
+	private Shells() {
+	}
+
+	/**
+	 * Parse a script with "sh -n" without running it. The test is skipped
+	 * where there is no /bin/sh.
+	 *
+	 * @return the exit code of the shell
+	 */
+	static int syntaxCheck(String script) throws Exception {
+		Assume.assumeTrue(new File("/bin/sh").canExecute());
+		final Process p = new ProcessBuilder("/bin/sh", "-n")
+				.redirectErrorStream(true).start();
+		final OutputStream in = p.getOutputStream();
+		in.write(script.getBytes("UTF-8"));
+		in.close();
+		final InputStream out = p.getInputStream();
+		final byte[] buf = new byte[4096];
+		final StringBuilder errors = new StringBuilder();
+		int n;
+		while ((n = out.read(buf)) != -1) {
+			errors.append(new String(buf, 0, n, "UTF-8"));
+		}
+		final int code = p.waitFor();
+		if (code != 0) {
+			System.err.println(errors);
+		}
+		return code;
+	}
+}
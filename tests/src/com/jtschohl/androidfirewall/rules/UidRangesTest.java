@@ -0,0 +1,88 @@
+/**
+ * Tests of the UID range merging.
+ *
+ * Copyright (C) 2012-2014	Jason Tschohl
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * @author Jason Tschohl
+ * @version 1.0
+ */
+
+package com.jtschohl.androidfirewall.rules;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+public class UidRangesTest {
+
+	private static String ranges(List<int[]> ranges) {
+		final List<String> res = new ArrayList<String>();
+		for (int[] range : ranges) {
+			res.add(range[0] == range[1] ? "" + range[0] : range[0] + ":"
+					+ range[1]);
+		}
+		return res.toString();
+	}
+
+	private static String compact(int[] installed, Integer... uids) {
+		return ranges(UidRanges.compact(Arrays.asList(uids), installed));
+	}
+
+	@Test
+	public void adjacentUidsAlwaysMerge() {
+		assertEquals("[1000:1002, 10005]",
+				compact(null, 1002, 10005, 1000, 1001));
+	}
+
+	@Test
+	public void specialUidsAreSkipped() {
+		assertEquals("[10001]", compact(null, FirewallConfig.SPECIAL_UID_ANY,
+				10001, FirewallConfig.SPECIAL_UID_KERNEL));
+	}
+
+	@Test
+	public void bridgesGapsWithoutInstalledApplications() {
+		final int[] installed = { 10001, 10004, 10008 };
+		assertEquals("[10001:10004]", compact(installed, 10001, 10004));
+		// 10004 is installed but not selected
+		assertEquals("[10001, 10008]", compact(installed, 10001, 10008));
+	}
+
+	@Test
+	public void neverBridgesSystemUids() {
+		// dhcp and friends have no package
+		assertEquals("[1000, 1014]", compact(new int[0], 1000, 1014));
+		assertEquals("[9999, 10001]", compact(new int[0], 9999, 10001));
+	}
+
+	@Test
+	public void neverBridgesAcrossUsersOrIsolatedUids() {
+		final int[] installed = new int[0];
+		assertEquals("[19999, 110000]", compact(installed, 19999, 110000));
+		assertEquals("[10001, 99000]", compact(installed, 10001, 99000));
+		assertEquals("[110001:110005]", compact(installed, 110001, 110005));
+	}
+
+	@Test
+	public void singleSplitsRanges() {
+		assertEquals("[10001, 10002, 10003]", ranges(UidRanges.single(Arrays
+				.asList(10003, 10001, 10002))));
+	}
+}
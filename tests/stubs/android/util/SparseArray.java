@@ -0,0 +1,82 @@
+/**
+ * Plain JVM stand-in for the Android class of the same name.
+ *
+ * Copyright (C) 2012-2014	Jason Tschohl
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * @author Jason Tschohl
+ * @version 1.0
+ */
+
+package android.util;
+
+import java.util.Arrays;
+
+/**
+ * The part of android.util.SparseArray the log classes use, with the same
+ * layout: keys sorted in one int array, found by binary search. Only
+ * built by the test module, so the log classes build on a plain JVM.
+ */
+public class SparseArray<E> {
+
+	private int[] keys = new int[10];
+	private Object[] values = new Object[10];
+	private int size = 0;
+
+	public E get(int key) {
+		final int i = Arrays.binarySearch(keys, 0, size, key);
+		return i < 0 ? null : valueAt(i);
+	}
+
+	public void put(int key, E value) {
+		int i = Arrays.binarySearch(keys, 0, size, key);
+		if (i >= 0) {
+			values[i] = value;
+			return;
+		}
+		i = -i - 1;
+		if (size == keys.length) {
+			keys = Arrays.copyOf(keys, size * 2);
+			values = Arrays.copyOf(values, size * 2);
+		}
+		System.arraycopy(keys, i, keys, i + 1, size - i);
+		System.arraycopy(values, i, values, i + 1, size - i);
+		keys[i] = key;
+		values[i] = value;
+		size++;
+	}
+
+	public void append(int key, E value) {
+		put(key, value);
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public int keyAt(int index) {
+		return keys[index];
+	}
+
+	@SuppressWarnings("unchecked")
+	public E valueAt(int index) {
+		return (E) values[index];
+	}
+
+	public void clear() {
+		Arrays.fill(values, 0, size, null);
+		size = 0;
+	}
+}